@@ -0,0 +1,358 @@
+package controllers;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import notifiers.UploadNotifier;
+import play.Logger;
+import play.Play;
+import play.mvc.Controller;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+import controllers.metrics.Metrics;
+import controllers.processing.BatchStreamReader;
+import controllers.processing.UploadPipeline;
+import controllers.response.UploadResponse;
+import controllers.storage.DedupeCache;
+import controllers.storage.TempFileIndex;
+
+/**
+ * Handles many images in a single request. The images are read off the
+ * request one after the other and each one is handed to the shared
+ * {@link UploadPipeline} as soon as it is on disk, so they are decoded,
+ * resized and pushed to the CDN at the same time.
+ * <p/>
+ * The response is a JSON array with one {@link UploadResponse} per image,
+ * each with an added <code>index</code> property (the position of the image in
+ * the request). Results are streamed back as the images finish, which is not
+ * necessarily the order they were sent in. An image that fails only fails its
+ * own entry, with the same codes a single upload would get.
+ */
+public class BatchUpload extends Controller {
+	private static final Gson GSON = new Gson();
+
+	/**
+	 * Accepts either a <code>multipart/form-data</code> POST with any number of
+	 * <code>files</code> parts, or a raw POST body in the length-prefixed
+	 * format read by {@link BatchStreamReader}.
+	 */
+	public static void upload(File[] files) {
+		// Add separator to the log for easier visual parsing.
+		Logger.info("================================================");
+
+		Batch batch = new Batch(Upload.getSourceIP());
+		response.contentType = "application/json";
+		response.writeChunk("[");
+
+		if (files != null && files.length > 0) {
+			for (File file : files)
+				batch.add(file);
+		} else
+			batch.addAll(new BatchStreamReader(request.body));
+
+		batch.finish();
+		response.writeChunk("]");
+
+		Logger.info("BATCH UPLOAD from %s Complete [images=%s]",
+				batch.sourceIP, batch.index);
+	}
+
+	/**
+	 * The state of one batch request; only ever used on the request thread.
+	 */
+	private static class Batch {
+		private final String sourceIP;
+		private final CompletionService<UploadResponse> service = UploadPipeline
+				.createCompletionService();
+
+		/**
+		 * The index and start time of each image still being processed.
+		 */
+		private final Map<Future<UploadResponse>, long[]> pending = new IdentityHashMap<Future<UploadResponse>, long[]>();
+
+		private int index;
+		private int written;
+
+		private Batch(String sourceIP) {
+			this.sourceIP = sourceIP;
+		}
+
+		/**
+		 * Used to add a multipart file; Play already spooled it to disk so all
+		 * we need to do is move it into place.
+		 */
+		private void add(File file) {
+			long startTime = System.nanoTime();
+			UploadResponse item = new UploadResponse();
+			File tempFile = prepare(item, file.getName());
+
+			// Both live in the tmp dir, a rename never has to copy.
+			if (tempFile != null && file.renameTo(tempFile)) {
+				submit(item, tempFile, null, startTime);
+				complete(null, startTime);
+				return;
+			}
+
+			if (tempFile != null) {
+				Logger.error(
+						"Unable to move the uploaded file [%s] to the temporary file: %s",
+						file.getAbsolutePath(), tempFile.getAbsolutePath());
+				item.setType(UploadResponse.Type.CANNOT_ACCESS_TMP_DECODE_FILE);
+			}
+
+			complete(item, startTime);
+		}
+
+		/**
+		 * Used to add every image of a length-prefixed body. A body that is cut
+		 * short fails the image it ends in; the ones before it are unaffected.
+		 */
+		private void addAll(BatchStreamReader reader) {
+			while (true) {
+				long startTime = System.nanoTime();
+				UploadResponse item = new UploadResponse();
+				String fileName;
+
+				try {
+					fileName = reader.next();
+				} catch (IOException e) {
+					Logger.error(e, "Unable to read the next batch image header");
+					item.setType(UploadResponse.Type.FAILED_DECODING_TO_TMP_FILE);
+					complete(item, startTime);
+					return;
+				}
+
+				if (fileName == null)
+					return;
+
+				File tempFile = prepare(item, fileName);
+
+				if (tempFile == null) {
+					complete(item, startTime);
+					continue;
+				}
+
+				MessageDigest digest = DedupeCache.createDigest();
+
+				if (!spool(item, reader, tempFile, digest)) {
+					complete(item, startTime);
+
+					// Nothing after a truncated image can be trusted.
+					if (item.code == UploadResponse.CODE_FAILURE_DECODING_TO_TMP_FILE)
+						return;
+
+					continue;
+				}
+
+				String contentKey = DedupeCache.toKey(digest);
+				UploadResponse duplicate = DedupeCache.get(contentKey);
+
+				if (duplicate != null) {
+					Logger.info(
+							"Duplicate Upload [contentKey=%s, uniqueFileKey=%s]",
+							contentKey, duplicate.uniqueFileKey);
+
+					if (!tempFile.delete())
+						Logger.error("Unable to Delete File [%s]",
+								tempFile.getAbsolutePath());
+
+					duplicate.originalFileName = item.originalFileName;
+					Metrics.increment("dedupe_hits_total");
+
+					// Counted as a success, the duplicate is what the client
+					// gets.
+					item.setType(UploadResponse.Type.SUCCESS);
+					UploadPipeline.recordOutcome(item, "batch", startTime);
+					write(index++, duplicate);
+				} else
+					submit(item, tempFile, contentKey, startTime);
+
+				complete(null, startTime);
+			}
+		}
+
+		/**
+		 * Used to wait for every image still being processed.
+		 */
+		private void finish() {
+			while (!pending.isEmpty()) {
+				try {
+					collect(service.take());
+				} catch (InterruptedException e) {
+					Logger.error(e,
+							"Interrupted while waiting for %s batch images.",
+							pending.size());
+
+					// Report what's left as failed rather than leave it out.
+					for (long[] entry : pending.values()) {
+						UploadResponse item = new UploadResponse();
+						UploadPipeline.recordOutcome(item, "batch", entry[1]);
+						write((int) entry[0], item);
+					}
+
+					pending.clear();
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+
+		/**
+		 * Used to sanity-check the name of the next image and assign it its
+		 * unique file key.
+		 *
+		 * @return the temp file the image should be written to, or
+		 *         <code>null</code> (with the response type set) if it can't be
+		 *         processed.
+		 */
+		private File prepare(UploadResponse item, String fileName) {
+			// SANITY-CHECK, same as a single upload; we need at LEAST a name.
+			if (fileName == null || fileName.length() == 0) {
+				item.setType(UploadResponse.Type.MISSING_FILENAME);
+				return null;
+			}
+
+			item.originalFileName = fileName;
+			String fileExtension = fileName
+					.substring(fileName.lastIndexOf('.') + 1);
+
+			if (!UploadPipeline.isSupportedExtension(fileExtension)) {
+				Logger.info("Unsupported File Type [extension=%s]",
+						fileExtension);
+				item.setType(UploadResponse.Type.UNSUPPORTED_FILE_TYPE);
+				return null;
+			}
+
+			if (Play.readOnlyTmp) {
+				Logger.fatal(
+						"Temp Dir [%s] READ-ONLY, imgscalr.com cannot function!",
+						Play.tmpDir.getAbsolutePath());
+				item.setType(UploadResponse.Type.TEMP_DIR_READONLY);
+				return null;
+			}
+
+			item.uniqueFileKey = UploadPipeline.createUniqueFileKey();
+			item.uniqueFileName = item.uniqueFileKey + '.' + fileExtension;
+
+			File tempFile = new File(Play.tmpDir, item.uniqueFileName);
+
+			// Make sure it is cleaned up if the upload never gets to the CDN.
+			TempFileIndex.getInstance().track(tempFile);
+			return tempFile;
+		}
+
+		/**
+		 * Used to copy the current image of <code>reader</code> into
+		 * <code>tempFile</code>.
+		 *
+		 * @return <code>true</code> if the whole image was written, otherwise
+		 *         the response type says why it wasn't.
+		 */
+		private boolean spool(UploadResponse item, BatchStreamReader reader,
+				File tempFile, MessageDigest digest) {
+			OutputStream outputStream = null;
+
+			try {
+				try {
+					outputStream = new FileOutputStream(tempFile, false);
+				} catch (IOException e) {
+					Logger.error(
+							e,
+							"Unable to access/create the temporary file [%s] to spool the submitted image to.",
+							tempFile.getAbsolutePath());
+					item.setType(UploadResponse.Type.CANNOT_ACCESS_TMP_DECODE_FILE);
+
+					// Keep the body in step for the next image.
+					reader.skip();
+					return false;
+				}
+
+				item.original.sizeInBytes = reader.copyTo(outputStream, digest);
+				outputStream.close();
+				return true;
+			} catch (IOException e) {
+				Logger.error(
+						e,
+						"An exception occurred while spooling a batch image from the client stream out to a temporary file: %s",
+						tempFile.getAbsolutePath());
+
+				// Also the case if the skip failed, the body is broken either way.
+				item.setType(UploadResponse.Type.FAILED_DECODING_TO_TMP_FILE);
+
+				if (!tempFile.delete())
+					Logger.error("Unable to Delete File [%s]",
+							tempFile.getAbsolutePath());
+
+				return false;
+			} finally {
+				try {
+					if (outputStream != null)
+						outputStream.close();
+				} catch (Exception e) {
+					// no-op
+				}
+			}
+		}
+
+		private void submit(UploadResponse item, File tempFile,
+				String contentKey, long startTime) {
+			pending.put(UploadPipeline.submit(service, item, tempFile,
+					contentKey), new long[] { index++, startTime });
+		}
+
+		/**
+		 * Used to write <code>item</code> (if not <code>null</code>, it is
+		 * then the next image and done already) along with any images that have
+		 * finished since the last call.
+		 */
+		private void complete(UploadResponse item, long startTime) {
+			if (item != null) {
+				UploadPipeline.recordOutcome(item, "batch", startTime);
+				write(index++, item);
+			}
+
+			Future<UploadResponse> future;
+
+			while ((future = service.poll()) != null)
+				collect(future);
+		}
+
+		private void collect(Future<UploadResponse> future) {
+			long[] entry = pending.remove(future);
+			UploadResponse item;
+
+			try {
+				item = future.get();
+			} catch (InterruptedException e) {
+				// Can't happen, the future is done.
+				item = new UploadResponse();
+			} catch (ExecutionException e) {
+				Logger.error(e.getCause(), "Batch Image [%s] Failed", entry[0]);
+				item = new UploadResponse();
+			}
+
+			// Queue the mail notice, it goes out with the next digest.
+			if (item.success)
+				UploadNotifier.enqueue(sourceIP, item);
+
+			UploadPipeline.recordOutcome(item, "batch", entry[1]);
+			write((int) entry[0], item);
+		}
+
+		private void write(int itemIndex, UploadResponse item) {
+			JsonObject json = GSON.toJsonTree(item).getAsJsonObject();
+			json.addProperty("index", itemIndex);
+
+			response.writeChunk((written++ == 0 ? "" : ",") + json.toString());
+		}
+	}
+}
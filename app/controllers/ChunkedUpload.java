@@ -0,0 +1,238 @@
+package controllers;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+import notifiers.UploadNotifier;
+import play.Logger;
+import play.Play;
+import play.mvc.Controller;
+import play.mvc.Http;
+import play.mvc.Http.Header;
+import controllers.processing.UploadPipeline;
+import controllers.response.UploadResponse;
+import controllers.response.UploadSessionResponse;
+import controllers.storage.TempFileIndex;
+import controllers.storage.UploadSessionStore;
+
+/**
+ * Handles an image sent in chunks, so a large original survives a dropped
+ * connection:
+ * <ol>
+ * <li>{@link #init()} opens an upload session for the
+ * <code>x-file-name</code> and <code>x-file-size</code> headers and returns
+ * its <code>uniqueFileKey</code>.</li>
+ * <li>{@link #chunk(String, long)} writes the raw (binary) body at the given
+ * offset. Chunks may be sent in any order, in parallel or again.</li>
+ * <li>{@link #status(String)} returns the offset every byte before which has
+ * been received, to resume from after an interruption.</li>
+ * <li>{@link #commit(String)} processes the original like any other upload
+ * and returns the usual {@link UploadResponse}.</li>
+ * </ol>
+ * See {@link UploadSessionStore} for how sessions are kept and expire.
+ */
+public class ChunkedUpload extends Controller {
+	public static void init() {
+		// Add separator to the log for easier visual parsing.
+		Logger.info("================================================");
+
+		UploadSessionResponse status = new UploadSessionResponse(
+				UploadResponse.Type.GENERAL_FAILURE);
+
+		Header header = request.headers.get("x-file-name");
+		String fileName = (header == null ? null : header.value());
+
+		// SANITY-CHECK, same as a single upload; we need at LEAST a name.
+		if (fileName == null || fileName.length() == 0)
+			renderJSON(status.setType(UploadResponse.Type.MISSING_FILENAME));
+
+		String fileExtension = fileName
+				.substring(fileName.lastIndexOf('.') + 1);
+
+		if (!UploadPipeline.isSupportedExtension(fileExtension)) {
+			Logger.info("Unsupported File Type [extension=%s]", fileExtension);
+			renderJSON(status
+					.setType(UploadResponse.Type.UNSUPPORTED_FILE_TYPE));
+		}
+
+		/*
+		 * SANITY-CHECK, the file is created at its full size up front so the
+		 * size has to be known, and within reason.
+		 */
+		header = request.headers.get("x-file-size");
+
+		try {
+			status.size = (header == null ? 0 : Long
+					.parseLong(header.value()));
+		} catch (NumberFormatException e) {
+			Logger.error(
+					"Unable to parse 'x-file-size' header value '%s' as an integer.",
+					header.value());
+		}
+
+		if (status.size <= 0 || status.size > UploadSessionStore.getMaxSize()) {
+			Logger.info("Invalid Chunked Upload Size [size=%s, max=%s]",
+					status.size, UploadSessionStore.getMaxSize());
+			renderJSON(status.setType(UploadResponse.Type.INVALID_CHUNK));
+		}
+
+		if (Play.readOnlyTmp) {
+			Logger.fatal(
+					"Temp Dir [%s] READ-ONLY, imgscalr.com cannot function!",
+					Play.tmpDir.getAbsolutePath());
+			renderJSON(status.setType(UploadResponse.Type.TEMP_DIR_READONLY));
+		}
+
+		String uniqueFileKey = UploadPipeline.createUniqueFileKey();
+
+		try {
+			UploadSessionStore.getInstance().create(uniqueFileKey,
+					uniqueFileKey + '.' + fileExtension, fileName, status.size);
+		} catch (IOException e) {
+			Logger.error(
+					e,
+					"Unable to create the temporary file for chunked upload [%s].",
+					uniqueFileKey);
+			renderJSON(status
+					.setType(UploadResponse.Type.CANNOT_ACCESS_TMP_DECODE_FILE));
+		}
+
+		Logger.info(
+				"CHUNKED UPLOAD from %s [fileName=%s, fileSize=%s, uniqueFileKey=%s]",
+				request.remoteAddress, fileName, status.size, uniqueFileKey);
+
+		status.uniqueFileKey = uniqueFileKey;
+		renderJSON(status.setType(UploadResponse.Type.SUCCESS));
+	}
+
+	public static void chunk(String uniqueFileKey, long offset) {
+		UploadSessionStore.Session session = getSession(uniqueFileKey);
+		UploadSessionResponse status = createStatus(session);
+		ReadableByteChannel inChannel = null;
+
+		try {
+			inChannel = (request.body instanceof FileInputStream ? ((FileInputStream) request.body)
+					.getChannel() : Channels.newChannel(request.body));
+			session.write(offset, inChannel);
+		} catch (IllegalArgumentException e) {
+			Logger.info("Invalid Chunk [uniqueFileKey=%s, offset=%s]: %s",
+					uniqueFileKey, offset, e.getMessage());
+			status.setType(UploadResponse.Type.INVALID_CHUNK);
+		} catch (IOException e) {
+			/*
+			 * Most likely the connection dropped; whatever part of the chunk
+			 * made it isn't acknowledged, the client resumes from the offset.
+			 */
+			Logger.error(e,
+					"An exception occurred while writing chunk [offset=%s] of [%s].",
+					offset, uniqueFileKey);
+			status.setType(UploadResponse.Type.FAILED_DECODING_TO_TMP_FILE);
+		} finally {
+			try {
+				if (inChannel != null)
+					inChannel.close();
+			} catch (Exception e) {
+				// no-op
+			}
+		}
+
+		status.offset = session.getOffset();
+		renderJSON(status);
+	}
+
+	public static void status(String uniqueFileKey) {
+		UploadSessionStore.Session session = getSession(uniqueFileKey);
+		UploadSessionResponse status = createStatus(session);
+
+		status.offset = session.getOffset();
+		renderJSON(status);
+	}
+
+	public static void commit(String uniqueFileKey) {
+		UploadSessionStore store = UploadSessionStore.getInstance();
+		UploadSessionStore.Session session = getSession(uniqueFileKey);
+		long startTime = System.nanoTime();
+		File tempFile = null;
+
+		try {
+			tempFile = store.commit(session);
+		} catch (IOException e) {
+			Logger.error(e, "Unable to commit chunked upload [%s].",
+					uniqueFileKey);
+		}
+
+		// SANITY-CHECK, tell the client where to resume from if it isn't done.
+		if (tempFile == null) {
+			UploadSessionResponse status = createStatus(session);
+			status.offset = session.getOffset();
+
+			if (session.isComplete())
+				status.setType(UploadResponse.Type.CANNOT_ACCESS_TMP_DECODE_FILE);
+			else
+				status.setType(UploadResponse.Type.INVALID_CHUNK);
+
+			renderJSON(status);
+		}
+
+		UploadResponse response = new UploadResponse();
+		response.originalFileName = session.originalFileName;
+		response.uniqueFileKey = session.uniqueFileKey;
+		response.uniqueFileName = session.uniqueFileName;
+
+		// Make sure it is cleaned up if the upload never gets to the CDN.
+		TempFileIndex.getInstance().track(tempFile);
+
+		/*
+		 * IMPL NOTE: The chunks may have arrived in any order so the original
+		 * isn't hashed on the way in; like multipart uploads, chunked ones
+		 * skip the DedupeCache.
+		 */
+		try {
+			if (UploadPipeline.processFile(response, tempFile, null))
+				UploadNotifier.enqueue(Upload.getSourceIP(), response);
+			else if (response.code == UploadResponse.CODE_FAILURE_SERVER_BUSY) {
+				// Keep what the client sent, it only has to commit again.
+				TempFileIndex.getInstance().untrack(tempFile);
+				store.restore(session, tempFile);
+				Http.Response.current().setHeader("Retry-After",
+						Integer.toString(response.retryAfter));
+			}
+		} finally {
+			UploadPipeline.recordOutcome(response, "chunked", startTime);
+		}
+
+		renderJSON(response);
+	}
+
+	/**
+	 * @return the open session with the given key; renders
+	 *         {@link UploadResponse.Type#UNKNOWN_UPLOAD_SESSION} if there is
+	 *         none.
+	 */
+	private static UploadSessionStore.Session getSession(String uniqueFileKey) {
+		UploadSessionStore.Session session = UploadSessionStore.getInstance()
+				.get(uniqueFileKey);
+
+		if (session == null) {
+			UploadSessionResponse status = new UploadSessionResponse(
+					UploadResponse.Type.UNKNOWN_UPLOAD_SESSION);
+			status.uniqueFileKey = uniqueFileKey;
+			renderJSON(status);
+		}
+
+		return session;
+	}
+
+	private static UploadSessionResponse createStatus(
+			UploadSessionStore.Session session) {
+		UploadSessionResponse status = new UploadSessionResponse(
+				UploadResponse.Type.SUCCESS);
+		status.uniqueFileKey = session.uniqueFileKey;
+		status.size = session.size;
+
+		return status;
+	}
+}
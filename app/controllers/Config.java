@@ -0,0 +1,72 @@
+package controllers;
+
+import play.Logger;
+import play.Play;
+
+/**
+ * Typed access to the <code>imgscalr.*</code> properties in
+ * application.conf. A missing or unparseable value falls back to the given
+ * default (the latter is logged) so a typo in the config never keeps the
+ * application from starting.
+ */
+public class Config {
+	public static String getString(String key, String defaultValue) {
+		return (Play.configuration == null ? defaultValue : Play.configuration
+				.getProperty(key, defaultValue));
+	}
+
+	public static int getInt(String key, int defaultValue) {
+		String value = getString(key, null);
+
+		if (value != null) {
+			try {
+				return Integer.parseInt(value.trim());
+			} catch (NumberFormatException e) {
+				logInvalid(key, value, defaultValue);
+			}
+		}
+
+		return defaultValue;
+	}
+
+	public static long getLong(String key, long defaultValue) {
+		String value = getString(key, null);
+
+		if (value != null) {
+			try {
+				return Long.parseLong(value.trim());
+			} catch (NumberFormatException e) {
+				logInvalid(key, value, defaultValue);
+			}
+		}
+
+		return defaultValue;
+	}
+
+	public static double getDouble(String key, double defaultValue) {
+		String value = getString(key, null);
+
+		if (value != null) {
+			try {
+				return Double.parseDouble(value.trim());
+			} catch (NumberFormatException e) {
+				logInvalid(key, value, defaultValue);
+			}
+		}
+
+		return defaultValue;
+	}
+
+	public static boolean getBoolean(String key, boolean defaultValue) {
+		String value = getString(key, null);
+		return (value == null ? defaultValue : Boolean.parseBoolean(value
+				.trim()));
+	}
+
+	private static void logInvalid(String key, String value,
+			Object defaultValue) {
+		Logger.error(
+				"Unable to parse config value '%s' for '%s', using the default '%s' instead.",
+				value, key, defaultValue);
+	}
+}
@@ -7,12 +7,22 @@ public interface Constants {
 	 */
 	public static final int FILE_BUFFER_SIZE = 65536; // 64k
 
+	/**
+	 * Maximum number of bytes moved per call when binary uploads are spooled
+	 * to disk channel-to-channel.
+	 */
+	public static final int TRANSFER_CHUNK_SIZE = 8388608; // 8MB
+
 	/**
 	 * Length of the unique file keys generated and used to name the uploads on
 	 * the CDN.
 	 */
 	public static final int UNIQUE_FILE_KEY_SIZE = 9;
 
+	/*
+	 * The built-in size profiles, see SizeProfiles for how to change them (or
+	 * add others) without a rebuild.
+	 */
 	public static final int SIZE_THUMBNAIL = 150;
 	public static final int SIZE_SMALL = 250;
 	public static final int SIZE_MEDIUM = 500;
@@ -0,0 +1,32 @@
+package controllers;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads of the background executors, named
+ * <code>imgscalr-&lt;name&gt;-N</code> so they are easy to tell apart in a
+ * thread dump.
+ * <p/>
+ * The threads are daemons: the executors are shut down when the application
+ * stops (or is reloaded in DEV mode), they never hold the JVM open on their
+ * account.
+ */
+public class DaemonThreadFactory implements ThreadFactory {
+	private final String prefix;
+	private final AtomicInteger count = new AtomicInteger();
+
+	public DaemonThreadFactory(String name) {
+		if (name == null)
+			throw new IllegalArgumentException("name cannot be null");
+
+		this.prefix = "imgscalr-" + name + '-';
+	}
+
+	@Override
+	public Thread newThread(Runnable r) {
+		Thread thread = new Thread(r, prefix + count.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	}
+}
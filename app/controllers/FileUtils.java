@@ -0,0 +1,90 @@
+package controllers;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+import play.Logger;
+
+/**
+ * The file moves and copies the pipeline and its stores make.
+ * <p/>
+ * IMPL NOTE: Renames are done with {@link File#renameTo(File)}, which is an
+ * atomic <code>rename(2)</code> within a single POSIX file system; the atomic
+ * moves of <code>java.nio.file</code> require Java 7.
+ */
+public class FileUtils {
+	/**
+	 * Used to rename <code>from</code> to <code>to</code>, replacing
+	 * <code>to</code> if it exists.
+	 * 
+	 * @return <code>true</code> if it was renamed, <code>false</code> if it
+	 *         couldn't be (e.g. the two are on different file systems).
+	 */
+	public static boolean rename(File from, File to) {
+		if (from.renameTo(to))
+			return true;
+
+		// Windows won't rename over an existing file.
+		return (from.exists() && to.delete() && from.renameTo(to));
+	}
+
+	/**
+	 * Used to rename <code>from</code> to <code>to</code>, replacing
+	 * <code>to</code> if it exists.
+	 * 
+	 * @throws IOException
+	 *             if it couldn't be renamed; <code>from</code> is left as it
+	 *             is.
+	 */
+	public static void replace(File from, File to) throws IOException {
+		if (!rename(from, to))
+			throw new IOException("Unable to rename [" + from + "] to [" + to
+					+ "]");
+	}
+
+	/**
+	 * Used to move <code>from</code> to <code>to</code>: a rename unless the
+	 * two are on different file systems, in which case it is copied and then
+	 * deleted.
+	 */
+	public static void move(File from, File to) throws IOException {
+		if (rename(from, to))
+			return;
+
+		copy(from, to);
+
+		if (!from.delete())
+			Logger.error("Unable to Delete File [%s]", from.getAbsolutePath());
+	}
+
+	/**
+	 * Used to copy the contents of <code>from</code> to <code>to</code>
+	 * (replacing whatever it held) channel-to-channel.
+	 */
+	public static void copy(File from, File to) throws IOException {
+		FileInputStream in = new FileInputStream(from);
+		FileOutputStream out = null;
+
+		try {
+			out = new FileOutputStream(to, false);
+
+			FileChannel inChannel = in.getChannel();
+			FileChannel outChannel = out.getChannel();
+			long size = inChannel.size();
+			long position = 0;
+
+			while (position < size)
+				position += inChannel.transferTo(position, Math.min(
+						Constants.TRANSFER_CHUNK_SIZE, size - position),
+						outChannel);
+		} finally {
+			in.close();
+
+			if (out != null)
+				out.close();
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package controllers;
+
+import java.io.ByteArrayInputStream;
+
+import play.Logger;
+import play.libs.MimeTypes;
+import play.mvc.Controller;
+import controllers.metrics.Metrics;
+import controllers.processing.AdmissionRejectedException;
+import controllers.processing.OnDemandResizer;
+
+/**
+ * Serves sizes of uploaded images that are generated on demand, see
+ * {@link OnDemandResizer}.
+ */
+public class Images extends Controller {
+	private static final String ONDEMAND_OK = outcome("ok");
+	private static final String ONDEMAND_NOT_FOUND = outcome("not_found");
+	private static final String ONDEMAND_BUSY = outcome("busy");
+	private static final String ONDEMAND_ERROR = outcome("error");
+
+	/**
+	 * Renders the upload stored under <code>uniqueFileName</code> (e.g.
+	 * <code>AbCdEfGhI.jpg</code>) scaled to <code>width</code>.
+	 */
+	public static void resize(String uniqueFileName, int width) {
+		/*
+		 * SANITY-CHECK, the name ends up in file names on disk, make sure it
+		 * is one of ours before going near it.
+		 */
+		if (!OnDemandResizer.isValidName(uniqueFileName))
+			notFound();
+		if (!OnDemandResizer.isAllowedWidth(width))
+			notFound("Unsupported width " + width);
+
+		byte[] data = null;
+		Integer retryAfter = null;
+
+		try {
+			data = OnDemandResizer.resize(uniqueFileName, width);
+		} catch (AdmissionRejectedException e) {
+			retryAfter = e.getRetryAfter();
+		} catch (Exception e) {
+			Logger.error(
+					e,
+					"An exception occurred while generating the %spx size of [%s] on demand.",
+					width, uniqueFileName);
+			Metrics.increment(ONDEMAND_ERROR);
+			error(500, "Unable to Generate Image");
+		}
+
+		if (retryAfter != null) {
+			Metrics.increment(ONDEMAND_BUSY);
+			response.setHeader("Retry-After", retryAfter.toString());
+			error(503, "Server Busy");
+		}
+
+		if (data == null) {
+			Metrics.increment(ONDEMAND_NOT_FOUND);
+			notFound();
+		}
+
+		Metrics.increment(ONDEMAND_OK);
+
+		// Sizes of an upload never change once generated.
+		response.cacheFor("30d");
+		renderBinary(new ByteArrayInputStream(data), uniqueFileName,
+				MimeTypes.getContentType(uniqueFileName), true);
+	}
+
+	private static String outcome(String outcome) {
+		return Metrics.name("ondemand_requests_total", "outcome", outcome);
+	}
+}
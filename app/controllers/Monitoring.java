@@ -0,0 +1,51 @@
+package controllers;
+
+import play.mvc.Controller;
+import controllers.metrics.Metrics;
+import controllers.processing.ClusterScheduler;
+
+/**
+ * Endpoints for monitoring the application.
+ */
+public class Monitoring extends Controller {
+	public static final String CONFIG_METRICS_PUBLIC = "imgscalr.metrics.public";
+
+	/**
+	 * Renders all the metrics in the Prometheus text format for a local
+	 * scraper.
+	 * <p/>
+	 * SANITY-CHECK, unless <code>imgscalr.metrics.public=true</code> only
+	 * direct requests from this machine are answered. Requests that came in
+	 * through the front-end proxy (which are local too) carry its forwarding
+	 * headers and are refused.
+	 */
+	public static void metrics() {
+		checkAccess();
+
+		response.contentType = "text/plain; version=0.0.4";
+		renderText(Metrics.toText());
+	}
+
+	/**
+	 * Renders what every node sharing <code>imgscalr.cluster.dir</code>
+	 * reported last (jobs processed and stolen, throughput, queue length) as
+	 * JSON, by node id. Answered like {@link #metrics()}.
+	 */
+	public static void cluster() {
+		checkAccess();
+		renderJSON(ClusterScheduler.getNodeStats());
+	}
+
+	private static void checkAccess() {
+		if (!Config.getBoolean(CONFIG_METRICS_PUBLIC, false)
+				&& (!isLoopback(request.remoteAddress)
+						|| request.headers.get("x-real-ip") != null || request.headers
+						.get("x-forwarded-for") != null))
+			forbidden();
+	}
+
+	private static boolean isLoopback(String address) {
+		return (address != null && (address.startsWith("127.")
+				|| "0:0:0:0:0:0:0:1".equals(address) || "::1".equals(address)));
+	}
+}
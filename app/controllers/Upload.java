@@ -1,50 +1,64 @@
 package controllers;
 
-import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.Set;
 
 import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
 
 import net.iharder.Base64;
-import notifiers.UploadMailer;
+import notifiers.UploadNotifier;
 import play.Logger;
 import play.Play;
 import play.mvc.Controller;
+import play.mvc.Http;
 import play.mvc.Http.Header;
-
-import com.amazonaws.auth.PropertiesCredentials;
-import com.amazonaws.services.s3.AmazonS3;
-import com.amazonaws.services.s3.AmazonS3Client;
-import com.amazonaws.services.s3.model.CannedAccessControlList;
-import com.amazonaws.services.s3.model.PutObjectResult;
-import com.thebuzzmedia.common.util.RandomUtils;
-import com.thebuzzmedia.imgscalr.Scalr;
-import com.thebuzzmedia.imgscalr.Scalr.Method;
-import com.thebuzzmedia.imgscalr.Scalr.Mode;
-
+import controllers.metrics.Metrics;
+import controllers.processing.AdmissionController;
+import controllers.processing.BufferPool;
+import controllers.processing.AdmissionRejectedException;
+import controllers.processing.DecodedImage;
+import controllers.processing.ImageDecoder;
+import controllers.processing.ImageSniffer;
+import controllers.processing.JobQueue;
+import controllers.processing.SizeProfiles;
+import controllers.processing.TeeInputStream;
+import controllers.processing.UploadPipeline;
 import controllers.response.UploadResponse;
+import controllers.storage.DedupeCache;
+import controllers.storage.TempFileIndex;
 
 // TODO: Need to look into adding FORM auth tokens so not just anybody can POST to this controller
 // Play can generate these using a script tag.
 public class Upload extends Controller {
-	private static Set<String> validFileExt = new HashSet<String>();
-	private static Map<String, String> extMimeTypeMap = new HashMap<String, String>();
+	/**
+	 * How an uploaded image is decoded; either "file" (decode the Base64 body
+	 * to a temp file, then read the image from it) or "stream" (read the
+	 * image directly off the Base64 body while copying it to the temp file).
+	 */
+	public static final String CONFIG_INGEST_MODE = "imgscalr.ingest.mode";
 
-	private static AmazonS3 s3Client;
+	public static final String INGEST_MODE_FILE = "file";
+	public static final String INGEST_MODE_STREAM = "stream";
 
-	static {
-		// Init the fileExt Set
-		for (String name : ImageIO.getReaderFormatNames())
-			validFileExt.add(name);
+	private static Map<String, String> extMimeTypeMap = new HashMap<String, String>();
 
+	static {
 		// Init the mimeType Map
 		extMimeTypeMap.put("jpg", "image/jpeg");
 		extMimeTypeMap.put("JPG", "image/jpeg");
@@ -58,7 +72,259 @@ public class Upload extends Controller {
 		extMimeTypeMap.put("bmp", "image/bmp");
 	}
 
+	/**
+	 * Handles an image sent as a Base64-encoded POST body, the original
+	 * upload format used by browsers that can't send binary data.
+	 */
 	public static void upload() {
+		final UploadResponse response = new UploadResponse();
+		long startTime = System.nanoTime();
+
+		try {
+			File tempFile = prepare(response, null);
+
+			if (JobQueue.isAsync())
+				ingestAsync(response, tempFile);
+
+			AdmissionController.Ticket ticket = admit(response);
+
+			try {
+				ingest(response, tempFile, ticket);
+			} finally {
+				ticket.release();
+			}
+		} finally {
+			UploadPipeline.recordOutcome(response, "base64", startTime);
+		}
+	}
+
+	private static void ingest(UploadResponse response, File tempFile,
+			AdmissionController.Ticket ticket) {
+		DecodedImage originalImage = null;
+		long elapsedTime = System.nanoTime();
+
+		MessageDigest digest = DedupeCache.createDigest();
+		String contentKey = null;
+
+		/*
+		 * In the default "file" ingest mode, for safety reasons we write the
+		 * original to disk first (to make sure we have it) and then read it
+		 * back in to generate the other versions of it.
+		 * 
+		 * The "stream" ingest mode decodes the image straight off the Base64
+		 * stream while the very same bytes are copied to the temp file, saving
+		 * the second full pass over the file.
+		 * 
+		 * Either way, the decoded bytes are hashed on the way through so a
+		 * repeat upload of the same image can be answered from the
+		 * DedupeCache; in "file" mode that happens before the image is even
+		 * decoded. And either way, only the first few KB are decoded before
+		 * the upload is sniffed to make sure it is worth decoding the rest.
+		 */
+		if (isStreamIngest()) {
+			TeeInputStream teeStream = decodeStreaming(response,
+					sniff(response, digest(new Base64.InputStream(
+							request.body, Base64.DECODE), digest)), tempFile);
+			originalImage = readImage(response, teeStream, tempFile, ticket);
+			contentKey = DedupeCache.toKey(digest);
+
+			UploadPipeline.recordStage("stream_decode", elapsedTime);
+			renderIfDuplicate(response, contentKey, tempFile, originalImage);
+		} else {
+			decodeToFile(response, sniff(response, new Base64.InputStream(
+					request.body, Base64.DECODE)), tempFile, digest);
+			contentKey = DedupeCache.toKey(digest);
+
+			UploadPipeline.recordStage("ingest", elapsedTime);
+			renderIfDuplicate(response, contentKey, tempFile, null);
+
+			elapsedTime = System.nanoTime();
+			originalImage = readImage(response, tempFile, ticket);
+			UploadPipeline.recordStage("decode", elapsedTime);
+		}
+
+		Logger.info("Base64 Decoded to File [size=%s, tempFile=%s]",
+				tempFile.length(), tempFile.getAbsolutePath());
+
+		process(response, tempFile, originalImage, contentKey);
+	}
+
+	/**
+	 * Used to write the original to <code>tempFile</code> (hashing it on the
+	 * way) and hand it over to the {@link JobQueue}; nothing is decoded here,
+	 * so the upload isn't admitted either.
+	 */
+	private static void ingestAsync(UploadResponse response, File tempFile) {
+		long elapsedTime = System.nanoTime();
+		MessageDigest digest = DedupeCache.createDigest();
+
+		decodeToFile(response, sniff(response, new Base64.InputStream(
+				request.body, Base64.DECODE)), tempFile, digest);
+		UploadPipeline.recordStage("ingest", elapsedTime);
+
+		accept(response, tempFile, DedupeCache.toKey(digest));
+	}
+
+	/**
+	 * Handles an image sent as raw binary, either as the entire POST body
+	 * (<code>application/octet-stream</code>) along with the same
+	 * <code>x-file-*</code> headers the Base64 upload uses, or as the
+	 * <code>file</code> part of a <code>multipart/form-data</code> POST.
+	 * <p/>
+	 * This avoids the 33% size overhead of Base64 and the decode pass; the
+	 * body is spooled to the temp file with
+	 * {@link FileChannel#transferFrom(ReadableByteChannel, long, long)}.
+	 */
+	public static void uploadBinary(File file) {
+		final UploadResponse response = new UploadResponse();
+		long startTime = System.nanoTime();
+
+		try {
+			File tempFile = prepare(response, (file == null ? null : file
+					.getName()));
+
+			if (JobQueue.isAsync())
+				ingestBinaryAsync(response, file, tempFile);
+
+			AdmissionController.Ticket ticket = admit(response);
+
+			try {
+				ingestBinary(response, file, tempFile, ticket);
+			} finally {
+				ticket.release();
+			}
+		} finally {
+			UploadPipeline.recordOutcome(response, "binary", startTime);
+		}
+	}
+
+	private static void ingestBinary(UploadResponse response, File file,
+			File tempFile, AdmissionController.Ticket ticket) {
+		DecodedImage originalImage = null;
+		long elapsedTime = System.nanoTime();
+
+		/*
+		 * IMPL NOTE: Only the "stream" ingest mode reads the body through our
+		 * own code, so it is the only binary mode that hashes it for the
+		 * DedupeCache; hashing the spooled modes would cost them their
+		 * channel-to-channel copy.
+		 */
+		String contentKey = null;
+
+		if (file != null) {
+			/*
+			 * Multipart; Play already spooled the part to disk so all we need
+			 * to do is move it into place.
+			 */
+			moveToFile(response, file, tempFile);
+			UploadPipeline.recordStage("ingest", elapsedTime);
+			sniff(response, tempFile);
+
+			elapsedTime = System.nanoTime();
+			originalImage = readImage(response, tempFile, ticket);
+			UploadPipeline.recordStage("decode", elapsedTime);
+		} else if (isStreamIngest()) {
+			MessageDigest digest = DedupeCache.createDigest();
+			TeeInputStream teeStream = decodeStreaming(response,
+					sniff(response, digest(request.body, digest)), tempFile);
+			originalImage = readImage(response, teeStream, tempFile, ticket);
+			contentKey = DedupeCache.toKey(digest);
+
+			UploadPipeline.recordStage("stream_decode", elapsedTime);
+			renderIfDuplicate(response, contentKey, tempFile, originalImage);
+		} else {
+			spoolToFile(response, tempFile);
+			UploadPipeline.recordStage("ingest", elapsedTime);
+			sniff(response, tempFile);
+
+			elapsedTime = System.nanoTime();
+			originalImage = readImage(response, tempFile, ticket);
+			UploadPipeline.recordStage("decode", elapsedTime);
+		}
+
+		Logger.info("Binary Spooled to File [size=%s, tempFile=%s]",
+				tempFile.length(), tempFile.getAbsolutePath());
+
+		process(response, tempFile, originalImage, contentKey);
+	}
+
+	/**
+	 * Used to spool the original to <code>tempFile</code> and hand it over to
+	 * the {@link JobQueue}. Like the spooled binary ingest modes, the original
+	 * isn't hashed for the DedupeCache.
+	 */
+	private static void ingestBinaryAsync(UploadResponse response, File file,
+			File tempFile) {
+		long elapsedTime = System.nanoTime();
+
+		if (file != null)
+			moveToFile(response, file, tempFile);
+		else
+			spoolToFile(response, tempFile);
+
+		UploadPipeline.recordStage("ingest", elapsedTime);
+		sniff(response, tempFile);
+
+		accept(response, tempFile, null);
+	}
+
+	/**
+	 * Used to answer an upload whose original is in <code>tempFile</code>
+	 * from the DedupeCache if it is a repeat, otherwise record it as a job and
+	 * render the {@link UploadResponse.Type#ACCEPTED} response (or the reason
+	 * it couldn't be recorded).
+	 */
+	private static void accept(UploadResponse response, File tempFile,
+			String contentKey) {
+		renderIfDuplicate(response, contentKey, tempFile, null);
+
+		// The real size, the header only had what the client claimed.
+		response.original.sizeInBytes = tempFile.length();
+		JobQueue.accept(response, tempFile, contentKey, getSourceIP());
+
+		Logger.info("Upload Accepted for Processing [size=%s, uniqueFileKey=%s]",
+				response.original.sizeInBytes, response.uniqueFileKey);
+		renderJSON(response);
+	}
+
+	/**
+	 * Returns the response of an upload accepted with
+	 * <code>imgscalr.jobs.async=true</code>; {@link UploadResponse.Type#ACCEPTED}
+	 * until it has been processed, then the same response a synchronous
+	 * upload would have gotten.
+	 */
+	public static void status(String uniqueFileKey) {
+		UploadResponse response = null;
+
+		try {
+			response = JobQueue.getStatus(uniqueFileKey);
+		} catch (IOException e) {
+			Logger.error(e, "Unable to read the status of upload [%s].",
+					uniqueFileKey);
+			response = new UploadResponse(UploadResponse.Type.GENERAL_FAILURE);
+		}
+
+		if (response == null) {
+			response = new UploadResponse(UploadResponse.Type.UNKNOWN_JOB);
+			response.uniqueFileKey = uniqueFileKey;
+		}
+
+		renderJSON(response);
+	}
+
+	/**
+	 * Used to parse the <code>x-file-*</code> headers of the current request
+	 * into <code>response</code>, sanity-check them and assign the upload its
+	 * unique file key.
+	 * 
+	 * @param defaultFileName
+	 *            the name to use if the request has no
+	 *            <code>x-file-name</code> header, e.g. the name of a
+	 *            multipart file. May be <code>null</code>.
+	 * 
+	 * @return the temp file the original should be written to.
+	 */
+	private static File prepare(UploadResponse response, String defaultFileName) {
 		// Add separator to the log for easier visual parsing.
 		Logger.info("================================================");
 
@@ -66,14 +332,12 @@ public class Upload extends Controller {
 		String fileName;
 		String fileExtension;
 		String fileType;
-		final UploadResponse response = new UploadResponse();
 
-		long elapsedTime = System.currentTimeMillis();
-		long totalElapsedTime = elapsedTime;
+		long elapsedTime = System.nanoTime();
 
 		// Get header file information
 		Header header = request.headers.get("x-file-name");
-		fileName = (header == null ? null : header.value());
+		fileName = (header == null ? defaultFileName : header.value());
 
 		/*
 		 * SANITY-CHECK, if we haven't even gotten a fileName, something is
@@ -121,8 +385,7 @@ public class Upload extends Controller {
 			}
 		}
 
-		Logger.info("PERFORMANCE [Header Parse Time: %s ms]",
-				System.currentTimeMillis() - elapsedTime);
+		UploadPipeline.recordStage("header", elapsedTime);
 		Logger.info(
 				"UPLOAD from %s [fileName=%s, fileSize=%s, fileType=%s, fileExt=%s]",
 				request.remoteAddress, fileName, fileSize, fileType,
@@ -134,7 +397,7 @@ public class Upload extends Controller {
 		 * consistently implement the 'type' property for the HTML5 File API in
 		 * order to get the file's MIME type.
 		 */
-		if (!validFileExt.contains(fileExtension)) {
+		if (!UploadPipeline.isSupportedExtension(fileExtension)) {
 			Logger.info("Unsupported File Type [extension=%s]", fileExtension);
 			renderJSON(response
 					.setType(UploadResponse.Type.UNSUPPORTED_FILE_TYPE));
@@ -151,57 +414,141 @@ public class Upload extends Controller {
 			renderJSON(response.setType(UploadResponse.Type.TEMP_DIR_READONLY));
 		}
 
-		/*
-		 * Generate a unique key (name) for this file because we have to store
-		 * it along side millions of other files in the same dir on the CDN.
-		 * 
-		 * IMPL NOTE: We don't take the time to check if a file with the
-		 * existing name is already on the CDN so we want the generated name to
-		 * have the smallest possible chances of collision. Using 9 characters,
-		 * that gives us 52^9 possible combinations (~2.8 quadrillion) using an
-		 * upper and lowercase alphabet.
-		 */
-		String uniqueFileKey = new String(RandomUtils.randomChars(
-				RandomUtils.UPPER_AND_LOWER_CASE_ALPHABET,
-				Constants.UNIQUE_FILE_KEY_SIZE));
+		String uniqueFileKey = UploadPipeline.createUniqueFileKey();
 		String uniqueFileName = uniqueFileKey + '.' + fileExtension;
 
 		// Update response with what we know so far
 		response.uniqueFileKey = uniqueFileKey;
 		response.uniqueFileName = uniqueFileName;
 
-		// Create temporary file to decode the Base64 stream into.
+		// Create temporary file to write the original to.
 		File tempFile = new File(Play.tmpDir, uniqueFileName);
 
-		int totalBytesRead = 0;
-		Base64.InputStream decodingStream = null;
+		// Make sure it is cleaned up if the upload never gets to the CDN.
+		TempFileIndex.getInstance().track(tempFile);
+		return tempFile;
+	}
+
+	/**
+	 * Used to run the rest of the {@link UploadPipeline} on an original that
+	 * has been written to <code>tempFile</code> and decoded into
+	 * <code>originalImage</code>, and render the response.
+	 * 
+	 * @param contentKey
+	 *            the DedupeCache key of the original, or <code>null</code> if
+	 *            it wasn't hashed. On success, the response is stored under
+	 *            this key.
+	 */
+	private static void process(UploadResponse response, File tempFile,
+			DecodedImage originalImage, String contentKey) {
+		if (!UploadPipeline.process(response, tempFile, originalImage,
+				contentKey))
+			renderJSON(response);
+
+		// Queue the mail notice, it goes out with the next digest.
+		UploadNotifier.enqueue(getSourceIP(), response);
+
+		// Send the response back to the client.
+		renderJSON(response);
+	}
+
+	/**
+	 * @return the IP address where the current upload originated from.
+	 */
+	static String getSourceIP() {
+		Header sourceIP = request.headers.get("X-Real-IP");
+
+		if (sourceIP == null)
+			sourceIP = request.headers.get("X-Forwarded-For");
+
+		return (sourceIP == null ? request.remoteAddress : sourceIP.value());
+	}
+
+	/**
+	 * Used to read just the head of the upload off of <code>in</code> and
+	 * sniff it (see {@link ImageSniffer}), rendering the reason if the upload
+	 * can't be processed.
+	 * 
+	 * @return a stream that returns the head again, followed by the rest of
+	 *         <code>in</code>.
+	 */
+	private static InputStream sniff(UploadResponse response, InputStream in) {
+		long elapsedTime = System.nanoTime();
+		byte[] head = new byte[ImageSniffer.getHeadSize()];
+		int length = 0;
+
+		try {
+			length = ImageSniffer.readHead(in, head);
+		} catch (IOException ie) {
+			Logger.error(ie,
+					"An exception occurred while reading the head of the upload from the client stream");
+			renderJSON(response
+					.setType(UploadResponse.Type.FAILED_DECODING_TO_TMP_FILE));
+		}
+
+		boolean accepted = UploadPipeline.preflight(response, head, length);
+		UploadPipeline.recordStage("preflight", elapsedTime);
+
+		if (!accepted)
+			renderJSON(response);
+
+		return new SequenceInputStream(new ByteArrayInputStream(head, 0,
+				length), in);
+	}
+
+	/**
+	 * Used to sniff the head of an upload that is already in
+	 * <code>tempFile</code> (see {@link ImageSniffer}), rendering the reason
+	 * if it can't be processed.
+	 */
+	private static void sniff(UploadResponse response, File tempFile) {
+		long elapsedTime = System.nanoTime();
+		boolean accepted = UploadPipeline.preflight(response, tempFile);
+		UploadPipeline.recordStage("preflight", elapsedTime);
+
+		if (!accepted) {
+			if (!tempFile.delete())
+				Logger.error("Unable to Delete File [%s]",
+						tempFile.getAbsolutePath());
+
+			renderJSON(response);
+		}
+	}
+
+	/**
+	 * Used to write the (already Base64-decoded) request body
+	 * <code>decodingStream</code> into <code>tempFile</code>.
+	 * 
+	 * @param digest
+	 *            if not <code>null</code>, updated with every decoded byte.
+	 * 
+	 * @return the number of decoded bytes written to the file.
+	 */
+	private static long decodeToFile(UploadResponse response,
+			InputStream decodingStream, File tempFile, MessageDigest digest) {
+		long totalBytesRead = 0;
 		OutputStream outputStream = null;
+		byte[] buffer = null;
 
 		try {
-			// Prepare the IN and OUT streams for decoding to the temp file.
-			decodingStream = new Base64.InputStream(request.body, Base64.DECODE);
+			// Prepare the OUT stream for decoding to the temp file.
 			outputStream = new FileOutputStream(tempFile, false);
 
 			int bytesRead = 0;
-			elapsedTime = System.currentTimeMillis();
-			byte[] buffer = new byte[Constants.FILE_BUFFER_SIZE];
+			buffer = BufferPool.acquire();
 
 			// Write the contents to the temp file.
 			while ((bytesRead = decodingStream.read(buffer)) > 0) {
 				outputStream.write(buffer, 0, bytesRead);
 				totalBytesRead += bytesRead;
+
+				if (digest != null)
+					digest.update(buffer, 0, bytesRead);
 			}
 
 			// Done decoding, close streams.
 			outputStream.close();
 			decodingStream.close();
-
-			/*
-			 * If we didn't get the file size from the header initially, try one
-			 * more time here to get it from the file we just wrote to disk.
-			 */
-			if (fileSize == 0)
-				fileSize = tempFile.length();
 		} catch (FileNotFoundException fe) {
 			Logger.error(
 					fe,
@@ -217,36 +564,37 @@ public class Upload extends Controller {
 			renderJSON(response
 					.setType(UploadResponse.Type.FAILED_DECODING_TO_TMP_FILE));
 		} finally {
+			BufferPool.release(buffer);
+
 			try {
 				if (outputStream != null)
 					outputStream.close();
 
 				if (decodingStream != null)
 					decodingStream.close();
-
-				Logger.info("PERFORMANCE [Decode Image Time: %s ms]",
-						System.currentTimeMillis() - elapsedTime);
 			} catch (Exception e) {
 				// no-op
 			}
 		}
 
-		Logger.info("Base64 Decoded to File [size=%s, tempFile=%s]",
-				tempFile.length(), tempFile.getAbsolutePath());
+		return totalBytesRead;
+	}
 
-		File thumbnailFile = null;
-		File smallFile = null;
-		File mediumFile = null;
-		File largeFile = null;
-		BufferedImage originalImage = null;
+	/**
+	 * Used to read the original image back in from the file the request body
+	 * was decoded to.
+	 */
+	private static DecodedImage readImage(UploadResponse response,
+			File tempFile, AdmissionController.Ticket ticket) {
+		DecodedImage decodedImage = null;
+		ImageInputStream imageStream = null;
 
-		/*
-		 * For safety reasons we wrote the original to disk first (to make sure
-		 * we have it) now we will read it back in and generate the other
-		 * versions of it.
-		 */
 		try {
-			originalImage = ImageIO.read(tempFile);
+			imageStream = ImageIO.createImageInputStream(tempFile);
+			decodedImage = ImageDecoder.decode(imageStream,
+					SizeProfiles.getEagerTargets(),
+					createAdmissionListener(response, ticket, tempFile),
+					ImageDecoder.source(tempFile));
 		} catch (IOException e) {
 			Logger.error(
 					e,
@@ -254,234 +602,343 @@ public class Upload extends Controller {
 					tempFile.getAbsolutePath());
 			renderJSON(response
 					.setType(UploadResponse.Type.UNABLE_TO_GENERATE_ALT_SIZES));
+		} finally {
+			try {
+				if (imageStream != null)
+					imageStream.close();
+			} catch (Exception e) {
+				// no-op
+			}
 		}
 
-		elapsedTime = System.currentTimeMillis();
-
-		/*
-		 * Now optionally generate every supported image width size that is
-		 * smaller than the original. We don't want to generate any unnecessary
-		 * up-scaled instances of the original.
-		 */
-		thumbnailFile = generateAltSize(response, uniqueFileKey, fileExtension,
-				Constants.SUFFIX_THUMBNAIL, tempFile, originalImage,
-				Constants.SIZE_THUMBNAIL, false);
+		checkDecoded(response, decodedImage, tempFile);
+		return decodedImage;
+	}
 
-		if (thumbnailFile != null)
-			Logger.info("\tGenerated THUMBNAIL Image: %s",
-					thumbnailFile.getAbsolutePath());
+	/**
+	 * Used to wrap <code>in</code> (the request body, Base64-decoded or not)
+	 * in a stream that copies everything read from it to <code>tempFile</code>
+	 * .
+	 */
+	private static TeeInputStream decodeStreaming(UploadResponse response,
+			InputStream in, File tempFile) {
+		TeeInputStream teeStream = null;
 
-		smallFile = generateAltSize(response, uniqueFileKey, fileExtension,
-				Constants.SUFFIX_SMALL, tempFile, originalImage,
-				Constants.SIZE_SMALL, false);
+		try {
+			teeStream = new TeeInputStream(in, new FileOutputStream(tempFile,
+					false));
+		} catch (FileNotFoundException fe) {
+			Logger.error(
+					fe,
+					"Unable to access/create the temporary file [%s] to decode the submitted image to.",
+					tempFile.getAbsolutePath());
+			renderJSON(response
+					.setType(UploadResponse.Type.CANNOT_ACCESS_TMP_DECODE_FILE));
+		}
 
-		if (smallFile != null)
-			Logger.info("\tGenerated SMALL Image: %s",
-					smallFile.getAbsolutePath());
+		return teeStream;
+	}
 
-		mediumFile = generateAltSize(response, uniqueFileKey, fileExtension,
-				Constants.SUFFIX_MEDIUM, tempFile, originalImage,
-				Constants.SIZE_MEDIUM, false);
+	/**
+	 * Used to spool the raw (binary) request body into <code>tempFile</code>.
+	 * <p/>
+	 * IMPL NOTE: Play buffers large request bodies to a file of its own; in
+	 * that case we transfer straight between the two file channels which lets
+	 * the OS copy the data without it ever passing through our heap.
+	 * 
+	 * @return the number of bytes written to the file.
+	 */
+	private static long spoolToFile(UploadResponse response, File tempFile) {
+		long position = 0;
+		ReadableByteChannel inChannel = null;
+		FileOutputStream outputStream = null;
 
-		if (mediumFile != null)
-			Logger.info("\tGenerated MEDIUM Image: %s",
-					mediumFile.getAbsolutePath());
+		try {
+			inChannel = (request.body instanceof FileInputStream ? ((FileInputStream) request.body)
+					.getChannel() : Channels.newChannel(request.body));
+			outputStream = new FileOutputStream(tempFile, false);
 
-		largeFile = generateAltSize(response, uniqueFileKey, fileExtension,
-				Constants.SUFFIX_LARGE, tempFile, originalImage,
-				Constants.SIZE_LARGE, false);
+			long bytesTransferred = 0;
+			FileChannel outChannel = outputStream.getChannel();
 
-		if (largeFile != null)
-			Logger.info("\tGenerated LARGE Image: %s",
-					largeFile.getAbsolutePath());
+			/*
+			 * The in channel is blocking, so transferFrom only comes back with 0
+			 * bytes once it has hit the end of the body.
+			 */
+			while ((bytesTransferred = outChannel.transferFrom(inChannel,
+					position, Constants.TRANSFER_CHUNK_SIZE)) > 0)
+				position += bytesTransferred;
 
-		Logger.info("PERFORMANCE [Alt. Image Size Generation Time: %s ms]",
-				System.currentTimeMillis() - elapsedTime);
+			// Done spooling, close channels.
+			outputStream.close();
+			inChannel.close();
+		} catch (FileNotFoundException fe) {
+			Logger.error(
+					fe,
+					"Unable to access/create the temporary file [%s] to spool the submitted image to.",
+					tempFile.getAbsolutePath());
+			renderJSON(response
+					.setType(UploadResponse.Type.CANNOT_ACCESS_TMP_DECODE_FILE));
+		} catch (IOException ie) {
+			Logger.error(
+					ie,
+					"An exception occurred while spooling the InputStream from the client stream out to a temporary file: %s",
+					tempFile.getAbsolutePath());
+			renderJSON(response
+					.setType(UploadResponse.Type.FAILED_DECODING_TO_TMP_FILE));
+		} finally {
+			try {
+				if (outputStream != null)
+					outputStream.close();
 
-		// Update the original image meta manually
-		response.original.width = originalImage.getWidth();
-		response.original.height = originalImage.getHeight();
-		response.original.sizeInBytes = tempFile.length();
+				if (inChannel != null)
+					inChannel.close();
+			} catch (Exception e) {
+				// no-op
+			}
+		}
 
-		elapsedTime = System.currentTimeMillis();
+		return position;
+	}
 
-		// FIRST, upload the original to CDN
-		response.original.url = uploadToS3(tempFile, true);
+	/**
+	 * Used to move a file Play already spooled to disk (a multipart upload)
+	 * to <code>tempFile</code>. This is a simple rename unless the two are on
+	 * different file systems, in which case the contents are transferred
+	 * channel-to-channel.
+	 */
+	private static void moveToFile(UploadResponse response, File file,
+			File tempFile) {
+		if (file.renameTo(tempFile))
+			return;
 
-		if (response.original.url == null) {
-			Logger.error("Unable to upload original image to CDN");
+		try {
+			FileUtils.copy(file, tempFile);
+		} catch (FileNotFoundException fe) {
+			Logger.error(
+					fe,
+					"Unable to access/create the temporary file [%s] to move the submitted image to.",
+					tempFile.getAbsolutePath());
+			renderJSON(response
+					.setType(UploadResponse.Type.CANNOT_ACCESS_TMP_DECODE_FILE));
+		} catch (IOException ie) {
+			Logger.error(
+					ie,
+					"An exception occurred while moving the uploaded file [%s] to the temporary file: %s",
+					file.getAbsolutePath(), tempFile.getAbsolutePath());
 			renderJSON(response
-					.setType(UploadResponse.Type.UNABLE_TO_UPLOAD_TO_CDN));
+					.setType(UploadResponse.Type.FAILED_DECODING_TO_TMP_FILE));
 		}
+	}
 
-		/*
-		 * NEXT, upload all additional scaled versions to CDN. If any of these
-		 * uploads fail, we don't really care because their URL will just remain
-		 * null as it goes back to the client and at least the original is safe.
-		 */
-		response.thumbnail.url = uploadToS3(thumbnailFile, true);
-		response.small.url = uploadToS3(smallFile, true);
-		response.medium.url = uploadToS3(mediumFile, true);
-		response.large.url = uploadToS3(largeFile, true);
-
-		Logger.info("PERFORMANCE [S3 Upload Time: %s ms]",
-				System.currentTimeMillis() - elapsedTime);
-		totalElapsedTime = System.currentTimeMillis() - totalElapsedTime;
-		Logger.info("TOTAL PERFORMANCE [Total Run Time: %s ms (%s seconds)]",
-				totalElapsedTime, ((double) totalElapsedTime / (double) 1000));
-
-		// If we made it this far, then it was a success.
-		response.setType(UploadResponse.Type.SUCCESS);
-
-		// Determine the IP address where the upload originated from
-		Header sourceIP = request.headers.get("X-Real-IP");
-
-		if (sourceIP == null)
-			sourceIP = request.headers.get("X-Forwarded-For");
-
-		// Send mail notice.
-		UploadMailer.upload((sourceIP == null ? request.remoteAddress
-				: sourceIP.value()), response);
+	/**
+	 * @return <code>in</code> wrapped so every byte read from it updates
+	 *         <code>digest</code>, or <code>in</code> itself if
+	 *         <code>digest</code> is <code>null</code>.
+	 */
+	private static InputStream digest(InputStream in, MessageDigest digest) {
+		return (digest == null ? in : new DigestInputStream(in, digest));
+	}
 
-		// Send the response back to the client.
-		renderJSON(response);
+	/**
+	 * Used to render the stored response of an earlier upload of the exact
+	 * same image, if there is one, instead of processing this one.
+	 * <p/>
+	 * The stream ingest mode only knows the hash once the image has been
+	 * decoded along with it; <code>decodedImage</code> (may be
+	 * <code>null</code>) is given back to the pool before rendering.
+	 */
+	private static void renderIfDuplicate(UploadResponse response,
+			String contentKey, File tempFile, DecodedImage decodedImage) {
+		UploadResponse duplicate = DedupeCache.get(contentKey);
+
+		if (duplicate != null) {
+			Logger.info("Duplicate Upload [contentKey=%s, uniqueFileKey=%s]",
+					contentKey, duplicate.uniqueFileKey);
+
+			if (!tempFile.delete())
+				Logger.error("Unable to Delete File [%s]",
+						tempFile.getAbsolutePath());
+
+			if (decodedImage != null)
+				decodedImage.release();
+
+			duplicate.originalFileName = response.originalFileName;
+			Metrics.increment("dedupe_hits_total");
+
+			// Counted as a success, the duplicate is what the client gets.
+			response.setType(UploadResponse.Type.SUCCESS);
+			renderJSON(duplicate);
+		}
 	}
 
-	private static File generateAltSize(UploadResponse response,
-			String uniqueFileKey, String fileExtension, String fileSuffix,
-			File sourceFile, BufferedImage sourceImage, int targetSize,
-			boolean upscale) {
-		File resizedFile = null;
-		File parentDir = sourceFile.getParentFile();
+	private static boolean isStreamIngest() {
+		return INGEST_MODE_STREAM.equals(Config.getString(CONFIG_INGEST_MODE,
+				INGEST_MODE_FILE));
+	}
 
-		/*
-		 * We don't want to upscale any images sent to us, so if the original
-		 * image is the same size or smaller than the version we are trying to
-		 * generate, just return. There is nothing to do.
-		 */
-		if (!upscale && sourceImage.getWidth() <= targetSize)
-			return resizedFile;
+	/**
+	 * Used to decode the original image directly off of
+	 * <code>teeStream</code>. Once the image is decoded, whatever the reader
+	 * did not consume is drained so <code>tempFile</code> is always a complete
+	 * copy of the original.
+	 * <p/>
+	 * IMPL NOTE: A memory-cached ImageInputStream is used explicitly, the
+	 * default (file-cached) one would write the stream out to disk a second
+	 * time. It only ever caches what the reader hasn't consumed yet; an image
+	 * large enough to be streamed is read back from <code>tempFile</code>
+	 * instead (see {@link #createTeeSource(TeeInputStream, File)}).
+	 */
+	private static DecodedImage readImage(UploadResponse response,
+			TeeInputStream teeStream, File tempFile,
+			AdmissionController.Ticket ticket) {
+		DecodedImage decodedImage = null;
+		ImageInputStream imageStream = null;
 
-		if (sourceImage.getWidth() > targetSize) {
-			resizedFile = new File(parentDir, uniqueFileKey + '-' + fileSuffix
-					+ '.' + fileExtension);
-			BufferedImage resizedImage = Scalr.resize(sourceImage,
-					Method.QUALITY, Mode.FIT_TO_WIDTH, targetSize);
+		try {
+			imageStream = new MemoryCacheImageInputStream(teeStream);
 
 			try {
-				ImageIO.write(resizedImage, fileExtension, resizedFile);
+				decodedImage = ImageDecoder.decode(imageStream,
+						SizeProfiles.getEagerTargets(),
+						createAdmissionListener(response, ticket, tempFile),
+						createTeeSource(teeStream, tempFile));
 			} catch (IOException e) {
 				Logger.error(
 						e,
-						"An exception occurred while generating an alt sized image [%s] for source image %s",
-						resizedFile.getAbsolutePath(),
-						sourceFile.getAbsolutePath());
+						"An exception occurred while trying to decode the uploaded file [%s] as a BufferedImage to generate alternative sizes for it.",
+						tempFile.getAbsolutePath());
+				renderJSON(response
+						.setType(UploadResponse.Type.UNABLE_TO_GENERATE_ALT_SIZES));
 			}
 
-			// Update the response data with the image info
-			UploadResponse.Image imageMeta = null;
-
-			switch (targetSize) {
-			case Constants.SIZE_THUMBNAIL:
-				imageMeta = response.thumbnail;
-				break;
-
-			case Constants.SIZE_SMALL:
-				imageMeta = response.small;
-				break;
+			byte[] buffer = BufferPool.acquire();
 
-			case Constants.SIZE_MEDIUM:
-				imageMeta = response.medium;
-				break;
+			try {
+				teeStream.drain(buffer);
+			} finally {
+				BufferPool.release(buffer);
+			}
 
-			case Constants.SIZE_LARGE:
-				imageMeta = response.large;
-				break;
+			teeStream.close();
+		} catch (IOException ie) {
+			Logger.error(
+					ie,
+					"An exception occurred while decoding the InputStream from the client stream and writing it out to a temporary file: %s",
+					tempFile.getAbsolutePath());
 
-			case Constants.SIZE_XLARGE:
-				imageMeta = response.xlarge;
-				break;
+			if (decodedImage != null)
+				decodedImage.release();
 
-			case Constants.SIZE_XXLARGE:
-				imageMeta = response.xxlarge;
-				break;
+			renderJSON(response
+					.setType(UploadResponse.Type.FAILED_DECODING_TO_TMP_FILE));
+		} finally {
+			try {
+				if (imageStream != null)
+					imageStream.close();
 
-			case Constants.SIZE_XXXLARGE:
-				imageMeta = response.xxxlarge;
-				break;
+				teeStream.close();
+			} catch (Exception e) {
+				// no-op
 			}
+		}
 
-			if (imageMeta != null) {
-				imageMeta.width = resizedImage.getWidth();
-				imageMeta.height = resizedImage.getHeight();
-				imageMeta.sizeInBytes = resizedFile.length();
-			} else {
-				Logger.error(
-						"Unable to Set Image Meta on Generated Resource. No Match for Width of '%s' Found!",
-						targetSize);
-			}
+		checkDecoded(response, decodedImage, tempFile);
+		return decodedImage;
+	}
 
-			// Make things on the GC, explicitly flush native resources.
-			if (resizedImage != null)
-				resizedImage.flush();
+	/**
+	 * Used to reserve the processing budget for the current upload, sized by
+	 * its <code>x-file-size</code> until the image header has been read.
+	 * Renders {@link UploadResponse.Type#SERVER_BUSY} if the server is
+	 * already at capacity.
+	 */
+	private static AdmissionController.Ticket admit(UploadResponse response) {
+		long elapsedTime = System.nanoTime();
+		AdmissionController.Ticket ticket = null;
+
+		try {
+			ticket = AdmissionController.admit(AdmissionController
+					.estimate(response.original.sizeInBytes));
+		} catch (AdmissionRejectedException e) {
+			renderBusy(response, e);
 		}
 
-		return resizedFile;
+		UploadPipeline.recordStage("admission", elapsedTime);
+		return ticket;
 	}
 
-	private static String uploadToS3(File file, boolean deleteOnComplete) {
-		String url = null;
-
-		if (file != null) {
-			if (s3Client == null)
-				s3Client = createS3Client();
-
-			// Check 1 more time in case the init failed.
-			if (s3Client != null) {
-				// Upload to S3
-				PutObjectResult uploadResult = s3Client.putObject(
-						Constants.S3_BUCKET_NAME, file.getName(), file);
-				String eTag = (uploadResult == null ? null : uploadResult
-						.getETag());
-
-				// Confirm the upload succeeded
-				if (eTag != null && eTag.length() > 1) {
-					// Adjust ACL for the new file, otherwise no one can access
-					// it.
-					s3Client.setObjectAcl(Constants.S3_BUCKET_NAME,
-							file.getName(), CannedAccessControlList.PublicRead);
-
-					url = Constants.S3_BASE_URL + file.getName();
-					Logger.info("CDN Upload Complete [remoteFile=%s]", url);
-
-					if (deleteOnComplete) {
-						if (!file.delete()) {
-							Logger.error("Unable to Delete File [%s]",
-									file.getAbsolutePath());
-						} else
-							Logger.info("Deleted Temporary File [%s]",
-									file.getAbsolutePath());
-					}
+	/**
+	 * Used to create a listener that re-sizes <code>ticket</code> to the real
+	 * dimensions of the image before any pixels are decoded, rendering
+	 * {@link UploadResponse.Type#SERVER_BUSY} if there isn't room for it.
+	 */
+	private static ImageDecoder.HeaderListener createAdmissionListener(
+			final UploadResponse response,
+			final AdmissionController.Ticket ticket, final File tempFile) {
+		return new ImageDecoder.HeaderListener() {
+			@Override
+			public void headerRead(int width, int height, int subsampling) {
+				try {
+					ticket.update(AdmissionController.estimate(width, height,
+							subsampling));
+				} catch (AdmissionRejectedException e) {
+					// The client is told to send it again, don't keep it.
+					if (!tempFile.delete())
+						tempFile.deleteOnExit();
+
+					renderBusy(response, e);
 				}
 			}
-		}
+		};
+	}
+
+	/**
+	 * Used to create the source the strips of a streamed image are read from:
+	 * the rest of <code>teeStream</code> is drained to <code>tempFile</code>
+	 * first, which is then read back like any other original.
+	 */
+	private static ImageDecoder.Source createTeeSource(
+			final TeeInputStream teeStream, final File tempFile) {
+		return new ImageDecoder.Source() {
+			@Override
+			public ImageInputStream open() throws IOException {
+				byte[] buffer = BufferPool.acquire();
+
+				try {
+					// Written straight to the file, no flush needed.
+					teeStream.drain(buffer);
+				} finally {
+					BufferPool.release(buffer);
+				}
 
-		return url;
+				return ImageIO.createImageInputStream(tempFile);
+			}
+		};
 	}
 
-	private static AmazonS3 createS3Client() {
-		AmazonS3 client = null;
+	private static void renderBusy(UploadResponse response,
+			AdmissionRejectedException e) {
+		response.setType(UploadResponse.Type.SERVER_BUSY);
+		response.retryAfter = e.getRetryAfter();
 
-		try {
-			client = new AmazonS3Client(new PropertiesCredentials(
-					Upload.class
-							.getResourceAsStream("AwsCredentials.properties")));
-		} catch (Exception e) {
-			Logger.error(
-					e,
-					"An exception occurred while trying to load AwsCredentials.properties and create an AmazonS3Client instance.");
-		}
+		Http.Response.current().setHeader("Retry-After",
+				Integer.toString(e.getRetryAfter()));
+		renderJSON(response);
+	}
 
-		return client;
+	/**
+	 * SANITY-CHECK, ImageIO quietly returns nothing when none of its readers
+	 * recognize the file (e.g. it isn't really an image), make sure we don't
+	 * try to process it.
+	 */
+	private static void checkDecoded(UploadResponse response,
+			DecodedImage decodedImage, File tempFile) {
+		if (decodedImage == null || !decodedImage.isDecoded()) {
+			Logger.error("No ImageReader Could Decode the Uploaded File [%s]",
+					tempFile.getAbsolutePath());
+			renderJSON(response
+					.setType(UploadResponse.Type.UNABLE_TO_GENERATE_ALT_SIZES));
+		}
 	}
-}
\ No newline at end of file
+}
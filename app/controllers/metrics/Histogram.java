@@ -0,0 +1,110 @@
+package controllers.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative <code>long</code> values (e.g. latencies
+ * in nanoseconds) with a fixed memory footprint, in the style of
+ * HdrHistogram.
+ * <p/>
+ * Values are counted in log-linear buckets: every power of 2 is split into 16
+ * linear sub-buckets, so any reported percentile is within ~6% of the real
+ * value over the whole <code>long</code> range. Recording a value is a
+ * couple of atomic increments and never allocates.
+ */
+public class Histogram {
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS; // 32
+	private static final int HALF_SUB_BUCKET_COUNT = SUB_BUCKET_COUNT >> 1; // 16
+
+	/**
+	 * Values below SUB_BUCKET_COUNT get a bucket each, every power of 2 above
+	 * that (up to 2^62) gets HALF_SUB_BUCKET_COUNT.
+	 */
+	static final int BUCKET_COUNT = SUB_BUCKET_COUNT
+			+ (63 - SUB_BUCKET_BITS) * HALF_SUB_BUCKET_COUNT;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long value) {
+		if (value < 0)
+			value = 0;
+
+		counts.incrementAndGet(getIndex(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+
+		long currentMax;
+
+		while (value > (currentMax = max.get())
+				&& !max.compareAndSet(currentMax, value))
+			;
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getSum() {
+		return sum.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @return the (upper bound of the bucket of the) value that
+	 *         <code>quantile</code> (0 to 1) of all recorded values are at or
+	 *         below, or 0 if nothing has been recorded.
+	 */
+	public long getValueAtQuantile(double quantile) {
+		long[] snapshot = new long[BUCKET_COUNT];
+		long total = 0;
+
+		for (int i = 0; i < BUCKET_COUNT; i++)
+			total += (snapshot[i] = counts.get(i));
+
+		if (total == 0)
+			return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(quantile * total));
+		long seen = 0;
+
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += snapshot[i];
+
+			if (seen >= rank)
+				return Math.min(getUpperBound(i), max.get());
+		}
+
+		return max.get();
+	}
+
+	static int getIndex(long value) {
+		if (value < SUB_BUCKET_COUNT)
+			return (int) value;
+
+		int shift = (63 - Long.numberOfLeadingZeros(value))
+				- (SUB_BUCKET_BITS - 1);
+		int subBucket = (int) (value >>> shift) - HALF_SUB_BUCKET_COUNT;
+
+		return SUB_BUCKET_COUNT + (shift - 1) * HALF_SUB_BUCKET_COUNT
+				+ subBucket;
+	}
+
+	static long getUpperBound(int index) {
+		if (index < SUB_BUCKET_COUNT)
+			return index;
+
+		int shift = (index - SUB_BUCKET_COUNT) / HALF_SUB_BUCKET_COUNT + 1;
+		long subBucket = (index - SUB_BUCKET_COUNT) % HALF_SUB_BUCKET_COUNT
+				+ HALF_SUB_BUCKET_COUNT;
+
+		return (subBucket << shift) + ((1L << shift) - 1);
+	}
+}
@@ -0,0 +1,233 @@
+package controllers.metrics;
+
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide registry of counters, latency histograms and gauges.
+ * <p/>
+ * Metrics are identified by a name that may carry Prometheus-style labels,
+ * built with {@link #name(String, String...)}, e.g.
+ * <code>upload_stage_seconds{stage="decode"}</code>. Counters and histograms
+ * are created on first use; recording is lock-free so it is cheap enough to
+ * do on every request.
+ * <p/>
+ * Histograms hold durations in nanoseconds (measured with
+ * {@link System#nanoTime()}) and are reported in seconds as summaries with
+ * the {@link #QUANTILES} by {@link #toText()}, which renders everything in
+ * the Prometheus text exposition format.
+ */
+public class Metrics {
+	public static final String PREFIX = "imgscalr_";
+	public static final double[] QUANTILES = { 0.5, 0.9, 0.99, 0.999 };
+
+	/**
+	 * A value that is read when the metrics are reported, e.g. a queue depth.
+	 */
+	public interface Gauge {
+		public long getValue();
+	}
+
+	/**
+	 * Keeps all the series of a metric together when reporting, even when
+	 * another metric's name starts with the same text.
+	 */
+	private static final Comparator<String> NAME_ORDER = new Comparator<String>() {
+		@Override
+		public int compare(String name1, String name2) {
+			int result = getBase(name1).compareTo(getBase(name2));
+			return (result == 0 ? name1.compareTo(name2) : result);
+		}
+	};
+
+	private static final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+	private static final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+	private static final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+
+	/**
+	 * @return <code>base</code> with the given label name/value pairs, e.g.
+	 *         <code>name("resize_seconds", "target", "LARGE")</code> returns
+	 *         <code>resize_seconds{target="LARGE"}</code>.
+	 */
+	public static String name(String base, String... labels) {
+		if (labels.length == 0)
+			return base;
+
+		StringBuilder name = new StringBuilder(base).append('{');
+
+		for (int i = 0; i + 1 < labels.length; i += 2) {
+			if (i > 0)
+				name.append(',');
+
+			name.append(labels[i]).append("=\"")
+					.append(escape(labels[i + 1])).append('"');
+		}
+
+		return name.append('}').toString();
+	}
+
+	public static void increment(String name) {
+		increment(name, 1);
+	}
+
+	public static void increment(String name, long delta) {
+		AtomicLong counter = counters.get(name);
+
+		if (counter == null) {
+			AtomicLong newCounter = new AtomicLong();
+			counter = counters.putIfAbsent(name, newCounter);
+
+			if (counter == null)
+				counter = newCounter;
+		}
+
+		counter.addAndGet(delta);
+	}
+
+	/**
+	 * @return the current value of a counter, 0 if it was never incremented.
+	 */
+	public static long getCount(String name) {
+		AtomicLong counter = counters.get(name);
+		return (counter == null ? 0 : counter.get());
+	}
+
+	public static Histogram histogram(String name) {
+		Histogram histogram = histograms.get(name);
+
+		if (histogram == null) {
+			Histogram newHistogram = new Histogram();
+			histogram = histograms.putIfAbsent(name, newHistogram);
+
+			if (histogram == null)
+				histogram = newHistogram;
+		}
+
+		return histogram;
+	}
+
+	/**
+	 * Used to record the time elapsed since <code>startTime</code> (from
+	 * {@link System#nanoTime()}) in the histogram <code>name</code>.
+	 *
+	 * @return the elapsed time in nanoseconds.
+	 */
+	public static long recordSince(String name, long startTime) {
+		long elapsedTime = System.nanoTime() - startTime;
+		histogram(name).record(elapsedTime);
+		return elapsedTime;
+	}
+
+	public static void register(String name, Gauge gauge) {
+		gauges.put(name, gauge);
+	}
+
+	/**
+	 * Used to drop every counter and histogram, e.g. between tests. Gauges
+	 * are kept.
+	 */
+	public static void reset() {
+		counters.clear();
+		histograms.clear();
+	}
+
+	/**
+	 * @return a snapshot of every metric in the Prometheus text exposition
+	 *         format (version 0.0.4).
+	 */
+	public static String toText() {
+		StringBuilder text = new StringBuilder();
+		Set<String> typedNames = new HashSet<String>();
+
+		for (Map.Entry<String, AtomicLong> entry : sort(counters).entrySet()) {
+			appendType(text, typedNames, entry.getKey(), "counter");
+			appendLine(text, entry.getKey(), null, entry.getValue().get());
+		}
+
+		for (Map.Entry<String, Gauge> entry : sort(gauges).entrySet()) {
+			appendType(text, typedNames, entry.getKey(), "gauge");
+			appendLine(text, entry.getKey(), null, entry.getValue().getValue());
+		}
+
+		for (Map.Entry<String, Histogram> entry : sort(histograms).entrySet()) {
+			String name = entry.getKey();
+			Histogram histogram = entry.getValue();
+
+			appendType(text, typedNames, name, "summary");
+
+			for (double quantile : QUANTILES)
+				appendLine(text, name, "quantile=\"" + quantile + '"',
+						toSeconds(histogram.getValueAtQuantile(quantile)));
+
+			appendLine(text, withSuffix(name, "_sum"), null,
+					toSeconds(histogram.getSum()));
+			appendLine(text, withSuffix(name, "_count"), null,
+					histogram.getCount());
+		}
+
+		return text.toString();
+	}
+
+	private static <T> Map<String, T> sort(Map<String, T> metrics) {
+		Map<String, T> sorted = new TreeMap<String, T>(NAME_ORDER);
+		sorted.putAll(metrics);
+		return sorted;
+	}
+
+	private static void appendType(StringBuilder text, Set<String> typedNames,
+			String name, String type) {
+		String base = getBase(name);
+
+		if (typedNames.add(base))
+			text.append("# TYPE ").append(PREFIX).append(base).append(' ')
+					.append(type).append('\n');
+	}
+
+	private static void appendLine(StringBuilder text, String name,
+			String extraLabel, Object value) {
+		text.append(PREFIX);
+
+		if (extraLabel == null)
+			text.append(name);
+		else if (name.indexOf('{') < 0)
+			text.append(name).append('{').append(extraLabel).append('}');
+		else
+			text.append(name, 0, name.length() - 1).append(',')
+					.append(extraLabel).append('}');
+
+		text.append(' ');
+
+		if (value instanceof Double)
+			text.append(String.format(Locale.US, "%.6f", value));
+		else
+			text.append(value);
+
+		text.append('\n');
+	}
+
+	private static String getBase(String name) {
+		int index = name.indexOf('{');
+		return (index < 0 ? name : name.substring(0, index));
+	}
+
+	private static String withSuffix(String name, String suffix) {
+		String base = getBase(name);
+		return base + suffix + name.substring(base.length());
+	}
+
+	private static Double toSeconds(long nanos) {
+		return Double.valueOf(nanos / 1000000000d);
+	}
+
+	private static String escape(String value) {
+		return (value == null ? "" : value.replace("\\", "\\\\")
+				.replace("\"", "\\\"").replace("\n", "\\n"));
+	}
+}
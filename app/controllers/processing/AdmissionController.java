@@ -0,0 +1,212 @@
+package controllers.processing;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import play.Logger;
+import controllers.Config;
+
+/**
+ * Limits how much upload processing a node takes on at once so a burst of
+ * large uploads is turned away instead of running the JVM out of heap.
+ * <p/>
+ * Every upload needs a {@link Ticket} before it is processed. A ticket
+ * reserves one of <code>imgscalr.admission.maxInFlight</code> processing slots
+ * (the CPU budget) plus an estimate of the heap the upload will need out of
+ * <code>imgscalr.admission.heapBudget</code>. The estimate starts out based on
+ * the <code>x-file-size</code> of the upload and is replaced by a precise one
+ * once the image header has been read.
+ * <p/>
+ * When the budgets are used up, an upload is rejected right away with a
+ * retry after <code>imgscalr.admission.retryAfter</code> seconds. Nothing
+ * ever waits for room here: most uploads are admitted on one of Play's few
+ * request threads (only CPU+1 in PROD), and every one of them parked in a
+ * queue would be one less to answer status polls and static files with.
+ * For the same reason <code>maxInFlight</code> defaults to no more than
+ * <code>play.pool</code> - 1, so a thread is always left for those. An
+ * upload is always admitted when nothing else is in flight, so a single
+ * image larger than the whole heap budget is never starved.
+ */
+public class AdmissionController {
+	public static final String CONFIG_HEAP_BUDGET = "imgscalr.admission.heapBudget";
+	public static final String CONFIG_MAX_IN_FLIGHT = "imgscalr.admission.maxInFlight";
+	public static final String CONFIG_RETRY_AFTER = "imgscalr.admission.retryAfter";
+
+	public static final int DEFAULT_RETRY_AFTER = 5;
+
+	/**
+	 * Rough expansion of a compressed upload into a decoded raster, used until
+	 * the real dimensions are known.
+	 */
+	public static final int COMPRESSION_RATIO = 10;
+
+	/**
+	 * Heap needed per decoded pixel: the 4-byte decoded pixel plus the alt
+	 * sizes and Scalr's intermediate images, which together stay under the
+	 * size of the decoded image again.
+	 */
+	public static final int BYTES_PER_PIXEL = 8;
+
+	/**
+	 * Smallest estimate ever reserved, also used when the size of the upload
+	 * is unknown.
+	 */
+	public static final long MIN_ESTIMATE = 4194304; // 4MB
+
+	private static final Object LOCK = new Object();
+	private static final AtomicLong rejectedCount = new AtomicLong();
+
+	private static long heapInUse;
+	private static int inFlight;
+
+	/**
+	 * @return an estimate of the heap needed to process an upload of
+	 *         <code>fileSize</code> bytes whose dimensions aren't known yet.
+	 */
+	public static long estimate(long fileSize) {
+		return Math.max(MIN_ESTIMATE, fileSize * COMPRESSION_RATIO);
+	}
+
+	/**
+	 * @return an estimate of the heap needed to process an image with the
+	 *         given header dimensions decoded with <code>subsampling</code>.
+	 */
+	public static long estimate(int width, int height, int subsampling) {
+		long pixels = StripResizer.getDecodedPixels(width, height,
+				subsampling);
+
+		// Only a strip at a time (and the small sizes) are held if streamed.
+		if (StripResizer.isStreaming(width, height, subsampling))
+			pixels = StripResizer.getStripPixels() * 2;
+
+		return Math.max(MIN_ESTIMATE, pixels * BYTES_PER_PIXEL);
+	}
+
+	/**
+	 * Used to reserve a processing slot and <code>estimatedBytes</code> of
+	 * heap.
+	 * 
+	 * @throws AdmissionRejectedException
+	 *             if there is no room for it right now.
+	 */
+	public static Ticket admit(long estimatedBytes)
+			throws AdmissionRejectedException {
+		synchronized (LOCK) {
+			if (!fits(estimatedBytes, true))
+				throw reject("at capacity", estimatedBytes);
+
+			inFlight++;
+			heapInUse += estimatedBytes;
+			return new Ticket(estimatedBytes);
+		}
+	}
+
+	public static int getInFlight() {
+		synchronized (LOCK) {
+			return inFlight;
+		}
+	}
+
+	public static long getHeapInUse() {
+		synchronized (LOCK) {
+			return heapInUse;
+		}
+	}
+
+	public static long getRejectedCount() {
+		return rejectedCount.get();
+	}
+
+	/**
+	 * @return how many seconds a rejected client should wait before trying
+	 *         again.
+	 */
+	public static int getRetryAfter() {
+		return Config.getInt(CONFIG_RETRY_AFTER, DEFAULT_RETRY_AFTER);
+	}
+
+	/**
+	 * @return the number of uploads processed at once: the number of
+	 *         processors, but no more than the request threads minus one.
+	 */
+	public static int getMaxInFlight() {
+		int processors = Runtime.getRuntime().availableProcessors();
+		int requestThreads = Config.getInt("play.pool", processors + 1);
+
+		return Math.max(1, Config.getInt(CONFIG_MAX_IN_FLIGHT, Math.min(
+				processors, requestThreads - 1)));
+	}
+
+	/**
+	 * Must be called while holding LOCK.
+	 */
+	private static boolean fits(long bytes, boolean needsSlot) {
+		if (needsSlot && inFlight >= getMaxInFlight())
+			return false;
+
+		// Never starve an upload that is bigger than the whole budget.
+		return (inFlight == (needsSlot ? 0 : 1) || heapInUse + bytes <= getHeapBudget());
+	}
+
+	private static long getHeapBudget() {
+		return Config.getLong(CONFIG_HEAP_BUDGET,
+				Runtime.getRuntime().maxMemory() / 2);
+	}
+
+	private static AdmissionRejectedException reject(String reason, long bytes) {
+		rejectedCount.incrementAndGet();
+		Logger.warn(
+				"Upload Rejected [reason=%s, estimatedBytes=%s, heapInUse=%s, inFlight=%s]",
+				reason, bytes, heapInUse, inFlight);
+
+		return new AdmissionRejectedException(reason, getRetryAfter());
+	}
+
+	/**
+	 * A processing slot and heap reservation held by a single upload. Always
+	 * {@link #release()} a ticket once the upload is done, successful or not.
+	 */
+	public static class Ticket {
+		private long reservedBytes;
+		private boolean released;
+
+		private Ticket(long reservedBytes) {
+			this.reservedBytes = reservedBytes;
+		}
+
+		/**
+		 * Used to replace the heap reservation of this ticket with a more
+		 * precise estimate.
+		 * 
+		 * @throws AdmissionRejectedException
+		 *             if it grows and there is no room for the larger
+		 *             reservation right now. The ticket keeps its old
+		 *             reservation until released.
+		 */
+		public void update(long estimatedBytes)
+				throws AdmissionRejectedException {
+			synchronized (LOCK) {
+				if (released)
+					return;
+
+				long delta = estimatedBytes - reservedBytes;
+
+				if (delta > 0 && !fits(delta, false))
+					throw reject("at capacity", delta);
+
+				heapInUse += delta;
+				reservedBytes = estimatedBytes;
+			}
+		}
+
+		public void release() {
+			synchronized (LOCK) {
+				if (released)
+					return;
+
+				released = true;
+				inFlight--;
+				heapInUse -= reservedBytes;
+			}
+		}
+	}
+}
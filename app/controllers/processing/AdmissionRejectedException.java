@@ -0,0 +1,23 @@
+package controllers.processing;
+
+/**
+ * Thrown by the {@link AdmissionController} when an upload cannot be taken on
+ * right now because the node is out of processing or heap budget.
+ */
+public class AdmissionRejectedException extends Exception {
+	private static final long serialVersionUID = 1L;
+
+	private int retryAfter;
+
+	public AdmissionRejectedException(String message, int retryAfter) {
+		super(message);
+		this.retryAfter = retryAfter;
+	}
+
+	/**
+	 * @return the number of seconds the client should wait before retrying.
+	 */
+	public int getRetryAfter() {
+		return retryAfter;
+	}
+}
@@ -0,0 +1,150 @@
+package controllers.processing;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+
+/**
+ * Reads the images of a length-prefixed batch upload body one after the
+ * other, without ever holding more than a (pooled, see {@link BufferPool})
+ * buffer of it in memory.
+ * <p/>
+ * Each image is framed as:
+ * <ol>
+ * <li>the length of its file name in bytes (2 bytes, big-endian)</li>
+ * <li>the file name (UTF-8)</li>
+ * <li>the length of the image in bytes (8 bytes, big-endian)</li>
+ * <li>the image itself</li>
+ * </ol>
+ * The body ends after the last image.
+ */
+public class BatchStreamReader {
+	private final InputStream in;
+
+	private long remaining;
+
+	public BatchStreamReader(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Used to read the header of the next image. Whatever is left of the
+	 * previous image is skipped first.
+	 *
+	 * @return the file name of the next image (empty if the client sent
+	 *         none), or <code>null</code> if there are no more.
+	 *
+	 * @throws EOFException
+	 *             if the body ends in the middle of a header.
+	 */
+	public String next() throws IOException {
+		skip();
+
+		int high = in.read();
+
+		if (high < 0)
+			return null;
+
+		byte[] name = new byte[(high << 8) | readByte()];
+		readFully(name);
+
+		for (int i = 0; i < 8; i++)
+			remaining = (remaining << 8) | readByte();
+
+		if (remaining < 0)
+			throw new IOException("Invalid image length [" + remaining + "]");
+
+		return new String(name, "UTF-8");
+	}
+
+	/**
+	 * @return the number of bytes of the current image that haven't been read
+	 *         yet.
+	 */
+	public long getRemaining() {
+		return remaining;
+	}
+
+	/**
+	 * Used to copy the rest of the current image to <code>out</code>.
+	 *
+	 * @param digest
+	 *            if not <code>null</code>, updated with every byte copied.
+	 *
+	 * @return the number of bytes copied.
+	 *
+	 * @throws EOFException
+	 *             if the body ends before the image does.
+	 */
+	public long copyTo(OutputStream out, MessageDigest digest)
+			throws IOException {
+		long total = 0;
+		byte[] buffer = BufferPool.acquire();
+
+		try {
+			while (remaining > 0) {
+				int count = in.read(buffer, 0,
+						(int) Math.min(buffer.length, remaining));
+
+				if (count < 0)
+					throw new EOFException(remaining
+							+ " bytes of the image are missing");
+
+				out.write(buffer, 0, count);
+
+				if (digest != null)
+					digest.update(buffer, 0, count);
+
+				remaining -= count;
+				total += count;
+			}
+		} finally {
+			BufferPool.release(buffer);
+		}
+
+		return total;
+	}
+
+	/**
+	 * Used to skip the rest of the current image, e.g. one of an unsupported
+	 * type.
+	 */
+	public void skip() throws IOException {
+		while (remaining > 0) {
+			long count = in.skip(remaining);
+
+			// skip may legally do nothing, fall back to reading.
+			if (count <= 0) {
+				if (in.read() < 0)
+					throw new EOFException(remaining
+							+ " bytes of the image are missing");
+
+				count = 1;
+			}
+
+			remaining -= count;
+		}
+	}
+
+	private int readByte() throws IOException {
+		int b = in.read();
+
+		if (b < 0)
+			throw new EOFException("Truncated image header");
+
+		return b;
+	}
+
+	private void readFully(byte[] data) throws IOException {
+		for (int offset = 0; offset < data.length;) {
+			int count = in.read(data, offset, data.length - offset);
+
+			if (count < 0)
+				throw new EOFException("Truncated image header");
+
+			offset += count;
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package controllers.processing;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import controllers.Config;
+import controllers.Constants;
+
+/**
+ * Lends out the {@link Constants#FILE_BUFFER_SIZE} byte buffers every upload
+ * copies its bytes through (decoding to the temp file, spooling batch images,
+ * draining the tee), so the hot path stops allocating a fresh 64k array per
+ * request.
+ * <p/>
+ * At most <code>imgscalr.pool.buffers</code> idle buffers are kept (defaults
+ * to four per processor); a buffer given back to a full pool is left to the
+ * GC. Buffers that are borrowed and never given back are reported as leaks,
+ * see {@link LeakTracker}. Pooling can be turned off (for comparison) with
+ * <code>imgscalr.pool.enabled=false</code>, every borrow then allocates.
+ * <p/>
+ * IMPL NOTE: A buffer must not be used after it has been given back, and a
+ * borrowed buffer is not cleared; it is only ever a scratch area.
+ */
+public class BufferPool {
+	public static final String CONFIG_ENABLED = "imgscalr.pool.enabled";
+	public static final String CONFIG_BUFFERS = "imgscalr.pool.buffers";
+
+	private static final BlockingQueue<byte[]> idle = new LinkedBlockingQueue<byte[]>();
+	private static final LeakTracker<byte[]> tracker = new LeakTracker<byte[]>(
+			"buffer");
+	private static final AtomicLong createdCount = new AtomicLong();
+
+	/**
+	 * @return a buffer of {@link Constants#FILE_BUFFER_SIZE} bytes, to be
+	 *         given back with {@link #release(byte[])} when done.
+	 */
+	public static byte[] acquire() {
+		if (!isEnabled())
+			return new byte[Constants.FILE_BUFFER_SIZE];
+
+		byte[] buffer = idle.poll();
+
+		if (buffer == null) {
+			buffer = new byte[Constants.FILE_BUFFER_SIZE];
+			createdCount.incrementAndGet();
+		}
+
+		tracker.track(buffer);
+		return buffer;
+	}
+
+	/**
+	 * Used to give back a buffer borrowed with {@link #acquire()}; anything
+	 * else (including <code>null</code>) is ignored.
+	 */
+	public static void release(byte[] buffer) {
+		if (buffer == null || !tracker.untrack(buffer))
+			return;
+
+		if (idle.size() < Math.max(0, Config.getInt(CONFIG_BUFFERS, Runtime
+				.getRuntime().availableProcessors() * 4)))
+			idle.offer(buffer);
+	}
+
+	/**
+	 * @return the number of buffers allocated so far, as opposed to reused
+	 *         from the pool.
+	 */
+	public static long getCreatedCount() {
+		return createdCount.get();
+	}
+
+	/**
+	 * @return the number of idle buffers in the pool.
+	 */
+	public static int getIdleCount() {
+		return idle.size();
+	}
+
+	/**
+	 * @return the number of buffers borrowed and not given back yet.
+	 */
+	public static int getLentCount() {
+		tracker.expunge();
+		return tracker.getLentCount();
+	}
+
+	/**
+	 * @return the number of buffers that were never given back.
+	 */
+	public static long getLeakedCount() {
+		tracker.expunge();
+		return tracker.getLeakedCount();
+	}
+
+	/**
+	 * Used to drop every idle buffer, e.g. when the application stops.
+	 */
+	public static void clear() {
+		idle.clear();
+	}
+
+	static boolean isEnabled() {
+		return Config.getBoolean(CONFIG_ENABLED, true);
+	}
+}
@@ -0,0 +1,309 @@
+package controllers.processing;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import notifiers.UploadNotifier;
+import play.Logger;
+import play.Play;
+import controllers.Config;
+import controllers.DaemonThreadFactory;
+import controllers.FileUtils;
+import controllers.metrics.Metrics;
+import controllers.response.UploadResponse;
+import controllers.storage.JobJournal;
+import controllers.storage.SharedSpool;
+import controllers.storage.TempFileIndex;
+
+/**
+ * Processes the jobs of a {@link SharedSpool}, for nodes that share the work
+ * of their uploads through <code>imgscalr.cluster.dir</code> (on top of
+ * <code>imgscalr.jobs.async=true</code>; the {@link JobQueue} hands its jobs
+ * over to this instead of its local journal).
+ * <p/>
+ * Each of the <code>imgscalr.jobs.threads</code> threads takes the oldest
+ * job of this node; once there is none, it steals one from the node with the
+ * longest queue, and once there is nothing anywhere, it looks again every
+ * <code>imgscalr.cluster.pollInterval</code> ms. A job that finds this node
+ * busy is put back into its queue, to be stolen by a node that isn't.
+ * <p/>
+ * The originals are copied to the local temp dir to be processed, so the alt
+ * sizes never touch the shared dir. The leases of the jobs being processed
+ * are renewed, and the expired ones of every node requeued, by
+ * {@link #heartbeat()}; see <code>jobs.ClusterLeaseJob</code>.
+ */
+public class ClusterScheduler {
+	public static final String CONFIG_POLL_INTERVAL = "imgscalr.cluster.pollInterval";
+
+	public static final int DEFAULT_POLL_INTERVAL = 1000; // ms
+
+	private static SharedSpool spool;
+	private static ExecutorService executor;
+
+	/**
+	 * The jobs this node is processing right now.
+	 */
+	private static final Set<SharedSpool.Job> jobs = Collections
+			.newSetFromMap(new ConcurrentHashMap<SharedSpool.Job, Boolean>());
+
+	/**
+	 * @return <code>true</code> if jobs are to be shared with other nodes.
+	 */
+	public static boolean isEnabled() {
+		return SharedSpool.isEnabled();
+	}
+
+	/**
+	 * Used to start taking jobs from the shared dir; called when the
+	 * application starts, otherwise it happens with the first upload.
+	 */
+	public static void start() {
+		try {
+			getSpool();
+		} catch (IOException e) {
+			Logger.error(e, "Unable to open the shared job dir.");
+		}
+	}
+
+	/**
+	 * Used to publish the original of an upload (already written to
+	 * <code>tempFile</code>) to the queue of this node.
+	 *
+	 * @see JobQueue#accept(UploadResponse, File, String, String)
+	 */
+	public static boolean accept(UploadResponse response, File tempFile,
+			String contentKey, String sourceIP) {
+		try {
+			getSpool().publish(tempFile, response.uniqueFileKey,
+					response.uniqueFileName, response.originalFileName,
+					contentKey, sourceIP);
+
+			// It is in the shared dir now, kept until the job is done.
+			TempFileIndex.getInstance().untrack(tempFile);
+		} catch (IOException e) {
+			Logger.error(e, "Unable to publish the job for upload [%s].",
+					tempFile.getAbsolutePath());
+			response.setType(UploadResponse.Type.CANNOT_ACCESS_TMP_DECODE_FILE);
+			return false;
+		}
+
+		response.setType(UploadResponse.Type.ACCEPTED);
+		return true;
+	}
+
+	/**
+	 * @return the response of the upload with the given key, whichever node
+	 *         it was sent to.
+	 *
+	 * @see JobQueue#getStatus(String)
+	 */
+	public static UploadResponse getStatus(String uniqueFileKey)
+			throws IOException {
+		SharedSpool spool = getSpool();
+		UploadResponse response = spool.getResponse(uniqueFileKey);
+
+		if (response == null && spool.isOpen(uniqueFileKey)) {
+			response = new UploadResponse(UploadResponse.Type.ACCEPTED);
+			response.uniqueFileKey = uniqueFileKey;
+		}
+
+		return response;
+	}
+
+	/**
+	 * @return the number of jobs in the queue of this node.
+	 */
+	public static synchronized int getPendingCount() {
+		return (spool == null ? 0 : spool.getPendingCount());
+	}
+
+	/**
+	 * @return what every node reported last, by node id; empty if this node
+	 *         doesn't share its jobs.
+	 */
+	public static synchronized Map<String, SharedSpool.NodeStats> getNodeStats() {
+		return (spool == null ? Collections
+				.<String, SharedSpool.NodeStats> emptyMap() : spool
+				.getNodeStats());
+	}
+
+	/**
+	 * Used to renew the leases of the jobs this node is processing and
+	 * requeue the expired ones of any node.
+	 */
+	public static void heartbeat() {
+		SharedSpool spool;
+
+		synchronized (ClusterScheduler.class) {
+			spool = ClusterScheduler.spool;
+		}
+
+		if (spool == null)
+			return;
+
+		for (SharedSpool.Job job : jobs) {
+			if (!spool.renew(job) && jobs.contains(job))
+				Logger.warn("Lease of Job Lost While Processing [%s]",
+						job.uniqueFileKey);
+		}
+
+		int requeued = spool.requeueExpired(System.currentTimeMillis());
+
+		if (requeued > 0)
+			Metrics.increment("cluster_leases_expired_total", requeued);
+	}
+
+	/**
+	 * Used to delete the responses of jobs that have been done for longer
+	 * than <code>imgscalr.jobs.ttl</code>.
+	 *
+	 * @return the number of files deleted.
+	 */
+	public static synchronized int expire(long now) {
+		return (spool == null ? 0 : spool.expire(now, Config.getInt(
+				JobJournal.CONFIG_TTL, JobJournal.DEFAULT_TTL) * 1000L));
+	}
+
+	/**
+	 * Used to stop the job threads when the application stops (or is
+	 * reloaded in DEV mode). The jobs they were on are requeued once their
+	 * leases expire.
+	 */
+	public static synchronized void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+
+		spool = null;
+	}
+
+	private static synchronized SharedSpool getSpool() throws IOException {
+		if (spool == null) {
+			spool = SharedSpool.create();
+
+			int threadCount = Math.max(1, Config.getInt(
+					JobQueue.CONFIG_THREADS, Runtime.getRuntime()
+							.availableProcessors()));
+			executor = Executors.newFixedThreadPool(threadCount,
+					new DaemonThreadFactory("cluster"));
+
+			for (int i = 0; i < threadCount; i++)
+				executor.submit(new Worker(spool));
+
+			Logger.info("Cluster Scheduler Started [node=%s, threads=%s]",
+					spool.getNodeId(), threadCount);
+		}
+
+		return spool;
+	}
+
+	private static class Worker implements Runnable {
+		private final SharedSpool spool;
+
+		private Worker(SharedSpool spool) {
+			this.spool = spool;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!Thread.currentThread().isInterrupted()) {
+					SharedSpool.Job job = spool.claim();
+
+					if (job == null) {
+						job = spool.steal();
+
+						if (job != null)
+							Metrics.increment("cluster_steals_total");
+					}
+
+					if (job == null) {
+						Thread.sleep(Config.getInt(CONFIG_POLL_INTERVAL,
+								DEFAULT_POLL_INTERVAL));
+						continue;
+					}
+
+					jobs.add(job);
+
+					try {
+						process(job);
+					} finally {
+						jobs.remove(job);
+					}
+				}
+			} catch (InterruptedException e) {
+				// Shutting down.
+			} catch (RuntimeException e) {
+				Logger.error(e, "Cluster worker died, restarting it.");
+
+				synchronized (ClusterScheduler.class) {
+					if (executor != null && spool == ClusterScheduler.spool)
+						executor.submit(this);
+				}
+			}
+		}
+
+		private void process(SharedSpool.Job job) throws InterruptedException {
+			long startTime = System.nanoTime();
+			UploadResponse response = new UploadResponse();
+			response.originalFileName = job.originalFileName;
+			response.uniqueFileKey = job.uniqueFileKey;
+			response.uniqueFileName = job.uniqueFileName;
+
+			File tempFile = new File(Play.tmpDir, job.uniqueFileName);
+
+			try {
+				FileUtils.copy(job.file, tempFile);
+			} catch (IOException e) {
+				Logger.error(e, "Unable to copy the original of job [%s].",
+						job.file.getAbsolutePath());
+				response.setType(UploadResponse.Type.CANNOT_ACCESS_TMP_DECODE_FILE);
+				complete(job, response, startTime);
+				return;
+			}
+
+			// Cleaned up like any other original if the CDN push fails.
+			TempFileIndex.getInstance().track(tempFile);
+
+			if (UploadPipeline.processFile(response, tempFile, job.contentKey)) {
+				// Queue the mail notice, it goes out with the next digest.
+				UploadNotifier.enqueue(job.sourceIP, response);
+			} else if (response.code == UploadResponse.CODE_FAILURE_SERVER_BUSY) {
+				if (tempFile.delete())
+					TempFileIndex.getInstance().untrack(tempFile);
+
+				// Let a node with room for it have it.
+				spool.release(job);
+				Metrics.increment("cluster_releases_total");
+				Thread.sleep(response.retryAfter * 1000L);
+				return;
+			}
+
+			complete(job, response, startTime);
+		}
+
+		private void complete(SharedSpool.Job job, UploadResponse response,
+				long startTime) {
+			try {
+				if (!spool.complete(job, response))
+					return;
+			} catch (IOException e) {
+				// The lease expires and it is processed again.
+				Logger.error(e, "Unable to record the outcome of job [%s].",
+						job.uniqueFileKey);
+				return;
+			}
+
+			Metrics.increment(Metrics.name("cluster_jobs_total", "source",
+					(job.stolen ? "stolen" : "local")));
+			UploadPipeline.recordOutcome(response, "cluster", startTime);
+		}
+	}
+}
@@ -0,0 +1,485 @@
+package controllers.processing;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.color.ColorSpace;
+import java.awt.color.ICC_ColorSpace;
+import java.awt.color.ICC_Profile;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorConvertOp;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import play.Logger;
+import controllers.Config;
+import controllers.metrics.Metrics;
+
+/**
+ * Brings decoded originals into a pixel layout Java2D has fast loops for,
+ * once per upload, before any size is scaled from them.
+ * <p/>
+ * ImageIO hands back 16-bit and gray+alpha PNGs, images with an embedded ICC
+ * profile and the like as <code>TYPE_CUSTOM</code>, and GIFs and palette
+ * PNGs as indexed images. Scaling from those takes Java2D's generic
+ * (per-pixel, through the ColorModel) path, for every size scaled from the
+ * original. They are drawn into a <code>TYPE_INT_RGB</code> (or
+ * <code>TYPE_INT_ARGB</code> if they have alpha) image from the
+ * {@link RasterPool} instead; the standard byte and int types Java2D already
+ * handles natively are left as they are. This can be turned off with
+ * <code>imgscalr.decode.normalize=false</code>.
+ * <p/>
+ * CMYK and YCCK JPEGs (as saved by Photoshop for print) can't be read into a
+ * BufferedImage at all by the JPEG reader of older JREs, and newer ones read
+ * them without undoing the inverted values Adobe writes. Their raw raster is
+ * read and converted to RGB here, through the ICC profile embedded in the
+ * file if there is one.
+ * <p/>
+ * Scaling always produces RGB images; {@link #toIndexed(BufferedImage,
+ * IndexColorModel)} maps a size back onto the palette of its original for
+ * the encoder.
+ */
+public class ColorNormalizer {
+	public static final String CONFIG_NORMALIZE = "imgscalr.decode.normalize";
+
+	private static final String JPEG_METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+	private static final byte[] ICC_MARKER = { 'I', 'C', 'C', '_', 'P', 'R',
+			'O', 'F', 'I', 'L', 'E', 0 };
+
+	/**
+	 * Adobe APP14 <code>transform</code> value of a YCCK image.
+	 */
+	private static final int ADOBE_YCCK = 2;
+
+	private static final int CACHE_BITS = 12;
+
+	/**
+	 * Used to convert <code>image</code> to a layout Java2D scales quickly,
+	 * if it isn't in one already.
+	 *
+	 * @return <code>image</code> itself, or the converted image from the
+	 *         {@link RasterPool}; <code>image</code> is given back to the pool
+	 *         then.
+	 */
+	public static BufferedImage normalize(BufferedImage image) {
+		if (image == null || isAccelerated(image.getType())
+				|| !Config.getBoolean(CONFIG_NORMALIZE, true))
+			return image;
+
+		long startTime = System.nanoTime();
+		BufferedImage normalized = RasterPool.acquire(image.getWidth(), image
+				.getHeight(),
+				(image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB
+						: BufferedImage.TYPE_INT_RGB));
+		Graphics2D g = normalized.createGraphics();
+
+		try {
+			// Copy the alpha as it is instead of blending onto the cleared image.
+			g.setComposite(AlphaComposite.Src);
+			g.drawImage(image, 0, 0, null);
+		} finally {
+			g.dispose();
+		}
+
+		Metrics.recordSince("normalize_seconds", startTime);
+		Metrics.increment(Metrics.name("normalized_images_total", "from",
+				getTypeName(image)));
+
+		RasterPool.release(image);
+		return normalized;
+	}
+
+	/**
+	 * @return <code>true</code> if Java2D scales images of <code>type</code>
+	 *         without going through their ColorModel pixel by pixel.
+	 */
+	public static boolean isAccelerated(int type) {
+		switch (type) {
+		case BufferedImage.TYPE_INT_RGB:
+		case BufferedImage.TYPE_INT_ARGB:
+		case BufferedImage.TYPE_INT_ARGB_PRE:
+		case BufferedImage.TYPE_INT_BGR:
+		case BufferedImage.TYPE_3BYTE_BGR:
+		case BufferedImage.TYPE_4BYTE_ABGR:
+		case BufferedImage.TYPE_4BYTE_ABGR_PRE:
+		case BufferedImage.TYPE_BYTE_GRAY:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * @return the palette images read by <code>reader</code> are decoded
+	 *         with, or <code>null</code> if they aren't indexed.
+	 */
+	public static IndexColorModel getPalette(ImageReader reader) {
+		ImageTypeSpecifier type;
+
+		try {
+			type = reader.getRawImageType(0);
+		} catch (IOException e) {
+			// Some readers can't tell before decoding (e.g. a CMYK JPEG).
+			return null;
+		}
+
+		if (type == null
+				|| !(type.getColorModel() instanceof IndexColorModel))
+			return null;
+
+		IndexColorModel palette = (IndexColorModel) type.getColorModel();
+
+		// SANITY-CHECK, the encoders only write 8-bit palettes.
+		return (palette.getMapSize() <= 256 ? palette : null);
+	}
+
+	/**
+	 * Used to read the first image of <code>reader</code> if it is a CMYK or
+	 * YCCK JPEG, converted to RGB.
+	 *
+	 * @return a <code>TYPE_INT_RGB</code> image from the {@link RasterPool},
+	 *         or <code>null</code> if it isn't a 4 channel JPEG and should be
+	 *         read as usual.
+	 */
+	public static BufferedImage readCmyk(ImageReader reader,
+			ImageReadParam param) throws IOException {
+		if (!"jpg".equals(ImageEncoder.normalize(reader.getFormatName())))
+			return null;
+
+		IIOMetadata metadata = reader.getImageMetadata(0);
+
+		if (metadata == null)
+			return null;
+
+		JpegInfo info = new JpegInfo();
+		info.scan(metadata.getAsTree(JPEG_METADATA_FORMAT));
+
+		if (info.components != 4)
+			return null;
+
+		long startTime = System.nanoTime();
+		Raster read = reader.readRaster(0, param);
+		WritableRaster raster;
+
+		if (read instanceof WritableRaster) {
+			raster = (WritableRaster) read;
+		} else {
+			raster = read.createCompatibleWritableRaster();
+			raster.setRect(read);
+		}
+
+		BufferedImage image = RasterPool.acquire(raster.getWidth(), raster
+				.getHeight(), BufferedImage.TYPE_INT_RGB);
+
+		toCmyk(raster, info.transform == ADOBE_YCCK, info.transform >= 0);
+
+		if (info.profile == null || !convert(raster, info.profile, image))
+			convert(raster, image);
+
+		Metrics.recordSince("normalize_seconds", startTime);
+		Metrics.increment(Metrics.name("normalized_images_total", "from",
+				(info.transform == ADOBE_YCCK ? "ycck" : "cmyk")));
+		return image;
+	}
+
+	/**
+	 * Used to map every pixel of <code>image</code> to the closest color of
+	 * <code>palette</code> (no dithering), turning a size scaled from an
+	 * indexed original back into an indexed image. Pixels that are more
+	 * transparent than opaque take the transparent index of the palette, if
+	 * it has one.
+	 */
+	public static BufferedImage toIndexed(BufferedImage image,
+			IndexColorModel palette) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int[] colors = new int[palette.getMapSize()];
+		int transparent = palette.getTransparentPixel();
+
+		palette.getRGBs(colors);
+
+		IndexColorModel colorModel = new IndexColorModel(8, colors.length,
+				colors, 0, palette.hasAlpha(), transparent,
+				DataBuffer.TYPE_BYTE);
+		BufferedImage indexed = new BufferedImage(width, height,
+				BufferedImage.TYPE_BYTE_INDEXED, colorModel);
+		WritableRaster raster = indexed.getRaster();
+
+		/*
+		 * IMPL NOTE: Scaled images have far fewer distinct colors than
+		 * pixels, so the last match of each slot of a small direct-mapped
+		 * cache is kept instead of searching the palette for every pixel.
+		 */
+		int[] cacheKeys = new int[1 << CACHE_BITS];
+		int[] cacheIndexes = new int[1 << CACHE_BITS];
+		int[] row = new int[width];
+		byte[] indexRow = new byte[width];
+
+		for (int y = 0; y < height; y++) {
+			image.getRGB(0, y, width, 1, row, 0, width);
+
+			for (int x = 0; x < width; x++) {
+				int argb = row[x];
+				int slot = (argb * 0x9E3779B1) >>> (32 - CACHE_BITS);
+
+				// Indexes are stored plus one, 0 is an empty slot.
+				if (cacheIndexes[slot] == 0 || cacheKeys[slot] != argb) {
+					cacheKeys[slot] = argb;
+					cacheIndexes[slot] = findClosest(argb, colors,
+							transparent) + 1;
+				}
+
+				indexRow[x] = (byte) (cacheIndexes[slot] - 1);
+			}
+
+			raster.setDataElements(0, y, width, 1, indexRow);
+		}
+
+		return indexed;
+	}
+
+	private static int findClosest(int argb, int[] colors, int transparent) {
+		int alpha = argb >>> 24;
+
+		if (transparent >= 0 && alpha < 128)
+			return transparent;
+
+		int red = (argb >> 16) & 0xFF;
+		int green = (argb >> 8) & 0xFF;
+		int blue = argb & 0xFF;
+		int closest = 0;
+		int closestDistance = Integer.MAX_VALUE;
+
+		for (int i = 0; i < colors.length; i++) {
+			int color = colors[i];
+			int da = alpha - (color >>> 24);
+			int dr = red - ((color >> 16) & 0xFF);
+			int dg = green - ((color >> 8) & 0xFF);
+			int db = blue - (color & 0xFF);
+			int distance = da * da + dr * dr + dg * dg + db * db;
+
+			if (distance < closestDistance) {
+				closest = i;
+				closestDistance = distance;
+
+				if (distance == 0)
+					break;
+			}
+		}
+
+		return closest;
+	}
+
+	/**
+	 * Used to turn the raw samples of a 4 channel JPEG into CMYK ink values
+	 * (0 is no ink) in place.
+	 *
+	 * @param ycck
+	 *            if the first 3 channels are YCC encoded.
+	 * @param adobe
+	 *            if the file has an Adobe marker; Adobe writes inverted
+	 *            values.
+	 */
+	static void toCmyk(WritableRaster raster, boolean ycck, boolean adobe) {
+		int width = raster.getWidth();
+		int[] row = new int[width * 4];
+		int minX = raster.getMinX();
+		int minY = raster.getMinY();
+
+		for (int y = 0; y < raster.getHeight(); y++) {
+			raster.getPixels(minX, minY + y, width, 1, row);
+
+			for (int i = 0; i < row.length; i += 4) {
+				if (ycck) {
+					int luma = row[i];
+					int cb = row[i + 1] - 128;
+					int cr = row[i + 2] - 128;
+
+					row[i] = 255 - clamp(luma + 1.402 * cr);
+					row[i + 1] = 255 - clamp(luma - 0.34414 * cb - 0.71414
+							* cr);
+					row[i + 2] = 255 - clamp(luma + 1.772 * cb);
+				}
+
+				if (adobe) {
+					row[i] = 255 - row[i];
+					row[i + 1] = 255 - row[i + 1];
+					row[i + 2] = 255 - row[i + 2];
+					row[i + 3] = 255 - row[i + 3];
+				}
+			}
+
+			raster.setPixels(minX, minY + y, width, 1, row);
+		}
+	}
+
+	/**
+	 * Used to convert CMYK ink values to RGB without a profile, the way a
+	 * naive print driver would.
+	 */
+	private static void convert(Raster cmyk, BufferedImage image) {
+		int width = cmyk.getWidth();
+		int[] row = new int[width * 4];
+		int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer())
+				.getData();
+
+		for (int y = 0, offset = 0; y < cmyk.getHeight(); y++) {
+			cmyk.getPixels(cmyk.getMinX(), cmyk.getMinY() + y, width, 1, row);
+
+			for (int i = 0; i < row.length; i += 4) {
+				int white = 255 - row[i + 3];
+
+				pixels[offset++] = ((255 - row[i]) * white / 255) << 16
+						| ((255 - row[i + 1]) * white / 255) << 8
+						| ((255 - row[i + 2]) * white / 255);
+			}
+		}
+	}
+
+	/**
+	 * Used to convert CMYK ink values to RGB through <code>profile</code>.
+	 *
+	 * @return <code>false</code> if the profile can't be used, nothing has
+	 *         been written to <code>image</code> then.
+	 */
+	private static boolean convert(Raster cmyk, ICC_Profile profile,
+			BufferedImage image) {
+		if (profile.getColorSpaceType() != ColorSpace.TYPE_CMYK)
+			return false;
+
+		try {
+			WritableRaster rgb = image.getRaster();
+			Raster source = cmyk.createChild(cmyk.getMinX(), cmyk.getMinY(),
+					cmyk.getWidth(), cmyk.getHeight(), 0, 0, null);
+
+			new ColorConvertOp(new ICC_ColorSpace(profile), image
+					.getColorModel().getColorSpace(), null).filter(source,
+					rgb);
+			return true;
+		} catch (RuntimeException e) {
+			// A damaged or unsupported profile, Java2D throws CMMException.
+			Logger.warn("Unusable CMYK Profile, Converting Without [%s]",
+					e.getMessage());
+			return false;
+		}
+	}
+
+	private static int clamp(double value) {
+		return (value < 0 ? 0 : (value > 255 ? 255 : (int) value));
+	}
+
+	private static String getTypeName(BufferedImage image) {
+		switch (image.getType()) {
+		case BufferedImage.TYPE_BYTE_INDEXED:
+			return "indexed";
+		case BufferedImage.TYPE_BYTE_BINARY:
+			return "binary";
+		case BufferedImage.TYPE_USHORT_GRAY:
+			return "ushort_gray";
+		case BufferedImage.TYPE_USHORT_555_RGB:
+		case BufferedImage.TYPE_USHORT_565_RGB:
+			return "ushort_rgb";
+		default:
+			return "custom";
+		}
+	}
+
+	/**
+	 * What the image metadata of a JPEG says about its colors.
+	 */
+	private static class JpegInfo {
+		private int components;
+
+		/**
+		 * The Adobe APP14 transform, -1 if there is no Adobe marker.
+		 */
+		private int transform = -1;
+
+		private ICC_Profile profile;
+		private final ByteArrayOutputStream profileChunks = new ByteArrayOutputStream();
+
+		private void scan(Node root) {
+			visit(root);
+
+			/*
+			 * IMPL NOTE: Without a JFIF marker (CMYK files have none) the
+			 * reader keeps the APP2 segments of the profile as unknown
+			 * markers; they hold the profile in order, after their header.
+			 */
+			if (profile == null && profileChunks.size() > 0) {
+				try {
+					profile = ICC_Profile.getInstance(profileChunks
+							.toByteArray());
+				} catch (IllegalArgumentException e) {
+					// Converted without it.
+				}
+			}
+		}
+
+		private void visit(Node node) {
+			String name = node.getNodeName();
+
+			if ("sof".equals(name))
+				components = getInt(node, "numFrameComponents", 0);
+			else if ("app14Adobe".equals(name))
+				transform = getInt(node, "transform", 0);
+			else if ("app2ICC".equals(name)
+					&& ((IIOMetadataNode) node).getUserObject() instanceof ICC_Profile)
+				profile = (ICC_Profile) ((IIOMetadataNode) node)
+						.getUserObject();
+			else if ("unknown".equals(name)
+					&& getInt(node, "MarkerTag", 0) == 0xE2)
+				addProfileChunk(((IIOMetadataNode) node).getUserObject());
+
+			for (Node child = node.getFirstChild(); child != null; child = child
+					.getNextSibling())
+				visit(child);
+		}
+
+		private void addProfileChunk(Object data) {
+			if (!(data instanceof byte[]))
+				return;
+
+			byte[] chunk = (byte[]) data;
+			int headerLength = ICC_MARKER.length + 2;
+
+			if (chunk.length <= headerLength)
+				return;
+
+			for (int i = 0; i < ICC_MARKER.length; i++) {
+				if (chunk[i] != ICC_MARKER[i])
+					return;
+			}
+
+			profileChunks.write(chunk, headerLength, chunk.length
+					- headerLength);
+		}
+
+		private static int getInt(Node node, String attribute,
+				int defaultValue) {
+			NamedNodeMap attributes = node.getAttributes();
+			Node value = (attributes == null ? null : attributes
+					.getNamedItem(attribute));
+
+			try {
+				return (value == null ? defaultValue : Integer.parseInt(value
+						.getNodeValue()));
+			} catch (NumberFormatException e) {
+				return defaultValue;
+			}
+		}
+	}
+}
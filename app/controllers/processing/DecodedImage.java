@@ -0,0 +1,121 @@
+package controllers.processing;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.util.Map;
+
+/**
+ * An uploaded image as decoded by the {@link ImageDecoder}.
+ * <p/>
+ * The decoded <code>image</code> may have been subsampled and be smaller than
+ * the original; <code>width</code> and <code>height</code> are always the
+ * dimensions of the original as read from its header.
+ * <p/>
+ * An image too large to decode in one piece is streamed instead (see
+ * {@link StripResizer}); <code>image</code> is then <code>null</code> and the
+ * targets it was decoded for are in <code>scaled</code>.
+ * <p/>
+ * An image no wider than any of the targets it was decoded for isn't decoded
+ * at all, only its header is read (see {@link #isMetadataOnly()}); there are
+ * no sizes to generate from its pixels.
+ */
+public class DecodedImage {
+	public final BufferedImage image;
+	public final int width;
+	public final int height;
+	public final String formatName;
+
+	/**
+	 * The source subsampling factor the image was decoded with (in both
+	 * directions), 1 means every pixel of the original was decoded.
+	 */
+	public final int subsampling;
+
+	/**
+	 * The image already scaled to each target, only set if it was streamed.
+	 */
+	public final Map<ResizeTarget, BufferedImage> scaled;
+
+	/**
+	 * The palette of the original if it is an indexed image (a GIF or a
+	 * palette PNG), for encoding its sizes with; <code>null</code> otherwise.
+	 * The decoded image itself is always in a direct color layout, see
+	 * {@link ColorNormalizer}.
+	 */
+	public final IndexColorModel palette;
+
+	private final boolean metadataOnly;
+
+	/**
+	 * Creates an image of which only the header was read.
+	 */
+	public DecodedImage(int width, int height, String formatName) {
+		this(null, width, height, formatName, 1, null, null, true);
+	}
+
+	public DecodedImage(BufferedImage image, int width, int height,
+			String formatName, int subsampling) {
+		this(image, width, height, formatName, subsampling, null);
+	}
+
+	public DecodedImage(BufferedImage image, int width, int height,
+			String formatName, int subsampling,
+			Map<ResizeTarget, BufferedImage> scaled) {
+		this(image, width, height, formatName, subsampling, scaled, null);
+	}
+
+	public DecodedImage(BufferedImage image, int width, int height,
+			String formatName, int subsampling,
+			Map<ResizeTarget, BufferedImage> scaled, IndexColorModel palette) {
+		this(image, width, height, formatName, subsampling, scaled, palette,
+				false);
+	}
+
+	private DecodedImage(BufferedImage image, int width, int height,
+			String formatName, int subsampling,
+			Map<ResizeTarget, BufferedImage> scaled, IndexColorModel palette,
+			boolean metadataOnly) {
+		this.image = image;
+		this.width = width;
+		this.height = height;
+		this.formatName = formatName;
+		this.subsampling = subsampling;
+		this.scaled = scaled;
+		this.palette = palette;
+		this.metadataOnly = metadataOnly;
+	}
+
+	/**
+	 * @return <code>true</code> if the image was read successfully: either
+	 *         the image itself, its streamed sizes or (if there are no sizes
+	 *         to generate) its header.
+	 */
+	public boolean isDecoded() {
+		return (image != null || scaled != null || metadataOnly);
+	}
+
+	/**
+	 * @return <code>true</code> if only the header of the image was read
+	 *         because none of the targets is narrower than it.
+	 */
+	public boolean isMetadataOnly() {
+		return metadataOnly;
+	}
+
+	public boolean isStreamed() {
+		return (scaled != null);
+	}
+
+	/**
+	 * Used to give the decoded image (or its streamed sizes) back to the
+	 * {@link RasterPool} once nothing uses it anymore.
+	 */
+	public void release() {
+		RasterPool.release(image);
+
+		if (scaled != null) {
+			for (BufferedImage scaledImage : scaled.values())
+				RasterPool.release(scaledImage);
+		}
+	}
+}
@@ -0,0 +1,351 @@
+package controllers.processing;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import play.Logger;
+import controllers.FileUtils;
+
+/**
+ * Size-bounded cache of encoded images derived from the stored originals,
+ * kept in memory and in a local directory.
+ * <p/>
+ * Both tiers are LRU and bounded by the total number of bytes they hold; an
+ * entry found on disk is promoted back into memory. When an entry is in
+ * neither, it is produced by the {@link Loader} passed to
+ * {@link #get(String, Loader)} and stored in both.
+ * <p/>
+ * Loads are single-flight: when many requests miss on the same key at once
+ * (e.g. a popular image that just got linked somewhere) only the first one
+ * runs its loader, the others wait for and share its result.
+ * <p/>
+ * IMPL NOTE: Keys are used as file names as-is, callers must make sure they
+ * are safe to use as such.
+ */
+public class DerivedImageCache {
+	/**
+	 * Produces the contents of an entry that isn't cached.
+	 */
+	public interface Loader {
+		/**
+		 * @return the encoded image or <code>null</code> if it can't be
+		 *         produced (nothing is cached in that case).
+		 */
+		public byte[] load() throws Exception;
+	}
+
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private final File dir;
+	private final long maxMemoryBytes;
+	private final long maxDiskBytes;
+
+	private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<String, byte[]>(
+			16, 0.75f, true);
+	private long memoryBytes;
+
+	private LinkedHashMap<String, Long> disk;
+	private long diskBytes;
+
+	private final ConcurrentMap<String, FutureTask<byte[]>> loads = new ConcurrentHashMap<String, FutureTask<byte[]>>();
+
+	private final AtomicLong memoryHitCount = new AtomicLong();
+	private final AtomicLong diskHitCount = new AtomicLong();
+	private final AtomicLong loadCount = new AtomicLong();
+	private final AtomicLong sharedLoadCount = new AtomicLong();
+
+	public DerivedImageCache(File dir, long maxMemoryBytes, long maxDiskBytes) {
+		this.dir = dir;
+		this.maxMemoryBytes = maxMemoryBytes;
+		this.maxDiskBytes = maxDiskBytes;
+	}
+
+	/**
+	 * @return the cached entry for <code>key</code>, loading it with
+	 *         <code>loader</code> if it isn't cached yet. Returns
+	 *         <code>null</code> if the loader did.
+	 *
+	 * @throws Exception
+	 *             whatever the loader threw, also to every request that
+	 *             shared the failed load.
+	 */
+	public byte[] get(final String key, final Loader loader) throws Exception {
+		byte[] data = getCached(key);
+
+		if (data != null)
+			return data;
+
+		FutureTask<byte[]> load = new FutureTask<byte[]>(
+				new Callable<byte[]>() {
+					@Override
+					public byte[] call() throws Exception {
+						/*
+						 * SANITY-CHECK, a load for this key may have finished
+						 * between our cache miss and getting here.
+						 */
+						byte[] data = getCached(key);
+
+						if (data == null) {
+							loadCount.incrementAndGet();
+							data = loader.load();
+
+							if (data != null) {
+								putMemory(key, data);
+								putDisk(key, data);
+							}
+						}
+
+						return data;
+					}
+				});
+		FutureTask<byte[]> runningLoad = loads.putIfAbsent(key, load);
+
+		if (runningLoad == null) {
+			try {
+				load.run();
+			} finally {
+				loads.remove(key, load);
+			}
+
+			runningLoad = load;
+		} else
+			sharedLoadCount.incrementAndGet();
+
+		try {
+			return runningLoad.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+
+			if (cause instanceof Exception)
+				throw (Exception) cause;
+			else if (cause instanceof Error)
+				throw (Error) cause;
+			else
+				throw e;
+		}
+	}
+
+	public long getMemoryHitCount() {
+		return memoryHitCount.get();
+	}
+
+	public long getDiskHitCount() {
+		return diskHitCount.get();
+	}
+
+	/**
+	 * @return the number of times a loader actually ran.
+	 */
+	public long getLoadCount() {
+		return loadCount.get();
+	}
+
+	/**
+	 * @return the number of requests that waited for a load another request
+	 *         had already started instead of running their own.
+	 */
+	public long getSharedLoadCount() {
+		return sharedLoadCount.get();
+	}
+
+	public synchronized long getMemoryBytes() {
+		return memoryBytes;
+	}
+
+	public synchronized long getDiskBytes() {
+		getDisk();
+		return diskBytes;
+	}
+
+	private byte[] getCached(String key) throws IOException {
+		byte[] data = getMemory(key);
+
+		if (data != null) {
+			memoryHitCount.incrementAndGet();
+			return data;
+		}
+
+		data = getDiskEntry(key);
+
+		if (data != null) {
+			diskHitCount.incrementAndGet();
+			putMemory(key, data);
+		}
+
+		return data;
+	}
+
+	private synchronized byte[] getMemory(String key) {
+		return memory.get(key);
+	}
+
+	private synchronized void putMemory(String key, byte[] data) {
+		if (data.length > maxMemoryBytes)
+			return;
+
+		byte[] previous = memory.put(key, data);
+
+		if (previous != null)
+			memoryBytes -= previous.length;
+
+		memoryBytes += data.length;
+
+		for (Iterator<byte[]> i = memory.values().iterator(); memoryBytes > maxMemoryBytes
+				&& i.hasNext();) {
+			memoryBytes -= i.next().length;
+			i.remove();
+		}
+	}
+
+	private byte[] getDiskEntry(String key) throws IOException {
+		synchronized (this) {
+			// Touch the entry so it becomes the most recently used.
+			if (getDisk().get(key) == null)
+				return null;
+		}
+
+		File file = new File(dir, key);
+		byte[] data = new byte[(int) file.length()];
+		InputStream in;
+
+		try {
+			in = new FileInputStream(file);
+		} catch (IOException e) {
+			// Evicted between the index lookup and here.
+			return null;
+		}
+
+		try {
+			int offset = 0;
+
+			while (offset < data.length) {
+				int count = in.read(data, offset, data.length - offset);
+
+				if (count < 0)
+					throw new IOException("Unexpected end of [" + file + "]");
+
+				offset += count;
+			}
+		} finally {
+			in.close();
+		}
+
+		return data;
+	}
+
+	private void putDisk(String key, byte[] data) {
+		if (data.length > maxDiskBytes)
+			return;
+
+		File file = new File(dir, key);
+		File tempFile = new File(dir, key + TEMP_SUFFIX);
+
+		try {
+			if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+				throw new IOException("Unable to create cache dir [" + dir
+						+ "]");
+
+			OutputStream out = new FileOutputStream(tempFile);
+
+			try {
+				out.write(data);
+			} finally {
+				out.close();
+			}
+
+			synchronized (this) {
+				FileUtils.replace(tempFile, file);
+
+				Long previous = getDisk().put(key, Long.valueOf(data.length));
+
+				if (previous != null)
+					diskBytes -= previous.longValue();
+
+				diskBytes += data.length;
+				evictDisk();
+			}
+		} catch (IOException e) {
+			tempFile.delete();
+			Logger.error(e, "Unable to write derived image [%s] to disk",
+					file.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Must be called while holding the lock on this cache.
+	 */
+	private void evictDisk() {
+		for (Iterator<Map.Entry<String, Long>> i = disk.entrySet().iterator(); diskBytes > maxDiskBytes
+				&& i.hasNext();) {
+			Map.Entry<String, Long> entry = i.next();
+
+			if (!new File(dir, entry.getKey()).delete())
+				Logger.error("Unable to Delete Derived Image [%s]",
+						entry.getKey());
+
+			diskBytes -= entry.getValue().longValue();
+			i.remove();
+		}
+	}
+
+	/**
+	 * Used to get the index of the disk tier, building it from the contents
+	 * of the cache dir (oldest first) the first time. Must be called while
+	 * holding the lock on this cache.
+	 */
+	private Map<String, Long> getDisk() {
+		if (disk == null) {
+			disk = new LinkedHashMap<String, Long>(16, 0.75f, true);
+			diskBytes = 0;
+
+			File[] files = dir.listFiles();
+
+			if (files != null) {
+				Arrays.sort(files, new Comparator<File>() {
+					@Override
+					public int compare(File f1, File f2) {
+						long m1 = f1.lastModified();
+						long m2 = f2.lastModified();
+						return (m1 < m2 ? -1 : (m1 == m2 ? 0 : 1));
+					}
+				});
+
+				for (File file : files) {
+					if (!file.isFile())
+						continue;
+
+					// Left behind by a crash in the middle of a write.
+					if (file.getName().endsWith(TEMP_SUFFIX)) {
+						file.delete();
+						continue;
+					}
+
+					disk.put(file.getName(), Long.valueOf(file.length()));
+					diskBytes += file.length();
+				}
+			}
+
+			evictDisk();
+			Logger.info(
+					"Derived Image Cache Loaded [dir=%s, entries=%s, bytes=%s]",
+					dir.getAbsolutePath(), disk.size(), diskBytes);
+		}
+
+		return disk;
+	}
+}
@@ -0,0 +1,317 @@
+package controllers.processing;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+import play.Logger;
+import controllers.Config;
+import controllers.metrics.Metrics;
+
+/**
+ * Decodes uploaded images no larger than the alt sizes we generate from them
+ * actually need.
+ * <p/>
+ * The dimensions of the original are read from the image header first. If the
+ * original is much wider than the largest target, the ImageReader is asked to
+ * subsample the source so only every Nth pixel (in both directions) is
+ * decoded. A 40MP camera JPEG then never has to be held in memory at full
+ * resolution just to produce a 1024px LARGE size.
+ * <p/>
+ * Subsampling simply drops pixels, so the decoded image is kept at least
+ * <code>imgscalr.decode.subsampleMargin</code> times wider than the largest
+ * target, leaving the actual down-scaling to Scalr. Subsampling can be turned
+ * off with <code>imgscalr.decode.subsample=false</code>.
+ * <p/>
+ * IMPL NOTE: Only subsampling is used; every size is scaled from the full
+ * frame so there is never a source region to crop to. Targets are
+ * {@link ResizeTarget#resolve(int, int) resolved} to the width they come out
+ * at as soon as the header has been read, so streamed sizes are keyed by those.
+ * <p/>
+ * When decoding for a list of targets, an image still too large to decode in
+ * one piece after subsampling is streamed straight to those targets instead,
+ * see {@link StripResizer}. The upload itself is only ever read forward (so a
+ * memory-cached stream over the request body never holds all of it); the
+ * strips are read from a {@link Source} of their own. An image no wider than
+ * any of the targets isn't decoded at all; nothing is generated from it, so
+ * only its header is read (most uploads are small, they never allocate a
+ * raster). This can be turned off with
+ * <code>imgscalr.decode.fastPath=false</code>.
+ * <p/>
+ * Decoded images are brought into a layout Java2D scales quickly (and CMYK
+ * JPEGs converted to RGB) by the {@link ColorNormalizer}; the palette of an
+ * indexed original is kept on the {@link DecodedImage} for the encoder. They
+ * come from the {@link RasterPool} where their type allows it, see
+ * {@link DecodedImage#release()}.
+ */
+public class ImageDecoder {
+	public static final String CONFIG_SUBSAMPLE = "imgscalr.decode.subsample";
+	public static final String CONFIG_SUBSAMPLE_MARGIN = "imgscalr.decode.subsampleMargin";
+	public static final String CONFIG_FAST_PATH = "imgscalr.decode.fastPath";
+
+	public static final double DEFAULT_SUBSAMPLE_MARGIN = 2;
+
+	/**
+	 * Told the dimensions of an image after its header has been read but
+	 * before any pixels are decoded.
+	 */
+	public interface HeaderListener {
+		public void headerRead(int width, int height, int subsampling);
+	}
+
+	/**
+	 * Opens the image again from the start, for the strip passes of a
+	 * streamed decode.
+	 */
+	public interface Source {
+		public ImageInputStream open() throws IOException;
+	}
+
+	/**
+	 * @return a {@link Source} that opens <code>file</code>.
+	 */
+	public static Source source(final File file) {
+		return new Source() {
+			@Override
+			public ImageInputStream open() throws IOException {
+				return ImageIO.createImageInputStream(file);
+			}
+		};
+	}
+
+	/**
+	 * Used to decode the first image in <code>stream</code>.
+	 * 
+	 * @see #decode(ImageInputStream, int, HeaderListener)
+	 */
+	public static DecodedImage decode(ImageInputStream stream,
+			int maxTargetWidth) throws IOException {
+		return decode(stream, maxTargetWidth, null);
+	}
+
+	/**
+	 * Used to decode the first image in <code>stream</code>.
+	 * 
+	 * @param maxTargetWidth
+	 *            the width of the largest size that will be generated from the
+	 *            image.
+	 * @param listener
+	 *            notified once the header has been read, may be
+	 *            <code>null</code>. Anything it throws aborts the decode.
+	 * 
+	 * @return the decoded image or <code>null</code> if no installed
+	 *         ImageReader can read the stream.
+	 * 
+	 * @throws IOException
+	 *             if the image cannot be decoded.
+	 */
+	public static DecodedImage decode(ImageInputStream stream,
+			int maxTargetWidth, HeaderListener listener) throws IOException {
+		return decode(stream, maxTargetWidth, null, listener, null);
+	}
+
+	/**
+	 * Used to decode the first image in <code>stream</code> for generating
+	 * <code>targets</code>, streaming it straight to them if it is too large
+	 * (see {@link StripResizer#isStreaming(int, int, int)}).
+	 * 
+	 * @param source
+	 *            opens the same image again, only if it is streamed; by then
+	 *            <code>stream</code> is not read any further.
+	 * 
+	 * @see #decode(ImageInputStream, int, HeaderListener)
+	 */
+	public static DecodedImage decode(ImageInputStream stream,
+			List<ResizeTarget> targets, HeaderListener listener, Source source)
+			throws IOException {
+		if (source == null)
+			throw new IllegalArgumentException("source cannot be null");
+
+		return decode(stream, ResizeTarget.getMaxWidth(targets), targets,
+				listener, source);
+	}
+
+	private static DecodedImage decode(ImageInputStream stream,
+			int maxTargetWidth, List<ResizeTarget> targets,
+			HeaderListener listener, Source source) throws IOException {
+		Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+
+		if (!readers.hasNext())
+			return null;
+
+		ImageReader reader = readers.next();
+
+		try {
+			reader.setInput(stream, true, true);
+
+			int width = reader.getWidth(0);
+			int height = reader.getHeight(0);
+
+			if (targets != null) {
+				targets = ResizeTarget.resolve(targets, width, height);
+				maxTargetWidth = ResizeTarget.getMaxWidth(targets);
+			}
+
+			if (targets != null && isMetadataOnly(width, targets)) {
+				Metrics.increment("decode_skipped_total");
+				return new DecodedImage(width, height, reader.getFormatName());
+			}
+
+			int subsampling = getSubsampling(width, maxTargetWidth);
+			ImageReadParam param = reader.getDefaultReadParam();
+
+			if (subsampling > 1) {
+				param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+				Logger.info(
+						"Subsampled Decode [original=%sx%s, subsampling=%s, maxTargetWidth=%s]",
+						width, height, subsampling, maxTargetWidth);
+			}
+
+			if (listener != null)
+				listener.headerRead(width, height, subsampling);
+
+			IndexColorModel palette = ColorNormalizer.getPalette(reader);
+
+			if (targets != null
+					&& StripResizer.isStreaming(width, height, subsampling))
+				return new DecodedImage(null, width, height,
+						reader.getFormatName(), subsampling,
+						scale(source, width, height, subsampling, targets),
+						palette);
+
+			BufferedImage image = ColorNormalizer.readCmyk(reader, param);
+
+			if (image == null)
+				image = ColorNormalizer.normalize(read(reader, param, width,
+						height, subsampling));
+
+			return new DecodedImage(image, width, height,
+					reader.getFormatName(), subsampling, null, palette);
+		} finally {
+			reader.dispose();
+		}
+	}
+
+	/**
+	 * Used to stream the image <code>source</code> opens to
+	 * <code>targets</code>, with a reader of its own that may read it again
+	 * for every strip.
+	 */
+	private static Map<ResizeTarget, BufferedImage> scale(Source source,
+			int width, int height, int subsampling, List<ResizeTarget> targets)
+			throws IOException {
+		ImageInputStream stream = source.open();
+
+		if (stream == null)
+			throw new IOException("Unable to open the image again to stream it");
+
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+
+			if (!readers.hasNext())
+				throw new IOException(
+						"No ImageReader for the image opened again to stream it");
+
+			ImageReader reader = readers.next();
+
+			try {
+				reader.setInput(stream, false, true);
+				return StripResizer.scale(reader, width, height, subsampling,
+						targets);
+			} finally {
+				reader.dispose();
+			}
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if none of <code>targets</code> would be
+	 *         generated from an image <code>width</code> wide (we never
+	 *         up-scale) so there is no point in decoding its pixels.
+	 */
+	public static boolean isMetadataOnly(int width, List<ResizeTarget> targets) {
+		if (!Config.getBoolean(CONFIG_FAST_PATH, true))
+			return false;
+
+		for (ResizeTarget target : targets) {
+			if (target.width < width)
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Used to read the image into a destination from the {@link RasterPool}
+	 * if its type allows it.
+	 */
+	private static BufferedImage read(ImageReader reader,
+			ImageReadParam param, int width, int height, int subsampling)
+			throws IOException {
+		BufferedImage destination = getDestination(reader, width, height,
+				subsampling);
+
+		if (destination != null)
+			param.setDestination(destination);
+
+		try {
+			return reader.read(0, param);
+		} catch (IOException e) {
+			RasterPool.release(destination);
+			throw e;
+		} catch (RuntimeException e) {
+			RasterPool.release(destination);
+			throw e;
+		}
+	}
+
+	/**
+	 * @return an image from the {@link RasterPool} to decode the image into,
+	 *         or <code>null</code> if the reader should create its own.
+	 */
+	private static BufferedImage getDestination(ImageReader reader,
+			int width, int height, int subsampling) throws IOException {
+		Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+
+		// The first type is the one the reader would have created.
+		if (types == null || !types.hasNext())
+			return null;
+
+		return RasterPool.acquire(types.next(),
+				(width + subsampling - 1) / subsampling,
+				(height + subsampling - 1) / subsampling);
+	}
+
+	/**
+	 * @return the largest subsampling factor that still leaves an image of
+	 *         <code>width</code> at least the configured margin times wider
+	 *         than <code>maxTargetWidth</code>, or 1 (no subsampling).
+	 *         <p/>
+	 *         SANITY-CHECK: the result is always strictly wider than
+	 *         <code>maxTargetWidth</code>, even with a margin of 1; a target
+	 *         as wide as its source is skipped (we never up-scale), so an
+	 *         exact multiple must not decode down to the target width.
+	 */
+	public static int getSubsampling(int width, int maxTargetWidth) {
+		if (maxTargetWidth <= 0 || !Config.getBoolean(CONFIG_SUBSAMPLE, true))
+			return 1;
+
+		double margin = Math.max(1, Config.getDouble(CONFIG_SUBSAMPLE_MARGIN,
+				DEFAULT_SUBSAMPLE_MARGIN));
+		int subsampling = (int) (width / (maxTargetWidth * margin));
+
+		return Math.max(1, Math.min(subsampling, (width - 1) / maxTargetWidth));
+	}
+}
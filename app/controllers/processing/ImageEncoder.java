@@ -0,0 +1,342 @@
+package controllers.processing;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import controllers.Config;
+
+/**
+ * Writes scaled images to disk (or memory) with tuned encoder settings,
+ * reusing {@link ImageWriter} instances instead of looking up and creating a
+ * new one for every write like {@link ImageIO#write} does.
+ * <p/>
+ * Settings are read per format and can be overridden per size tier (the
+ * {@link ResizeTarget#name}, lower case), e.g.
+ * <code>imgscalr.encode.jpg.quality=0.85</code> and
+ * <code>imgscalr.encode.jpg.quality.thumbnail=0.7</code>. Quality is the
+ * {@link ImageWriteParam#setCompressionQuality(float)} value (0 to 1; for
+ * lossless formats such as PNG lower means smaller and slower); formats or
+ * tiers without a configured quality use the writer's defaults. A tier
+ * without a quality of its own for the format uses the one of its size
+ * profile (<code>imgscalr.sizes.thumbnail.quality</code>), if any. JPEGs can
+ * also be written progressive with <code>imgscalr.encode.jpg.progressive</code>.
+ * <p/>
+ * Given the palette of an indexed original, GIFs and PNGs are written as
+ * indexed images with that palette again (see
+ * {@link ColorNormalizer#toIndexed(BufferedImage, IndexColorModel)}) rather
+ * than in true color; <code>imgscalr.encode.png.palette=false</code> turns
+ * that off for PNGs, <code>imgscalr.encode.bmp.palette=true</code> on for
+ * BMPs.
+ * <p/>
+ * Idle writers are kept in a pool per format of at most
+ * <code>imgscalr.encode.poolSize</code> (defaults to twice the number of
+ * processors, enough for every resize thread to encode two formats at once).
+ */
+public class ImageEncoder {
+	public static final String CONFIG_PREFIX = "imgscalr.encode.";
+	public static final String CONFIG_POOL_SIZE = "imgscalr.encode.poolSize";
+
+	private static final ConcurrentMap<String, BlockingQueue<ImageWriter>> pools = new ConcurrentHashMap<String, BlockingQueue<ImageWriter>>();
+	private static final AtomicLong createdCount = new AtomicLong();
+
+	/**
+	 * @return <code>format</code> in lower case with the aliases used in file
+	 *         names folded together, e.g. <code>JPEG</code> is
+	 *         <code>jpg</code>.
+	 */
+	public static String normalize(String format) {
+		String normalized = format.toLowerCase(Locale.ENGLISH);
+		return ("jpeg".equals(normalized) ? "jpg" : normalized);
+	}
+
+	/**
+	 * Used to encode <code>image</code> to <code>file</code>.
+	 *
+	 * @param tier
+	 *            the size tier the image is, used to look up tier-specific
+	 *            settings. May be <code>null</code>.
+	 *
+	 * @return the number of bytes written.
+	 */
+	public static long encode(BufferedImage image, String format, String tier,
+			File file) throws IOException {
+		return encode(image, format, tier, null, file);
+	}
+
+	/**
+	 * Same as {@link #encode(BufferedImage, String, String, File)} for a size
+	 * of an indexed original.
+	 *
+	 * @param palette
+	 *            the palette of the original, may be <code>null</code>.
+	 */
+	public static long encode(BufferedImage image, String format, String tier,
+			IndexColorModel palette, File file) throws IOException {
+		// Don't leave a partial file around when the write fails.
+		file.delete();
+		ImageOutputStream out = ImageIO.createImageOutputStream(file);
+
+		if (out == null)
+			throw new IOException("Unable to open [" + file + "] for writing");
+
+		boolean written = false;
+
+		try {
+			encode(image, format, tier, palette, out);
+			written = true;
+		} finally {
+			out.close();
+
+			if (!written)
+				file.delete();
+		}
+
+		return file.length();
+	}
+
+	/**
+	 * Same as {@link #encode(BufferedImage, String, String, File)} but writes
+	 * to <code>stream</code>, which is left open.
+	 */
+	public static void encode(BufferedImage image, String format, String tier,
+			OutputStream stream) throws IOException {
+		encode(image, format, tier, null, stream);
+	}
+
+	/**
+	 * Same as {@link #encode(BufferedImage, String, String, OutputStream)}
+	 * for a size of an indexed original.
+	 *
+	 * @param palette
+	 *            the palette of the original, may be <code>null</code>.
+	 */
+	public static void encode(BufferedImage image, String format, String tier,
+			IndexColorModel palette, OutputStream stream) throws IOException {
+		ImageOutputStream out = ImageIO.createImageOutputStream(stream);
+
+		if (out == null)
+			throw new IOException("Unable to create an ImageOutputStream");
+
+		try {
+			encode(image, format, tier, palette, out);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return the number of writers created so far, as opposed to reused
+	 *         from the pool.
+	 */
+	public static long getCreatedCount() {
+		return createdCount.get();
+	}
+
+	/**
+	 * @return the number of idle writers pooled for <code>format</code>.
+	 */
+	public static int getPooledCount(String format) {
+		BlockingQueue<ImageWriter> pool = pools.get(normalize(format));
+		return (pool == null ? 0 : pool.size());
+	}
+
+	private static void encode(BufferedImage image, String format,
+			String tier, IndexColorModel palette, ImageOutputStream out)
+			throws IOException {
+		format = normalize(format);
+
+		BufferedImage flat = null;
+		BufferedImage indexed = null;
+
+		// JPEG has no alpha channel; ImageIO writes such images unreadable.
+		if ("jpg".equals(format) && image.getColorModel().hasAlpha())
+			image = flat = flatten(image);
+		else if (palette != null && isPaletteEnabled(format, tier))
+			image = indexed = ColorNormalizer.toIndexed(image, palette);
+
+		ImageWriter writer = borrow(format);
+		boolean reusable = false;
+
+		try {
+			writer.setOutput(out);
+			writer.write(null, new IIOImage(image, null, null),
+					createParam(writer, format, tier));
+			reusable = true;
+		} finally {
+			giveBack(format, writer, reusable);
+			RasterPool.release(flat);
+
+			if (indexed != null)
+				indexed.flush();
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if sizes of indexed originals are written
+	 *         with their palette in <code>format</code>; by default only GIFs
+	 *         and PNGs are.
+	 */
+	static boolean isPaletteEnabled(String format, String tier) {
+		String enabled = getSetting(format, "palette", tier);
+
+		if (enabled == null)
+			return ("gif".equals(format) || "png".equals(format));
+
+		return Boolean.parseBoolean(enabled.trim());
+	}
+
+	private static ImageWriteParam createParam(ImageWriter writer,
+			String format, String tier) {
+		ImageWriteParam param = writer.getDefaultWriteParam();
+		String quality = getQuality(format, tier);
+
+		if (quality != null && param.canWriteCompressed()) {
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+
+			// Some writers (e.g. GIF) make us pick the compression first.
+			String[] types = param.getCompressionTypes();
+
+			if (param.getCompressionType() == null && types != null
+					&& types.length > 0)
+				param.setCompressionType(types[0]);
+
+			try {
+				param.setCompressionQuality(Math.max(0f,
+						Math.min(1f, Float.parseFloat(quality.trim()))));
+			} catch (NumberFormatException e) {
+				param.setCompressionMode(ImageWriteParam.MODE_DEFAULT);
+			}
+		}
+
+		if (param.canWriteProgressive()
+				&& Boolean.parseBoolean(getSetting(format, "progressive",
+						tier)))
+			param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+
+		return param;
+	}
+
+	/**
+	 * @return the tier-specific value of the setting, falling back to the
+	 *         format-wide one, or <code>null</code> if neither is set.
+	 */
+	static String getSetting(String format, String name, String tier) {
+		String key = CONFIG_PREFIX + format + '.' + name;
+		String value = null;
+
+		if (tier != null)
+			value = Config.getString(
+					key + '.' + tier.toLowerCase(Locale.ENGLISH), null);
+
+		return (value == null ? Config.getString(key, null) : value);
+	}
+
+	/**
+	 * @return the quality configured for <code>format</code> and
+	 *         <code>tier</code>, falling back to the quality of the size
+	 *         profile of that name (see {@link SizeProfiles}) and then to the
+	 *         format-wide one, or <code>null</code> if none is set.
+	 */
+	static String getQuality(String format, String tier) {
+		String value = null;
+
+		if (tier != null) {
+			value = Config.getString(CONFIG_PREFIX + format + ".quality."
+					+ tier.toLowerCase(Locale.ENGLISH), null);
+
+			if (value == null) {
+				ResizeTarget profile = SizeProfiles.get(tier);
+
+				if (profile != null && profile.quality != null)
+					value = profile.quality.toString();
+			}
+		}
+
+		return (value == null ? getSetting(format, "quality", null) : value);
+	}
+
+	private static ImageWriter borrow(String format) throws IOException {
+		ImageWriter writer = getPool(format).poll();
+
+		if (writer == null) {
+			Iterator<ImageWriter> writers = ImageIO
+					.getImageWritersByFormatName(format);
+
+			if (!writers.hasNext())
+				throw new IOException("No ImageWriter for [" + format + "]");
+
+			writer = writers.next();
+			createdCount.incrementAndGet();
+		}
+
+		return writer;
+	}
+
+	private static void giveBack(String format, ImageWriter writer,
+			boolean reusable) {
+		/*
+		 * IMPL NOTE: A writer that failed half way may be in any state, so it
+		 * is thrown away rather than reset and reused.
+		 */
+		if (reusable) {
+			writer.reset();
+
+			if (getPool(format).offer(writer))
+				return;
+		}
+
+		writer.dispose();
+	}
+
+	private static BlockingQueue<ImageWriter> getPool(String format) {
+		BlockingQueue<ImageWriter> pool = pools.get(format);
+
+		if (pool == null) {
+			BlockingQueue<ImageWriter> newPool = new LinkedBlockingQueue<ImageWriter>(
+					Math.max(1, Config.getInt(CONFIG_POOL_SIZE, Runtime
+							.getRuntime().availableProcessors() * 2)));
+			pool = pools.putIfAbsent(format, newPool);
+
+			if (pool == null)
+				pool = newPool;
+		}
+
+		return pool;
+	}
+
+	/**
+	 * @return a copy of <code>image</code> without alpha, composited on white,
+	 *         borrowed from the {@link RasterPool}.
+	 */
+	private static BufferedImage flatten(BufferedImage image) {
+		BufferedImage flat = RasterPool.acquire(image.getWidth(),
+				image.getHeight(), BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = flat.createGraphics();
+
+		try {
+			g.drawImage(image, 0, 0, Color.WHITE, null);
+		} finally {
+			g.dispose();
+		}
+
+		return flat;
+	}
+}
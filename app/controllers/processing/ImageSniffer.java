@@ -0,0 +1,229 @@
+package controllers.processing;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+import controllers.Config;
+import controllers.response.UploadResponse;
+
+/**
+ * Looks at the first few KB of an upload (<code>imgscalr.sniff.headSize</code>
+ * bytes) to tell what it really is before anything is spent decoding it.
+ * <p/>
+ * The format is detected from the magic bytes at the start of the file, not
+ * from the name it was uploaded with; anything ImageIO doesn't recognize
+ * either is not an image we can process. The dimensions are then read from
+ * the image header, which every format we handle keeps near the start (a
+ * JPEG with a very large EXIF block may not, in which case they are left to
+ * the decoder).
+ * <p/>
+ * Images wider or taller than <code>imgscalr.sniff.maxDimension</code>, or
+ * with more than <code>imgscalr.sniff.maxPixels</code> pixels in total (the
+ * signature of a decompression bomb; a tiny file that decodes to gigabytes),
+ * are rejected.
+ */
+public class ImageSniffer {
+	public static final String CONFIG_HEAD_SIZE = "imgscalr.sniff.headSize";
+	public static final String CONFIG_MAX_DIMENSION = "imgscalr.sniff.maxDimension";
+	public static final String CONFIG_MAX_PIXELS = "imgscalr.sniff.maxPixels";
+
+	public static final int DEFAULT_HEAD_SIZE = 16384; // 16KB
+	public static final int DEFAULT_MAX_DIMENSION = 16384;
+	public static final long DEFAULT_MAX_PIXELS = 100000000; // 100MP
+
+	private static final byte[] JPEG_MAGIC = { (byte) 0xFF, (byte) 0xD8,
+			(byte) 0xFF };
+	private static final byte[] PNG_MAGIC = { (byte) 0x89, 'P', 'N', 'G',
+			'\r', '\n', 0x1A, '\n' };
+	private static final byte[] GIF87_MAGIC = { 'G', 'I', 'F', '8', '7', 'a' };
+	private static final byte[] GIF89_MAGIC = { 'G', 'I', 'F', '8', '9', 'a' };
+	private static final byte[] BMP_MAGIC = { 'B', 'M' };
+
+	/**
+	 * What the head of an upload says about it.
+	 */
+	public static class Result {
+		/**
+		 * The real format, as a lower-case ImageIO format name (e.g.
+		 * <code>jpeg</code>, <code>png</code>).
+		 */
+		public final String format;
+
+		/**
+		 * The dimensions from the image header, -1 if they weren't in the
+		 * head.
+		 */
+		public final int width;
+		public final int height;
+
+		public Result(String format, int width, int height) {
+			this.format = format;
+			this.width = width;
+			this.height = height;
+		}
+
+		public boolean hasDimensions() {
+			return (width > 0 && height > 0);
+		}
+	}
+
+	/**
+	 * @return the number of bytes looked at.
+	 */
+	public static int getHeadSize() {
+		return Math.max(64, Config.getInt(CONFIG_HEAD_SIZE, DEFAULT_HEAD_SIZE));
+	}
+
+	/**
+	 * Used to read up to {@link #getHeadSize()} bytes from <code>in</code>,
+	 * fewer only if it ends first.
+	 *
+	 * @return the number of bytes read into <code>head</code>.
+	 */
+	public static int readHead(InputStream in, byte[] head) throws IOException {
+		int length = 0;
+		int count;
+
+		// Decoding streams (Base64) hand out whatever they have at the time.
+		while (length < head.length
+				&& (count = in.read(head, length, head.length - length)) > 0)
+			length += count;
+
+		return length;
+	}
+
+	/**
+	 * Used to sniff the head of <code>file</code>.
+	 *
+	 * @see #sniff(byte[], int)
+	 */
+	public static Result sniff(File file) throws IOException {
+		byte[] head = new byte[getHeadSize()];
+		InputStream in = new FileInputStream(file);
+
+		try {
+			return sniff(head, readHead(in, head));
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Used to detect the format and read the dimensions of the image whose
+	 * first <code>length</code> bytes are in <code>head</code>.
+	 *
+	 * @return what could be told from the head, or <code>null</code> if it
+	 *         isn't an image of any format we can read.
+	 */
+	public static Result sniff(byte[] head, int length) {
+		String format = detectFormat(head, length);
+		ImageReader reader = null;
+		ImageInputStream stream = new MemoryCacheImageInputStream(
+				new ByteArrayInputStream(head, 0, length));
+
+		try {
+			if (format != null) {
+				Iterator<ImageReader> readers = ImageIO
+						.getImageReadersByFormatName(format);
+
+				if (readers.hasNext())
+					reader = readers.next();
+			} else {
+				/*
+				 * HELPING-HAND, not one of the usual suspects; let ImageIO have
+				 * a look, its readers know their own magic bytes.
+				 */
+				Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+
+				if (readers.hasNext()) {
+					reader = readers.next();
+					format = reader.getFormatName().toLowerCase();
+				}
+			}
+
+			if (reader == null)
+				return null;
+
+			reader.setInput(stream, true, true);
+			return new Result(format, reader.getWidth(0), reader.getHeight(0));
+		} catch (IOException e) {
+			// The header doesn't fit in the head, the decoder will find out.
+			return new Result(format, -1, -1);
+		} catch (RuntimeException e) {
+			// Some readers fail this way on a truncated header too.
+			return new Result(format, -1, -1);
+		} finally {
+			if (reader != null)
+				reader.dispose();
+
+			try {
+				stream.close();
+			} catch (IOException e) {
+				// no-op
+			}
+		}
+	}
+
+	/**
+	 * @return the format <code>head</code> starts with the magic bytes of, or
+	 *         <code>null</code> if it isn't one of JPEG, PNG, GIF or BMP.
+	 */
+	public static String detectFormat(byte[] head, int length) {
+		if (startsWith(head, length, JPEG_MAGIC))
+			return "jpeg";
+		else if (startsWith(head, length, PNG_MAGIC))
+			return "png";
+		else if (startsWith(head, length, GIF87_MAGIC)
+				|| startsWith(head, length, GIF89_MAGIC))
+			return "gif";
+		else if (startsWith(head, length, BMP_MAGIC))
+			return "bmp";
+
+		return null;
+	}
+
+	/**
+	 * @return the reason the image should be rejected, or <code>null</code>
+	 *         if it can go on to be decoded.
+	 */
+	public static UploadResponse.Type check(Result result) {
+		if (result == null)
+			return UploadResponse.Type.UNRECOGNIZED_IMAGE;
+
+		if (!result.hasDimensions())
+			return null;
+
+		int maxDimension = Config.getInt(CONFIG_MAX_DIMENSION,
+				DEFAULT_MAX_DIMENSION);
+
+		if (result.width > maxDimension || result.height > maxDimension)
+			return UploadResponse.Type.IMAGE_TOO_LARGE;
+
+		if ((long) result.width * result.height > Config.getLong(
+				CONFIG_MAX_PIXELS, DEFAULT_MAX_PIXELS))
+			return UploadResponse.Type.TOO_MANY_PIXELS;
+
+		return null;
+	}
+
+	private static boolean startsWith(byte[] head, int length, byte[] magic) {
+		if (length < magic.length)
+			return false;
+
+		for (int i = 0; i < magic.length; i++) {
+			if (head[i] != magic[i])
+				return false;
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,299 @@
+package controllers.processing;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import notifiers.UploadNotifier;
+import play.Logger;
+import play.Play;
+import controllers.Config;
+import controllers.DaemonThreadFactory;
+import controllers.metrics.Metrics;
+import controllers.response.UploadResponse;
+import controllers.storage.JobJournal;
+import controllers.storage.TempFileIndex;
+
+/**
+ * Decouples accepting an upload from processing it: with
+ * <code>imgscalr.jobs.async=true</code> an upload is answered as soon as its
+ * original is safely on disk and recorded in the {@link JobJournal}, with a
+ * {@link UploadResponse.Type#ACCEPTED} response carrying its
+ * <code>uniqueFileKey</code>. The client then polls
+ * {@link #getStatus(String)} until the response has its sizes (or the reason
+ * it failed).
+ * <p/>
+ * The jobs are processed by a pool of <code>imgscalr.jobs.threads</code>
+ * (defaults to the number of available processors) threads, the same way a
+ * synchronous upload is (see {@link UploadPipeline#processFile}). A job that
+ * finds the server busy waits for as long as it would have told a client to
+ * and tries again, it has nobody to hand the retry to.
+ * <p/>
+ * Jobs that were still open when the node stopped (or crashed) are processed
+ * again when it starts, see {@link #replay()}. A job may therefore be
+ * processed more than once, never less; processing the same original twice
+ * produces the same sizes under the same names.
+ * <p/>
+ * With <code>imgscalr.cluster.dir</code> set, the jobs go to the
+ * {@link ClusterScheduler} instead, to be shared with the other nodes.
+ */
+public class JobQueue {
+	public static final String CONFIG_ASYNC = "imgscalr.jobs.async";
+	public static final String CONFIG_THREADS = "imgscalr.jobs.threads";
+
+	private static JobJournal journal;
+	private static ExecutorService executor;
+
+	/**
+	 * @return <code>true</code> if uploads are to be accepted and processed
+	 *         later.
+	 */
+	public static boolean isAsync() {
+		return Config.getBoolean(CONFIG_ASYNC, false);
+	}
+
+	/**
+	 * Used to recover the open jobs from the journal and start processing
+	 * them; called when the application starts, otherwise it happens with
+	 * the first upload.
+	 */
+	public static void replay() {
+		if (ClusterScheduler.isEnabled()) {
+			ClusterScheduler.start();
+			return;
+		}
+
+		try {
+			getJournal();
+		} catch (IOException e) {
+			Logger.error(e, "Unable to recover the job journal.");
+		}
+	}
+
+	/**
+	 * Used to hand the original of an upload (already written to
+	 * <code>tempFile</code>) over to be processed in the background.
+	 * <p/>
+	 * The file is moved into the journal dir, it must not be touched
+	 * afterwards.
+	 *
+	 * @param contentKey
+	 *            the DedupeCache key of the original, or <code>null</code> if
+	 *            it wasn't hashed.
+	 * @param sourceIP
+	 *            where the upload came from, for the mail notice.
+	 *
+	 * @return <code>true</code> if the upload was accepted, otherwise the
+	 *         response type says why it wasn't.
+	 */
+	public static boolean accept(UploadResponse response, File tempFile,
+			String contentKey, String sourceIP) {
+		long elapsedTime = System.nanoTime();
+
+		if (ClusterScheduler.isEnabled()) {
+			if (!ClusterScheduler.accept(response, tempFile, contentKey,
+					sourceIP))
+				return false;
+		} else {
+			try {
+				JobJournal.Job job = getJournal().append(tempFile,
+						response.uniqueFileKey, response.uniqueFileName,
+						response.originalFileName, contentKey, sourceIP);
+
+				// It is in the journal dir now, kept until the job is done.
+				TempFileIndex.getInstance().untrack(tempFile);
+				submit(job);
+			} catch (IOException e) {
+				Logger.error(e, "Unable to record the job for upload [%s].",
+						tempFile.getAbsolutePath());
+				response.setType(UploadResponse.Type.CANNOT_ACCESS_TMP_DECODE_FILE);
+				return false;
+			}
+		}
+
+		UploadPipeline.recordStage("accept", elapsedTime);
+		Metrics.increment("jobs_accepted_total");
+
+		response.setType(UploadResponse.Type.ACCEPTED);
+		return true;
+	}
+
+	/**
+	 * @return the response of the upload with the given key: an
+	 *         {@link UploadResponse.Type#ACCEPTED} one while it is waiting or
+	 *         being processed, the final one once it is done, or
+	 *         <code>null</code> if there is no such upload (or it expired).
+	 */
+	public static UploadResponse getStatus(String uniqueFileKey)
+			throws IOException {
+		if (ClusterScheduler.isEnabled())
+			return ClusterScheduler.getStatus(uniqueFileKey);
+
+		JobJournal journal = getJournal();
+		JobJournal.Job job = journal.get(uniqueFileKey);
+
+		if (job == null)
+			return journal.getResponse(uniqueFileKey);
+
+		return createResponse(job).setType(UploadResponse.Type.ACCEPTED);
+	}
+
+	/**
+	 * @return the number of jobs accepted and not done yet.
+	 */
+	public static synchronized int getPendingCount() {
+		return (journal == null ? 0 : journal.size())
+				+ ClusterScheduler.getPendingCount();
+	}
+
+	/**
+	 * Used to delete the responses of jobs that have been done for longer
+	 * than <code>imgscalr.jobs.ttl</code>.
+	 *
+	 * @return the number of responses deleted.
+	 */
+	public static synchronized int expire(long now) {
+		return (journal == null ? 0 : journal.expire(now))
+				+ ClusterScheduler.expire(now);
+	}
+
+	/**
+	 * Used to stop the job threads when the application stops (or is
+	 * reloaded in DEV mode). The jobs they were on are left open in the
+	 * journal and processed again on the next start.
+	 */
+	public static synchronized void shutdown() {
+		ClusterScheduler.shutdown();
+
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+
+		if (journal != null) {
+			journal.close();
+			journal = null;
+		}
+	}
+
+	private static synchronized JobJournal getJournal() throws IOException {
+		if (journal == null) {
+			long elapsedTime = System.nanoTime();
+			JobJournal newJournal = JobJournal.create();
+			List<JobJournal.Job> jobs = newJournal.recover();
+
+			journal = newJournal;
+
+			for (JobJournal.Job job : jobs)
+				submit(job);
+
+			Metrics.recordSince("jobs_replay_seconds", elapsedTime);
+			Metrics.increment("jobs_replayed_total", jobs.size());
+			Logger.info("Job Journal Recovered [dir=%s, replayed=%s]",
+					journal.getDir().getAbsolutePath(), jobs.size());
+		}
+
+		return journal;
+	}
+
+	private static synchronized void submit(final JobJournal.Job job) {
+		getExecutor().submit(new Runnable() {
+			@Override
+			public void run() {
+				process(job);
+			}
+		});
+	}
+
+	private static void process(JobJournal.Job job) {
+		long startTime = System.nanoTime();
+		UploadResponse response;
+		JobJournal journal;
+
+		synchronized (JobQueue.class) {
+			journal = JobQueue.journal;
+		}
+
+		// Shut down while it was waiting, it is replayed on the next start.
+		if (journal == null)
+			return;
+
+		// How long it waited since it was accepted, on the nanoTime scale.
+		long waitTime = (System.currentTimeMillis() - job.acceptedAt) * 1000000L;
+		Metrics.recordSince("jobs_wait_seconds", startTime - waitTime);
+
+		// The CDN push deletes (or moves) the file it is given, the original
+		// has to stay in the journal until the job is done.
+		File tempFile = new File(Play.tmpDir, job.uniqueFileName);
+
+		while (true) {
+			response = createResponse(job);
+
+			try {
+				journal.checkout(job, tempFile);
+			} catch (IOException e) {
+				Logger.error(e, "Original of Job Missing [%s]",
+						job.file.getAbsolutePath());
+				response.setType(UploadResponse.Type.CANNOT_ACCESS_TMP_DECODE_FILE);
+				break;
+			}
+
+			// Cleaned up like any other original if the CDN push fails.
+			TempFileIndex.getInstance().track(tempFile);
+
+			if (UploadPipeline.processFile(response, tempFile, job.contentKey)) {
+				// Queue the mail notice, it goes out with the next digest.
+				UploadNotifier.enqueue(job.sourceIP, response);
+				break;
+			}
+
+			if (response.code != UploadResponse.CODE_FAILURE_SERVER_BUSY)
+				break;
+
+			if (tempFile.delete())
+				TempFileIndex.getInstance().untrack(tempFile);
+
+			Metrics.increment("jobs_retries_total");
+
+			try {
+				Thread.sleep(response.retryAfter * 1000L);
+			} catch (InterruptedException e) {
+				// Shutting down, it is replayed on the next start.
+				return;
+			}
+		}
+
+		try {
+			journal.complete(job, response);
+		} catch (IOException e) {
+			// It is processed again on the next start.
+			Logger.error(e, "Unable to record the outcome of job [%s].",
+					job.uniqueFileKey);
+		}
+
+		UploadPipeline.recordOutcome(response, "async", startTime);
+	}
+
+	private static UploadResponse createResponse(JobJournal.Job job) {
+		UploadResponse response = new UploadResponse();
+		response.originalFileName = job.originalFileName;
+		response.uniqueFileKey = job.uniqueFileKey;
+		response.uniqueFileName = job.uniqueFileName;
+		return response;
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			int threadCount = Math.max(1, Config.getInt(CONFIG_THREADS,
+					Runtime.getRuntime().availableProcessors()));
+
+			executor = Executors.newFixedThreadPool(threadCount,
+					new DaemonThreadFactory("job"));
+			Logger.info("Job Executor Started [threads=%s]", threadCount);
+		}
+
+		return executor;
+	}
+}
@@ -0,0 +1,170 @@
+package controllers.processing;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import play.Logger;
+import controllers.Config;
+import controllers.metrics.Metrics;
+
+/**
+ * Keeps track of the objects a pool has lent out so the ones that are never
+ * given back are noticed; only weak references are kept, once the GC has
+ * collected an object that was still lent out it is counted (and logged) as a
+ * leak.
+ * <p/>
+ * With <code>imgscalr.pool.leakTraces=true</code> the stack trace of every
+ * borrow is kept as well and logged with the leak, to find the code path
+ * that forgot to give it back. Meant for debugging, it isn't cheap.
+ */
+class LeakTracker<T> {
+	static final String CONFIG_LEAK_TRACES = "imgscalr.pool.leakTraces";
+
+	private final String poolName;
+	private final ReferenceQueue<T> queue = new ReferenceQueue<T>();
+
+	/**
+	 * The leases of the lent out objects by identity hash code; more than one
+	 * per code only in the rare case of a collision.
+	 */
+	private final Map<Integer, List<Lease<T>>> leases = new HashMap<Integer, List<Lease<T>>>();
+	private final AtomicLong leakedCount = new AtomicLong();
+	private int lentCount;
+
+	LeakTracker(String poolName) {
+		this.poolName = poolName;
+	}
+
+	/**
+	 * Used to record that <code>object</code> has been lent out.
+	 */
+	void track(T object) {
+		expunge();
+
+		Lease<T> lease = new Lease<T>(object, queue, (Config.getBoolean(
+				CONFIG_LEAK_TRACES, false) ? new Throwable("Borrowed here")
+				: null));
+
+		synchronized (leases) {
+			List<Lease<T>> list = leases.get(lease.key);
+
+			if (list == null) {
+				list = new ArrayList<Lease<T>>(1);
+				leases.put(lease.key, list);
+			}
+
+			list.add(lease);
+			lentCount++;
+		}
+	}
+
+	/**
+	 * Used to record that <code>object</code> has been given back.
+	 *
+	 * @return <code>true</code> if it was lent out, <code>false</code> if it
+	 *         never came from the pool or was given back already.
+	 */
+	boolean untrack(T object) {
+		Integer key = Integer.valueOf(System.identityHashCode(object));
+
+		synchronized (leases) {
+			List<Lease<T>> list = leases.get(key);
+
+			if (list == null)
+				return false;
+
+			for (int i = 0; i < list.size(); i++) {
+				Lease<T> lease = list.get(i);
+
+				if (lease.get() == object) {
+					remove(list, i);
+
+					// Given back, it must never be mistaken for a leak.
+					lease.clear();
+					return true;
+				}
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Used to count every lent out object the GC has collected since the last
+	 * call as leaked.
+	 */
+	void expunge() {
+		Reference<? extends T> reference;
+
+		while ((reference = queue.poll()) != null) {
+			@SuppressWarnings("unchecked")
+			Lease<T> lease = (Lease<T>) reference;
+			boolean leaked = false;
+
+			synchronized (leases) {
+				List<Lease<T>> list = leases.get(lease.key);
+				int index = (list == null ? -1 : list.indexOf(lease));
+
+				if (index >= 0) {
+					remove(list, index);
+					leaked = true;
+				}
+			}
+
+			if (!leaked)
+				continue;
+
+			leakedCount.incrementAndGet();
+			Metrics.increment(Metrics.name("pool_leaks_total", "pool",
+					poolName));
+
+			if (lease.trace != null)
+				Logger.warn(lease.trace,
+						"Pooled %s Leaked, it was never given back", poolName);
+			else
+				Logger.warn(
+						"Pooled %s Leaked, it was never given back (set %s=true to see where it was borrowed)",
+						poolName, CONFIG_LEAK_TRACES);
+		}
+	}
+
+	/**
+	 * @return the number of objects lent out and not given back (or collected)
+	 *         yet.
+	 */
+	int getLentCount() {
+		synchronized (leases) {
+			return lentCount;
+		}
+	}
+
+	long getLeakedCount() {
+		return leakedCount.get();
+	}
+
+	private void remove(List<Lease<T>> list, int index) {
+		Lease<T> lease = list.remove(index);
+
+		if (list.isEmpty())
+			leases.remove(lease.key);
+
+		lentCount--;
+	}
+
+	private static class Lease<T> extends WeakReference<T> {
+		private final Integer key;
+		private final Throwable trace;
+
+		private Lease(T object, ReferenceQueue<T> queue, Throwable trace) {
+			super(object, queue);
+			this.key = Integer.valueOf(System.identityHashCode(object));
+			this.trace = trace;
+		}
+	}
+}
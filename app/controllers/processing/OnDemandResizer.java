@@ -0,0 +1,325 @@
+package controllers.processing;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.FileCacheImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+
+import play.Logger;
+import play.Play;
+
+import com.thebuzzmedia.imgscalr.Scalr;
+import com.thebuzzmedia.imgscalr.Scalr.Mode;
+
+import controllers.Config;
+import controllers.Constants;
+import controllers.metrics.Metrics;
+import controllers.storage.StorageFactory;
+
+/**
+ * Generates sizes of a stored original lazily, the first time they are
+ * requested, instead of eagerly at upload time.
+ * <p/>
+ * Only the widths listed in <code>imgscalr.ondemand.widths</code> can be
+ * requested (by default the widths of all the {@link SizeProfiles}, eager and
+ * lazy), so the number of variants per original stays bounded. A width is
+ * scaled and encoded the way the profile of that width is configured.
+ * Originals are never scaled up; a width as large as the original (or
+ * larger) returns the stored original as it is, without decoding its pixels.
+ * <p/>
+ * Results are kept in a {@link DerivedImageCache} in
+ * <code>imgscalr.ondemand.dir</code> (relative to the application dir unless
+ * absolute), bounded by <code>imgscalr.ondemand.memoryBytes</code> and
+ * <code>imgscalr.ondemand.diskBytes</code>. Every resize goes through the
+ * {@link AdmissionController} like an upload does.
+ */
+public class OnDemandResizer {
+	public static final String CONFIG_WIDTHS = "imgscalr.ondemand.widths";
+	public static final String CONFIG_DIR = "imgscalr.ondemand.dir";
+	public static final String CONFIG_MEMORY_BYTES = "imgscalr.ondemand.memoryBytes";
+	public static final String CONFIG_DISK_BYTES = "imgscalr.ondemand.diskBytes";
+
+	public static final String DEFAULT_DIR = "data/derived";
+	public static final long DEFAULT_MEMORY_BYTES = 67108864; // 64MB
+	public static final long DEFAULT_DISK_BYTES = 1073741824; // 1GB
+
+	/**
+	 * The names uploads are stored under: the unique file key and one of the
+	 * supported extensions.
+	 */
+	private static final Pattern UNIQUE_FILE_NAME_PATTERN = Pattern.compile(
+			"[A-Za-z]{" + Constants.UNIQUE_FILE_KEY_SIZE
+					+ "}\\.(jpg|jpeg|png|gif|bmp)", Pattern.CASE_INSENSITIVE);
+
+	private static Set<Integer> allowedWidths;
+	private static DerivedImageCache cache;
+
+	/**
+	 * @return <code>true</code> if <code>uniqueFileName</code> is the name of
+	 *         an upload (and is therefore safe to use in file names).
+	 */
+	public static boolean isValidName(String uniqueFileName) {
+		return (uniqueFileName != null && UNIQUE_FILE_NAME_PATTERN.matcher(
+				uniqueFileName).matches());
+	}
+
+	public static synchronized boolean isAllowedWidth(int width) {
+		if (allowedWidths == null) {
+			Set<Integer> widths = new HashSet<Integer>();
+			String value = Config.getString(CONFIG_WIDTHS, null);
+
+			if (value == null) {
+				for (ResizeTarget profile : SizeProfiles.getProfiles())
+					widths.add(profile.width);
+			} else {
+				for (String item : value.split(",")) {
+					try {
+						widths.add(Integer.valueOf(item.trim()));
+					} catch (NumberFormatException e) {
+						Logger.error("Ignoring invalid %s entry '%s'",
+								CONFIG_WIDTHS, item);
+					}
+				}
+			}
+
+			allowedWidths = Collections.unmodifiableSet(widths);
+		}
+
+		return allowedWidths.contains(width);
+	}
+
+	/**
+	 * Used to get the original stored under <code>uniqueFileName</code>
+	 * scaled to <code>width</code>, encoded in the same format as the
+	 * original.
+	 *
+	 * @return the encoded image or <code>null</code> if there is no such
+	 *         original.
+	 *
+	 * @throws AdmissionRejectedException
+	 *             if the server is too busy to generate the size right now.
+	 * @throws Exception
+	 *             if the original cannot be read or resized.
+	 */
+	public static byte[] resize(final String uniqueFileName, final int width)
+			throws Exception {
+		if (!isValidName(uniqueFileName))
+			throw new IllegalArgumentException("Invalid file name ["
+					+ uniqueFileName + "]");
+
+		int index = uniqueFileName.lastIndexOf('.');
+		final String fileExtension = uniqueFileName.substring(index + 1);
+		String key = uniqueFileName.substring(0, index) + '-' + width + '.'
+				+ fileExtension;
+
+		return getCache().get(key, new DerivedImageCache.Loader() {
+			@Override
+			public byte[] load() throws Exception {
+				return generate(uniqueFileName, fileExtension, width);
+			}
+		});
+	}
+
+	public static synchronized DerivedImageCache getCache() {
+		if (cache == null) {
+			File dir = new File(Config.getString(CONFIG_DIR, DEFAULT_DIR));
+
+			if (!dir.isAbsolute() && Play.applicationPath != null)
+				dir = new File(Play.applicationPath, dir.getPath());
+
+			cache = new DerivedImageCache(dir, Config.getLong(
+					CONFIG_MEMORY_BYTES, DEFAULT_MEMORY_BYTES), Config.getLong(
+					CONFIG_DISK_BYTES, DEFAULT_DISK_BYTES));
+		}
+
+		return cache;
+	}
+
+	/**
+	 * @return the size profile scaling to <code>width</code>, so a lazy size
+	 *         comes out the way it is configured, or a plain one fitting to
+	 *         that width if there is none.
+	 */
+	private static ResizeTarget getTarget(int width) {
+		ResizeTarget profile = SizeProfiles.forWidth(width);
+
+		return (profile == null ? new ResizeTarget("W" + width, width, "W"
+				+ width) : profile);
+	}
+
+	/**
+	 * @return the bytes stored under <code>uniqueFileName</code>, or
+	 *         <code>null</code> if there is no such file (any more).
+	 */
+	private static byte[] readStored(String uniqueFileName) throws IOException {
+		InputStream in = StorageFactory.getStorage().open(uniqueFileName);
+
+		if (in == null)
+			return null;
+
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = BufferPool.acquire();
+			int count;
+
+			try {
+				while ((count = in.read(buffer)) != -1)
+					out.write(buffer, 0, count);
+			} finally {
+				BufferPool.release(buffer);
+			}
+
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Used to create the source the strips of a streamed original are read
+	 * from: opened from the storage again, cached on disk (not the heap) for
+	 * the strips to read it over and over.
+	 */
+	private static ImageDecoder.Source createSource(final String uniqueFileName) {
+		return new ImageDecoder.Source() {
+			@Override
+			public ImageInputStream open() throws IOException {
+				final InputStream in = StorageFactory.getStorage().open(
+						uniqueFileName);
+
+				if (in == null)
+					throw new IOException("[" + uniqueFileName
+							+ "] is no longer stored");
+
+				try {
+					return new FileCacheImageInputStream(in, ImageIO
+							.getCacheDirectory()) {
+						@Override
+						public void close() throws IOException {
+							try {
+								super.close();
+							} finally {
+								in.close();
+							}
+						}
+					};
+				} catch (IOException e) {
+					in.close();
+					throw e;
+				}
+			}
+		};
+	}
+
+	private static byte[] generate(String uniqueFileName,
+			String fileExtension, int width) throws Exception {
+		long startTime = System.nanoTime();
+
+		// Admitted first, a rejection has nothing open to leak.
+		final AdmissionController.Ticket ticket = AdmissionController
+				.admit(AdmissionController.estimate(0));
+		InputStream in = null;
+		ImageInputStream imageStream = null;
+		DecodedImage decodedImage = null;
+		BufferedImage scaledImage = null;
+		ResizeTarget target = getTarget(width);
+
+		try {
+			in = StorageFactory.getStorage().open(uniqueFileName);
+
+			if (in == null)
+				return null;
+
+			imageStream = ImageIO.createImageInputStream(in);
+
+			try {
+				decodedImage = ImageDecoder.decode(imageStream, Collections
+						.singletonList(target),
+						new ImageDecoder.HeaderListener() {
+							@Override
+							public void headerRead(int width, int height,
+									int subsampling) {
+								try {
+									ticket.update(AdmissionController
+											.estimate(width, height,
+													subsampling));
+								} catch (AdmissionRejectedException e) {
+									throw new UncheckedAdmissionRejectedException(e);
+								}
+							}
+						}, createSource(uniqueFileName));
+			} catch (UncheckedAdmissionRejectedException e) {
+				throw e.getCause();
+			}
+
+			if (decodedImage == null || !decodedImage.isDecoded())
+				throw new IOException("No ImageReader could decode ["
+						+ uniqueFileName + "]");
+
+			/*
+			 * No wider than the width asked for, so only its header was read;
+			 * we never scale up and the stored original is as good as it gets.
+			 */
+			if (decodedImage.isMetadataOnly()) {
+				Metrics.increment("ondemand_passthrough_total");
+				return readStored(uniqueFileName);
+			}
+
+			if (decodedImage.isStreamed()) {
+				// Keyed by the resolved target, the only one there is.
+				scaledImage = (decodedImage.scaled.isEmpty() ? null
+						: decodedImage.scaled.values().iterator().next());
+
+				// SANITY-CHECK, streaming never scales up either.
+				if (scaledImage == null)
+					throw new IOException("[" + uniqueFileName
+							+ "] is too large to serve at " + width + "px");
+			} else {
+				ResizeTarget resolved = target.resolve(decodedImage.width,
+						decodedImage.height);
+
+				// Never scale up, the original is as good as it gets.
+				scaledImage = (decodedImage.image.getWidth() > resolved.width ? Scalr
+						.resize(decodedImage.image, resolved.method,
+								Mode.FIT_TO_WIDTH, resolved.width)
+						: decodedImage.image);
+			}
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+			ImageEncoder.encode(scaledImage, fileExtension, target.name,
+					decodedImage.palette, out);
+
+			Metrics.recordSince(Metrics.name("ondemand_resize_seconds",
+					"width", Integer.toString(width)), startTime);
+			return out.toByteArray();
+		} finally {
+			// Only Scalr's own output is ours, the rest goes back to the pool.
+			if (scaledImage != null && scaledImage != decodedImage.image
+					&& !decodedImage.isStreamed())
+				scaledImage.flush();
+			if (decodedImage != null)
+				decodedImage.release();
+
+			try {
+				if (imageStream != null)
+					imageStream.close();
+				if (in != null)
+					in.close();
+			} catch (Exception e) {
+				// no-op
+			}
+
+			ticket.release();
+		}
+	}
+}
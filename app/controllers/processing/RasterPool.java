@@ -0,0 +1,283 @@
+package controllers.processing;
+
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageTypeSpecifier;
+
+import controllers.Config;
+
+/**
+ * Lends out destination images (decoded originals, streamed sizes, flattened
+ * JPEG sources) keyed by width, height and image type, so a steady stream of
+ * uploads of the same dimensions (every photo from the same camera) reuses
+ * the same few large rasters instead of handing the GC a new multi-MB array
+ * for every one.
+ * <p/>
+ * Idle images are kept up to a total of <code>imgscalr.pool.rasterBytes</code>
+ * bytes (64MB by default, 0 keeps none); an image given back to a full pool
+ * is flushed and left to the GC. Images that are borrowed and never given
+ * back are reported as leaks, see {@link LeakTracker}. Like the
+ * {@link BufferPool}, <code>imgscalr.pool.enabled=false</code> turns it off.
+ * <p/>
+ * Only the standard, non-indexed types are pooled; an indexed image carries
+ * the palette of the image it was created for and can't be handed to another.
+ * <p/>
+ * IMPL NOTE: Borrowed images are cleared like a new one would be; a decoder
+ * that stops short (a truncated upload) must never show the pixels of
+ * somebody else's image.
+ */
+public class RasterPool {
+	public static final String CONFIG_RASTER_BYTES = "imgscalr.pool.rasterBytes";
+
+	public static final long DEFAULT_RASTER_BYTES = 67108864; // 64MB
+
+	private static final ConcurrentMap<Key, Queue<BufferedImage>> idle = new ConcurrentHashMap<Key, Queue<BufferedImage>>();
+	private static final AtomicLong idleBytes = new AtomicLong();
+	private static final LeakTracker<BufferedImage> tracker = new LeakTracker<BufferedImage>(
+			"raster");
+	private static final AtomicLong createdCount = new AtomicLong();
+	private static final AtomicLong reusedCount = new AtomicLong();
+
+	/**
+	 * @return a cleared image of the given dimensions and (standard) type, to
+	 *         be given back with {@link #release(BufferedImage)} when done.
+	 */
+	public static BufferedImage acquire(int width, int height, int type) {
+		if (!isPoolable(type))
+			return new BufferedImage(width, height, type);
+
+		Key key = new Key(width, height, type);
+		BufferedImage image = poll(key);
+
+		if (image == null) {
+			image = new BufferedImage(width, height, type);
+			createdCount.incrementAndGet();
+		} else {
+			clear(image);
+			reusedCount.incrementAndGet();
+		}
+
+		tracker.track(image);
+		return image;
+	}
+
+	/**
+	 * @return a cleared image an ImageReader can decode an image of type
+	 *         <code>spec</code> into, or <code>null</code> if it isn't of a
+	 *         type that is pooled (the reader should create its own).
+	 */
+	public static BufferedImage acquire(ImageTypeSpecifier spec, int width,
+			int height) {
+		int type = spec.getBufferedImageType();
+
+		/*
+		 * SANITY-CHECK, a spec may come out as a standard type but in another
+		 * color space (an embedded ICC profile); the pixels would be taken
+		 * for sRGB.
+		 */
+		if (!isPoolable(type)
+				|| !spec.getColorModel().getColorSpace()
+						.equals(getColorSpace(type)))
+			return null;
+
+		return acquire(width, height, type);
+	}
+
+	/**
+	 * Used to give back an image borrowed with one of the
+	 * <code>acquire</code> methods. Any other image is only flushed, so this
+	 * can be called for an image whether it came from the pool or not.
+	 */
+	public static void release(BufferedImage image) {
+		if (image == null)
+			return;
+
+		if (!tracker.untrack(image)) {
+			image.flush();
+			return;
+		}
+
+		long bytes = getSizeInBytes(image);
+		long maxBytes = Config.getLong(CONFIG_RASTER_BYTES,
+				DEFAULT_RASTER_BYTES);
+
+		if (idleBytes.addAndGet(bytes) > maxBytes) {
+			idleBytes.addAndGet(-bytes);
+			image.flush();
+			return;
+		}
+
+		Key key = new Key(image.getWidth(), image.getHeight(), image.getType());
+		Queue<BufferedImage> queue = idle.get(key);
+
+		if (queue == null) {
+			Queue<BufferedImage> newQueue = new ConcurrentLinkedQueue<BufferedImage>();
+			queue = idle.putIfAbsent(key, newQueue);
+
+			if (queue == null)
+				queue = newQueue;
+		}
+
+		queue.offer(image);
+	}
+
+	/**
+	 * Used to stop tracking a borrowed image that can't be given back because
+	 * it may still be in use somewhere (e.g. by a task that was cancelled but
+	 * hasn't stopped yet); it is left to the GC without counting as a leak.
+	 */
+	public static void discard(BufferedImage image) {
+		if (image != null)
+			tracker.untrack(image);
+	}
+
+	/**
+	 * @return the number of images allocated so far.
+	 */
+	public static long getCreatedCount() {
+		return createdCount.get();
+	}
+
+	/**
+	 * @return the number of times an idle image was reused instead.
+	 */
+	public static long getReusedCount() {
+		return reusedCount.get();
+	}
+
+	/**
+	 * @return the bytes held by idle images in the pool.
+	 */
+	public static long getIdleBytes() {
+		return idleBytes.get();
+	}
+
+	/**
+	 * @return the number of images borrowed and not given back yet.
+	 */
+	public static int getLentCount() {
+		tracker.expunge();
+		return tracker.getLentCount();
+	}
+
+	/**
+	 * @return the number of images that were never given back.
+	 */
+	public static long getLeakedCount() {
+		tracker.expunge();
+		return tracker.getLeakedCount();
+	}
+
+	/**
+	 * Used to drop every idle image, e.g. when the application stops.
+	 */
+	public static void clear() {
+		for (Queue<BufferedImage> queue : idle.values()) {
+			BufferedImage image;
+
+			while ((image = queue.poll()) != null) {
+				idleBytes.addAndGet(-getSizeInBytes(image));
+				image.flush();
+			}
+		}
+	}
+
+	/**
+	 * @return the size of the pixel data of <code>image</code>.
+	 */
+	static long getSizeInBytes(BufferedImage image) {
+		DataBuffer buffer = image.getRaster().getDataBuffer();
+		return (long) buffer.getSize() * buffer.getNumBanks()
+				* (DataBuffer.getDataTypeSize(buffer.getDataType()) / 8);
+	}
+
+	private static BufferedImage poll(Key key) {
+		if (!BufferPool.isEnabled())
+			return null;
+
+		Queue<BufferedImage> queue = idle.get(key);
+		BufferedImage image = (queue == null ? null : queue.poll());
+
+		if (image != null)
+			idleBytes.addAndGet(-getSizeInBytes(image));
+
+		return image;
+	}
+
+	private static boolean isPoolable(int type) {
+		switch (type) {
+		case BufferedImage.TYPE_INT_RGB:
+		case BufferedImage.TYPE_INT_ARGB:
+		case BufferedImage.TYPE_INT_ARGB_PRE:
+		case BufferedImage.TYPE_INT_BGR:
+		case BufferedImage.TYPE_3BYTE_BGR:
+		case BufferedImage.TYPE_4BYTE_ABGR:
+		case BufferedImage.TYPE_4BYTE_ABGR_PRE:
+		case BufferedImage.TYPE_BYTE_GRAY:
+		case BufferedImage.TYPE_USHORT_GRAY:
+			return BufferPool.isEnabled();
+		default:
+			return false;
+		}
+	}
+
+	private static ColorSpace getColorSpace(int type) {
+		return ColorSpace.getInstance(type == BufferedImage.TYPE_BYTE_GRAY
+				|| type == BufferedImage.TYPE_USHORT_GRAY ? ColorSpace.CS_GRAY
+				: ColorSpace.CS_sRGB);
+	}
+
+	/**
+	 * Used to zero the pixels of a reused image.
+	 */
+	private static void clear(BufferedImage image) {
+		DataBuffer buffer = image.getRaster().getDataBuffer();
+
+		for (int bank = 0; bank < buffer.getNumBanks(); bank++) {
+			if (buffer instanceof DataBufferInt)
+				Arrays.fill(((DataBufferInt) buffer).getData(bank), 0);
+			else if (buffer instanceof DataBufferByte)
+				Arrays.fill(((DataBufferByte) buffer).getData(bank), (byte) 0);
+			else if (buffer instanceof DataBufferUShort)
+				Arrays.fill(((DataBufferUShort) buffer).getData(bank),
+						(short) 0);
+		}
+	}
+
+	private static class Key {
+		private final int width;
+		private final int height;
+		private final int type;
+
+		private Key(int width, int height, int type) {
+			this.width = width;
+			this.height = height;
+			this.type = type;
+		}
+
+		@Override
+		public int hashCode() {
+			return (width * 31 + height) * 31 + type;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+
+			Key other = (Key) obj;
+			return (width == other.width && height == other.height && type == other.type);
+		}
+	}
+}
@@ -0,0 +1,533 @@
+package controllers.processing;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import play.Logger;
+
+import com.thebuzzmedia.imgscalr.Scalr;
+import com.thebuzzmedia.imgscalr.Scalr.Mode;
+
+import controllers.Config;
+import controllers.DaemonThreadFactory;
+import controllers.metrics.Metrics;
+
+/**
+ * Shared, bounded executor used to generate all the alternate sizes of an
+ * upload at the same time instead of one after the other on the request
+ * thread.
+ * <p/>
+ * The number of resize threads is the per-node concurrency cap; no matter how
+ * many uploads arrive at once, no more than that many scale operations run at
+ * the same time and the rest wait in the queue. It defaults to the number of
+ * available processors and can be set with the
+ * <code>imgscalr.resize.threads</code> configuration property.
+ * <p/>
+ * The sizes are generated according to a {@link ResizePlan}; when cascading is
+ * enabled (<code>imgscalr.resize.cascade</code>) a step is only started once
+ * the larger result it is derived from is ready, while independent steps still
+ * run in parallel.
+ * <p/>
+ * Every size is written with the {@link ImageEncoder}. If
+ * <code>imgscalr.encode.alternate</code> names a format (e.g.
+ * <code>jpg</code>) that differs from the original's, each size is also
+ * encoded in that format, as a separate task running alongside the smaller
+ * sizes.
+ * <p/>
+ * A streamed original (see {@link StripResizer}) arrives already scaled to
+ * every target; only the encoding is left, one task per size.
+ */
+public class ResizeExecutor {
+	public static final String CONFIG_THREADS = "imgscalr.resize.threads";
+	public static final String CONFIG_CASCADE = "imgscalr.resize.cascade";
+	public static final String CONFIG_CASCADE_MIN_RATIO = "imgscalr.resize.cascade.minRatio";
+	public static final String CONFIG_ALTERNATE_FORMAT = "imgscalr.encode.alternate";
+
+	public static final double DEFAULT_CASCADE_MIN_RATIO = 2;
+
+	private static ExecutorService executor;
+
+	/**
+	 * Used to generate every target in <code>targets</code> that is smaller
+	 * than <code>sourceImage</code> and wait for all of them to complete. We
+	 * never up-scale an original, so targets as wide or wider than the source
+	 * are skipped and do not appear in the returned list.
+	 * 
+	 * @return the results, ordered from the largest to the smallest target.
+	 * 
+	 * @throws InterruptedException
+	 *             if the calling thread is interrupted while waiting for the
+	 *             resize operations to complete.
+	 */
+	public static List<ResizeResult> resize(BufferedImage sourceImage,
+			File parentDir, String uniqueFileKey, String fileExtension,
+			List<ResizeTarget> targets) throws InterruptedException {
+		return resize(sourceImage, parentDir, uniqueFileKey, fileExtension,
+				targets, null);
+	}
+
+	/**
+	 * Same as {@link #resize(BufferedImage, File, String, String, List)} but
+	 * <code>listener</code> (if not <code>null</code>) is notified of each
+	 * result as soon as it has been written to disk, including the
+	 * {@link ResizeResult#alternate} ones.
+	 */
+	public static List<ResizeResult> resize(BufferedImage sourceImage,
+			File parentDir, String uniqueFileKey, String fileExtension,
+			List<ResizeTarget> targets, ResizeListener listener)
+			throws InterruptedException {
+		return resize(sourceImage, parentDir, uniqueFileKey, fileExtension,
+				targets, null, listener);
+	}
+
+	private static List<ResizeResult> resize(BufferedImage sourceImage,
+			File parentDir, String uniqueFileKey, String fileExtension,
+			List<ResizeTarget> targets, IndexColorModel palette,
+			ResizeListener listener) throws InterruptedException {
+		targets = ResizeTarget.resolve(targets, sourceImage.getWidth(),
+				sourceImage.getHeight());
+
+		ResizePlan plan = ResizePlan.create(sourceImage.getWidth(), targets,
+				Config.getBoolean(CONFIG_CASCADE, true), Math.max(1, Config
+						.getDouble(CONFIG_CASCADE_MIN_RATIO,
+								DEFAULT_CASCADE_MIN_RATIO)));
+
+		return new PlanRun(getExecutor(), sourceImage, parentDir,
+				uniqueFileKey, fileExtension,
+				getAlternateFormat(fileExtension), palette, listener)
+				.execute(plan);
+	}
+
+	/**
+	 * Same as
+	 * {@link #resize(BufferedImage, File, String, String, List, ResizeListener)}
+	 * for an image as decoded by the {@link ImageDecoder}, which may have been
+	 * streamed to <code>targets</code> already, or only had its header read
+	 * (nothing is generated from it then). Sizes of an indexed original are
+	 * encoded with its palette.
+	 */
+	public static List<ResizeResult> resize(DecodedImage decodedImage,
+			final File parentDir, final String uniqueFileKey,
+			final String fileExtension, List<ResizeTarget> targets,
+			final ResizeListener listener) throws InterruptedException {
+		if (decodedImage.isMetadataOnly())
+			return new ArrayList<ResizeResult>(0);
+
+		// By the original's dimensions, the decoded image may be subsampled.
+		if (!decodedImage.isStreamed())
+			return resize(decodedImage.image, parentDir, uniqueFileKey,
+					fileExtension, ResizeTarget.resolve(targets,
+							decodedImage.width, decodedImage.height),
+					decodedImage.palette, listener);
+
+		final String alternateFormat = getAlternateFormat(fileExtension);
+		final IndexColorModel palette = decodedImage.palette;
+		List<Map.Entry<ResizeTarget, BufferedImage>> sizes = new ArrayList<Map.Entry<ResizeTarget, BufferedImage>>(
+				decodedImage.scaled.entrySet());
+		List<Future<ResizeResult>> futures = new ArrayList<Future<ResizeResult>>(
+				sizes.size());
+
+		// Same (largest to smallest) order as a plan's results.
+		Collections.sort(sizes,
+				new Comparator<Map.Entry<ResizeTarget, BufferedImage>>() {
+					@Override
+					public int compare(
+							Map.Entry<ResizeTarget, BufferedImage> a,
+							Map.Entry<ResizeTarget, BufferedImage> b) {
+						return b.getKey().width - a.getKey().width;
+					}
+				});
+
+		for (final Map.Entry<ResizeTarget, BufferedImage> size : sizes)
+			futures.add(getExecutor().submit(new Callable<ResizeResult>() {
+				@Override
+				public ResizeResult call() throws Exception {
+					return generateStreamed(size.getValue(), parentDir,
+							uniqueFileKey, fileExtension, size.getKey(),
+							alternateFormat, palette, listener);
+				}
+			}));
+
+		List<ResizeResult> results = new ArrayList<ResizeResult>(
+				futures.size());
+
+		try {
+			for (Future<ResizeResult> future : futures)
+				results.add(future.get());
+		} catch (ExecutionException e) {
+			// The tasks catch everything, so this should never happen.
+			throw new RuntimeException(e.getCause());
+		} catch (InterruptedException e) {
+			for (int i = 0; i < futures.size(); i++) {
+				// Nothing will give back the sizes that never get encoded.
+				if (futures.get(i).cancel(true))
+					RasterPool.discard(sizes.get(i).getValue());
+			}
+
+			throw e;
+		}
+
+		return results;
+	}
+
+	/**
+	 * Used to stop the shared executor when the application stops (or is
+	 * reloaded in DEV mode) so the resize threads are not leaked.
+	 */
+	public static synchronized void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			int threadCount = Math.max(1, Config.getInt(CONFIG_THREADS,
+					Runtime.getRuntime().availableProcessors()));
+
+			executor = Executors.newFixedThreadPool(threadCount,
+					new DaemonThreadFactory("resize"));
+			Logger.info("Resize Executor Started [threads=%s]", threadCount);
+		}
+
+		return executor;
+	}
+
+	/**
+	 * Scales <code>sourceImage</code> to the width of <code>target</code>
+	 * (with its method) and writes it to disk. The scaled image is left on the
+	 * result (un-flushed) so it can be used as the source of smaller targets.
+	 *
+	 * @param palette
+	 *            the palette of an indexed original, may be <code>null</code>.
+	 */
+	static ResizeResult generate(BufferedImage sourceImage, File parentDir,
+			String uniqueFileKey, String fileExtension, ResizeTarget target,
+			IndexColorModel palette) {
+		return generate(sourceImage, parentDir, uniqueFileKey, fileExtension,
+				target, palette, true);
+	}
+
+	/**
+	 * Writes a size of a streamed original to disk, along with its alternate
+	 * (if <code>alternateFormat</code> isn't <code>null</code>), and gives it
+	 * back to the {@link RasterPool}.
+	 */
+	static ResizeResult generateStreamed(BufferedImage scaledImage,
+			File parentDir, String uniqueFileKey, String fileExtension,
+			ResizeTarget target, String alternateFormat,
+			IndexColorModel palette, ResizeListener listener) {
+		ResizeResult result = generate(scaledImage, parentDir, uniqueFileKey,
+				fileExtension, target, palette, false);
+
+		if (alternateFormat != null && result.image != null) {
+			result.alternate = generateAlternate(result.image, result,
+					uniqueFileKey, alternateFormat, palette);
+			notifyListener(listener, result.alternate);
+		}
+
+		RasterPool.release(scaledImage);
+		result.image = null;
+
+		notifyListener(listener, result);
+		return result;
+	}
+
+	private static ResizeResult generate(BufferedImage image, File parentDir,
+			String uniqueFileKey, String fileExtension, ResizeTarget target,
+			IndexColorModel palette, boolean scale) {
+		long startTime = System.nanoTime();
+		ResizeResult result = new ResizeResult(target);
+
+		result.format = fileExtension;
+		result.file = new File(parentDir, uniqueFileKey + '-' + target.suffix
+				+ '.' + fileExtension);
+
+		try {
+			// Resolved to fit to width already, see ResizeTarget#resolve.
+			result.image = (scale ? Scalr.resize(image, target.method,
+					Mode.FIT_TO_WIDTH, target.width) : image);
+			result.width = result.image.getWidth();
+			result.height = result.image.getHeight();
+			encode(result, result.image, palette);
+		} catch (Exception e) {
+			result.error = e;
+			Logger.error(
+					e,
+					"An exception occurred while generating an alt sized image [%s] of %s",
+					result.file.getAbsolutePath(), target);
+		}
+
+		long elapsedTime = Metrics.recordSince(
+				Metrics.name("resize_seconds", "target", target.name),
+				startTime);
+		result.elapsedTime = elapsedTime / 1000000;
+
+		Metrics.increment(Metrics.name("resize_outcomes_total", "target",
+				target.name, "outcome", (result.error == null ? "ok" : "error")));
+
+		if (result.error == null)
+			Metrics.increment("scaled_pixels_total", (long) result.width
+					* result.height);
+
+		return result;
+	}
+
+	/**
+	 * Used to encode the already scaled <code>image</code> of
+	 * <code>source</code> again in <code>format</code>.
+	 */
+	static ResizeResult generateAlternate(BufferedImage image,
+			ResizeResult source, String uniqueFileKey, String format,
+			IndexColorModel palette) {
+		long startTime = System.nanoTime();
+		ResizeResult result = new ResizeResult(source.target);
+
+		result.source = source.source;
+		result.format = format;
+		result.file = new File(source.file.getParentFile(), uniqueFileKey
+				+ '-' + source.target.suffix + '.' + format);
+		result.width = source.width;
+		result.height = source.height;
+
+		try {
+			encode(result, image, palette);
+		} catch (Exception e) {
+			result.error = e;
+			Logger.error(
+					e,
+					"An exception occurred while encoding the alternate image [%s] of %s",
+					result.file.getAbsolutePath(), source.target);
+		}
+
+		result.elapsedTime = (System.nanoTime() - startTime) / 1000000;
+		return result;
+	}
+
+	/**
+	 * @return the configured alternate format, or <code>null</code> if there
+	 *         is none or it is the format of the original anyway.
+	 */
+	private static String getAlternateFormat(String fileExtension) {
+		String alternateFormat = Config.getString(CONFIG_ALTERNATE_FORMAT, null);
+
+		if (alternateFormat == null
+				|| alternateFormat.trim().length() == 0
+				|| ImageEncoder.normalize(alternateFormat.trim()).equals(
+						ImageEncoder.normalize(fileExtension)))
+			return null;
+
+		return alternateFormat.trim();
+	}
+
+	private static void notifyListener(ResizeListener listener,
+			ResizeResult result) {
+		if (listener != null) {
+			try {
+				listener.resized(result);
+			} catch (Exception e) {
+				Logger.error(e, "ResizeListener failed for %s", result.target);
+			}
+		}
+	}
+
+	private static void encode(ResizeResult result, BufferedImage image,
+			IndexColorModel palette) throws IOException {
+		long startTime = System.nanoTime();
+		String format = ImageEncoder.normalize(result.format);
+
+		result.sizeInBytes = ImageEncoder.encode(image, format,
+				result.target.name, palette, result.file);
+		result.encodeTime = Metrics.recordSince(
+				Metrics.name("encode_seconds", "format", format), startTime) / 1000000;
+		Metrics.increment(
+				Metrics.name("encoded_bytes_total", "format", format),
+				result.sizeInBytes);
+	}
+
+	/**
+	 * Execution state of a single {@link ResizePlan}. Root steps are submitted
+	 * right away; every other step is submitted by the task that produced its
+	 * source image, as soon as that image is ready.
+	 */
+	static class PlanRun {
+		private final CompletionService<ResizeResult> completionService;
+		private final ExecutorService executor;
+		private final List<Future<ResizeResult>> futures = new ArrayList<Future<ResizeResult>>();
+		private final Map<ResizeResult, Future<ResizeResult>> alternates = new HashMap<ResizeResult, Future<ResizeResult>>();
+
+		private final BufferedImage originalImage;
+		private final File parentDir;
+		private final String uniqueFileKey;
+		private final String fileExtension;
+		private final String alternateFormat;
+		private final IndexColorModel palette;
+		private final ResizeListener listener;
+
+		PlanRun(ExecutorService executor, BufferedImage originalImage,
+				File parentDir, String uniqueFileKey, String fileExtension,
+				String alternateFormat, IndexColorModel palette,
+				ResizeListener listener) {
+			this.executor = executor;
+			this.completionService = new ExecutorCompletionService<ResizeResult>(
+					executor);
+			this.originalImage = originalImage;
+			this.parentDir = parentDir;
+			this.uniqueFileKey = uniqueFileKey;
+			this.fileExtension = fileExtension;
+			this.alternateFormat = alternateFormat;
+			this.palette = palette;
+			this.listener = listener;
+		}
+
+		List<ResizeResult> execute(ResizePlan plan)
+				throws InterruptedException {
+			List<ResizeResult> results = new ArrayList<ResizeResult>(
+					plan.steps.size());
+
+			for (ResizePlan.Step step : plan.roots)
+				submit(step, originalImage, null);
+
+			try {
+				for (int i = 0, size = plan.steps.size(); i < size; i++)
+					results.add(completionService.take().get());
+
+				/*
+				 * Every alternate was submitted before the result it belongs
+				 * to was returned, so they are all known by now.
+				 */
+				synchronized (futures) {
+					for (Map.Entry<ResizeResult, Future<ResizeResult>> entry : alternates
+							.entrySet())
+						entry.getKey().alternate = entry.getValue().get();
+				}
+			} catch (ExecutionException e) {
+				// The tasks catch everything, so this should never happen.
+				throw new RuntimeException(e.getCause());
+			} catch (InterruptedException e) {
+				// Don't leave the remaining work burning CPU for no one.
+				synchronized (futures) {
+					for (Future<ResizeResult> future : futures)
+						future.cancel(true);
+				}
+
+				throw e;
+			}
+
+			// Put the results back in plan (largest to smallest) order.
+			List<ResizeResult> ordered = new ArrayList<ResizeResult>(
+					results.size());
+
+			for (ResizePlan.Step step : plan.steps) {
+				for (ResizeResult result : results) {
+					if (result.target == step.target)
+						ordered.add(result);
+				}
+			}
+
+			return ordered;
+		}
+
+		private void submit(final ResizePlan.Step step,
+				final BufferedImage source, final AtomicInteger sourceRefs) {
+			Future<ResizeResult> future = completionService
+					.submit(new Callable<ResizeResult>() {
+						@Override
+						public ResizeResult call() throws Exception {
+							return run(step, source, sourceRefs);
+						}
+					});
+
+			synchronized (futures) {
+				futures.add(future);
+			}
+		}
+
+		private void submitAlternate(final ResizeResult result,
+				final BufferedImage image) {
+			/*
+			 * IMPL NOTE: This isn't a CompletionService task because the
+			 * number of them isn't known up front. It only ever runs on
+			 * pool threads and never waits on other tasks, so it can't
+			 * deadlock the pool.
+			 */
+			Future<ResizeResult> future = executor
+					.submit(new Callable<ResizeResult>() {
+						@Override
+						public ResizeResult call() throws Exception {
+							ResizeResult alternate = generateAlternate(image,
+									result, uniqueFileKey, alternateFormat,
+									palette);
+							notifyListener(alternate);
+							return alternate;
+						}
+					});
+
+			synchronized (futures) {
+				futures.add(future);
+				alternates.put(result, future);
+			}
+		}
+
+		private void notifyListener(ResizeResult result) {
+			ResizeExecutor.notifyListener(listener, result);
+		}
+
+		private ResizeResult run(ResizePlan.Step step, BufferedImage source,
+				AtomicInteger sourceRefs) {
+			ResizeResult result = generate(source, parentDir, uniqueFileKey,
+					fileExtension, step.target, palette);
+			result.source = (sourceRefs == null ? null : step.source.target);
+
+			// Encode the alternate format while the smaller sizes are scaled.
+			if (alternateFormat != null && result.image != null)
+				submitAlternate(result, result.image);
+
+			// Last child of an intermediate image is done with it, flush it.
+			if (sourceRefs != null && sourceRefs.decrementAndGet() == 0)
+				source.flush();
+
+			/*
+			 * Hand the result to the smaller steps derived from it. If we
+			 * failed to produce it, fall back to the original so the smaller
+			 * sizes still get generated.
+			 */
+			if (result.image == null) {
+				for (ResizePlan.Step child : step.children)
+					submit(child, originalImage, null);
+			} else if (step.children.isEmpty()) {
+				// Make things easier on the GC, explicitly flush native resources.
+				result.image.flush();
+			} else {
+				AtomicInteger refs = new AtomicInteger(step.children.size());
+
+				for (ResizePlan.Step child : step.children)
+					submit(child, result.image, refs);
+			}
+
+			result.image = null;
+
+			// Smaller sizes are already on their way, now let others know.
+			notifyListener(result);
+
+			return result;
+		}
+	}
+}
@@ -0,0 +1,13 @@
+package controllers.processing;
+
+/**
+ * Callback notified by the {@link ResizeExecutor} as soon as each alt size has
+ * been written to disk, so follow-up work (e.g. pushing it to the CDN) can
+ * start without waiting for the remaining sizes.
+ * <p/>
+ * Implementations are called from the resize threads and must be thread-safe
+ * and quick; anything slow should be handed off to another executor.
+ */
+public interface ResizeListener {
+	public void resized(ResizeResult result);
+}
@@ -0,0 +1,131 @@
+package controllers.processing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Describes the order alt sizes are generated in and which image each one is
+ * scaled down from.
+ * <p/>
+ * Without cascading every target is scaled directly from the original. With
+ * cascading, targets are ordered from largest to smallest and each one is
+ * scaled from the smallest already-generated (larger) target that is still at
+ * least <code>minRatio</code> times wider than it; only if no such target
+ * exists is the original used. A 6000px photo is then only scanned once to
+ * produce the LARGE size, and THUMBNAIL, SMALL and MEDIUM are derived from the
+ * much smaller intermediate results.
+ * <p/>
+ * <code>minRatio</code> is the quality tolerance. Scalr's QUALITY method
+ * already steps down in halves, so scaling from an image 2x (or more) the
+ * target width produces a result that is nearly indistinguishable from
+ * scaling the original. Lower ratios cascade more aggressively at the cost of
+ * some sharpness; a ratio of 1 always cascades from the previous result.
+ */
+public class ResizePlan {
+	private static final Comparator<ResizeTarget> WIDTH_DESCENDING = new Comparator<ResizeTarget>() {
+		@Override
+		public int compare(ResizeTarget t1, ResizeTarget t2) {
+			return (t1.width > t2.width ? -1 : (t1.width == t2.width ? 0 : 1));
+		}
+	};
+
+	/**
+	 * Every step of the plan, in the order (largest to smallest) they should
+	 * be generated in.
+	 */
+	public final List<Step> steps;
+
+	/**
+	 * The steps that are scaled directly from the original image. Every other
+	 * step is reachable through the {@link Step#children} of one of these.
+	 */
+	public final List<Step> roots;
+
+	private ResizePlan(List<Step> steps, List<Step> roots) {
+		this.steps = Collections.unmodifiableList(steps);
+		this.roots = Collections.unmodifiableList(roots);
+	}
+
+	/**
+	 * Used to create a plan for every target in <code>targets</code> that is
+	 * narrower than <code>sourceWidth</code>. Targets as wide or wider than
+	 * the source are left out because we never up-scale an original.
+	 * 
+	 * @param cascade
+	 *            <code>true</code> to derive smaller targets from larger
+	 *            results, <code>false</code> to scale every target from the
+	 *            original.
+	 * @param minRatio
+	 *            the minimum ratio between the width of an intermediate result
+	 *            and a target for that result to be used as the target's
+	 *            source. Must be >= 1.
+	 */
+	public static ResizePlan create(int sourceWidth, List<ResizeTarget> targets,
+			boolean cascade, double minRatio) throws IllegalArgumentException {
+		if (minRatio < 1)
+			throw new IllegalArgumentException("minRatio [" + minRatio
+					+ "] must be >= 1");
+
+		List<ResizeTarget> sorted = new ArrayList<ResizeTarget>(targets);
+		Collections.sort(sorted, WIDTH_DESCENDING);
+
+		List<Step> steps = new ArrayList<Step>(sorted.size());
+		List<Step> roots = new ArrayList<Step>(sorted.size());
+
+		for (ResizeTarget target : sorted) {
+			if (sourceWidth <= target.width)
+				continue;
+
+			Step source = null;
+
+			/*
+			 * Steps are sorted largest to smallest, so walking backwards finds
+			 * the smallest (cheapest to scan) acceptable source first.
+			 */
+			if (cascade) {
+				for (int i = steps.size() - 1; source == null && i >= 0; i--) {
+					Step candidate = steps.get(i);
+
+					if (candidate.target.width > target.width
+							&& candidate.target.width >= target.width
+									* minRatio)
+						source = candidate;
+				}
+			}
+
+			Step step = new Step(target, source);
+			steps.add(step);
+
+			if (source == null)
+				roots.add(step);
+			else
+				source.children.add(step);
+		}
+
+		return new ResizePlan(steps, roots);
+	}
+
+	public static class Step {
+		public final ResizeTarget target;
+
+		/**
+		 * The step whose result this step is scaled from, or
+		 * <code>null</code> if it is scaled from the original.
+		 */
+		public final Step source;
+		public final List<Step> children = new ArrayList<Step>(2);
+
+		Step(ResizeTarget target, Step source) {
+			this.target = target;
+			this.source = source;
+		}
+
+		@Override
+		public String toString() {
+			return target + " from "
+					+ (source == null ? "ORIGINAL" : source.target.toString());
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package controllers.processing;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+
+/**
+ * The outcome of generating a single {@link ResizeTarget} from an original
+ * image. If the resize or the write to disk failed, <code>error</code> is set
+ * and <code>file</code> may be <code>null</code>.
+ */
+public class ResizeResult {
+	public final ResizeTarget target;
+
+	/**
+	 * The target this result was scaled down from, or <code>null</code> if it
+	 * was scaled from the original image.
+	 */
+	public ResizeTarget source;
+
+	/**
+	 * The format (file extension) the result was encoded in.
+	 */
+	public String format;
+
+	public File file;
+	public int width;
+	public int height;
+	public long sizeInBytes;
+
+	/**
+	 * Time (in ms) spent scaling and writing this size to disk, not including
+	 * any time the work spent queued waiting for a free resize thread.
+	 */
+	public long elapsedTime;
+
+	/**
+	 * Time (in ms) spent encoding and writing this size, part of
+	 * <code>elapsedTime</code>.
+	 */
+	public long encodeTime;
+	public Exception error;
+
+	/**
+	 * The same size encoded in the alternate format, if one is configured
+	 * (<code>imgscalr.encode.alternate</code>) and it differs from the
+	 * format of the original.
+	 */
+	public ResizeResult alternate;
+
+	/**
+	 * The scaled image, only held on to while it is still needed as the source
+	 * of smaller targets.
+	 */
+	BufferedImage image;
+
+	public ResizeResult(ResizeTarget target) {
+		this.target = target;
+	}
+}
@@ -0,0 +1,164 @@
+package controllers.processing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.thebuzzmedia.imgscalr.Scalr.Method;
+import com.thebuzzmedia.imgscalr.Scalr.Mode;
+
+import controllers.Constants;
+
+/**
+ * Describes a single alternate size (e.g. THUMBNAIL) that is generated from an
+ * uploaded original image. The sizes a deployment generates are configured as
+ * profiles, see {@link SizeProfiles}.
+ * <p/>
+ * <code>width</code> is the size passed to Scalr along with
+ * <code>mode</code>: the width for {@link Mode#FIT_TO_WIDTH}, the height for
+ * {@link Mode#FIT_TO_HEIGHT} and the longest side for
+ * {@link Mode#AUTOMATIC}. The rest of the pipeline (planning, streaming,
+ * skipping targets wider than the original) works on widths only, so targets
+ * are {@link #resolve(int, int) resolved} to the width they come out at once
+ * the dimensions of the original are known.
+ */
+public class ResizeTarget {
+	/**
+	 * The alternate sizes generated for every upload unless configured
+	 * otherwise, in the same order they were historically generated in.
+	 */
+	public static final List<ResizeTarget> DEFAULT_TARGETS;
+
+	static {
+		List<ResizeTarget> targets = new ArrayList<ResizeTarget>(4);
+
+		targets.add(new ResizeTarget("THUMBNAIL", Constants.SIZE_THUMBNAIL,
+				Constants.SUFFIX_THUMBNAIL));
+		targets.add(new ResizeTarget("SMALL", Constants.SIZE_SMALL,
+				Constants.SUFFIX_SMALL));
+		targets.add(new ResizeTarget("MEDIUM", Constants.SIZE_MEDIUM,
+				Constants.SUFFIX_MEDIUM));
+		targets.add(new ResizeTarget("LARGE", Constants.SIZE_LARGE,
+				Constants.SUFFIX_LARGE));
+
+		DEFAULT_TARGETS = Collections.unmodifiableList(targets);
+	}
+
+	/**
+	 * @return the width of the widest target in <code>targets</code>, or 0 if
+	 *         the list is empty.
+	 */
+	public static int getMaxWidth(List<ResizeTarget> targets) {
+		int maxWidth = 0;
+
+		for (ResizeTarget target : targets)
+			maxWidth = Math.max(maxWidth, target.width);
+
+		return maxWidth;
+	}
+
+	/**
+	 * @return <code>targets</code> {@link #resolve(int, int) resolved} for an
+	 *         original of the given dimensions; the list itself if they all
+	 *         fit to width already.
+	 */
+	public static List<ResizeTarget> resolve(List<ResizeTarget> targets,
+			int sourceWidth, int sourceHeight) {
+		List<ResizeTarget> resolved = null;
+
+		for (int i = 0, size = targets.size(); i < size; i++) {
+			ResizeTarget target = targets.get(i);
+
+			if (target.mode == Mode.FIT_TO_WIDTH) {
+				if (resolved != null)
+					resolved.add(target);
+			} else {
+				if (resolved == null)
+					resolved = new ArrayList<ResizeTarget>(targets.subList(0,
+							i));
+
+				resolved.add(target.resolve(sourceWidth, sourceHeight));
+			}
+		}
+
+		return (resolved == null ? targets : resolved);
+	}
+
+	public final String name;
+	public final int width;
+	public final String suffix;
+
+	public final Method method;
+	public final Mode mode;
+
+	/**
+	 * The encoder quality of this size (0 to 1), <code>null</code> to use the
+	 * one configured for the format, see {@link ImageEncoder}.
+	 */
+	public final Float quality;
+
+	/**
+	 * <code>true</code> if this size is not generated at upload time but
+	 * only when it is first requested, see {@link OnDemandResizer}.
+	 */
+	public final boolean lazy;
+
+	public ResizeTarget(String name, int width, String suffix) {
+		this(name, width, suffix, Method.QUALITY, Mode.FIT_TO_WIDTH, null,
+				false);
+	}
+
+	public ResizeTarget(String name, int width, String suffix, Method method,
+			Mode mode, Float quality, boolean lazy) {
+		if (name == null || suffix == null)
+			throw new IllegalArgumentException(
+					"name and suffix cannot be null");
+		if (method == null || mode == null)
+			throw new IllegalArgumentException(
+					"method and mode cannot be null");
+		if (width <= 0)
+			throw new IllegalArgumentException("width [" + width
+					+ "] must be > 0");
+		if (quality != null
+				&& !(quality.floatValue() >= 0 && quality.floatValue() <= 1))
+			throw new IllegalArgumentException("quality [" + quality
+					+ "] must be between 0 and 1");
+
+		this.name = name;
+		this.width = width;
+		this.suffix = suffix;
+		this.method = method;
+		this.mode = mode;
+		this.quality = quality;
+		this.lazy = lazy;
+	}
+
+	/**
+	 * Used to work out how wide this target comes out when scaled from an
+	 * original of the given dimensions, the same way Scalr does.
+	 *
+	 * @return this target if it fits to width already, otherwise a copy of it
+	 *         that does, with that width.
+	 */
+	public ResizeTarget resolve(int sourceWidth, int sourceHeight) {
+		if (mode == Mode.FIT_TO_WIDTH)
+			return this;
+
+		// Scalr fits landscape (and square) images to width in AUTOMATIC.
+		if (mode == Mode.AUTOMATIC && sourceWidth >= sourceHeight)
+			return new ResizeTarget(name, width, suffix, method,
+					Mode.FIT_TO_WIDTH, quality, lazy);
+
+		// Same arithmetic as Scalr, so both agree on the width to the pixel.
+		float ratio = (float) sourceHeight / (float) sourceWidth;
+		int resolvedWidth = Math.max(1, Math.round(width / ratio));
+
+		return new ResizeTarget(name, resolvedWidth, suffix, method,
+				Mode.FIT_TO_WIDTH, quality, lazy);
+	}
+
+	@Override
+	public String toString() {
+		return name + " (" + width + "px)";
+	}
+}
@@ -0,0 +1,262 @@
+package controllers.processing;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import play.Logger;
+
+import com.thebuzzmedia.imgscalr.Scalr.Method;
+import com.thebuzzmedia.imgscalr.Scalr.Mode;
+
+import controllers.Config;
+import controllers.Constants;
+
+/**
+ * Registry of the sizes (profiles) generated from an upload, read from
+ * application.conf so a deployment can trade CPU for coverage without a
+ * rebuild.
+ * <p/>
+ * <code>imgscalr.sizes</code> lists the profiles by name, in the order they
+ * appear in the response; each one is configured with
+ * <code>imgscalr.sizes.&lt;name&gt;.*</code>:
+ * <ul>
+ * <li><code>width</code>: the size to scale to, see {@link ResizeTarget}.</li>
+ * <li><code>suffix</code>: appended to the unique file key to name the size,
+ * letters only (defaults to the name in upper case).</li>
+ * <li><code>method</code>/<code>mode</code>: the {@link Method} and
+ * {@link Mode} passed to Scalr (default to <code>QUALITY</code> and
+ * <code>FIT_TO_WIDTH</code>).</li>
+ * <li><code>quality</code>: the encoder quality for every format, unless one
+ * is configured for the format and this size (see {@link ImageEncoder}).</li>
+ * <li><code>lazy</code>: <code>true</code> to generate the size only when it
+ * is first requested (see {@link OnDemandResizer}) instead of with the
+ * upload.</li>
+ * </ul>
+ * The historical sizes (THUMBNAIL to XXXLARGE, see {@link Constants}) are
+ * built in and only need to be listed; of those only THUMBNAIL to LARGE are
+ * generated with the upload by default, the larger ones are lazy. A profile
+ * that cannot be used (no width, a suffix already taken, ...) is logged and
+ * left out rather than keeping the application from starting.
+ */
+public class SizeProfiles {
+	public static final String CONFIG_SIZES = "imgscalr.sizes";
+	public static final String CONFIG_PREFIX = "imgscalr.sizes.";
+
+	public static final String DEFAULT_SIZES = "thumbnail,small,medium,large,xlarge,xxlarge,xxxlarge";
+
+	/**
+	 * Profile names end up in config keys, metric labels and the response.
+	 */
+	private static final Pattern NAME_PATTERN = Pattern
+			.compile("[a-z][a-z0-9_]*");
+
+	/**
+	 * Suffixes end up in file names, see {@link ResizeExecutor}.
+	 */
+	private static final Pattern SUFFIX_PATTERN = Pattern.compile("[A-Z]+");
+
+	private static final Map<String, ResizeTarget> BUILT_IN;
+
+	static {
+		Map<String, ResizeTarget> builtIn = new LinkedHashMap<String, ResizeTarget>();
+
+		for (ResizeTarget target : ResizeTarget.DEFAULT_TARGETS)
+			builtIn.put(target.name.toLowerCase(Locale.ENGLISH), target);
+
+		builtIn.put("xlarge", new ResizeTarget("XLARGE",
+				Constants.SIZE_XLARGE, Constants.SUFFIX_XLARGE,
+				Method.QUALITY, Mode.FIT_TO_WIDTH, null, true));
+		builtIn.put("xxlarge", new ResizeTarget("XXLARGE",
+				Constants.SIZE_XXLARGE, Constants.SUFFIX_XXLARGE,
+				Method.QUALITY, Mode.FIT_TO_WIDTH, null, true));
+		builtIn.put("xxxlarge", new ResizeTarget("XXXLARGE",
+				Constants.SIZE_XXXLARGE, Constants.SUFFIX_XXXLARGE,
+				Method.QUALITY, Mode.FIT_TO_WIDTH, null, true));
+
+		BUILT_IN = Collections.unmodifiableMap(builtIn);
+	}
+
+	private static List<ResizeTarget> profiles;
+	private static List<ResizeTarget> eagerTargets;
+
+	/**
+	 * @return every configured profile, eager and lazy, in the configured
+	 *         order.
+	 */
+	public static synchronized List<ResizeTarget> getProfiles() {
+		if (profiles == null) {
+			profiles = Collections.unmodifiableList(load());
+
+			List<ResizeTarget> eager = new ArrayList<ResizeTarget>(
+					profiles.size());
+
+			for (ResizeTarget profile : profiles) {
+				if (!profile.lazy)
+					eager.add(profile);
+			}
+
+			eagerTargets = Collections.unmodifiableList(eager);
+			Logger.info("Size Profiles Loaded %s [eager=%s]", profiles,
+					eagerTargets.size());
+		}
+
+		return profiles;
+	}
+
+	/**
+	 * @return the profiles generated with every upload.
+	 */
+	public static synchronized List<ResizeTarget> getEagerTargets() {
+		getProfiles();
+		return eagerTargets;
+	}
+
+	/**
+	 * @return the profile named <code>name</code> (in any case) or
+	 *         <code>null</code> if there is none.
+	 */
+	public static ResizeTarget get(String name) {
+		if (name == null)
+			return null;
+
+		for (ResizeTarget profile : getProfiles()) {
+			if (profile.name.equalsIgnoreCase(name))
+				return profile;
+		}
+
+		return null;
+	}
+
+	/**
+	 * @return the first profile scaling to <code>width</code> or
+	 *         <code>null</code> if there is none.
+	 */
+	public static ResizeTarget forWidth(int width) {
+		for (ResizeTarget profile : getProfiles()) {
+			if (profile.width == width)
+				return profile;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Used to read the profiles from the config again the next time they are
+	 * needed, e.g. after it changed in a test.
+	 */
+	public static synchronized void reload() {
+		profiles = null;
+		eagerTargets = null;
+	}
+
+	private static List<ResizeTarget> load() {
+		List<ResizeTarget> loaded = new ArrayList<ResizeTarget>();
+		Set<String> suffixes = new HashSet<String>();
+
+		for (String item : Config.getString(CONFIG_SIZES, DEFAULT_SIZES)
+				.split(",")) {
+			String name = item.trim().toLowerCase(Locale.ENGLISH);
+
+			if (name.length() == 0)
+				continue;
+
+			ResizeTarget profile = load(name);
+
+			if (profile == null)
+				continue;
+
+			if (!suffixes.add(profile.suffix)) {
+				Logger.error(
+						"Ignoring size profile '%s', its suffix '%s' is already used by another one.",
+						name, profile.suffix);
+				continue;
+			}
+
+			loaded.add(profile);
+		}
+
+		return loaded;
+	}
+
+	/**
+	 * @return the profile named <code>name</code> (lower case) as configured
+	 *         on top of the built-in one of that name (if any), or
+	 *         <code>null</code> if it cannot be used.
+	 */
+	private static ResizeTarget load(String name) {
+		if (!NAME_PATTERN.matcher(name).matches()) {
+			Logger.error("Ignoring size profile '%s', invalid name.", name);
+			return null;
+		}
+
+		String prefix = CONFIG_PREFIX + name + '.';
+		ResizeTarget builtIn = BUILT_IN.get(name);
+
+		if (builtIn == null)
+			builtIn = new ResizeTarget(name.toUpperCase(Locale.ENGLISH), 1,
+					name);
+
+		int width = Config.getInt(prefix + "width",
+				(BUILT_IN.containsKey(name) ? builtIn.width : 0));
+		String suffix = Config.getString(prefix + "suffix", builtIn.suffix)
+				.trim().toUpperCase(Locale.ENGLISH);
+		String quality = Config.getString(prefix + "quality", null);
+
+		if (width <= 0) {
+			Logger.error(
+					"Ignoring size profile '%s', %swidth must be set to a value > 0.",
+					name, prefix);
+			return null;
+		}
+
+		if (!SUFFIX_PATTERN.matcher(suffix).matches()) {
+			Logger.error(
+					"Ignoring size profile '%s', %ssuffix '%s' must only contain letters.",
+					name, prefix, suffix);
+			return null;
+		}
+
+		try {
+			return new ResizeTarget(builtIn.name, width, suffix, getEnum(
+					Method.class, prefix + "method", builtIn.method), getEnum(
+					Mode.class, prefix + "mode", builtIn.mode),
+					(quality == null ? builtIn.quality : Float.valueOf(quality
+							.trim())), Config.getBoolean(prefix + "lazy",
+							builtIn.lazy));
+		} catch (NumberFormatException e) {
+			Logger.error(
+					"Ignoring size profile '%s', %squality '%s' is not a number.",
+					name, prefix, quality);
+			return null;
+		} catch (IllegalArgumentException e) {
+			Logger.error("Ignoring size profile '%s', %s", name,
+					e.getMessage());
+			return null;
+		}
+	}
+
+	private static <T extends Enum<T>> T getEnum(Class<T> type, String key,
+			T defaultValue) {
+		String value = Config.getString(key, null);
+
+		if (value != null) {
+			try {
+				return Enum.valueOf(type, value.trim().toUpperCase(
+						Locale.ENGLISH));
+			} catch (IllegalArgumentException e) {
+				Logger.error(
+						"Unable to parse config value '%s' for '%s', using the default '%s' instead.",
+						value, key, defaultValue);
+			}
+		}
+
+		return defaultValue;
+	}
+}
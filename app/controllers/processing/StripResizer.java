@@ -0,0 +1,321 @@
+package controllers.processing;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+
+import play.Logger;
+import controllers.Config;
+import controllers.metrics.Metrics;
+
+/**
+ * Scales images too large to decode in one piece to every target size at once,
+ * reading the source a horizontal strip at a time.
+ * <p/>
+ * Each strip is read with {@link ImageReadParam#setSourceRegion(Rectangle)}
+ * and fed row by row to one downscaler per target, which area-averages the
+ * rows into its (small) output image as they come in. Peak memory is a strip
+ * (<code>imgscalr.stream.stripPixels</code> pixels) plus the outputs, no
+ * matter how large the source is. Area-averaging weighs every source pixel by
+ * how much of an output pixel it covers, which for down-scaling is about as
+ * good as the incremental steps of <code>Method.QUALITY</code>.
+ * <p/>
+ * Images that decode (after subsampling) to more than
+ * <code>imgscalr.stream.threshold</code> pixels are streamed; 0 turns
+ * streaming off.
+ * <p/>
+ * IMPL NOTE: Most ImageReaders can't resume where the previous region ended
+ * and decode the source from the top again for every strip. Larger strips mean
+ * fewer passes over the file in exchange for more memory.
+ * <p/>
+ * The scaled images come from the {@link RasterPool} and go back to it once
+ * they have been encoded.
+ */
+public class StripResizer {
+	public static final String CONFIG_THRESHOLD = "imgscalr.stream.threshold";
+	public static final String CONFIG_STRIP_PIXELS = "imgscalr.stream.stripPixels";
+
+	public static final long DEFAULT_THRESHOLD = 50000000; // 50MP
+	public static final long DEFAULT_STRIP_PIXELS = 4194304; // 4MP
+
+	/**
+	 * @return <code>true</code> if an image of the given header dimensions,
+	 *         decoded with <code>subsampling</code>, is large enough to be
+	 *         streamed.
+	 */
+	public static boolean isStreaming(int width, int height, int subsampling) {
+		long threshold = Config.getLong(CONFIG_THRESHOLD, DEFAULT_THRESHOLD);
+		return (threshold > 0 && getDecodedPixels(width, height, subsampling) > threshold);
+	}
+
+	/**
+	 * @return the (maximum) number of pixels in a strip.
+	 */
+	public static long getStripPixels() {
+		return Math.max(1, Config.getLong(CONFIG_STRIP_PIXELS,
+				DEFAULT_STRIP_PIXELS));
+	}
+
+	/**
+	 * Used to scale the first image of <code>reader</code> to the width of
+	 * every target in <code>targets</code> that is smaller than the decoded
+	 * image, in a single pass over the source. Every strip is a read of its
+	 * own, so the input of <code>reader</code> must not be seek forward only.
+	 *
+	 * @param width
+	 *            the width of the image from its header.
+	 * @param height
+	 *            the height of the image from its header.
+	 * @param subsampling
+	 *            the source subsampling to read the strips with.
+	 *
+	 * @return the scaled images, in the order of <code>targets</code>.
+	 */
+	public static Map<ResizeTarget, BufferedImage> scale(ImageReader reader,
+			int width, int height, int subsampling, List<ResizeTarget> targets)
+			throws IOException {
+		int decodedWidth = (width + subsampling - 1) / subsampling;
+		int decodedHeight = (height + subsampling - 1) / subsampling;
+		int stripRows = (int) Math.max(1,
+				Math.min(decodedHeight, getStripPixels() / decodedWidth));
+
+		Logger.info(
+				"Streaming Resize [original=%sx%s, subsampling=%s, stripRows=%s]",
+				width, height, subsampling, stripRows);
+
+		List<AreaScaler> scalers = new ArrayList<AreaScaler>(targets.size());
+		ImageReadParam param = reader.getDefaultReadParam();
+		int[] row = new int[decodedWidth];
+		int strips = 0;
+
+		if (subsampling > 1)
+			param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+
+		BufferedImage strip = null;
+
+		try {
+			for (int y = 0; y < height; y += stripRows * subsampling) {
+				int regionHeight = Math.min(stripRows * subsampling, height - y);
+				param.setSourceRegion(new Rectangle(0, y, width, regionHeight));
+
+				/*
+				 * Every strip after the first is read into the first one; the
+				 * last (shorter) strip only fills its top rows.
+				 */
+				if (strip == null)
+					strip = reader.read(0, param);
+				else {
+					param.setDestination(strip);
+					reader.read(0, param);
+				}
+
+				// Only now do we know if the image has alpha.
+				if (strips++ == 0) {
+					boolean alpha = strip.getColorModel().hasAlpha();
+
+					for (ResizeTarget target : targets) {
+						if (target.width < decodedWidth)
+							scalers.add(new AreaScaler(target, decodedWidth,
+									decodedHeight, alpha));
+					}
+				}
+
+				for (int i = 0, rows = (regionHeight + subsampling - 1)
+						/ subsampling; i < rows; i++) {
+					strip.getRGB(0, i, decodedWidth, 1, row, 0, decodedWidth);
+
+					for (AreaScaler scaler : scalers)
+						scaler.addRow(row);
+				}
+			}
+		} catch (IOException e) {
+			release(scalers);
+			throw e;
+		} catch (RuntimeException e) {
+			release(scalers);
+			throw e;
+		} finally {
+			if (strip != null)
+				strip.flush();
+		}
+
+		Metrics.increment("streamed_strips_total", strips);
+		Map<ResizeTarget, BufferedImage> images = new LinkedHashMap<ResizeTarget, BufferedImage>();
+
+		for (AreaScaler scaler : scalers)
+			images.put(scaler.target, scaler.finish());
+
+		return images;
+	}
+
+	private static void release(List<AreaScaler> scalers) {
+		for (AreaScaler scaler : scalers)
+			RasterPool.release(scaler.image);
+	}
+
+	/**
+	 * @return the number of pixels of an image of the given header dimensions
+	 *         decoded with <code>subsampling</code>.
+	 */
+	public static long getDecodedPixels(int width, int height,
+			int subsampling) {
+		return (long) ((width + subsampling - 1) / subsampling)
+				* ((height + subsampling - 1) / subsampling);
+	}
+
+	/**
+	 * Down-scales rows of ARGB pixels, fed top to bottom, to the width of a
+	 * single target (keeping the aspect ratio) by averaging the area of the
+	 * source each output pixel covers.
+	 */
+	static class AreaScaler {
+		final ResizeTarget target;
+
+		private final BufferedImage image;
+		private final int outWidth;
+		private final int outHeight;
+		private final double scaleY;
+
+		/*
+		 * Horizontal weights; output column x averages the source columns
+		 * firstColumn[x] until lastColumn[x] (exclusive), each weighted by
+		 * the fraction of the output pixel it covers, starting at
+		 * weights[firstWeight[x]].
+		 */
+		private final int[] firstColumn;
+		private final int[] lastColumn;
+		private final int[] firstWeight;
+		private final double[] weights;
+
+		private final double[] scaledRow;
+		private final double[] sum;
+		private final int[] outRow;
+
+		private double sumWeight;
+		private int sourceY;
+		private int outY;
+
+		AreaScaler(ResizeTarget target, int sourceWidth, int sourceHeight,
+				boolean alpha) {
+			this.target = target;
+			this.outWidth = target.width;
+			this.outHeight = Math.max(1,
+					(int) Math.round(sourceHeight * (double) outWidth
+							/ sourceWidth));
+			this.scaleY = (double) sourceHeight / outHeight;
+			this.image = RasterPool.acquire(outWidth, outHeight,
+					(alpha ? BufferedImage.TYPE_INT_ARGB
+							: BufferedImage.TYPE_INT_RGB));
+
+			double scaleX = (double) sourceWidth / outWidth;
+			List<Double> weightList = new ArrayList<Double>();
+
+			firstColumn = new int[outWidth];
+			lastColumn = new int[outWidth];
+			firstWeight = new int[outWidth];
+
+			for (int x = 0; x < outWidth; x++) {
+				double start = x * scaleX;
+				double end = Math.min(sourceWidth, start + scaleX);
+
+				firstColumn[x] = (int) start;
+				lastColumn[x] = Math.min(sourceWidth, (int) Math.ceil(end));
+				firstWeight[x] = weightList.size();
+
+				for (int sx = firstColumn[x]; sx < lastColumn[x]; sx++)
+					weightList.add(Double.valueOf((Math.min(end, sx + 1) - Math
+							.max(start, sx)) / scaleX));
+			}
+
+			weights = new double[weightList.size()];
+
+			for (int i = 0; i < weights.length; i++)
+				weights[i] = weightList.get(i).doubleValue();
+
+			scaledRow = new double[outWidth * 4];
+			sum = new double[outWidth * 4];
+			outRow = new int[outWidth];
+		}
+
+		void addRow(int[] argb) {
+			scaleRow(argb);
+
+			// The source row covers [sourceY, sourceY + 1) of the output rows.
+			double top = sourceY;
+			double bottom = ++sourceY;
+
+			while (top < bottom && outY < outHeight) {
+				double outBottom = (outY + 1) * scaleY;
+				double end = Math.min(bottom, outBottom);
+				double weight = end - top;
+
+				for (int i = 0; i < sum.length; i++)
+					sum[i] += scaledRow[i] * weight;
+
+				sumWeight += weight;
+				top = end;
+
+				// Allow for rounding, or the last row would never come out.
+				if (end >= outBottom - 1e-9)
+					writeRow();
+			}
+		}
+
+		/**
+		 * @return the scaled image.
+		 */
+		BufferedImage finish() {
+			// The source came up a fraction of a row short of the last one.
+			if (outY < outHeight && sumWeight > 0)
+				writeRow();
+
+			return image;
+		}
+
+		private void scaleRow(int[] argb) {
+			for (int x = 0, o = 0; x < outWidth; x++, o += 4) {
+				double a = 0, r = 0, g = 0, b = 0;
+
+				for (int sx = firstColumn[x], w = firstWeight[x]; sx < lastColumn[x]; sx++, w++) {
+					int pixel = argb[sx];
+					double weight = weights[w];
+
+					a += ((pixel >>> 24) & 0xFF) * weight;
+					r += ((pixel >>> 16) & 0xFF) * weight;
+					g += ((pixel >>> 8) & 0xFF) * weight;
+					b += (pixel & 0xFF) * weight;
+				}
+
+				scaledRow[o] = a;
+				scaledRow[o + 1] = r;
+				scaledRow[o + 2] = g;
+				scaledRow[o + 3] = b;
+			}
+		}
+
+		private void writeRow() {
+			for (int x = 0, o = 0; x < outWidth; x++, o += 4) {
+				outRow[x] = (clamp(sum[o] / sumWeight) << 24)
+						| (clamp(sum[o + 1] / sumWeight) << 16)
+						| (clamp(sum[o + 2] / sumWeight) << 8)
+						| clamp(sum[o + 3] / sumWeight);
+				sum[o] = sum[o + 1] = sum[o + 2] = sum[o + 3] = 0;
+			}
+
+			sumWeight = 0;
+			image.setRGB(0, outY++, outWidth, 1, outRow, 0, outWidth);
+		}
+
+		private static int clamp(double value) {
+			int rounded = (int) (value + 0.5);
+			return (rounded < 0 ? 0 : (rounded > 255 ? 255 : rounded));
+		}
+	}
+}
@@ -0,0 +1,123 @@
+package controllers.processing;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * InputStream that copies every byte read from the wrapped stream to a
+ * secondary OutputStream (the "branch") as it is read.
+ * <p/>
+ * This is used to decode an uploaded image straight off the request body
+ * while still writing a durable copy of the original to disk in the same
+ * pass. Skipped bytes are read through so the branch always ends up with an
+ * exact copy of everything consumed; call {@link #drain(byte[])} once done reading
+ * to copy whatever the consumer didn't read.
+ */
+public class TeeInputStream extends FilterInputStream {
+	private long count;
+	private OutputStream branch;
+
+	public TeeInputStream(InputStream in, OutputStream branch)
+			throws IllegalArgumentException {
+		super(in);
+
+		if (in == null || branch == null)
+			throw new IllegalArgumentException(
+					"in and branch cannot be null");
+
+		this.branch = branch;
+	}
+
+	/**
+	 * @return the total number of bytes read from the wrapped stream (and
+	 *         written to the branch) so far.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	@Override
+	public int read() throws IOException {
+		int b = in.read();
+
+		if (b != -1) {
+			branch.write(b);
+			count++;
+		}
+
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int bytesRead = in.read(b, off, len);
+
+		if (bytesRead > 0) {
+			branch.write(b, off, bytesRead);
+			count += bytesRead;
+		}
+
+		return bytesRead;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = 0;
+		byte[] buffer = new byte[(int) Math.min(n, 8192)];
+
+		while (skipped < n) {
+			int bytesRead = read(buffer, 0,
+					(int) Math.min(buffer.length, n - skipped));
+
+			if (bytesRead <= 0)
+				break;
+
+			skipped += bytesRead;
+		}
+
+		return skipped;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+		// no-op, marking would write the same bytes to the branch twice.
+	}
+
+	@Override
+	public synchronized void reset() throws IOException {
+		throw new IOException("mark/reset not supported");
+	}
+
+	/**
+	 * Used to read the remainder of the wrapped stream so it is copied to the
+	 * branch.
+	 * 
+	 * @return the total number of bytes read, see {@link #getCount()}.
+	 */
+	public long drain(byte[] buffer) throws IOException {
+		while (read(buffer, 0, buffer.length) != -1) {
+			// no-op, read(...) writes to the branch.
+		}
+
+		return count;
+	}
+
+	/**
+	 * Closes both the wrapped stream and the branch.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			super.close();
+		} finally {
+			branch.close();
+		}
+	}
+}
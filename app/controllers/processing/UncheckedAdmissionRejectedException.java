@@ -0,0 +1,18 @@
+package controllers.processing;
+
+/**
+ * Carries an {@link AdmissionRejectedException} out of an
+ * {@link ImageDecoder.HeaderListener}, which can't throw checked exceptions.
+ */
+class UncheckedAdmissionRejectedException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	UncheckedAdmissionRejectedException(AdmissionRejectedException cause) {
+		super(cause);
+	}
+
+	@Override
+	public AdmissionRejectedException getCause() {
+		return (AdmissionRejectedException) super.getCause();
+	}
+}
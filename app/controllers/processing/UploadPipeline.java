@@ -0,0 +1,546 @@
+package controllers.processing;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+
+import play.Logger;
+
+import com.thebuzzmedia.common.util.RandomUtils;
+
+import controllers.Config;
+import controllers.Constants;
+import controllers.DaemonThreadFactory;
+import controllers.metrics.Metrics;
+import controllers.response.UploadResponse;
+import controllers.storage.CdnUploader;
+import controllers.storage.DedupeCache;
+import controllers.storage.TempFileIndex;
+
+/**
+ * The part of handling an upload that comes after the original is on disk:
+ * decoding it, generating the alt sizes and pushing everything to the CDN.
+ * Shared by the single and the batch upload endpoints.
+ * <p/>
+ * Nothing in here renders anything; failures are reported by setting the
+ * matching {@link UploadResponse.Type} on the response, so a caller handling
+ * many images at once can carry on with the next one.
+ */
+public class UploadPipeline {
+	public static final String CONFIG_BATCH_THREADS = "imgscalr.batch.threads";
+
+	private static final Set<String> validFileExt = new HashSet<String>();
+	private static ExecutorService executor;
+
+	static {
+		for (String name : ImageIO.getReaderFormatNames())
+			validFileExt.add(name);
+	}
+
+	/**
+	 * @return <code>true</code> if there is an ImageIO reader for files with
+	 *         the (case-sensitive) extension <code>fileExtension</code>.
+	 */
+	public static boolean isSupportedExtension(String fileExtension) {
+		return validFileExt.contains(fileExtension);
+	}
+
+	/**
+	 * Used to generate a unique key (name) for an upload because we have to
+	 * store it along side millions of other files in the same dir on the CDN.
+	 * <p/>
+	 * IMPL NOTE: We don't take the time to check if a file with the existing
+	 * name is already on the CDN so we want the generated name to have the
+	 * smallest possible chances of collision. Using 9 characters, that gives
+	 * us 52^9 possible combinations (~2.8 quadrillion) using an upper and
+	 * lowercase alphabet.
+	 */
+	public static String createUniqueFileKey() {
+		return new String(RandomUtils.randomChars(
+				RandomUtils.UPPER_AND_LOWER_CASE_ALPHABET,
+				Constants.UNIQUE_FILE_KEY_SIZE));
+	}
+
+	/**
+	 * Used to sniff the head of an upload that is already on disk, see
+	 * {@link ImageSniffer}.
+	 * 
+	 * @return <code>true</code> if it can go on to be decoded, otherwise the
+	 *         response type says why it can't.
+	 */
+	public static boolean preflight(UploadResponse response, File tempFile) {
+		try {
+			return preflight(response, ImageSniffer.sniff(tempFile));
+		} catch (IOException e) {
+			Logger.error(e, "Unable to read the head of the uploaded file [%s]",
+					tempFile.getAbsolutePath());
+
+			// Let the decoder give it a try (and report it).
+			return true;
+		}
+	}
+
+	/**
+	 * Used to sniff the first <code>length</code> bytes of an upload, see
+	 * {@link ImageSniffer}.
+	 * 
+	 * @return <code>true</code> if it can go on to be decoded, otherwise the
+	 *         response type says why it can't.
+	 */
+	public static boolean preflight(UploadResponse response, byte[] head,
+			int length) {
+		return preflight(response, ImageSniffer.sniff(head, length));
+	}
+
+	/**
+	 * @return a completion service on the shared pool of
+	 *         <code>imgscalr.batch.threads</code> (defaults to the number of
+	 *         available processors) threads, for a caller that wants its
+	 *         uploads back in the order they finish.
+	 */
+	public static CompletionService<UploadResponse> createCompletionService() {
+		return new ExecutorCompletionService<UploadResponse>(getExecutor());
+	}
+
+	/**
+	 * Used to start processing an original that is already on disk in the
+	 * background.
+	 * 
+	 * @return a future that returns <code>response</code> once the upload is
+	 *         done, successful or not.
+	 * 
+	 * @see #processFile(UploadResponse, File, String)
+	 */
+	public static Future<UploadResponse> submit(
+			CompletionService<UploadResponse> service,
+			final UploadResponse response, final File tempFile,
+			final String contentKey) {
+		return service.submit(new Callable<UploadResponse>() {
+			@Override
+			public UploadResponse call() throws Exception {
+				// The client is told to send it again, don't keep it.
+				if (!processFile(response, tempFile, contentKey)
+						&& response.code == UploadResponse.CODE_FAILURE_SERVER_BUSY
+						&& !tempFile.delete())
+					tempFile.deleteOnExit();
+
+				return response;
+			}
+		});
+	}
+
+	/**
+	 * Used to run the whole pipeline on an original that is already on disk:
+	 * reserve its processing budget, decode it, generate the alt sizes and
+	 * push everything to the CDN.
+	 *
+	 * @return <code>true</code> if the upload succeeded, otherwise the
+	 *         response type says why it didn't. If the server was busy,
+	 *         <code>tempFile</code> is left in place.
+	 */
+	public static boolean processFile(UploadResponse response, File tempFile,
+			String contentKey) {
+		long elapsedTime = System.nanoTime();
+		AdmissionController.Ticket ticket;
+
+		// Nothing is admitted (or decoded) that can't be processed anyway.
+		if (!preflight(response, tempFile)) {
+			recordStage("preflight", elapsedTime);
+
+			if (!tempFile.delete())
+				Logger.error("Unable to Delete File [%s]",
+						tempFile.getAbsolutePath());
+
+			return false;
+		}
+
+		recordStage("preflight", elapsedTime);
+		elapsedTime = System.nanoTime();
+
+		try {
+			ticket = AdmissionController.admit(AdmissionController
+					.estimate(tempFile.length()));
+		} catch (AdmissionRejectedException e) {
+			setBusy(response, e);
+			return false;
+		}
+
+		recordStage("admission", elapsedTime);
+
+		try {
+			elapsedTime = System.nanoTime();
+			DecodedImage originalImage = decode(response, tempFile, ticket);
+			recordStage("decode", elapsedTime);
+
+			if (originalImage == null) {
+				if (!tempFile.delete())
+					Logger.error("Unable to Delete File [%s]",
+							tempFile.getAbsolutePath());
+
+				return false;
+			}
+
+			return process(response, tempFile, originalImage, contentKey);
+		} catch (AdmissionRejectedException e) {
+			setBusy(response, e);
+			return false;
+		} finally {
+			ticket.release();
+		}
+	}
+
+	/**
+	 * Used to stop the shared pool when the application stops (or is
+	 * reloaded in DEV mode).
+	 */
+	public static synchronized void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	/**
+	 * Used to read the original image back in from <code>tempFile</code>,
+	 * growing <code>ticket</code> to the real dimensions of the image as soon
+	 * as its header has been read.
+	 *
+	 * @return the decoded image or <code>null</code> (with the response type
+	 *         set) if it couldn't be decoded.
+	 *
+	 * @throws AdmissionRejectedException
+	 *             if there isn't room for an image of its dimensions.
+	 */
+	public static DecodedImage decode(UploadResponse response, File tempFile,
+			final AdmissionController.Ticket ticket)
+			throws AdmissionRejectedException {
+		DecodedImage decodedImage = null;
+		ImageInputStream imageStream = null;
+
+		try {
+			imageStream = ImageIO.createImageInputStream(tempFile);
+			decodedImage = ImageDecoder.decode(imageStream,
+					SizeProfiles.getEagerTargets(),
+					new ImageDecoder.HeaderListener() {
+						@Override
+						public void headerRead(int width, int height,
+								int subsampling) {
+							try {
+								ticket.update(AdmissionController.estimate(
+										width, height, subsampling));
+							} catch (AdmissionRejectedException e) {
+								throw new UncheckedAdmissionRejectedException(e);
+							}
+						}
+					}, ImageDecoder.source(tempFile));
+		} catch (UncheckedAdmissionRejectedException e) {
+			throw e.getCause();
+		} catch (IOException e) {
+			Logger.error(
+					e,
+					"An exception occurred while trying to load the uploaded file [%s] as a BufferedImage to generate alternative sizes for it.",
+					tempFile.getAbsolutePath());
+		} finally {
+			try {
+				if (imageStream != null)
+					imageStream.close();
+			} catch (Exception e) {
+				// no-op
+			}
+		}
+
+		/*
+		 * SANITY-CHECK, ImageIO quietly returns nothing when none of its
+		 * readers recognize the file (e.g. it isn't really an image).
+		 */
+		if (decodedImage == null || !decodedImage.isDecoded()) {
+			Logger.error("No ImageReader Could Decode the Uploaded File [%s]",
+					tempFile.getAbsolutePath());
+			response.setType(UploadResponse.Type.UNABLE_TO_GENERATE_ALT_SIZES);
+			return null;
+		}
+
+		return decodedImage;
+	}
+
+	/**
+	 * Used to generate the alt sizes of an original that has been written to
+	 * <code>tempFile</code> and decoded into <code>originalImage</code> and
+	 * push everything to the CDN. The decoded image may be subsampled, the
+	 * dimensions reported for the original are always the ones from its
+	 * header.
+	 *
+	 * @param contentKey
+	 *            the DedupeCache key of the original, or <code>null</code> if
+	 *            it wasn't hashed. On success, the response is stored under
+	 *            this key.
+	 *
+	 * @return <code>true</code> if the upload succeeded, otherwise the
+	 *         response type says why it didn't.
+	 */
+	public static boolean process(UploadResponse response, File tempFile,
+			DecodedImage originalImage, String contentKey) {
+		String fileExtension = response.uniqueFileName
+				.substring(response.uniqueFileName.lastIndexOf('.') + 1);
+		List<ResizeResult> altSizes = null;
+		final Map<ResizeResult, Future<String>> altUploads = new ConcurrentHashMap<ResizeResult, Future<String>>();
+
+		// Update the original image meta manually
+		response.original.width = originalImage.width;
+		response.original.height = originalImage.height;
+		response.original.sizeInBytes = tempFile.length();
+
+		Metrics.increment(Metrics.name("upload_bytes_total", "format",
+				fileExtension.toLowerCase()), response.original.sizeInBytes);
+
+		if (!originalImage.isMetadataOnly())
+			Metrics.increment("decoded_pixels_total", StripResizer
+					.getDecodedPixels(originalImage.width,
+							originalImage.height, originalImage.subsampling));
+
+		long elapsedTime = System.nanoTime();
+
+		/*
+		 * FIRST, start uploading the original to CDN; it is already safely on
+		 * disk so there is no reason to wait for the alt sizes.
+		 */
+		Future<String> originalUpload = CdnUploader.uploadAsync(tempFile, true);
+
+		/*
+		 * Now optionally generate every supported image width size that is
+		 * smaller than the original. We don't want to generate any unnecessary
+		 * up-scaled instances of the original.
+		 *
+		 * All the sizes are generated at the same time on the shared
+		 * ResizeExecutor which also caps how many resize operations can run on
+		 * this node at once. Each one starts uploading to the CDN as soon as it
+		 * has been written to disk.
+		 */
+		try {
+			altSizes = ResizeExecutor.resize(originalImage,
+					tempFile.getParentFile(), response.uniqueFileKey,
+					fileExtension, SizeProfiles.getEagerTargets(),
+					new ResizeListener() {
+						@Override
+						public void resized(ResizeResult result) {
+							TempFileIndex.getInstance().track(result.file);
+
+							if (result.error == null)
+								altUploads.put(result, CdnUploader.uploadAsync(
+										result.file, true));
+						}
+					});
+		} catch (InterruptedException e) {
+			Logger.error(
+					e,
+					"Interrupted while waiting for the alt sizes of [%s] to be generated.",
+					tempFile.getAbsolutePath());
+			response.setType(UploadResponse.Type.UNABLE_TO_GENERATE_ALT_SIZES);
+
+			// The cancelled resizes may not have let go of it yet.
+			RasterPool.discard(originalImage.image);
+			return false;
+		}
+
+		/*
+		 * Every size has been written, the original can go back to the pool
+		 * (the streamed sizes went back as they were encoded).
+		 */
+		RasterPool.release(originalImage.image);
+		recordStage("resize", elapsedTime);
+		elapsedTime = System.nanoTime();
+
+		for (ResizeResult result : altSizes) {
+			// Update the response data with the image info
+			UploadResponse.Image imageMeta = getImageMeta(response,
+					result.target);
+
+			if (result.error == null) {
+				imageMeta.width = result.width;
+				imageMeta.height = result.height;
+				imageMeta.sizeInBytes = result.sizeInBytes;
+				imageMeta.encodeTime = result.encodeTime;
+
+				if (result.alternate != null && result.alternate.error == null) {
+					imageMeta.alternate = response.new Image();
+					imageMeta.alternate.format = result.alternate.format;
+					imageMeta.alternate.width = result.alternate.width;
+					imageMeta.alternate.height = result.alternate.height;
+					imageMeta.alternate.sizeInBytes = result.alternate.sizeInBytes;
+					imageMeta.alternate.encodeTime = result.alternate.encodeTime;
+				}
+
+				Logger.info("\tGenerated %s Image: %s", result.target.name,
+						result.file.getAbsolutePath());
+			}
+		}
+
+		// Wait for the original to finish uploading to CDN
+		response.original.url = getUrl(originalUpload);
+
+		if (response.original.url == null) {
+			Logger.error("Unable to upload original image to CDN");
+			response.setType(UploadResponse.Type.UNABLE_TO_UPLOAD_TO_CDN);
+			return false;
+		}
+
+		/*
+		 * NEXT, collect the URLs of all the additional scaled versions. If any
+		 * of these uploads fail, we don't really care because their URL will
+		 * just remain null as it goes back to the client and at least the
+		 * original is safe.
+		 */
+		boolean complete = true;
+
+		for (ResizeResult result : altSizes) {
+			UploadResponse.Image imageMeta = getImageMeta(response,
+					result.target);
+
+			if (result.error == null) {
+				imageMeta.url = getUrl(altUploads.get(result));
+
+				if (imageMeta.alternate != null)
+					imageMeta.alternate.url = getUrl(altUploads
+							.get(result.alternate));
+			}
+
+			if (imageMeta.url == null
+					|| (imageMeta.alternate != null
+							&& imageMeta.alternate.url == null))
+				complete = false;
+		}
+
+		recordStage("cdn", elapsedTime);
+
+		// If we made it this far, then it was a success.
+		response.setType(UploadResponse.Type.SUCCESS);
+
+		/*
+		 * Only a response with every size in place is handed out again, a
+		 * repeat upload of the image gets another go at the missing ones.
+		 */
+		if (complete)
+			DedupeCache.put(contentKey, response);
+		else if (contentKey != null)
+			Logger.info("Incomplete Response Not Cached [uniqueFileKey=%s]",
+					response.uniqueFileKey);
+
+		return true;
+	}
+
+	private static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			int threadCount = Math.max(1, Config.getInt(CONFIG_BATCH_THREADS,
+					Runtime.getRuntime().availableProcessors()));
+
+			executor = Executors.newFixedThreadPool(threadCount,
+					new DaemonThreadFactory("batch"));
+			Logger.info("Batch Upload Executor Started [threads=%s]",
+					threadCount);
+		}
+
+		return executor;
+	}
+
+	private static void setBusy(UploadResponse response,
+			AdmissionRejectedException e) {
+		response.setType(UploadResponse.Type.SERVER_BUSY);
+		response.retryAfter = e.getRetryAfter();
+	}
+
+	private static boolean preflight(UploadResponse response,
+			ImageSniffer.Result result) {
+		UploadResponse.Type rejection = ImageSniffer.check(result);
+
+		if (rejection == null) {
+			if (result.hasDimensions()) {
+				response.original.width = result.width;
+				response.original.height = result.height;
+			}
+
+			return true;
+		}
+
+		Logger.info("Upload Rejected Before Decoding [%s, format=%s, %sx%s]",
+				rejection, (result == null ? null : result.format),
+				(result == null ? -1 : result.width), (result == null ? -1
+						: result.height));
+		Metrics.increment(Metrics.name("preflight_rejections_total", "type",
+				rejection.name()));
+
+		response.setType(rejection);
+		return false;
+	}
+
+	public static void recordStage(String stage, long startTime) {
+		Metrics.recordSince(
+				Metrics.name("upload_stage_seconds", "stage", stage), startTime);
+	}
+
+	/**
+	 * Used to count how an upload ended, by the response code it got
+	 * (whether rendered on success or while bailing out) and the format of
+	 * the upload, and record its total time.
+	 */
+	public static void recordOutcome(UploadResponse response,
+			String endpoint, long startTime) {
+		String format = (response.uniqueFileName == null ? "unknown"
+				: response.uniqueFileName.substring(
+						response.uniqueFileName.lastIndexOf('.') + 1)
+						.toLowerCase());
+		UploadResponse.Type type = UploadResponse.Type.forCode(response.code);
+
+		Metrics.increment(Metrics.name("upload_outcomes_total", "endpoint",
+				endpoint, "format", format, "code", response.code.toString(),
+				"type", (type == null ? "UNKNOWN" : type.name())));
+		Metrics.recordSince(
+				Metrics.name("upload_seconds", "endpoint", endpoint), startTime);
+	}
+
+	/**
+	 * @return the image of <code>target</code> in the response, by the name
+	 *         of its size profile.
+	 */
+	private static UploadResponse.Image getImageMeta(UploadResponse response,
+			ResizeTarget target) {
+		return response.getVariant(target.name.toLowerCase(Locale.ENGLISH));
+	}
+
+	/**
+	 * Used to wait for a CDN upload started with
+	 * {@link CdnUploader#uploadAsync(File, boolean)} to complete.
+	 *
+	 * @return the CDN URL or <code>null</code> if the upload failed.
+	 */
+	private static String getUrl(Future<String> upload) {
+		String url = null;
+
+		if (upload != null) {
+			try {
+				url = upload.get();
+			} catch (InterruptedException e) {
+				Logger.error(e, "Interrupted while waiting on a CDN upload.");
+			} catch (ExecutionException e) {
+				Logger.error(e.getCause(),
+						"An exception occurred while uploading to the CDN.");
+			}
+		}
+
+		return url;
+	}
+}
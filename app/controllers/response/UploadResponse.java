@@ -1,5 +1,8 @@
 package controllers.response;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 public class UploadResponse {
 	public static final int CODE_SUCCESS = 1;
 	public static final int CODE_FAILURE_GENERAL = 2;
@@ -11,6 +14,14 @@ public class UploadResponse {
 	public static final int CODE_FAILURE_CANNOT_CREATE_AWS_CLIENT = 8;
 	public static final int CODE_FAILURE_UNABLE_TO_GENERATE_ALT_SIZES = 9;
 	public static final int CODE_FAILURE_UNABLE_TO_UPLOAD_TO_CDN = 10;
+	public static final int CODE_FAILURE_SERVER_BUSY = 11;
+	public static final int CODE_FAILURE_UNKNOWN_UPLOAD_SESSION = 12;
+	public static final int CODE_FAILURE_INVALID_CHUNK = 13;
+	public static final int CODE_FAILURE_UNRECOGNIZED_IMAGE = 14;
+	public static final int CODE_FAILURE_IMAGE_TOO_LARGE = 15;
+	public static final int CODE_FAILURE_TOO_MANY_PIXELS = 16;
+	public static final int CODE_ACCEPTED = 17;
+	public static final int CODE_FAILURE_UNKNOWN_JOB = 18;
 
 	public static enum Type {
 		SUCCESS(CODE_SUCCESS, "Upload Complete"), GENERAL_FAILURE(
@@ -36,7 +47,28 @@ public class UploadResponse {
 				"Unable to Generate Alternate Sizes (Code: "
 						+ CODE_FAILURE_UNABLE_TO_GENERATE_ALT_SIZES + ")"), UNABLE_TO_UPLOAD_TO_CDN(
 				CODE_FAILURE_UNABLE_TO_UPLOAD_TO_CDN,
-				"Unable to upload hosted images to CDN, that's not good.");
+				"Unable to upload hosted images to CDN, that's not good."), SERVER_BUSY(
+				CODE_FAILURE_SERVER_BUSY,
+				"Server is Busy, Please Try Again Shortly (Code: "
+						+ CODE_FAILURE_SERVER_BUSY + ")"), UNKNOWN_UPLOAD_SESSION(
+				CODE_FAILURE_UNKNOWN_UPLOAD_SESSION,
+				"Upload Expired or Already Complete, Please Start Over (Code: "
+						+ CODE_FAILURE_UNKNOWN_UPLOAD_SESSION + ")"), INVALID_CHUNK(
+				CODE_FAILURE_INVALID_CHUNK,
+				"Upload Chunk Does Not Fit the File (Code: "
+						+ CODE_FAILURE_INVALID_CHUNK + ")"), UNRECOGNIZED_IMAGE(
+				CODE_FAILURE_UNRECOGNIZED_IMAGE,
+				"Uploaded File is Not an Image We Can Read (sorry)"), IMAGE_TOO_LARGE(
+				CODE_FAILURE_IMAGE_TOO_LARGE,
+				"Image Dimensions are Too Large to Process (Code: "
+						+ CODE_FAILURE_IMAGE_TOO_LARGE + ")"), TOO_MANY_PIXELS(
+				CODE_FAILURE_TOO_MANY_PIXELS,
+				"Image Has Too Many Pixels to Process (Code: "
+						+ CODE_FAILURE_TOO_MANY_PIXELS + ")"), ACCEPTED(
+				CODE_ACCEPTED, "Upload Received, Processing"), UNKNOWN_JOB(
+				CODE_FAILURE_UNKNOWN_JOB,
+				"Upload Expired or Never Received (Code: "
+						+ CODE_FAILURE_UNKNOWN_JOB + ")");
 
 		int code;
 		String message;
@@ -45,6 +77,23 @@ public class UploadResponse {
 			this.code = code;
 			this.message = message;
 		}
+
+		public int getCode() {
+			return code;
+		}
+
+		/**
+		 * @return the type with the given code or <code>null</code> if there
+		 *         is none.
+		 */
+		public static Type forCode(int code) {
+			for (Type type : values()) {
+				if (type.code == code)
+					return type;
+			}
+
+			return null;
+		}
 	}
 
 	public Boolean success = Boolean.FALSE;
@@ -52,6 +101,11 @@ public class UploadResponse {
 	public Integer code = Type.GENERAL_FAILURE.code;
 	public String message = Type.GENERAL_FAILURE.message;
 
+	/**
+	 * Seconds to wait before retrying, only set for {@link Type#SERVER_BUSY}.
+	 */
+	public Integer retryAfter;
+
 	public String originalFileName;
 	public String uniqueFileKey;
 	public String uniqueFileName;
@@ -70,6 +124,13 @@ public class UploadResponse {
 	public Image xxlarge = new Image();
 	public Image xxxlarge = new Image();
 
+	/**
+	 * Every size generated, by the (lower case) name of its size profile, see
+	 * <code>imgscalr.sizes</code>. The historical sizes are also set on the
+	 * fields of the same name above, for the clients that read those.
+	 */
+	public Map<String, Image> variants = new LinkedHashMap<String, Image>();
+
 	public UploadResponse() {
 		this(Type.GENERAL_FAILURE);
 	}
@@ -79,7 +140,12 @@ public class UploadResponse {
 	}
 
 	public UploadResponse setType(Type type) {
-		if (type == Type.SUCCESS)
+		/*
+		 * Accepted for processing, the sizes follow once it is done: clients
+		 * must check the code and poll /upload/status until it changes (see
+		 * main.js) instead of rendering the sizes right away.
+		 */
+		if (type == Type.SUCCESS || type == Type.ACCEPTED)
 			success = true;
 
 		this.code = type.code;
@@ -88,10 +154,69 @@ public class UploadResponse {
 		return this;
 	}
 
+	/**
+	 * @return the image of the size named <code>name</code> (lower case) in
+	 *         {@link #variants}, added if there is none yet.
+	 */
+	public Image getVariant(String name) {
+		Image image = variants.get(name);
+
+		if (image == null) {
+			image = getLegacyImage(name);
+
+			if (image == null)
+				image = new Image();
+
+			variants.put(name, image);
+		}
+
+		return image;
+	}
+
+	/**
+	 * @return the field holding the historical size <code>name</code>, or
+	 *         <code>null</code> if it isn't one of those.
+	 */
+	private Image getLegacyImage(String name) {
+		if ("thumbnail".equals(name))
+			return thumbnail;
+		else if ("small".equals(name))
+			return small;
+		else if ("medium".equals(name))
+			return medium;
+		else if ("large".equals(name))
+			return large;
+		else if ("xlarge".equals(name))
+			return xlarge;
+		else if ("xxlarge".equals(name))
+			return xxlarge;
+		else if ("xxxlarge".equals(name))
+			return xxxlarge;
+
+		return null;
+	}
+
 	public class Image {
 		public int width;
 		public int height;
 		public long sizeInBytes;
 		public String url;
+
+		/**
+		 * Time (in ms) spent encoding this size, 0 for the original.
+		 */
+		public long encodeTime;
+
+		/**
+		 * The format (file extension) of this image, only set on alternates.
+		 */
+		public String format;
+
+		/**
+		 * This size in the alternate format (see
+		 * <code>imgscalr.encode.alternate</code>), <code>null</code> unless
+		 * one was generated.
+		 */
+		public Image alternate;
 	}
 }
\ No newline at end of file
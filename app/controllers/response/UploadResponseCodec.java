@@ -0,0 +1,209 @@
+package controllers.response;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import controllers.FileUtils;
+
+/**
+ * Used to persist an {@link UploadResponse} to disk and read it back again as
+ * a flat properties file, e.g. <code>original.url=...</code>.
+ * <p/>
+ * All public, non-static fields of the response and of each of its
+ * {@link UploadResponse.Image}s (and their alternates, e.g.
+ * <code>large.alternate.url=...</code>) are stored, so fields added to either
+ * class later on are picked up without touching this class. The
+ * {@link UploadResponse#variants} are stored by name, e.g.
+ * <code>variants.thumbnail.url=...</code>.
+ */
+public class UploadResponseCodec {
+	private static final String HEADER = "imgscalr UploadResponse";
+
+	public static Properties toProperties(UploadResponse response) {
+		Properties props = new Properties();
+
+		try {
+			for (Field field : UploadResponse.class.getFields()) {
+				if (Modifier.isStatic(field.getModifiers()))
+					continue;
+
+				Object value = field.get(response);
+
+				if (value instanceof UploadResponse.Image)
+					putImage(props, field.getName() + '.',
+							(UploadResponse.Image) value);
+				else if (value instanceof Map)
+					putVariants(props, field.getName() + '.',
+							response.variants);
+				else if (value != null)
+					props.setProperty(field.getName(), value.toString());
+			}
+		} catch (IllegalAccessException e) {
+			// Only public fields are used, this should never happen.
+			throw new RuntimeException(e);
+		}
+
+		return props;
+	}
+
+	public static UploadResponse fromProperties(Properties props) {
+		UploadResponse response = new UploadResponse();
+
+		try {
+			for (Field field : UploadResponse.class.getFields()) {
+				if (Modifier.isStatic(field.getModifiers()))
+					continue;
+
+				if (field.getType() == UploadResponse.Image.class)
+					getImage(props, field.getName() + '.', response,
+							(UploadResponse.Image) field.get(response));
+				else if (field.getType() == Map.class)
+					getVariants(props, field.getName() + '.', response);
+				else
+					setValue(field, response,
+							props.getProperty(field.getName()));
+			}
+		} catch (IllegalAccessException e) {
+			// Only public fields are used, this should never happen.
+			throw new RuntimeException(e);
+		}
+
+		return response;
+	}
+
+	/**
+	 * Used to write <code>response</code> to <code>file</code>. The response
+	 * is written to a temporary file next to it first and then renamed, so a
+	 * reader never sees a partially written file.
+	 */
+	public static void write(UploadResponse response, File file)
+			throws IOException {
+		File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+		OutputStream out = new FileOutputStream(tempFile);
+
+		try {
+			toProperties(response).store(out, HEADER);
+		} finally {
+			out.close();
+		}
+
+		try {
+			FileUtils.replace(tempFile, file);
+		} catch (IOException e) {
+			tempFile.delete();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the response stored in <code>file</code> or <code>null</code>
+	 *         if the file does not exist.
+	 */
+	public static UploadResponse read(File file) throws IOException {
+		if (!file.isFile())
+			return null;
+
+		Properties props = new Properties();
+		InputStream in = new FileInputStream(file);
+
+		try {
+			props.load(in);
+		} finally {
+			in.close();
+		}
+
+		return fromProperties(props);
+	}
+
+	private static void putImage(Properties props, String prefix,
+			UploadResponse.Image image) throws IllegalAccessException {
+		for (Field field : UploadResponse.Image.class.getFields()) {
+			Object value = field.get(image);
+
+			if (value instanceof UploadResponse.Image)
+				putImage(props, prefix + field.getName() + '.',
+						(UploadResponse.Image) value);
+			else if (value != null)
+				props.setProperty(prefix + field.getName(), value.toString());
+		}
+	}
+
+	private static void getImage(Properties props, String prefix,
+			UploadResponse response, UploadResponse.Image image)
+			throws IllegalAccessException {
+		for (Field field : UploadResponse.Image.class.getFields()) {
+			if (field.getType() == UploadResponse.Image.class) {
+				String nestedPrefix = prefix + field.getName() + '.';
+
+				// Nested images are optional, only create those that were stored.
+				if (hasPrefix(props, nestedPrefix)) {
+					UploadResponse.Image nested = response.new Image();
+					getImage(props, nestedPrefix, response, nested);
+					field.set(image, nested);
+				}
+			} else
+				setValue(field, image,
+						props.getProperty(prefix + field.getName()));
+		}
+	}
+
+	private static void putVariants(Properties props, String prefix,
+			Map<String, UploadResponse.Image> variants)
+			throws IllegalAccessException {
+		for (Map.Entry<String, UploadResponse.Image> entry : variants
+				.entrySet())
+			putImage(props, prefix + entry.getKey() + '.', entry.getValue());
+	}
+
+	private static void getVariants(Properties props, String prefix,
+			UploadResponse response) throws IllegalAccessException {
+		Set<String> names = new LinkedHashSet<String>();
+
+		for (String name : props.stringPropertyNames()) {
+			int index = name.indexOf('.', prefix.length());
+
+			if (name.startsWith(prefix) && index > prefix.length())
+				names.add(name.substring(prefix.length(), index));
+		}
+
+		for (String name : names)
+			getImage(props, prefix + name + '.', response,
+					response.getVariant(name));
+	}
+
+	private static boolean hasPrefix(Properties props, String prefix) {
+		for (String name : props.stringPropertyNames()) {
+			if (name.startsWith(prefix))
+				return true;
+		}
+
+		return false;
+	}
+
+	private static void setValue(Field field, Object target, String value)
+			throws IllegalAccessException {
+		if (value == null)
+			return;
+
+		Class<?> type = field.getType();
+
+		if (type == String.class)
+			field.set(target, value);
+		else if (type == int.class || type == Integer.class)
+			field.set(target, Integer.valueOf(value));
+		else if (type == long.class || type == Long.class)
+			field.set(target, Long.valueOf(value));
+		else if (type == boolean.class || type == Boolean.class)
+			field.set(target, Boolean.valueOf(value));
+	}
+}
@@ -0,0 +1,37 @@
+package controllers.response;
+
+/**
+ * The state of a chunked upload, returned by every step before the commit
+ * (which returns a regular {@link UploadResponse}).
+ */
+public class UploadSessionResponse {
+	public Boolean success = Boolean.FALSE;
+
+	public Integer code;
+	public String message;
+
+	public String uniqueFileKey;
+
+	/**
+	 * The size of the whole original in bytes.
+	 */
+	public long size;
+
+	/**
+	 * Every byte before this offset has been received; this is where the
+	 * client should resume from.
+	 */
+	public long offset;
+
+	public UploadSessionResponse(UploadResponse.Type type) {
+		setType(type);
+	}
+
+	public UploadSessionResponse setType(UploadResponse.Type type) {
+		success = (type == UploadResponse.Type.SUCCESS);
+		code = type.code;
+		message = type.message;
+
+		return this;
+	}
+}
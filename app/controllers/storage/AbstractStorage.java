@@ -0,0 +1,33 @@
+package controllers.storage;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import play.Logger;
+
+/**
+ * Base class for {@link Storage} implementations that have no cheaper way to
+ * store a batch of files than one at a time.
+ */
+public abstract class AbstractStorage implements Storage {
+	@Override
+	public List<String> putAll(List<File> files, boolean deleteOnComplete) {
+		List<String> urls = new ArrayList<String>(files.size());
+
+		for (File file : files)
+			urls.add(put(file, deleteOnComplete));
+
+		return urls;
+	}
+
+	/**
+	 * Used to delete a local <code>file</code> once it has been stored.
+	 */
+	protected static void deleteStored(File file) {
+		if (!file.delete()) {
+			Logger.error("Unable to Delete File [%s]", file.getAbsolutePath());
+		} else
+			Logger.info("Deleted Temporary File [%s]", file.getAbsolutePath());
+	}
+}
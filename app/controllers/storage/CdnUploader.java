@@ -0,0 +1,88 @@
+package controllers.storage;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import play.Logger;
+import controllers.Config;
+import controllers.DaemonThreadFactory;
+
+/**
+ * Pushes files to the configured {@link Storage} (normally the CDN) in the
+ * background so an upload can start sending each file as soon as it is
+ * written instead of after every size has been generated.
+ * <p/>
+ * The number of upload threads defaults to
+ * <code>imgscalr.cdn.maxConnections</code>, the size of the S3 client's
+ * connection pool, so no thread ever waits on a connection.
+ */
+public class CdnUploader {
+	public static final String CONFIG_THREADS = "imgscalr.cdn.threads";
+
+	private static ExecutorService executor;
+
+	/**
+	 * Used to start uploading <code>file</code> to the CDN in the background.
+	 * 
+	 * @return a future that returns the CDN URL of the file once the upload
+	 *         completes or <code>null</code> if it failed. If
+	 *         <code>file</code> is <code>null</code>, the future returns
+	 *         <code>null</code> right away.
+	 */
+	public static Future<String> uploadAsync(final File file,
+			final boolean deleteOnComplete) {
+		return getExecutor().submit(new Callable<String>() {
+			@Override
+			public String call() throws Exception {
+				return upload(file, deleteOnComplete);
+			}
+		});
+	}
+
+	/**
+	 * Used to upload <code>file</code> to the CDN on the calling thread.
+	 * 
+	 * @return the CDN URL of the file or <code>null</code> if the upload
+	 *         failed.
+	 */
+	public static String upload(File file, boolean deleteOnComplete) {
+		if (file == null)
+			return null;
+
+		String url = StorageFactory.getStorage().put(file, deleteOnComplete);
+
+		// Gone as planned, no need to keep it around for the cleanup.
+		if (url != null && deleteOnComplete)
+			TempFileIndex.getInstance().untrack(file);
+
+		return url;
+	}
+
+	/**
+	 * Used to stop the upload threads when the application stops (or is
+	 * reloaded in DEV mode).
+	 */
+	public static synchronized void shutdown() {
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	static synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			int threadCount = Math.max(1, Config.getInt(CONFIG_THREADS,
+					S3Storage.getMaxConnections()));
+
+			executor = Executors.newFixedThreadPool(threadCount,
+					new DaemonThreadFactory("cdn"));
+			Logger.info("CDN Upload Executor Started [threads=%s]",
+					threadCount);
+		}
+
+		return executor;
+	}
+}
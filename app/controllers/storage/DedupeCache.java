@@ -0,0 +1,178 @@
+package controllers.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import play.Logger;
+import play.Play;
+import controllers.Config;
+import controllers.response.UploadResponse;
+import controllers.response.UploadResponseCodec;
+
+/**
+ * Content-addressed index of completed uploads, used to answer a repeat
+ * upload of the exact same bytes with the response of the first upload
+ * instead of decoding, resizing and pushing it to the CDN all over again.
+ * <p/>
+ * Entries are keyed on the SHA-256 digest of the decoded upload. Lookups are
+ * served from a size-bounded, in-memory LRU tier
+ * (<code>imgscalr.dedupe.memoryEntries</code>) backed by a directory of small
+ * properties files (<code>imgscalr.dedupe.dir</code>) that survives restarts.
+ * The whole cache can be turned off with
+ * <code>imgscalr.dedupe.enabled=false</code>.
+ */
+public class DedupeCache {
+	public static final String CONFIG_ENABLED = "imgscalr.dedupe.enabled";
+	public static final String CONFIG_MEMORY_ENTRIES = "imgscalr.dedupe.memoryEntries";
+	public static final String CONFIG_DIR = "imgscalr.dedupe.dir";
+
+	public static final String DIGEST_ALGORITHM = "SHA-256";
+	public static final int DEFAULT_MEMORY_ENTRIES = 10000;
+	public static final String DEFAULT_DIR = "data/dedupe";
+
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static Map<String, UploadResponse> memoryCache;
+	private static File dir;
+
+	public static boolean isEnabled() {
+		return Config.getBoolean(CONFIG_ENABLED, true);
+	}
+
+	/**
+	 * @return a new digest to compute the key of an upload with, or
+	 *         <code>null</code> if the cache is disabled.
+	 */
+	public static MessageDigest createDigest() {
+		if (!isEnabled())
+			return null;
+
+		try {
+			return MessageDigest.getInstance(DIGEST_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			// Every JVM is required to support SHA-256.
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @return the hex-encoded value of <code>digest</code>, or
+	 *         <code>null</code> if <code>digest</code> is <code>null</code>.
+	 */
+	public static String toKey(MessageDigest digest) {
+		if (digest == null)
+			return null;
+
+		byte[] hash = digest.digest();
+		char[] key = new char[hash.length * 2];
+
+		for (int i = 0; i < hash.length; i++) {
+			key[i * 2] = HEX[(hash[i] >> 4) & 0x0F];
+			key[i * 2 + 1] = HEX[hash[i] & 0x0F];
+		}
+
+		return new String(key);
+	}
+
+	/**
+	 * @return the response previously stored for <code>key</code> or
+	 *         <code>null</code> if there is none (or the cache is disabled).
+	 */
+	public static UploadResponse get(String key) {
+		if (key == null || !isEnabled())
+			return null;
+
+		UploadResponse response;
+
+		synchronized (DedupeCache.class) {
+			response = getMemoryCache().get(key);
+		}
+
+		if (response == null) {
+			try {
+				response = UploadResponseCodec.read(getFile(key));
+			} catch (Exception e) {
+				Logger.error(e, "Unable to read dedupe index entry for %s",
+						key);
+			}
+
+			// Promote disk hits so the next one is served from memory.
+			if (response != null) {
+				synchronized (DedupeCache.class) {
+					getMemoryCache().put(key, response);
+				}
+			}
+		}
+
+		// Never hand out the cached instance itself, callers modify it.
+		return (response == null ? null : UploadResponseCodec
+				.fromProperties(UploadResponseCodec.toProperties(response)));
+	}
+
+	/**
+	 * Used to store the response of a successful upload under
+	 * <code>key</code>. Failed responses are ignored so a broken upload is
+	 * always retried.
+	 */
+	public static void put(String key, UploadResponse response) {
+		if (key == null || response == null || !response.success
+				|| !isEnabled())
+			return;
+
+		synchronized (DedupeCache.class) {
+			getMemoryCache().put(key, response);
+		}
+
+		File file = getFile(key);
+
+		try {
+			file.getParentFile().mkdirs();
+			UploadResponseCodec.write(response, file);
+		} catch (IOException e) {
+			Logger.error(e, "Unable to write dedupe index entry [%s]",
+					file.getAbsolutePath());
+		}
+	}
+
+	private static synchronized Map<String, UploadResponse> getMemoryCache() {
+		if (memoryCache == null) {
+			final int maxEntries = Math.max(1, Config.getInt(
+					CONFIG_MEMORY_ENTRIES, DEFAULT_MEMORY_ENTRIES));
+
+			memoryCache = new LinkedHashMap<String, UploadResponse>(1024,
+					0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(
+						Map.Entry<String, UploadResponse> eldest) {
+					return size() > maxEntries;
+				}
+			};
+		}
+
+		return memoryCache;
+	}
+
+	/**
+	 * IMPL NOTE: Entries are spread over 256 sub-directories by the first 2
+	 * characters of the key so no single directory gets too large.
+	 */
+	private static File getFile(String key) {
+		synchronized (DedupeCache.class) {
+			if (dir == null) {
+				dir = new File(Config.getString(CONFIG_DIR, DEFAULT_DIR));
+
+				if (!dir.isAbsolute() && Play.applicationPath != null)
+					dir = new File(Play.applicationPath, dir.getPath());
+			}
+		}
+
+		return new File(new File(dir, key.substring(0, 2)), key
+				+ ".properties");
+	}
+}
@@ -0,0 +1,446 @@
+package controllers.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import play.Logger;
+import play.Play;
+import controllers.Config;
+import controllers.Constants;
+import controllers.FileUtils;
+import controllers.response.UploadResponse;
+import controllers.response.UploadResponseCodec;
+
+/**
+ * Keeps the uploads that have been accepted but not processed yet, so they
+ * survive a crash (or restart) of the node.
+ * <p/>
+ * The originals are moved into <code>imgscalr.jobs.dir</code> (relative to
+ * the application dir unless absolute, <code>data/jobs</code> by default) and
+ * every job is recorded in an append-only journal in the same dir, one line
+ * per record:
+ * <ul>
+ * <li><code>ACCEPT</code> once the original is in place, with everything
+ * needed to process it</li>
+ * <li><code>DONE</code> once it has been processed, after its response has
+ * been written next to the journal (<code>&lt;uniqueFileKey&gt;.response</code>)
+ * where it is kept for <code>imgscalr.jobs.ttl</code> seconds to be polled</li>
+ * </ul>
+ * The original is only deleted once the <code>DONE</code> is recorded; it is
+ * processed from a copy (see {@link #checkout(Job, File)}).
+ * Unless <code>imgscalr.jobs.sync=false</code> the original and every record
+ * are forced to disk before the call returns, so an accepted upload survives
+ * losing power as well, not just the process.
+ * <p/>
+ * {@link #recover()} reads the journal back after a restart and returns the
+ * jobs that never got their <code>DONE</code>. A record cut short by a crash
+ * (the last line, without its line break) is ignored; the upload it was for
+ * was never acknowledged. The journal is compacted to the open jobs then, and
+ * emptied whenever the last open job is done, so it never grows beyond the
+ * backlog.
+ */
+public class JobJournal {
+	public static final String CONFIG_DIR = "imgscalr.jobs.dir";
+	public static final String CONFIG_SYNC = "imgscalr.jobs.sync";
+	public static final String CONFIG_TTL = "imgscalr.jobs.ttl";
+
+	public static final String DEFAULT_DIR = "data/jobs";
+	public static final int DEFAULT_TTL = 86400; // seconds
+
+	public static final String JOURNAL_NAME = "journal.log";
+	public static final String RESPONSE_SUFFIX = ".response";
+
+	private static final String ACCEPT = "ACCEPT";
+	private static final String DONE = "DONE";
+	private static final String NONE = "-";
+
+	private static final Pattern KEY_PATTERN = Pattern.compile("[A-Za-z]{"
+			+ Constants.UNIQUE_FILE_KEY_SIZE + "}");
+
+	private final File dir;
+	private final File journalFile;
+	private final boolean sync;
+	private final long ttl;
+
+	/**
+	 * The open jobs by unique file key, in the order they were accepted.
+	 */
+	private final Map<String, Job> jobs = new LinkedHashMap<String, Job>();
+	private FileOutputStream out;
+
+	/**
+	 * @param ttl
+	 *            the time (in ms) the response of a finished job is kept for.
+	 */
+	public JobJournal(File dir, boolean sync, long ttl) {
+		this.dir = dir;
+		this.journalFile = new File(dir, JOURNAL_NAME);
+		this.sync = sync;
+		this.ttl = ttl;
+	}
+
+	/**
+	 * @return a journal in the configured dir; {@link #recover()} still has
+	 *         to be called before it is used.
+	 */
+	public static JobJournal create() {
+		File dir = new File(Config.getString(CONFIG_DIR, DEFAULT_DIR));
+
+		if (!dir.isAbsolute() && Play.applicationPath != null)
+			dir = new File(Play.applicationPath, dir.getPath());
+
+		return new JobJournal(dir, Config.getBoolean(CONFIG_SYNC, true),
+				Config.getInt(CONFIG_TTL, DEFAULT_TTL) * 1000L);
+	}
+
+	public File getDir() {
+		return dir;
+	}
+
+	/**
+	 * Used to read the journal back in and compact it to the jobs that are
+	 * still open. Files in the dir that don't belong to an open job (alt
+	 * sizes of a job that was cut short, an original whose
+	 * <code>ACCEPT</code> never made it) are deleted.
+	 *
+	 * @return the open jobs, in the order they were accepted.
+	 */
+	public synchronized List<Job> recover() throws IOException {
+		closeStream();
+		jobs.clear();
+
+		if (journalFile.isFile())
+			read();
+
+		if (dir.isDirectory()) {
+			String[] names = dir.list();
+
+			for (int i = 0; names != null && i < names.length; i++) {
+				String name = names[i];
+
+				if (!TempFileIndex.isTempFileName(name) || isOriginal(name))
+					continue;
+
+				if (!new File(dir, name).delete())
+					Logger.error("Unable to Delete Orphaned Job File [%s]",
+							name);
+			}
+
+			compact();
+		}
+
+		return new ArrayList<Job>(jobs.values());
+	}
+
+	/**
+	 * Used to accept an upload: moves <code>file</code> (its original) into
+	 * the journal dir and records the job.
+	 *
+	 * @param contentKey
+	 *            the DedupeCache key of the original, may be
+	 *            <code>null</code>.
+	 * @param sourceIP
+	 *            where the upload came from, may be <code>null</code>.
+	 *
+	 * @return the job, its file is where the original is now.
+	 */
+	public synchronized Job append(File file, String uniqueFileKey,
+			String uniqueFileName, String originalFileName,
+			String contentKey, String sourceIP) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+			throw new IOException("Unable to create jobs dir [" + dir + "]");
+
+		Job job = new Job(uniqueFileKey, uniqueFileName, originalFileName,
+				contentKey, sourceIP, System.currentTimeMillis(), new File(dir,
+						uniqueFileName));
+
+		move(file, job.file);
+		write(toRecord(job));
+
+		jobs.put(job.uniqueFileKey, job);
+		return job;
+	}
+
+	/**
+	 * Used to record that <code>job</code> has been processed, successful or
+	 * not. Its response can be read back with {@link #getResponse(String)}
+	 * until it expires.
+	 */
+	public synchronized void complete(Job job, UploadResponse response)
+			throws IOException {
+		UploadResponseCodec.write(response, getResponseFile(job.uniqueFileKey));
+
+		if (jobs.remove(job.uniqueFileKey) == null)
+			return;
+
+		write(DONE + '\t' + job.uniqueFileKey);
+
+		// Only now, it is needed to replay the job up to the DONE.
+		if (job.file.exists() && !job.file.delete())
+			Logger.error("Unable to Delete Original of Job [%s]",
+					job.file.getAbsolutePath());
+
+		// Nothing left to replay, start over.
+		if (jobs.isEmpty())
+			out.getChannel().truncate(0);
+	}
+
+	/**
+	 * Used to copy the original of <code>job</code> to <code>target</code>
+	 * to be processed. The original itself stays in the journal dir until the
+	 * job is {@link #complete(Job, UploadResponse) complete}, whatever
+	 * happens to the copy (the CDN push deletes or moves it), so the job can
+	 * be replayed after a crash at any point before that.
+	 */
+	public void checkout(Job job, File target) throws IOException {
+		FileUtils.copy(job.file, target);
+	}
+
+	/**
+	 * @return the open job of the upload with the given key, or
+	 *         <code>null</code> if it is done (or unknown).
+	 */
+	public synchronized Job get(String uniqueFileKey) {
+		return jobs.get(uniqueFileKey);
+	}
+
+	/**
+	 * @return the response of the finished job of the upload with the given
+	 *         key, or <code>null</code> if there is none (yet).
+	 */
+	public UploadResponse getResponse(String uniqueFileKey) throws IOException {
+		// SANITY-CHECK, the key comes from a URL and names a file.
+		if (uniqueFileKey == null || !KEY_PATTERN.matcher(uniqueFileKey).matches())
+			return null;
+
+		return UploadResponseCodec.read(getResponseFile(uniqueFileKey));
+	}
+
+	/**
+	 * @return the number of open jobs.
+	 */
+	public synchronized int size() {
+		return jobs.size();
+	}
+
+	/**
+	 * Used to delete the responses of jobs that finished before
+	 * <code>now</code> minus the TTL.
+	 *
+	 * @return the number of responses deleted.
+	 */
+	public int expire(long now) {
+		String[] names = dir.list();
+		int count = 0;
+
+		for (int i = 0; names != null && i < names.length; i++) {
+			if (!names[i].endsWith(RESPONSE_SUFFIX))
+				continue;
+
+			File file = new File(dir, names[i]);
+
+			if (now - file.lastModified() > ttl && file.delete())
+				count++;
+		}
+
+		return count;
+	}
+
+	public synchronized void close() {
+		closeStream();
+	}
+
+	private void read() throws IOException {
+		byte[] data = readFully(journalFile);
+		int start = 0;
+
+		for (int i = 0; i < data.length; i++) {
+			if (data[i] != '\n')
+				continue;
+
+			parse(new String(data, start, i - start, "UTF-8"));
+			start = i + 1;
+		}
+
+		if (start < data.length)
+			Logger.warn(
+					"Ignoring Incomplete Job Journal Record [file=%s, bytes=%s]",
+					journalFile.getAbsolutePath(), data.length - start);
+	}
+
+	private void parse(String line) throws UnsupportedEncodingException {
+		String[] fields = line.split("\t");
+
+		if (fields.length == 7 && ACCEPT.equals(fields[0])) {
+			try {
+				Job job = new Job(fields[1], fields[2], orNull(URLDecoder
+						.decode(fields[6], "UTF-8")), orNull(fields[3]),
+						orNull(URLDecoder.decode(fields[4], "UTF-8")), Long
+								.parseLong(fields[5]), new File(dir, fields[2]));
+
+				// Done, but the crash came before its record made it.
+				if (!getResponseFile(job.uniqueFileKey).isFile())
+					jobs.put(job.uniqueFileKey, job);
+
+				return;
+			} catch (IllegalArgumentException e) {
+				// A bad number or escape, fall through to the error below.
+			}
+		} else if (fields.length == 2 && DONE.equals(fields[0])) {
+			jobs.remove(fields[1]);
+			return;
+		}
+
+		Logger.error("Ignoring Invalid Job Journal Record [%s]", line);
+	}
+
+	/**
+	 * Used to rewrite the journal with only the open jobs; the new journal is
+	 * written next to the old one and renamed over it.
+	 */
+	private void compact() throws IOException {
+		File tempFile = new File(dir, JOURNAL_NAME + ".tmp");
+
+		out = new FileOutputStream(tempFile, false);
+
+		for (Job job : jobs.values())
+			write(toRecord(job));
+
+		closeStream();
+
+		FileUtils.replace(tempFile, journalFile);
+
+		out = new FileOutputStream(journalFile, true);
+	}
+
+	private String toRecord(Job job) throws UnsupportedEncodingException {
+		// Both come from the client, they may hold tabs or line breaks.
+		return ACCEPT + '\t' + job.uniqueFileKey + '\t' + job.uniqueFileName
+				+ '\t' + orNone(job.contentKey) + '\t'
+				+ URLEncoder.encode(orNone(job.sourceIP), "UTF-8") + '\t'
+				+ job.acceptedAt + '\t'
+				+ URLEncoder.encode(orNone(job.originalFileName), "UTF-8");
+	}
+
+	private void write(String record) throws IOException {
+		if (out == null)
+			out = new FileOutputStream(journalFile, true);
+
+		// One write per record, a crash can only ever cut off the last one.
+		out.write((record + '\n').getBytes("UTF-8"));
+
+		if (sync)
+			out.getChannel().force(false);
+	}
+
+	private boolean isOriginal(String name) {
+		for (Job job : jobs.values()) {
+			if (job.uniqueFileName.equals(name))
+				return true;
+		}
+
+		return false;
+	}
+
+	private File getResponseFile(String uniqueFileKey) {
+		return new File(dir, uniqueFileKey + RESPONSE_SUFFIX);
+	}
+
+	/**
+	 * Used to move <code>file</code> to <code>target</code>, copying it if
+	 * the two aren't on the same file system, and make sure it is on disk.
+	 */
+	private void move(File file, File target) throws IOException {
+		FileUtils.move(file, target);
+
+		if (sync) {
+			RandomAccessFile raf = new RandomAccessFile(target, "rw");
+
+			try {
+				raf.getChannel().force(true);
+			} finally {
+				raf.close();
+			}
+		}
+	}
+
+	private void closeStream() {
+		if (out == null)
+			return;
+
+		try {
+			out.close();
+		} catch (IOException e) {
+			// no-op
+		}
+
+		out = null;
+	}
+
+	private static byte[] readFully(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		ByteArrayOutputStream data = new ByteArrayOutputStream(
+				(int) file.length());
+		byte[] buffer = new byte[Constants.FILE_BUFFER_SIZE];
+		int count;
+
+		try {
+			while ((count = in.read(buffer)) != -1)
+				data.write(buffer, 0, count);
+		} finally {
+			in.close();
+		}
+
+		return data.toByteArray();
+	}
+
+	private static String orNone(String value) {
+		return (value == null || value.length() == 0 ? NONE : value);
+	}
+
+	private static String orNull(String value) {
+		return (NONE.equals(value) ? null : value);
+	}
+
+	/**
+	 * An accepted upload waiting to be processed.
+	 */
+	public static class Job {
+		public final String uniqueFileKey;
+		public final String uniqueFileName;
+		public final String originalFileName;
+		public final String contentKey;
+		public final String sourceIP;
+		public final long acceptedAt;
+
+		/**
+		 * Where the original is kept until it has been processed.
+		 */
+		public final File file;
+
+		private Job(String uniqueFileKey, String uniqueFileName,
+				String originalFileName, String contentKey, String sourceIP,
+				long acceptedAt, File file) {
+			this.uniqueFileKey = uniqueFileKey;
+			this.uniqueFileName = uniqueFileName;
+			this.originalFileName = originalFileName;
+			this.contentKey = contentKey;
+			this.sourceIP = sourceIP;
+			this.acceptedAt = acceptedAt;
+			this.file = file;
+		}
+	}
+}
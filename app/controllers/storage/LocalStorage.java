@@ -0,0 +1,164 @@
+package controllers.storage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+import play.Logger;
+import play.Play;
+import controllers.Config;
+import controllers.FileUtils;
+
+/**
+ * Stores files in a local (or NFS-mounted) directory, configured with
+ * <code>imgscalr.storage.local.dir</code> (relative to the application dir
+ * unless absolute) and served from <code>imgscalr.storage.local.baseUrl</code>
+ * .
+ * <p/>
+ * A file that is no longer needed once stored is renamed into place, so
+ * even a large original is never copied a second time. Otherwise, or if the
+ * rename fails (e.g. the directory is on another file system), the file is
+ * copied to a temporary file next to its destination and that is renamed
+ * into place. Either way a reader never sees a partially written file.
+ * <p/>
+ * Unless <code>imgscalr.storage.local.sync=false</code>, the contents of every
+ * file are forced to disk before it is renamed into place, so a returned URL
+ * survives a crash of the node.
+ * <p/>
+ * IMPL NOTE: Files are renamed into place with
+ * {@link FileUtils#rename(File, File)}, see there for how atomic that is.
+ */
+public class LocalStorage extends AbstractStorage {
+	public static final String CONFIG_DIR = "imgscalr.storage.local.dir";
+	public static final String CONFIG_BASE_URL = "imgscalr.storage.local.baseUrl";
+	public static final String CONFIG_SYNC = "imgscalr.storage.local.sync";
+
+	public static final String DEFAULT_DIR = "data/storage";
+	public static final String DEFAULT_BASE_URL = "/storage/";
+
+	private File dir;
+	private String baseUrl;
+	private boolean sync;
+
+	public LocalStorage() {
+		this(resolveDir(Config.getString(CONFIG_DIR, DEFAULT_DIR)), Config
+				.getString(CONFIG_BASE_URL, DEFAULT_BASE_URL), Config
+				.getBoolean(CONFIG_SYNC, true));
+	}
+
+	public LocalStorage(File dir, String baseUrl, boolean sync) {
+		this.dir = dir;
+		this.baseUrl = baseUrl;
+		this.sync = sync;
+	}
+
+	public File getDir() {
+		return dir;
+	}
+
+	/**
+	 * @return the file a file stored under <code>name</code> is kept in.
+	 */
+	public File getFile(String name) {
+		return new File(dir, name);
+	}
+
+	@Override
+	public String put(File file, boolean deleteOnComplete) {
+		if (file == null)
+			return null;
+
+		File target = getFile(file.getName());
+
+		try {
+			if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+				throw new IOException("Unable to create storage dir [" + dir
+						+ "]");
+
+			if (sync && deleteOnComplete)
+				force(file);
+
+			if (deleteOnComplete && FileUtils.rename(file, target)) {
+				Logger.info("Local Store Complete [file=%s, moved=true]",
+						target.getAbsolutePath());
+			} else {
+				copy(file, target);
+				Logger.info("Local Store Complete [file=%s, moved=false]",
+						target.getAbsolutePath());
+
+				if (deleteOnComplete)
+					deleteStored(file);
+			}
+
+			return getUrl(target.getName());
+		} catch (IOException e) {
+			Logger.error(
+					e,
+					"An exception occurred while storing [%s] in the local storage dir [%s].",
+					file.getAbsolutePath(), dir.getAbsolutePath());
+		}
+
+		return null;
+	}
+
+	@Override
+	public boolean exists(String name) {
+		return getFile(name).isFile();
+	}
+
+	@Override
+	public InputStream open(String name) throws IOException {
+		File file = getFile(name);
+		return (file.isFile() ? new FileInputStream(file) : null);
+	}
+
+	@Override
+	public boolean delete(String name) {
+		return getFile(name).delete();
+	}
+
+	@Override
+	public String getUrl(String name) {
+		return baseUrl + name;
+	}
+
+	private void copy(File file, File target) throws IOException {
+		File tempFile = new File(dir, target.getName() + ".tmp");
+
+		try {
+			FileUtils.copy(file, tempFile);
+
+			if (sync)
+				force(tempFile);
+
+			FileUtils.replace(tempFile, target);
+		} catch (IOException e) {
+			tempFile.delete();
+			throw e;
+		}
+	}
+
+	/**
+	 * Used to make sure the contents of <code>file</code> are on disk.
+	 */
+	private static void force(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+
+		try {
+			raf.getChannel().force(true);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static File resolveDir(String path) {
+		File dir = new File(path);
+
+		if (!dir.isAbsolute() && Play.applicationPath != null)
+			dir = new File(Play.applicationPath, dir.getPath());
+
+		return dir;
+	}
+}
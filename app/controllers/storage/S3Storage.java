@@ -0,0 +1,204 @@
+package controllers.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import play.Logger;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.PropertiesCredentials;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.CannedAccessControlList;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+
+import controllers.Config;
+import controllers.Constants;
+import controllers.Upload;
+
+/**
+ * Stores files in the S3 bucket behind the CDN, readable by everyone.
+ * <p/>
+ * All instances share a single, lazily created {@link AmazonS3} client whose
+ * HTTP connection pool is sized by <code>imgscalr.cdn.maxConnections</code>.
+ * Setting <code>imgscalr.cdn.endpoint</code> points the client at an
+ * S3-compatible stand-in (e.g. for load testing) and tests can swap in any
+ * {@link AmazonS3} implementation with {@link #setClient(AmazonS3)}.
+ */
+public class S3Storage extends AbstractStorage {
+	public static final String CONFIG_MAX_CONNECTIONS = "imgscalr.cdn.maxConnections";
+	public static final String CONFIG_ENDPOINT = "imgscalr.cdn.endpoint";
+
+	public static final int DEFAULT_MAX_CONNECTIONS = 32;
+
+	private static volatile AmazonS3 client;
+
+	/**
+	 * IMPL NOTE: The public-read ACL is set as part of the put request itself
+	 * instead of with a second <code>setObjectAcl</code> round trip.
+	 */
+	@Override
+	public String put(File file, boolean deleteOnComplete) {
+		String url = null;
+		AmazonS3 s3Client = getClient();
+
+		if (file == null || s3Client == null)
+			return null;
+
+		try {
+			// Upload to S3
+			PutObjectResult uploadResult = s3Client
+					.putObject(new PutObjectRequest(Constants.S3_BUCKET_NAME,
+							file.getName(), file)
+							.withCannedAcl(CannedAccessControlList.PublicRead));
+			String eTag = (uploadResult == null ? null : uploadResult
+					.getETag());
+
+			// Confirm the upload succeeded
+			if (eTag != null && eTag.length() > 1) {
+				url = getUrl(file.getName());
+				Logger.info("CDN Upload Complete [remoteFile=%s]", url);
+			}
+		} catch (Exception e) {
+			Logger.error(e,
+					"An exception occurred while uploading [%s] to the CDN.",
+					file.getAbsolutePath());
+		}
+
+		if (url != null && deleteOnComplete)
+			deleteStored(file);
+
+		return url;
+	}
+
+	@Override
+	public boolean exists(String name) {
+		AmazonS3 s3Client = getClient();
+
+		if (s3Client == null)
+			return false;
+
+		try {
+			return (s3Client.getObjectMetadata(Constants.S3_BUCKET_NAME, name) != null);
+		} catch (AmazonServiceException e) {
+			if (e.getStatusCode() != 404)
+				Logger.error(e,
+						"An exception occurred while looking up [%s] on the CDN.",
+						name);
+		} catch (Exception e) {
+			Logger.error(e,
+					"An exception occurred while looking up [%s] on the CDN.",
+					name);
+		}
+
+		return false;
+	}
+
+	@Override
+	public InputStream open(String name) throws IOException {
+		AmazonS3 s3Client = getClient();
+
+		if (s3Client == null)
+			throw new IOException("No CDN client available to read [" + name
+					+ "]");
+
+		try {
+			return s3Client.getObject(Constants.S3_BUCKET_NAME, name)
+					.getObjectContent();
+		} catch (AmazonServiceException e) {
+			if (e.getStatusCode() == 404)
+				return null;
+
+			throw new IOException("Unable to read [" + name
+					+ "] from the CDN", e);
+		}
+	}
+
+	@Override
+	public boolean delete(String name) {
+		AmazonS3 s3Client = getClient();
+
+		if (s3Client == null)
+			return false;
+
+		try {
+			s3Client.deleteObject(Constants.S3_BUCKET_NAME, name);
+			return true;
+		} catch (Exception e) {
+			Logger.error(e,
+					"An exception occurred while deleting [%s] from the CDN.",
+					name);
+		}
+
+		return false;
+	}
+
+	@Override
+	public String getUrl(String name) {
+		return Constants.S3_BASE_URL + name;
+	}
+
+	/**
+	 * @return the shared client, creating it on first use. Returns
+	 *         <code>null</code> if the client cannot be created; creation is
+	 *         retried on the next call.
+	 */
+	public static AmazonS3 getClient() {
+		AmazonS3 s3Client = client;
+
+		if (s3Client == null) {
+			synchronized (S3Storage.class) {
+				s3Client = client;
+
+				if (s3Client == null)
+					client = s3Client = createClient();
+			}
+		}
+
+		return s3Client;
+	}
+
+	/**
+	 * Used to replace the shared client, e.g. with an in-process fake in
+	 * tests. Passing <code>null</code> makes the next call to
+	 * {@link #getClient()} create a real client again.
+	 */
+	public static void setClient(AmazonS3 s3Client) {
+		synchronized (S3Storage.class) {
+			client = s3Client;
+		}
+	}
+
+	static int getMaxConnections() {
+		return Math.max(1, Config.getInt(CONFIG_MAX_CONNECTIONS,
+				DEFAULT_MAX_CONNECTIONS));
+	}
+
+	private static AmazonS3 createClient() {
+		AmazonS3 s3Client = null;
+
+		try {
+			ClientConfiguration config = new ClientConfiguration();
+			config.setMaxConnections(getMaxConnections());
+
+			s3Client = new AmazonS3Client(new PropertiesCredentials(
+					Upload.class
+							.getResourceAsStream("AwsCredentials.properties")),
+					config);
+
+			String endpoint = Config.getString(CONFIG_ENDPOINT, null);
+
+			if (endpoint != null)
+				((AmazonS3Client) s3Client).setEndpoint(endpoint);
+		} catch (Exception e) {
+			Logger.error(
+					e,
+					"An exception occurred while trying to load AwsCredentials.properties and create an AmazonS3Client instance.");
+		}
+
+		return s3Client;
+	}
+}
@@ -0,0 +1,637 @@
+package controllers.storage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Pattern;
+
+import play.Logger;
+import controllers.Config;
+import controllers.Constants;
+import controllers.FileUtils;
+import controllers.response.UploadResponse;
+import controllers.response.UploadResponseCodec;
+
+/**
+ * A spool of upload jobs in a directory shared by several nodes (an NFS
+ * mount, or just a local dir for several JVMs on one box), so a node that
+ * gets more uploads than it can process has the rest taken off its hands.
+ * <p/>
+ * Every node publishes the jobs of its own uploads to its own queue and
+ * takes from it first; a node with nothing left to do steals from the node
+ * with the longest queue. There is no broker, every hand-over is a rename
+ * within the shared dir, which either happens exactly once or not at all:
+ * <pre>
+ * originals/&lt;uniqueFileName&gt;            the original of every open job
+ * nodes/&lt;node&gt;/pending/&lt;key&gt;.job        published by &lt;node&gt;, not claimed
+ * nodes/&lt;node&gt;/claimed/&lt;key&gt;.job        claimed (leased) by &lt;node&gt;
+ * nodes/&lt;node&gt;/stats                  what &lt;node&gt; has processed so far
+ * responses/&lt;key&gt;.response              the outcome of every finished job
+ * </pre>
+ * A claim is a lease: its file is touched when it is taken and renewed (see
+ * {@link #renew(Job)}) while the job is processed. A claim that hasn't been
+ * renewed for <code>imgscalr.cluster.leaseTimeout</code> seconds (the node
+ * died or hangs) is put back into a queue by whichever node notices first,
+ * see {@link #requeueExpired(long)}. A node that was merely slow may then
+ * process the same job as another; like the {@link JobJournal}, a job is
+ * processed at least once.
+ * <p/>
+ * Nodes are told apart by <code>imgscalr.cluster.nodeId</code>, which
+ * defaults to the host name and HTTP port so it stays the same across
+ * restarts and the node picks up its own queue where it left off.
+ */
+public class SharedSpool {
+	public static final String CONFIG_DIR = "imgscalr.cluster.dir";
+	public static final String CONFIG_NODE_ID = "imgscalr.cluster.nodeId";
+	public static final String CONFIG_LEASE_TIMEOUT = "imgscalr.cluster.leaseTimeout";
+
+	public static final int DEFAULT_LEASE_TIMEOUT = 300; // seconds
+
+	public static final String JOB_SUFFIX = ".job";
+
+	private static final Pattern INVALID_NODE_ID_CHARS = Pattern
+			.compile("[^A-Za-z0-9_-]");
+	private static final Pattern KEY_PATTERN = Pattern.compile("[A-Za-z]{"
+			+ Constants.UNIQUE_FILE_KEY_SIZE + "}");
+
+	private static final Comparator<File> OLDEST_FIRST = new Comparator<File>() {
+		@Override
+		public int compare(File f1, File f2) {
+			long m1 = f1.lastModified();
+			long m2 = f2.lastModified();
+			return (m1 < m2 ? -1 : (m1 == m2 ? f1.getName().compareTo(
+					f2.getName()) : 1));
+		}
+	};
+
+	private final String nodeId;
+	private final long leaseTimeout;
+
+	private final File originalsDir;
+	private final File nodesDir;
+	private final File responsesDir;
+	private final File pendingDir;
+	private final File claimedDir;
+	private final File statsFile;
+
+	private final long startedAt = System.currentTimeMillis();
+	private long processedCount;
+	private long stolenCount;
+	private long failedCount;
+
+	/**
+	 * @param leaseTimeout
+	 *            the time (in ms) after which a claim that wasn't renewed
+	 *            expires.
+	 */
+	public SharedSpool(File dir, String nodeId, long leaseTimeout) {
+		this.nodeId = INVALID_NODE_ID_CHARS.matcher(nodeId).replaceAll("_");
+		this.leaseTimeout = leaseTimeout;
+
+		originalsDir = new File(dir, "originals");
+		nodesDir = new File(dir, "nodes");
+		responsesDir = new File(dir, "responses");
+
+		File nodeDir = new File(nodesDir, this.nodeId);
+		pendingDir = new File(nodeDir, "pending");
+		claimedDir = new File(nodeDir, "claimed");
+		statsFile = new File(nodeDir, "stats");
+	}
+
+	/**
+	 * @return <code>true</code> if a shared dir is configured.
+	 */
+	public static boolean isEnabled() {
+		String dir = Config.getString(CONFIG_DIR, null);
+		return (dir != null && dir.trim().length() > 0);
+	}
+
+	/**
+	 * @return the spool in the configured shared dir, for this node.
+	 */
+	public static SharedSpool create() throws IOException {
+		String nodeId = Config.getString(CONFIG_NODE_ID, null);
+
+		if (nodeId == null || nodeId.trim().length() == 0)
+			nodeId = InetAddress.getLocalHost().getHostName() + '-'
+					+ Config.getString("http.port", "9000");
+
+		SharedSpool spool = new SharedSpool(new File(Config.getString(
+				CONFIG_DIR, null).trim()), nodeId.trim(), Config.getInt(
+				CONFIG_LEASE_TIMEOUT, DEFAULT_LEASE_TIMEOUT) * 1000L);
+		spool.init();
+		return spool;
+	}
+
+	/**
+	 * Used to create the dirs of this node; called by {@link #create()}.
+	 */
+	public void init() throws IOException {
+		mkdirs(originalsDir);
+		mkdirs(responsesDir);
+		mkdirs(pendingDir);
+		mkdirs(claimedDir);
+	}
+
+	public String getNodeId() {
+		return nodeId;
+	}
+
+	/**
+	 * Used to publish an upload to the queue of this node: moves
+	 * <code>file</code> (its original) into the shared dir and records the
+	 * job. The job only shows up in the queue once both are in place.
+	 *
+	 * @param contentKey
+	 *            the DedupeCache key of the original, may be
+	 *            <code>null</code>.
+	 * @param sourceIP
+	 *            where the upload came from, may be <code>null</code>.
+	 */
+	public void publish(File file, String uniqueFileKey,
+			String uniqueFileName, String originalFileName,
+			String contentKey, String sourceIP) throws IOException {
+		File original = new File(originalsDir, uniqueFileName);
+		File tempFile = new File(originalsDir, uniqueFileName + '.' + nodeId
+				+ ".tmp");
+
+		FileUtils.move(file, tempFile);
+		FileUtils.replace(tempFile, original);
+
+		Properties props = new Properties();
+		props.setProperty("uniqueFileKey", uniqueFileKey);
+		props.setProperty("uniqueFileName", uniqueFileName);
+		props.setProperty("acceptedAt",
+				Long.toString(System.currentTimeMillis()));
+		props.setProperty("publishedBy", nodeId);
+
+		if (originalFileName != null)
+			props.setProperty("originalFileName", originalFileName);
+		if (contentKey != null)
+			props.setProperty("contentKey", contentKey);
+		if (sourceIP != null)
+			props.setProperty("sourceIP", sourceIP);
+
+		write(props, new File(pendingDir, uniqueFileKey + JOB_SUFFIX));
+	}
+
+	/**
+	 * Used to claim the oldest job in the queue of this node.
+	 *
+	 * @return the job, or <code>null</code> if the queue is empty.
+	 */
+	public Job claim() {
+		return claim(pendingDir, false);
+	}
+
+	/**
+	 * Used to claim the oldest job in the longest queue of any other node.
+	 *
+	 * @return the job, or <code>null</code> if every other queue is empty.
+	 */
+	public Job steal() {
+		File[] nodeDirs = nodesDir.listFiles();
+		List<File> victims = new ArrayList<File>();
+		final Map<File, Integer> sizes = new LinkedHashMap<File, Integer>();
+
+		for (int i = 0; nodeDirs != null && i < nodeDirs.length; i++) {
+			if (nodeId.equals(nodeDirs[i].getName()))
+				continue;
+
+			File dir = new File(nodeDirs[i], "pending");
+			int size = countJobs(dir);
+
+			if (size > 0) {
+				victims.add(dir);
+				sizes.put(dir, Integer.valueOf(size));
+			}
+		}
+
+		Collections.sort(victims, new Comparator<File>() {
+			@Override
+			public int compare(File d1, File d2) {
+				return sizes.get(d2).compareTo(sizes.get(d1));
+			}
+		});
+
+		// Someone else may empty a queue first, move on to the next one.
+		for (File dir : victims) {
+			Job job = claim(dir, true);
+
+			if (job != null)
+				return job;
+		}
+
+		return null;
+	}
+
+	/**
+	 * Used to renew the lease of a job claimed by this node.
+	 *
+	 * @return <code>false</code> if the lease was lost (it expired and the
+	 *         job was put back into a queue).
+	 */
+	public boolean renew(Job job) {
+		return job.claimFile.setLastModified(System.currentTimeMillis());
+	}
+
+	/**
+	 * Used to give back a job claimed by this node without processing it
+	 * (e.g. the node is too busy); it goes back to the queue of this node,
+	 * where other nodes can steal it.
+	 */
+	public boolean release(Job job) {
+		return job.claimFile.renameTo(new File(pendingDir, job.claimFile
+				.getName()));
+	}
+
+	/**
+	 * Used to record that a job claimed by this node has been processed,
+	 * successful or not, and remove its original from the shared dir.
+	 *
+	 * @return <code>false</code> if the lease was lost in the meantime; the
+	 *         job is left to the node that has it now.
+	 */
+	public boolean complete(Job job, UploadResponse response)
+			throws IOException {
+		if (!renew(job)) {
+			Logger.warn("Lease of Job Lost, Leaving it to its New Owner [%s]",
+					job.uniqueFileKey);
+			return false;
+		}
+
+		UploadResponseCodec.write(response, getResponseFile(job.uniqueFileKey));
+
+		if (job.file.exists() && !job.file.delete())
+			Logger.error("Unable to Delete File [%s]",
+					job.file.getAbsolutePath());
+
+		if (!job.claimFile.delete())
+			Logger.error("Unable to Delete File [%s]",
+					job.claimFile.getAbsolutePath());
+
+		synchronized (this) {
+			processedCount++;
+
+			if (job.stolen)
+				stolenCount++;
+			if (!response.success.booleanValue())
+				failedCount++;
+
+			writeStats();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Used to put every claim (of any node) that hasn't been renewed for
+	 * longer than the lease timeout before <code>now</code> back into the
+	 * queue of this node.
+	 *
+	 * @return the number of jobs put back.
+	 */
+	public int requeueExpired(long now) {
+		File[] nodeDirs = nodesDir.listFiles();
+		int count = 0;
+
+		for (int i = 0; nodeDirs != null && i < nodeDirs.length; i++) {
+			File[] claims = new File(nodeDirs[i], "claimed").listFiles();
+
+			for (int j = 0; claims != null && j < claims.length; j++) {
+				File claim = claims[j];
+
+				if (now - claim.lastModified() <= leaseTimeout)
+					continue;
+
+				// Touched first so it isn't taken as expired again right away.
+				File requeued = new File(pendingDir, claim.getName());
+
+				if (claim.renameTo(requeued)) {
+					requeued.setLastModified(now);
+					Logger.warn(
+							"Lease of Job Expired, Requeued [node=%s, job=%s]",
+							nodeDirs[i].getName(), claim.getName());
+					count++;
+				}
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * @return <code>true</code> if the upload with the given key is waiting
+	 *         in, or claimed from, any queue.
+	 */
+	public boolean isOpen(String uniqueFileKey) {
+		if (uniqueFileKey == null || !KEY_PATTERN.matcher(uniqueFileKey).matches())
+			return false;
+
+		File[] nodeDirs = nodesDir.listFiles();
+		String name = uniqueFileKey + JOB_SUFFIX;
+
+		for (int i = 0; nodeDirs != null && i < nodeDirs.length; i++) {
+			if (new File(nodeDirs[i], "pending/" + name).exists()
+					|| new File(nodeDirs[i], "claimed/" + name).exists())
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * @return the response of the finished job of the upload with the given
+	 *         key, or <code>null</code> if there is none (yet).
+	 */
+	public UploadResponse getResponse(String uniqueFileKey) throws IOException {
+		// SANITY-CHECK, the key comes from a URL and names a file.
+		if (uniqueFileKey == null || !KEY_PATTERN.matcher(uniqueFileKey).matches())
+			return null;
+
+		return UploadResponseCodec.read(getResponseFile(uniqueFileKey));
+	}
+
+	/**
+	 * @return the number of jobs in the queue of this node.
+	 */
+	public int getPendingCount() {
+		return countJobs(pendingDir);
+	}
+
+	/**
+	 * Used to delete the responses of jobs that finished more than
+	 * <code>ttl</code> ms before <code>now</code>, and the originals that
+	 * were left behind by a node that died while publishing them.
+	 *
+	 * @return the number of files deleted.
+	 */
+	public int expire(long now, long ttl) {
+		File[] files = responsesDir.listFiles();
+		int count = 0;
+
+		for (int i = 0; files != null && i < files.length; i++) {
+			if (now - files[i].lastModified() > ttl && files[i].delete())
+				count++;
+		}
+
+		files = originalsDir.listFiles();
+
+		for (int i = 0; files != null && i < files.length; i++) {
+			String name = files[i].getName();
+			int index = name.indexOf('.');
+
+			if (now - files[i].lastModified() > ttl
+					&& !isOpen(index < 0 ? name : name.substring(0, index))
+					&& files[i].delete())
+				count++;
+		}
+
+		return count;
+	}
+
+	/**
+	 * @return what every node that has processed anything reported last, by
+	 *         node id.
+	 */
+	public Map<String, NodeStats> getNodeStats() {
+		File[] nodeDirs = nodesDir.listFiles();
+		Map<String, NodeStats> stats = new LinkedHashMap<String, NodeStats>();
+
+		if (nodeDirs == null)
+			return stats;
+
+		Arrays.sort(nodeDirs);
+
+		for (File nodeDir : nodeDirs) {
+			NodeStats node = new NodeStats();
+			node.nodeId = nodeDir.getName();
+
+			node.pending = countJobs(new File(nodeDir, "pending"));
+			node.claimed = countJobs(new File(nodeDir, "claimed"));
+
+			try {
+				Properties props = read(new File(nodeDir, "stats"));
+
+				if (props != null) {
+					node.processed = Long.parseLong(props.getProperty(
+							"processed", "0"));
+					node.stolen = Long.parseLong(props.getProperty("stolen",
+							"0"));
+					node.failed = Long.parseLong(props.getProperty("failed",
+							"0"));
+					node.startedAt = Long.parseLong(props.getProperty(
+							"startedAt", "0"));
+					node.updatedAt = Long.parseLong(props.getProperty(
+							"updatedAt", "0"));
+
+					long time = node.updatedAt - node.startedAt;
+					node.throughput = (time <= 0 ? 0 : node.processed
+							* 60000d / time);
+				}
+			} catch (Exception e) {
+				Logger.error(e, "Unable to read the stats of node [%s].",
+						node.nodeId);
+			}
+
+			stats.put(node.nodeId, node);
+		}
+
+		return stats;
+	}
+
+	/**
+	 * Used to claim the oldest job in <code>dir</code>; if another node beats
+	 * us to it, the next oldest is tried.
+	 */
+	private Job claim(File dir, boolean stolen) {
+		File[] files = dir.listFiles();
+
+		if (files == null || files.length == 0)
+			return null;
+
+		Arrays.sort(files, OLDEST_FIRST);
+
+		for (File file : files) {
+			if (!file.getName().endsWith(JOB_SUFFIX))
+				continue;
+
+			File claimFile = new File(claimedDir, file.getName());
+
+			if (!file.renameTo(claimFile))
+				continue;
+
+			// The lease starts now; lost already if it was taken as expired.
+			if (!claimFile.setLastModified(System.currentTimeMillis()))
+				continue;
+
+			try {
+				Job job = new Job(read(claimFile), claimFile, stolen);
+
+				// Done before, the lease expired just as it finished.
+				if (getResponseFile(job.uniqueFileKey).isFile()) {
+					claimFile.delete();
+					job.file.delete();
+					continue;
+				}
+
+				return job;
+			} catch (Exception e) {
+				Logger.error(e, "Unable to read job [%s], dropping it.",
+						claimFile.getAbsolutePath());
+				claimFile.delete();
+			}
+		}
+
+		return null;
+	}
+
+	private File getResponseFile(String uniqueFileKey) {
+		return new File(responsesDir, uniqueFileKey
+				+ JobJournal.RESPONSE_SUFFIX);
+	}
+
+	private void writeStats() {
+		Properties props = new Properties();
+		props.setProperty("processed", Long.toString(processedCount));
+		props.setProperty("stolen", Long.toString(stolenCount));
+		props.setProperty("failed", Long.toString(failedCount));
+		props.setProperty("startedAt", Long.toString(startedAt));
+		props.setProperty("updatedAt",
+				Long.toString(System.currentTimeMillis()));
+
+		try {
+			write(props, statsFile);
+		} catch (IOException e) {
+			Logger.error(e, "Unable to write the stats of node [%s].", nodeId);
+		}
+	}
+
+	/**
+	 * Used to write <code>props</code> next to <code>file</code> and rename
+	 * it into place, so other nodes never see half a file.
+	 */
+	private void write(Properties props, File file) throws IOException {
+		File tempFile = new File(file.getParentFile(), '.' + file.getName()
+				+ '.' + nodeId + ".tmp");
+		OutputStream out = new FileOutputStream(tempFile, false);
+
+		try {
+			props.store(out, null);
+		} finally {
+			out.close();
+		}
+
+		FileUtils.replace(tempFile, file);
+	}
+
+	private static Properties read(File file) throws IOException {
+		if (!file.isFile())
+			return null;
+
+		Properties props = new Properties();
+		InputStream in = new FileInputStream(file);
+
+		try {
+			props.load(in);
+		} finally {
+			in.close();
+		}
+
+		return props;
+	}
+
+	/**
+	 * @return the number of jobs in <code>dir</code>, not counting one that
+	 *         is still being written.
+	 */
+	private static int countJobs(File dir) {
+		String[] names = dir.list();
+		int count = 0;
+
+		for (int i = 0; names != null && i < names.length; i++) {
+			if (names[i].endsWith(JOB_SUFFIX))
+				count++;
+		}
+
+		return count;
+	}
+
+	private static void mkdirs(File dir) throws IOException {
+		if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+			throw new IOException("Unable to create dir [" + dir + "]");
+	}
+
+	/**
+	 * An upload job claimed by this node.
+	 */
+	public class Job {
+		public final String uniqueFileKey;
+		public final String uniqueFileName;
+		public final String originalFileName;
+		public final String contentKey;
+		public final String sourceIP;
+		public final long acceptedAt;
+
+		/**
+		 * The node that published it.
+		 */
+		public final String publishedBy;
+
+		/**
+		 * <code>true</code> if it was taken from the queue of another node.
+		 */
+		public final boolean stolen;
+
+		/**
+		 * The original, in the shared dir.
+		 */
+		public final File file;
+
+		private final File claimFile;
+
+		private Job(Properties props, File claimFile, boolean stolen) {
+			this.uniqueFileKey = props.getProperty("uniqueFileKey");
+			this.uniqueFileName = props.getProperty("uniqueFileName");
+			this.originalFileName = props.getProperty("originalFileName");
+			this.contentKey = props.getProperty("contentKey");
+			this.sourceIP = props.getProperty("sourceIP");
+			this.acceptedAt = Long.parseLong(props.getProperty("acceptedAt"));
+			this.publishedBy = props.getProperty("publishedBy");
+			this.stolen = stolen;
+			this.file = new File(originalsDir, uniqueFileName);
+			this.claimFile = claimFile;
+		}
+	}
+
+	/**
+	 * What a node reported about itself, and the size of its queue.
+	 */
+	public static class NodeStats {
+		public String nodeId;
+		public int pending;
+		public int claimed;
+		public long processed;
+		public long stolen;
+		public long failed;
+		public long startedAt;
+		public long updatedAt;
+
+		/**
+		 * Jobs per minute since the node started.
+		 */
+		public double throughput;
+	}
+}
@@ -0,0 +1,66 @@
+package controllers.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * A place the originals and alt sizes are stored and served from, e.g. the S3
+ * bucket behind the CDN or a local (or NFS) directory.
+ * <p/>
+ * Files are stored under their name ({@link File#getName()}), which is
+ * already unique per upload. The configured implementation is returned by
+ * {@link StorageFactory#getStorage()}.
+ * <p/>
+ * Implementations must be safe to call from multiple threads.
+ */
+public interface Storage {
+	/**
+	 * Used to store <code>file</code> under its name, replacing anything
+	 * already stored under that name.
+	 * 
+	 * @param deleteOnComplete
+	 *            if <code>true</code>, <code>file</code> is no longer needed
+	 *            once it is stored; implementations may move it into place
+	 *            instead of copying it. It is left alone if storing fails.
+	 * 
+	 * @return the public URL of the stored file or <code>null</code> if it
+	 *         could not be stored.
+	 */
+	public String put(File file, boolean deleteOnComplete);
+
+	/**
+	 * Used to store several files at once, see
+	 * {@link #put(File, boolean)}.
+	 * 
+	 * @return the URL of each file in the same order as <code>files</code>,
+	 *         with <code>null</code> for every file that could not be stored.
+	 */
+	public List<String> putAll(List<File> files, boolean deleteOnComplete);
+
+	public boolean exists(String name);
+
+	/**
+	 * Used to read back a stored file. The caller must close the stream.
+	 * 
+	 * @return the contents of the file stored under <code>name</code> or
+	 *         <code>null</code> if there is no such file.
+	 * 
+	 * @throws IOException
+	 *             if the file exists but cannot be read.
+	 */
+	public InputStream open(String name) throws IOException;
+
+	/**
+	 * @return <code>true</code> if a file stored under <code>name</code> was
+	 *         deleted.
+	 */
+	public boolean delete(String name);
+
+	/**
+	 * @return the public URL a file stored under <code>name</code> is (or
+	 *         would be) served from.
+	 */
+	public String getUrl(String name);
+}
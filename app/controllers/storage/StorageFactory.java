@@ -0,0 +1,68 @@
+package controllers.storage;
+
+import play.Logger;
+import controllers.Config;
+
+/**
+ * Creates the {@link Storage} selected with <code>imgscalr.storage</code>:
+ * <ul>
+ * <li><code>s3</code> (default) - {@link S3Storage}</li>
+ * <li><code>local</code> - {@link LocalStorage}</li>
+ * <li><code>writeBehind</code> - {@link WriteBehindStorage}, local first and
+ * then S3</li>
+ * </ul>
+ */
+public class StorageFactory {
+	public static final String CONFIG_STORAGE = "imgscalr.storage";
+
+	public static final String STORAGE_S3 = "s3";
+	public static final String STORAGE_LOCAL = "local";
+	public static final String STORAGE_WRITE_BEHIND = "writeBehind";
+
+	private static Storage storage;
+
+	public static synchronized Storage getStorage() {
+		if (storage == null) {
+			String type = Config.getString(CONFIG_STORAGE, STORAGE_S3);
+
+			if (STORAGE_LOCAL.equalsIgnoreCase(type))
+				storage = new LocalStorage();
+			else if (STORAGE_WRITE_BEHIND.equalsIgnoreCase(type))
+				storage = new WriteBehindStorage(new LocalStorage(),
+						new S3Storage());
+			else {
+				if (!STORAGE_S3.equalsIgnoreCase(type))
+					Logger.error(
+							"Unknown %s '%s', falling back to '%s'",
+							CONFIG_STORAGE, type, STORAGE_S3);
+
+				storage = new S3Storage();
+			}
+
+			Logger.info("Storage Created [type=%s]", storage.getClass()
+					.getSimpleName());
+		}
+
+		return storage;
+	}
+
+	/**
+	 * Used to replace the storage, e.g. with a {@link LocalStorage} in a
+	 * temp dir in tests. Passing <code>null</code> makes the next call to
+	 * {@link #getStorage()} create the configured storage again.
+	 */
+	public static synchronized void setStorage(Storage newStorage) {
+		storage = newStorage;
+	}
+
+	/**
+	 * Used to let pending write-behind replications finish when the
+	 * application stops.
+	 */
+	public static synchronized void shutdown() {
+		if (storage instanceof WriteBehindStorage)
+			((WriteBehindStorage) storage).shutdown();
+
+		storage = null;
+	}
+}
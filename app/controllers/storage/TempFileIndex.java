@@ -0,0 +1,266 @@
+package controllers.storage;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import play.Logger;
+import play.Play;
+import controllers.Config;
+import controllers.Constants;
+import controllers.metrics.Metrics;
+
+/**
+ * Keeps track of the temp files an upload creates (the original and its alt
+ * sizes) and deletes whatever is still around once they expire, e.g. because
+ * the CDN upload that would have removed them failed.
+ * <p/>
+ * Tracked files sit in a queue ordered by expiry, so {@link #expire(long, int)}
+ * only ever touches files that are due, no matter how many others are in the
+ * temp dir. {@link #sweep(long, int)} is the fallback for everything the index
+ * doesn't know about: Play's own upload spool files and files left behind
+ * before a restart. It lists the dir once and then works through the names a
+ * limited batch at a time, only looking at files that are named like temp
+ * files.
+ * <p/>
+ * Files expire <code>imgscalr.tmp.ttl</code> seconds after they are tracked
+ * (or, for the sweep, last modified).
+ */
+public class TempFileIndex {
+	public static final String CONFIG_TTL = "imgscalr.tmp.ttl";
+
+	public static final int DEFAULT_TTL = 3600; // seconds
+
+	/**
+	 * Play's HTTP POST upload cache files: a UUID with no extension.
+	 */
+	private static final Pattern PLAY_TEMP_FILE_PATTERN = Pattern
+			.compile("[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
+
+	/**
+	 * Our originals and alt sizes, e.g. <code>AbCdEfGhI-T.jpg</code>, and
+	 * the files of chunked uploads still in progress (
+	 * <code>AbCdEfGhI.jpg.part</code>).
+	 */
+	private static final Pattern UPLOAD_TEMP_FILE_PATTERN = Pattern.compile(
+			"[A-Za-z]{" + Constants.UNIQUE_FILE_KEY_SIZE
+					+ "}(-[A-Z]+)?\\.(jpg|jpeg|png|gif|bmp)(\\.part)?",
+			Pattern.CASE_INSENSITIVE);
+
+	private static TempFileIndex instance;
+
+	private final File dir;
+	private final long ttl;
+
+	private final PriorityQueue<Entry> queue = new PriorityQueue<Entry>();
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+	/**
+	 * Guards the sweep state, separately from the index so a sweep never
+	 * holds up {@link #track(File)} calls on the request threads.
+	 */
+	private final Object sweepLock = new Object();
+	private String[] sweepNames;
+	private int sweepIndex;
+
+	private final AtomicLong reclaimedBytes = new AtomicLong();
+	private final AtomicLong reclaimedFiles = new AtomicLong();
+
+	/**
+	 * @param ttl
+	 *            the time (in ms) a file is kept for.
+	 */
+	public TempFileIndex(File dir, long ttl) {
+		this.dir = dir;
+		this.ttl = ttl;
+	}
+
+	/**
+	 * @return the index of {@link Play#tmpDir}, created on first use.
+	 */
+	public static synchronized TempFileIndex getInstance() {
+		if (instance == null)
+			instance = new TempFileIndex(Play.tmpDir, Config.getInt(
+					CONFIG_TTL, DEFAULT_TTL) * 1000L);
+
+		return instance;
+	}
+
+	/**
+	 * @return <code>true</code> if <code>name</code> looks like one of Play's
+	 *         upload spool files or one of our own temp files.
+	 */
+	public static boolean isTempFileName(String name) {
+		return (name != null && (PLAY_TEMP_FILE_PATTERN.matcher(name)
+				.matches() || UPLOAD_TEMP_FILE_PATTERN.matcher(name).matches()));
+	}
+
+	/**
+	 * Used to schedule <code>file</code> for deletion once it expires, unless
+	 * it is gone by then. Tracking a file again pushes its expiry back.
+	 */
+	public synchronized void track(File file) {
+		if (file == null)
+			return;
+
+		Entry entry = new Entry(file, System.currentTimeMillis() + ttl);
+		entries.put(file.getPath(), entry);
+		queue.add(entry);
+	}
+
+	/**
+	 * Used to drop <code>file</code> from the index, e.g. once it was
+	 * deleted as planned.
+	 */
+	public synchronized void untrack(File file) {
+		// The queue entry is skipped once it comes up.
+		if (file != null)
+			entries.remove(file.getPath());
+	}
+
+	/**
+	 * @return the number of tracked files.
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public long getReclaimedBytes() {
+		return reclaimedBytes.get();
+	}
+
+	public long getReclaimedFiles() {
+		return reclaimedFiles.get();
+	}
+
+	/**
+	 * Used to delete up to <code>maxFiles</code> tracked files that expired
+	 * before <code>now</code>.
+	 *
+	 * @return the number of bytes reclaimed.
+	 */
+	public long expire(long now, int maxFiles) {
+		long bytes = 0;
+
+		// Stale entries are cheap to skip, only files count against the limit.
+		for (int i = 0; i < maxFiles; i++) {
+			Entry entry;
+
+			synchronized (this) {
+				entry = queue.peek();
+
+				if (entry == null || entry.expiresAt > now)
+					break;
+
+				queue.poll();
+
+				// Untracked, or tracked again with a later expiry.
+				if (entries.get(entry.file.getPath()) != entry) {
+					i--;
+					continue;
+				}
+
+				entries.remove(entry.file.getPath());
+			}
+
+			bytes += delete(entry.file, "index");
+		}
+
+		return bytes;
+	}
+
+	/**
+	 * Used to look at the next <code>maxFiles</code> temp files in the dir,
+	 * deleting those last modified more than the TTL before <code>now</code>.
+	 * The dir is listed again once every name from the previous listing has
+	 * been looked at.
+	 *
+	 * @return the number of bytes reclaimed.
+	 */
+	public long sweep(long now, int maxFiles) {
+		synchronized (sweepLock) {
+			if (sweepNames == null) {
+				// Only names, nothing is stat'ed until it looks like a temp file.
+				sweepNames = dir.list();
+				sweepIndex = 0;
+
+				if (sweepNames == null)
+					return 0;
+			}
+
+			long bytes = 0;
+
+			for (int checked = 0; checked < maxFiles
+					&& sweepIndex < sweepNames.length; sweepIndex++) {
+				String name = sweepNames[sweepIndex];
+
+				if (!isTempFileName(name))
+					continue;
+
+				checked++;
+				File file = new File(dir, name);
+
+				if (file.isFile() && now - file.lastModified() > ttl) {
+					untrack(file);
+					bytes += delete(file, "sweep");
+				}
+			}
+
+			if (sweepIndex >= sweepNames.length)
+				sweepNames = null;
+
+			return bytes;
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if a sweep is part way through the dir.
+	 */
+	public boolean isSweeping() {
+		synchronized (sweepLock) {
+			return (sweepNames != null);
+		}
+	}
+
+	private long delete(File file, String source) {
+		long length = file.length();
+
+		// Already gone, most likely deleted after its CDN upload.
+		if (length == 0 && !file.exists())
+			return 0;
+
+		if (!file.delete()) {
+			Logger.error("Unable to Erase Temp File [%s]",
+					file.getAbsolutePath());
+			return 0;
+		}
+
+		reclaimedBytes.addAndGet(length);
+		reclaimedFiles.incrementAndGet();
+		Metrics.increment(
+				Metrics.name("tmp_reclaimed_bytes_total", "source", source),
+				length);
+		Metrics.increment(Metrics.name("tmp_reclaimed_files_total", "source",
+				source));
+		return length;
+	}
+
+	private static class Entry implements Comparable<Entry> {
+		private final File file;
+		private final long expiresAt;
+
+		private Entry(File file, long expiresAt) {
+			this.file = file;
+			this.expiresAt = expiresAt;
+		}
+
+		@Override
+		public int compareTo(Entry other) {
+			return (expiresAt < other.expiresAt ? -1
+					: (expiresAt == other.expiresAt ? 0 : 1));
+		}
+	}
+}
@@ -0,0 +1,315 @@
+package controllers.storage;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import play.Logger;
+import play.Play;
+import controllers.Config;
+import controllers.Constants;
+import controllers.metrics.Metrics;
+
+/**
+ * Keeps the open sessions of chunked uploads, which let a client send a large
+ * original in pieces and pick up where it left off after a dropped
+ * connection.
+ * <p/>
+ * Each session writes into a file of the full size of the original, created
+ * up front and named after the upload's unique file key with a
+ * <code>.part</code> suffix. Chunks are written at their offset with
+ * positional {@link FileChannel} writes, so they can arrive in any order (or
+ * more than once); the session keeps the byte ranges it has received. Once
+ * every byte is in, {@link #commit(Session)} renames the file to the name a
+ * regular upload would have and hands it over.
+ * <p/>
+ * A session that receives nothing for <code>imgscalr.tmp.ttl</code> seconds
+ * expires with the rest of the temp files, see {@link #expire(long)}.
+ */
+public class UploadSessionStore {
+	public static final String CONFIG_MAX_SIZE = "imgscalr.chunked.maxSize";
+
+	public static final long DEFAULT_MAX_SIZE = 536870912; // 512MB
+
+	public static final String PART_SUFFIX = ".part";
+
+	private static UploadSessionStore instance;
+
+	private final File dir;
+	private final long ttl;
+
+	private final ConcurrentMap<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+
+	/**
+	 * @param ttl
+	 *            the time (in ms) a session is kept for after its last chunk.
+	 */
+	public UploadSessionStore(File dir, long ttl) {
+		this.dir = dir;
+		this.ttl = ttl;
+	}
+
+	/**
+	 * @return the store of {@link Play#tmpDir}, created on first use.
+	 */
+	public static synchronized UploadSessionStore getInstance() {
+		if (instance == null)
+			instance = new UploadSessionStore(Play.tmpDir, Config.getInt(
+					TempFileIndex.CONFIG_TTL, TempFileIndex.DEFAULT_TTL) * 1000L);
+
+		return instance;
+	}
+
+	/**
+	 * @return the largest original (in bytes) a session may be opened for.
+	 */
+	public static long getMaxSize() {
+		return Config.getLong(CONFIG_MAX_SIZE, DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * Used to open a session for an original of <code>size</code> bytes,
+	 * creating its file at full size.
+	 *
+	 * @param uniqueFileName
+	 *            the name the file gets once it is committed.
+	 */
+	public Session create(String uniqueFileKey, String uniqueFileName,
+			String originalFileName, long size) throws IOException {
+		Session session = new Session(uniqueFileKey, uniqueFileName,
+				originalFileName, size, new File(dir, uniqueFileName
+						+ PART_SUFFIX));
+		RandomAccessFile file = new RandomAccessFile(session.file, "rw");
+
+		try {
+			file.setLength(size);
+		} finally {
+			file.close();
+		}
+
+		sessions.put(uniqueFileKey, session);
+		Metrics.increment("chunked_sessions_total");
+		return session;
+	}
+
+	/**
+	 * @return the open session of the upload with the given key, or
+	 *         <code>null</code> if there is none (e.g. it expired).
+	 */
+	public Session get(String uniqueFileKey) {
+		return (uniqueFileKey == null ? null : sessions.get(uniqueFileKey));
+	}
+
+	/**
+	 * @return the number of open sessions.
+	 */
+	public int size() {
+		return sessions.size();
+	}
+
+	/**
+	 * Used to close a session that has received every byte and move its file
+	 * to its final name.
+	 *
+	 * @return the committed file, or <code>null</code> if the session isn't
+	 *         complete or was committed already.
+	 */
+	public File commit(Session session) throws IOException {
+		synchronized (session) {
+			if (!session.isComplete()
+					|| !sessions.remove(session.uniqueFileKey, session))
+				return null;
+		}
+
+		File file = new File(dir, session.uniqueFileName);
+
+		if (!session.file.renameTo(file)) {
+			sessions.put(session.uniqueFileKey, session);
+			throw new IOException("Unable to rename ["
+					+ session.file.getAbsolutePath() + "] to ["
+					+ file.getAbsolutePath() + "]");
+		}
+
+		return file;
+	}
+
+	/**
+	 * Used to re-open a committed session whose file couldn't be processed
+	 * right now (e.g. the server was busy), so the client can commit it again
+	 * without sending it all over.
+	 */
+	public void restore(Session session, File file) {
+		if (!file.renameTo(session.file)) {
+			Logger.error("Unable to Restore Upload Session [%s]",
+					file.getAbsolutePath());
+			return;
+		}
+
+		session.touch();
+		sessions.put(session.uniqueFileKey, session);
+	}
+
+	/**
+	 * Used to close every session that hasn't received anything since
+	 * <code>now</code> minus the TTL, deleting its file.
+	 *
+	 * @return the number of sessions that expired.
+	 */
+	public int expire(long now) {
+		int count = 0;
+
+		for (Iterator<Session> i = sessions.values().iterator(); i.hasNext();) {
+			Session session = i.next();
+
+			if (now - session.lastActivity <= ttl)
+				continue;
+
+			i.remove();
+			count++;
+
+			if (!session.file.delete() && session.file.exists())
+				Logger.error("Unable to Erase Expired Upload [%s]",
+						session.file.getAbsolutePath());
+		}
+
+		if (count > 0)
+			Metrics.increment("chunked_sessions_expired_total", count);
+
+		return count;
+	}
+
+	public static class Session {
+		public final String uniqueFileKey;
+		public final String uniqueFileName;
+		public final String originalFileName;
+		public final long size;
+
+		private final File file;
+
+		/**
+		 * The ranges received so far, start offset to end offset (exclusive),
+		 * merged whenever they touch.
+		 */
+		private final TreeMap<Long, Long> ranges = new TreeMap<Long, Long>();
+		private volatile long lastActivity = System.currentTimeMillis();
+
+		private Session(String uniqueFileKey, String uniqueFileName,
+				String originalFileName, long size, File file) {
+			this.uniqueFileKey = uniqueFileKey;
+			this.uniqueFileName = uniqueFileName;
+			this.originalFileName = originalFileName;
+			this.size = size;
+			this.file = file;
+		}
+
+		/**
+		 * Used to write everything left in <code>in</code> to the file,
+		 * starting at <code>offset</code>.
+		 * <p/>
+		 * IMPL NOTE: When <code>in</code> is a file channel (Play spools large
+		 * request bodies to disk) the OS copies the chunk without it ever
+		 * passing through our heap.
+		 *
+		 * @return the number of bytes written.
+		 *
+		 * @throws IllegalArgumentException
+		 *             if the chunk doesn't fit in the file. Nothing is
+		 *             acknowledged then.
+		 */
+		public long write(long offset, ReadableByteChannel in)
+				throws IOException, IllegalArgumentException {
+			if (offset < 0 || offset > size)
+				throw new IllegalArgumentException("Offset " + offset
+						+ " is outside of the file [size=" + size + "]");
+
+			// Committed or expired in the meantime, don't create it again.
+			if (!file.isFile())
+				throw new FileNotFoundException(file.getAbsolutePath());
+
+			touch();
+
+			long position = offset;
+			RandomAccessFile out = new RandomAccessFile(file, "rw");
+
+			try {
+				FileChannel channel = out.getChannel();
+				long transferred;
+
+				/*
+				 * The in channel is blocking, so transferFrom only comes back
+				 * with 0 bytes once it has hit the end of the chunk (or of the
+				 * file).
+				 */
+				while (position < size
+						&& (transferred = channel.transferFrom(in, position,
+								Math.min(Constants.TRANSFER_CHUNK_SIZE, size
+										- position))) > 0)
+					position += transferred;
+			} finally {
+				out.close();
+			}
+
+			// SANITY-CHECK, a chunk running past the end means a confused client.
+			if (position == size && in.read(ByteBuffer.allocate(1)) > 0)
+				throw new IllegalArgumentException("Chunk at offset " + offset
+						+ " runs past the end of the file [size=" + size + "]");
+
+			synchronized (this) {
+				addRange(offset, position);
+			}
+
+			touch();
+			Metrics.increment("chunked_bytes_total", position - offset);
+			return position - offset;
+		}
+
+		/**
+		 * @return the offset up to which every byte has been received.
+		 */
+		public synchronized long getOffset() {
+			Long end = ranges.get(Long.valueOf(0));
+			return (end == null ? 0 : end.longValue());
+		}
+
+		public boolean isComplete() {
+			return getOffset() == size;
+		}
+
+		private void addRange(long start, long end) {
+			if (start == end)
+				return;
+
+			// Merge with the range it starts in or right after, if any.
+			Map.Entry<Long, Long> before = ranges.floorEntry(start);
+
+			if (before != null && before.getValue().longValue() >= start) {
+				start = before.getKey().longValue();
+				end = Math.max(end, before.getValue().longValue());
+			}
+
+			// ...and every range it reaches into.
+			Map.Entry<Long, Long> after;
+
+			while ((after = ranges.ceilingEntry(start)) != null
+					&& after.getKey().longValue() <= end) {
+				end = Math.max(end, after.getValue().longValue());
+				ranges.remove(after.getKey());
+			}
+
+			ranges.put(Long.valueOf(start), Long.valueOf(end));
+		}
+
+		private void touch() {
+			lastActivity = System.currentTimeMillis();
+		}
+	}
+}
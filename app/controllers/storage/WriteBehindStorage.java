@@ -0,0 +1,182 @@
+package controllers.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import play.Logger;
+import controllers.Config;
+import controllers.DaemonThreadFactory;
+
+/**
+ * Stores files in a {@link LocalStorage} and returns their local URLs as soon
+ * as the local write is durable, replicating them to a remote
+ * {@link Storage} (normally S3) in the background.
+ * <p/>
+ * Replication runs on <code>imgscalr.storage.writeBehind.threads</code>
+ * threads and each file is tried up to
+ * <code>imgscalr.storage.writeBehind.attempts</code> times. The local copy is
+ * always kept, it is what the returned URL points at.
+ */
+public class WriteBehindStorage implements Storage {
+	public static final String CONFIG_THREADS = "imgscalr.storage.writeBehind.threads";
+	public static final String CONFIG_ATTEMPTS = "imgscalr.storage.writeBehind.attempts";
+
+	public static final int DEFAULT_THREADS = 4;
+	public static final int DEFAULT_ATTEMPTS = 3;
+
+	/**
+	 * How long {@link #shutdown()} waits for pending replications.
+	 */
+	public static final long SHUTDOWN_TIMEOUT = 30000;
+
+	private LocalStorage local;
+	private Storage remote;
+	private ExecutorService executor;
+
+	private final AtomicInteger pendingCount = new AtomicInteger();
+	private final AtomicLong failedCount = new AtomicLong();
+
+	public WriteBehindStorage(LocalStorage local, Storage remote) {
+		this.local = local;
+		this.remote = remote;
+
+		int threadCount = Math.max(1, Config.getInt(CONFIG_THREADS,
+				DEFAULT_THREADS));
+		executor = Executors.newFixedThreadPool(threadCount,
+				new DaemonThreadFactory("replicate"));
+	}
+
+	@Override
+	public String put(File file, boolean deleteOnComplete) {
+		String url = local.put(file, deleteOnComplete);
+
+		if (url != null) {
+			List<File> stored = new ArrayList<File>(1);
+			stored.add(local.getFile(file.getName()));
+			replicate(stored);
+		}
+
+		return url;
+	}
+
+	@Override
+	public List<String> putAll(List<File> files, boolean deleteOnComplete) {
+		List<String> urls = local.putAll(files, deleteOnComplete);
+		List<File> stored = new ArrayList<File>(files.size());
+
+		for (int i = 0; i < urls.size(); i++) {
+			if (urls.get(i) != null)
+				stored.add(local.getFile(files.get(i).getName()));
+		}
+
+		// The whole batch is handed to the remote storage in one go.
+		if (!stored.isEmpty())
+			replicate(stored);
+
+		return urls;
+	}
+
+	@Override
+	public boolean exists(String name) {
+		return (local.exists(name) || remote.exists(name));
+	}
+
+	/**
+	 * IMPL NOTE: Files that are no longer in the local dir (e.g. cleaned up
+	 * after replication) are read from the remote storage.
+	 */
+	@Override
+	public InputStream open(String name) throws IOException {
+		InputStream in = local.open(name);
+		return (in == null ? remote.open(name) : in);
+	}
+
+	@Override
+	public boolean delete(String name) {
+		boolean deleted = local.delete(name);
+		return (remote.delete(name) || deleted);
+	}
+
+	@Override
+	public String getUrl(String name) {
+		return local.getUrl(name);
+	}
+
+	/**
+	 * @return the number of files waiting to be (or being) replicated.
+	 */
+	public int getPendingCount() {
+		return pendingCount.get();
+	}
+
+	/**
+	 * @return the number of files that could not be replicated.
+	 */
+	public long getFailedCount() {
+		return failedCount.get();
+	}
+
+	/**
+	 * Used to stop accepting replications and give the pending ones a chance
+	 * to finish.
+	 */
+	public void shutdown() {
+		executor.shutdown();
+
+		try {
+			if (!executor.awaitTermination(SHUTDOWN_TIMEOUT,
+					TimeUnit.MILLISECONDS))
+				Logger.error(
+						"Write-behind replication did not finish in time [pending=%s]",
+						pendingCount.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		executor.shutdownNow();
+	}
+
+	private void replicate(final List<File> files) {
+		pendingCount.addAndGet(files.size());
+
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				List<File> remaining = files;
+				int attempts = Math.max(1, Config.getInt(CONFIG_ATTEMPTS,
+						DEFAULT_ATTEMPTS));
+
+				for (int i = 0; i < attempts && !remaining.isEmpty(); i++) {
+					List<String> urls = remote.putAll(remaining, false);
+					List<File> failed = new ArrayList<File>();
+
+					for (int j = 0; j < urls.size(); j++) {
+						if (urls.get(j) == null)
+							failed.add(remaining.get(j));
+					}
+
+					pendingCount.addAndGet(failed.size() - remaining.size());
+					remaining = failed;
+				}
+
+				if (!remaining.isEmpty()) {
+					pendingCount.addAndGet(-remaining.size());
+					failedCount.addAndGet(remaining.size());
+
+					for (File file : remaining)
+						Logger.error(
+								"Unable to Replicate File [%s] after %s attempts",
+								file.getAbsolutePath(), attempts);
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,22 @@
+package jobs;
+
+import play.jobs.Every;
+import play.jobs.Job;
+import controllers.processing.ClusterScheduler;
+
+/**
+ * Renews the leases of the shared jobs this node is processing and requeues
+ * the ones of nodes that stopped renewing theirs (see
+ * {@link ClusterScheduler}). Runs far more often than a lease lasts
+ * (<code>imgscalr.cluster.leaseTimeout</code>, 5 minutes by default), a
+ * lease must outlive at least a few missed runs.
+ */
+@Every("30s")
+@SuppressWarnings("rawtypes")
+public class ClusterLeaseJob extends Job {
+	@Override
+	public void doJob() throws Exception {
+		super.doJob();
+		ClusterScheduler.heartbeat();
+	}
+}
@@ -0,0 +1,21 @@
+package jobs;
+
+import play.jobs.Job;
+import play.jobs.OnApplicationStart;
+import controllers.processing.JobQueue;
+
+/**
+ * Picks up the uploads that were accepted but not processed yet when the
+ * application last stopped (or crashed), see {@link JobQueue}.
+ */
+@OnApplicationStart
+@SuppressWarnings("rawtypes")
+public class JobReplayJob extends Job {
+	@Override
+	public void doJob() throws Exception {
+		super.doJob();
+
+		if (JobQueue.isAsync())
+			JobQueue.replay();
+	}
+}
@@ -0,0 +1,76 @@
+package jobs;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import play.Logger;
+import play.Play;
+import play.jobs.Every;
+import play.jobs.Job;
+import controllers.Config;
+import controllers.metrics.Metrics;
+
+/**
+ * Periodically writes a snapshot of all the metrics out, for offline runs
+ * (e.g. load tests) where nothing scrapes <code>/metrics</code>.
+ * <p/>
+ * Off unless <code>imgscalr.metrics.dump=true</code>. Snapshots are appended
+ * to <code>imgscalr.metrics.dumpFile</code> (relative to the application dir
+ * unless absolute) or logged if no file is set. A last snapshot is written
+ * when the application stops.
+ */
+@Every("1min")
+@SuppressWarnings("rawtypes")
+public class MetricsDumpJob extends Job {
+	public static final String CONFIG_DUMP = "imgscalr.metrics.dump";
+	public static final String CONFIG_DUMP_FILE = "imgscalr.metrics.dumpFile";
+
+	@Override
+	public void doJob() throws Exception {
+		super.doJob();
+		dump();
+	}
+
+	public static synchronized void dump() {
+		if (!Config.getBoolean(CONFIG_DUMP, false))
+			return;
+
+		String snapshot = "# "
+				+ new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ")
+						.format(new Date()) + '\n' + Metrics.toText();
+		String path = Config.getString(CONFIG_DUMP_FILE, null);
+
+		if (path == null) {
+			Logger.info("Metrics Snapshot\n%s", snapshot);
+			return;
+		}
+
+		File file = new File(path);
+
+		if (!file.isAbsolute() && Play.applicationPath != null)
+			file = new File(Play.applicationPath, path);
+
+		try {
+			if (file.getParentFile() != null)
+				file.getParentFile().mkdirs();
+
+			Writer out = new OutputStreamWriter(new FileOutputStream(file,
+					true), "UTF-8");
+
+			try {
+				out.write(snapshot);
+				out.write('\n');
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			Logger.error(e, "Unable to write metrics snapshot to [%s]",
+					file.getAbsolutePath());
+		}
+	}
+}
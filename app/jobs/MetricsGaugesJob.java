@@ -0,0 +1,194 @@
+package jobs;
+
+import notifiers.UploadNotifier;
+import play.jobs.Job;
+import play.jobs.OnApplicationStart;
+import controllers.Constants;
+import controllers.metrics.Metrics;
+import controllers.processing.AdmissionController;
+import controllers.processing.BufferPool;
+import controllers.processing.JobQueue;
+import controllers.processing.OnDemandResizer;
+import controllers.processing.RasterPool;
+import controllers.storage.Storage;
+import controllers.storage.StorageFactory;
+import controllers.storage.TempFileIndex;
+import controllers.storage.UploadSessionStore;
+import controllers.storage.WriteBehindStorage;
+
+/**
+ * Registers the gauges that are read from the rest of the application when
+ * the metrics are reported.
+ */
+@OnApplicationStart
+@SuppressWarnings("rawtypes")
+public class MetricsGaugesJob extends Job {
+	@Override
+	public void doJob() throws Exception {
+		super.doJob();
+
+		Metrics.register("jvm_heap_used_bytes", new Metrics.Gauge() {
+			@Override
+			public long getValue() {
+				Runtime runtime = Runtime.getRuntime();
+				return runtime.totalMemory() - runtime.freeMemory();
+			}
+		});
+		Metrics.register("jvm_heap_max_bytes", new Metrics.Gauge() {
+			@Override
+			public long getValue() {
+				return Runtime.getRuntime().maxMemory();
+			}
+		});
+
+		Metrics.register("admission_in_flight", new Metrics.Gauge() {
+			@Override
+			public long getValue() {
+				return AdmissionController.getInFlight();
+			}
+		});
+		Metrics.register("admission_heap_reserved_bytes", new Metrics.Gauge() {
+			@Override
+			public long getValue() {
+				return AdmissionController.getHeapInUse();
+			}
+		});
+		Metrics.register("admission_rejected", new Metrics.Gauge() {
+			@Override
+			public long getValue() {
+				return AdmissionController.getRejectedCount();
+			}
+		});
+
+		Metrics.register(
+				Metrics.name("ondemand_cache_bytes", "tier", "memory"),
+				new Metrics.Gauge() {
+					@Override
+					public long getValue() {
+						return OnDemandResizer.getCache().getMemoryBytes();
+					}
+				});
+		Metrics.register(Metrics.name("ondemand_cache_bytes", "tier", "disk"),
+				new Metrics.Gauge() {
+					@Override
+					public long getValue() {
+						return OnDemandResizer.getCache().getDiskBytes();
+					}
+				});
+		Metrics.register(Metrics.name("ondemand_cache_hits", "tier", "memory"),
+				new Metrics.Gauge() {
+					@Override
+					public long getValue() {
+						return OnDemandResizer.getCache().getMemoryHitCount();
+					}
+				});
+		Metrics.register(Metrics.name("ondemand_cache_hits", "tier", "disk"),
+				new Metrics.Gauge() {
+					@Override
+					public long getValue() {
+						return OnDemandResizer.getCache().getDiskHitCount();
+					}
+				});
+		Metrics.register("ondemand_cache_loads", new Metrics.Gauge() {
+			@Override
+			public long getValue() {
+				return OnDemandResizer.getCache().getLoadCount();
+			}
+		});
+		Metrics.register("ondemand_cache_shared_loads", new Metrics.Gauge() {
+			@Override
+			public long getValue() {
+				return OnDemandResizer.getCache().getSharedLoadCount();
+			}
+		});
+
+		Metrics.register("writebehind_pending", new Metrics.Gauge() {
+			@Override
+			public long getValue() {
+				Storage storage = StorageFactory.getStorage();
+				return (storage instanceof WriteBehindStorage ? ((WriteBehindStorage) storage)
+						.getPendingCount() : 0);
+			}
+		});
+		Metrics.register("writebehind_failed", new Metrics.Gauge() {
+			@Override
+			public long getValue() {
+				Storage storage = StorageFactory.getStorage();
+				return (storage instanceof WriteBehindStorage ? ((WriteBehindStorage) storage)
+						.getFailedCount() : 0);
+			}
+		});
+
+		Metrics.register("tmp_tracked_files", new Metrics.Gauge() {
+			@Override
+			public long getValue() {
+				return TempFileIndex.getInstance().size();
+			}
+		});
+
+		Metrics.register("chunked_sessions_open", new Metrics.Gauge() {
+			@Override
+			public long getValue() {
+				return UploadSessionStore.getInstance().size();
+			}
+		});
+
+		Metrics.register("jobs_pending", new Metrics.Gauge() {
+			@Override
+			public long getValue() {
+				return JobQueue.getPendingCount();
+			}
+		});
+
+		Metrics.register(Metrics.name("pool_idle_bytes", "pool", "buffer"),
+				new Metrics.Gauge() {
+					@Override
+					public long getValue() {
+						return (long) BufferPool.getIdleCount()
+								* Constants.FILE_BUFFER_SIZE;
+					}
+				});
+		Metrics.register(Metrics.name("pool_idle_bytes", "pool", "raster"),
+				new Metrics.Gauge() {
+					@Override
+					public long getValue() {
+						return RasterPool.getIdleBytes();
+					}
+				});
+		Metrics.register(Metrics.name("pool_lent", "pool", "buffer"),
+				new Metrics.Gauge() {
+					@Override
+					public long getValue() {
+						return BufferPool.getLentCount();
+					}
+				});
+		Metrics.register(Metrics.name("pool_lent", "pool", "raster"),
+				new Metrics.Gauge() {
+					@Override
+					public long getValue() {
+						return RasterPool.getLentCount();
+					}
+				});
+		Metrics.register(Metrics.name("pool_created", "pool", "buffer"),
+				new Metrics.Gauge() {
+					@Override
+					public long getValue() {
+						return BufferPool.getCreatedCount();
+					}
+				});
+		Metrics.register(Metrics.name("pool_created", "pool", "raster"),
+				new Metrics.Gauge() {
+					@Override
+					public long getValue() {
+						return RasterPool.getCreatedCount();
+					}
+				});
+
+		Metrics.register("notification_queue_depth", new Metrics.Gauge() {
+			@Override
+			public long getValue() {
+				return UploadNotifier.getInstance().getQueueDepth();
+			}
+		});
+	}
+}
@@ -0,0 +1,39 @@
+package jobs;
+
+import notifiers.UploadNotifier;
+import play.Logger;
+import play.jobs.Job;
+import play.jobs.OnApplicationStop;
+import controllers.processing.BufferPool;
+import controllers.processing.JobQueue;
+import controllers.processing.RasterPool;
+import controllers.processing.ResizeExecutor;
+import controllers.processing.UploadPipeline;
+import controllers.storage.CdnUploader;
+import controllers.storage.StorageFactory;
+
+/**
+ * Releases the shared thread pools when the application stops (or is reloaded
+ * in DEV mode) so their threads are not leaked.
+ */
+@OnApplicationStop
+@SuppressWarnings("rawtypes")
+public class ShutdownJob extends Job {
+	@Override
+	public void doJob() throws Exception {
+		super.doJob();
+
+		Logger.info("Shutting down shared thread pools...");
+		JobQueue.shutdown();
+		UploadPipeline.shutdown();
+		ResizeExecutor.shutdown();
+		CdnUploader.shutdown();
+		StorageFactory.shutdown();
+		UploadNotifier.shutdownInstance();
+		BufferPool.clear();
+		RasterPool.clear();
+
+		// Keep the final numbers of an offline run.
+		MetricsDumpJob.dump();
+	}
+}
@@ -1,23 +1,42 @@
 package jobs;
 
-import java.io.File;
-import java.io.FileFilter;
-
 import play.Logger;
 import play.Play;
 import play.jobs.Every;
 import play.jobs.Job;
+import controllers.Config;
+import controllers.processing.JobQueue;
+import controllers.storage.TempFileIndex;
+import controllers.storage.UploadSessionStore;
 
 /**
  * Play caches all uploads as temporary files in the /tmp folder and never
- * cleans them up. Instead we periodically clean them up manually so we don't
- * run out of disk space on the server.
+ * cleans them up, and the temp files of an upload whose CDN push failed are
+ * left behind as well. Instead we periodically clean them up manually so we
+ * don't run out of disk space on the server.
+ * <p/>
+ * Every run deletes the tracked files that expired (see
+ * {@link TempFileIndex}), at most <code>imgscalr.tmp.maxDeletes</code> of
+ * them. Every <code>imgscalr.tmp.sweepInterval</code> seconds a sweep of the
+ * whole dir is started as well, which looks at no more than
+ * <code>imgscalr.tmp.sweepBatch</code> files per run until it is through.
+ * <p/>
+ * Chunked uploads that haven't received anything for as long expire as well
+ * (see {@link UploadSessionStore}), and so do the responses of uploads that
+ * were processed in the background (see {@link JobQueue}).
  */
-@Every("1h")
+@Every("1min")
 @SuppressWarnings("rawtypes")
 public class TmpDirCleanupJob extends Job {
-	private static final long LAST_MODIFIED_THRESHOLD = 3600000; // 1hr
-	private static final FileFilter FILE_FILTER = new TempFileNameFilter();
+	public static final String CONFIG_MAX_DELETES = "imgscalr.tmp.maxDeletes";
+	public static final String CONFIG_SWEEP_INTERVAL = "imgscalr.tmp.sweepInterval";
+	public static final String CONFIG_SWEEP_BATCH = "imgscalr.tmp.sweepBatch";
+
+	public static final int DEFAULT_MAX_DELETES = 1000;
+	public static final int DEFAULT_SWEEP_INTERVAL = 3600; // seconds
+	public static final int DEFAULT_SWEEP_BATCH = 1000;
+
+	private static long lastSweepTime;
 
 	@Override
 	public void doJob() throws Exception {
@@ -32,62 +51,39 @@ public class TmpDirCleanupJob extends Job {
 			return;
 		}
 
-		// Get a list of all the tmp files we can safely delete.
-		File[] tempFiles = Play.tmpDir.listFiles(FILE_FILTER);
+		TempFileIndex index = TempFileIndex.getInstance();
+		long now = System.currentTimeMillis();
+		long reclaimedFiles = index.getReclaimedFiles();
 
-		if (tempFiles != null && tempFiles.length > 0) {
-			int totalErased = tempFiles.length;
-			Logger.info("Temp Cleanup, erasing %s files...", tempFiles.length);
+		long indexBytes = index.expire(now,
+				Config.getInt(CONFIG_MAX_DELETES, DEFAULT_MAX_DELETES));
+		long sweepBytes = 0;
 
-			for (File file : tempFiles) {
-				if (!file.delete()) {
-					totalErased--;
-					Logger.error("\tUnable to Erase Temp File [%s]",
-							file.getAbsolutePath());
-				}
-			}
+		if (index.isSweeping()
+				|| now - lastSweepTime >= Config.getInt(CONFIG_SWEEP_INTERVAL,
+						DEFAULT_SWEEP_INTERVAL) * 1000L) {
+			if (!index.isSweeping())
+				lastSweepTime = now;
 
-			Logger.info("Temp Cleanup Complete [%s out of %s erased]",
-					totalErased, tempFiles.length);
+			sweepBytes = index.sweep(now,
+					Config.getInt(CONFIG_SWEEP_BATCH, DEFAULT_SWEEP_BATCH));
 		}
-	}
 
-	static class TempFileNameFilter implements FileFilter {
-		/**
-		 * Used to generally determine if this is one of Play's HTTP POST
-		 * temporary upload cache files which have the format characteristics
-		 * of: 36 chars long (Java's UUID class), no file extension and lastly
-		 * it includes the '-' character at positions 8, 13, 18 and 23 which is
-		 * the format of a UUID string.
-		 */
-		@Override
-		public boolean accept(File pathname) {
-			boolean accept = false;
+		reclaimedFiles = index.getReclaimedFiles() - reclaimedFiles;
+		int expiredSessions = UploadSessionStore.getInstance().expire(now);
 
-			/*
-			 * Make sure there is a file, that it isn't a directory and that it
-			 * was last modified AT LEAST a specific threshold of time ago (to
-			 * ensure we aren't erasing files that are being processed/uploaded
-			 * right now).
-			 */
-			if (pathname != null
-					&& !pathname.isDirectory()
-					&& (System.currentTimeMillis() - pathname.lastModified() > LAST_MODIFIED_THRESHOLD)) {
-				String filename = pathname.getName();
+		if (expiredSessions > 0)
+			Logger.info("Expired %s Unfinished Chunked Uploads", expiredSessions);
 
-				/*
-				 * Check the format of the filename to ensure it is a UUID-style
-				 * filename so we can safely erase it.
-				 */
-				accept = (filename != null && filename.length() == 36
-						&& filename.charAt(8) == '-'
-						&& filename.charAt(13) == '-'
-						&& filename.charAt(18) == '-'
-						&& filename.charAt(23) == '-' && filename.indexOf('.',
-						28) == -1);
-			}
+		int expiredJobs = JobQueue.expire(now);
 
-			return accept;
-		}
+		if (expiredJobs > 0)
+			Logger.info("Expired %s Background Upload Responses", expiredJobs);
+
+		if (reclaimedFiles > 0)
+			Logger.info(
+					"Temp Cleanup Complete [files=%s, bytes=%s (index=%s, sweep=%s), tracked=%s]",
+					reclaimedFiles, indexBytes + sweepBytes, indexBytes,
+					sweepBytes, index.size());
 	}
-}
\ No newline at end of file
+}
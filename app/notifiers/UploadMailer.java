@@ -1,14 +1,25 @@
 package notifiers;
 
+import java.util.List;
+
 import play.mvc.Mailer;
-import controllers.response.UploadResponse;
 
 public class UploadMailer extends Mailer {
-	public static void upload(String ipAddress, UploadResponse response) {
-		setSubject("[imgscalr] Image Uploaded %s", response.original.url);
-		addRecipient("riyad@thebuzzmedia.com");
+	public static final String RECIPIENT = "riyad@thebuzzmedia.com";
+
+	/**
+	 * Used to send a digest of recent uploads. Called from the
+	 * {@link UploadNotifier} thread, never from a request.
+	 *
+	 * @return <code>true</code> if the mail was sent.
+	 */
+	public static boolean digest(List<UploadNotifier.Notification> notifications,
+			long droppedCount) {
+		setSubject("[imgscalr] %s Images Uploaded", notifications.size()
+				+ droppedCount);
+		addRecipient(RECIPIENT);
 		setFrom("imgscalr.com <admin@thebuzzmedia.com>");
-		
-		send(ipAddress, response);
+
+		return sendAndWait(notifications, droppedCount);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,250 @@
+package notifiers;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import play.Logger;
+import controllers.Config;
+import controllers.metrics.Metrics;
+import controllers.response.UploadResponse;
+
+/**
+ * Collects upload notifications and sends them as digests from a background
+ * thread, so the upload response never waits on the mail server.
+ * <p/>
+ * A digest goes out once <code>imgscalr.notify.batchSize</code> uploads are
+ * waiting or <code>imgscalr.notify.interval</code> seconds after the first of
+ * them arrived, whichever comes first. At most
+ * <code>imgscalr.notify.queueSize</code> notifications are held; past that
+ * they are dropped (and counted in the next digest) rather than letting a slow
+ * or unreachable mail server build up memory.
+ */
+public class UploadNotifier {
+	public static final String CONFIG_QUEUE_SIZE = "imgscalr.notify.queueSize";
+	public static final String CONFIG_BATCH_SIZE = "imgscalr.notify.batchSize";
+	public static final String CONFIG_INTERVAL = "imgscalr.notify.interval";
+
+	public static final int DEFAULT_QUEUE_SIZE = 1000;
+	public static final int DEFAULT_BATCH_SIZE = 50;
+	public static final int DEFAULT_INTERVAL = 60; // seconds
+
+	private static final long POLL_MILLIS = 250;
+
+	/**
+	 * Delivers a digest, by default as a mail through {@link UploadMailer}.
+	 */
+	public interface Sender {
+		/**
+		 * @param notifications
+		 *            the uploads in the digest, oldest first.
+		 * @param droppedCount
+		 *            the number of uploads that were not queued since the
+		 *            previous digest because the queue was full.
+		 */
+		public void send(List<Notification> notifications, long droppedCount)
+				throws Exception;
+	}
+
+	/**
+	 * A single upload, as listed in a digest.
+	 */
+	public static class Notification {
+		public final String ipAddress;
+		public final UploadResponse response;
+		public final Date date;
+
+		public Notification(String ipAddress, UploadResponse response) {
+			this.ipAddress = ipAddress;
+			this.response = response;
+			this.date = new Date();
+		}
+	}
+
+	/**
+	 * Mails each digest with {@link UploadMailer#digest(List, long)}.
+	 */
+	public static final Sender MAIL_SENDER = new Sender() {
+		@Override
+		public void send(List<Notification> notifications, long droppedCount) {
+			if (!UploadMailer.digest(notifications, droppedCount))
+				throw new IllegalStateException("Mailer failed to send digest");
+		}
+	};
+
+	private static UploadNotifier instance;
+
+	private final BlockingQueue<Notification> queue;
+	private final Sender sender;
+	private final int batchSize;
+	private final long intervalMillis;
+	private final Thread thread;
+
+	private final AtomicLong droppedCount = new AtomicLong();
+	private volatile boolean running = true;
+
+	public UploadNotifier(Sender sender, int queueSize, int batchSize,
+			long intervalMillis) {
+		this.queue = new ArrayBlockingQueue<Notification>(queueSize);
+		this.sender = sender;
+		this.batchSize = batchSize;
+		this.intervalMillis = intervalMillis;
+
+		thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				runDigests();
+			}
+		}, "imgscalr-notify");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Used to queue a notice of an upload on the shared notifier (created on
+	 * first use). Never blocks.
+	 */
+	public static void enqueue(String ipAddress, UploadResponse response) {
+		getInstance().offer(ipAddress, response);
+	}
+
+	public static synchronized UploadNotifier getInstance() {
+		if (instance == null)
+			instance = new UploadNotifier(MAIL_SENDER, Config.getInt(
+					CONFIG_QUEUE_SIZE, DEFAULT_QUEUE_SIZE), Config.getInt(
+					CONFIG_BATCH_SIZE, DEFAULT_BATCH_SIZE), Config.getInt(
+					CONFIG_INTERVAL, DEFAULT_INTERVAL) * 1000L);
+
+		return instance;
+	}
+
+	/**
+	 * Used to stop the shared notifier, sending whatever is still queued.
+	 */
+	public static synchronized void shutdownInstance() {
+		if (instance != null) {
+			instance.shutdown();
+			instance = null;
+		}
+	}
+
+	/**
+	 * @return <code>true</code> if the notification was queued,
+	 *         <code>false</code> if the queue was full and it was dropped.
+	 */
+	public boolean offer(String ipAddress, UploadResponse response) {
+		if (running && queue.offer(new Notification(ipAddress, response))) {
+			Metrics.increment("notifications_queued_total");
+			return true;
+		}
+
+		droppedCount.incrementAndGet();
+		Metrics.increment("notifications_dropped_total");
+		return false;
+	}
+
+	public int getQueueDepth() {
+		return queue.size();
+	}
+
+	/**
+	 * @return the number of notifications dropped since the last digest.
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	/**
+	 * Used to stop the digest thread once it has sent everything that is
+	 * queued, waiting up to 30 seconds for it.
+	 */
+	public void shutdown() {
+		running = false;
+
+		try {
+			thread.join(30000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void runDigests() {
+		List<Notification> batch = new ArrayList<Notification>(batchSize);
+
+		/*
+		 * IMPL NOTE: The thread is never interrupted, that would also abort a
+		 * digest in the middle of talking to the mail server. Instead it waits
+		 * in short polls and checks whether it should stop between them.
+		 */
+		while (running) {
+			try {
+				Notification notification = queue.poll(POLL_MILLIS,
+						TimeUnit.MILLISECONDS);
+
+				if (notification == null)
+					continue;
+
+				batch.add(notification);
+				long deadline = System.currentTimeMillis() + intervalMillis;
+
+				while (running && batch.size() < batchSize) {
+					long remaining = deadline - System.currentTimeMillis();
+
+					if (remaining <= 0)
+						break;
+
+					notification = queue.poll(
+							Math.min(remaining, POLL_MILLIS),
+							TimeUnit.MILLISECONDS);
+
+					if (notification != null)
+						batch.add(notification);
+				}
+
+				// Cut short by shutdown, fill it from what is already queued.
+				queue.drainTo(batch, batchSize - batch.size());
+			} catch (InterruptedException e) {
+				running = false;
+			}
+
+			send(batch);
+		}
+
+		// Anything queued after the last digest.
+		queue.drainTo(batch);
+
+		while (!batch.isEmpty()) {
+			List<Notification> tail = batch.subList(0,
+					Math.min(batchSize, batch.size()));
+			send(new ArrayList<Notification>(tail));
+			tail.clear();
+		}
+	}
+
+	private void send(List<Notification> batch) {
+		if (batch.isEmpty() && droppedCount.get() == 0)
+			return;
+
+		long dropped = droppedCount.getAndSet(0);
+
+		try {
+			sender.send(batch, dropped);
+			Metrics.increment(Metrics.name("notification_digests_total",
+					"outcome", "sent"));
+			Metrics.increment("notifications_sent_total", batch.size());
+		} catch (Exception e) {
+			// Notices are best effort, a failed digest is not retried.
+			Metrics.increment(Metrics.name("notification_digests_total",
+					"outcome", "failed"));
+			Logger.error(e,
+					"Unable to send upload digest [uploads=%s, dropped=%s]",
+					batch.size(), dropped);
+		} finally {
+			batch.clear();
+		}
+	}
+}
@@ -3,6 +3,14 @@ $(document).ready(function() {
 	initDnD();
 });
 
+// Same as UploadResponse.CODE_ACCEPTED, the upload is processed in the background.
+var CODE_ACCEPTED = 17;
+
+// Polling for accepted uploads, in ms; waits 1s longer each time up to 10s.
+var STATUS_POLL_INTERVAL = 1000;
+var STATUS_POLL_MAX_INTERVAL = 10000;
+var STATUS_POLL_MAX_ATTEMPTS = 60;
+
 function initBrowserWarning() {
 	var isChrome = navigator.userAgent.toLowerCase().indexOf('chrome') > -1;
 	var isFirefox = navigator.userAgent.toLowerCase().indexOf('firefox') > -1;
@@ -91,6 +99,16 @@ function onDrop(evt) {
 }
 
 function uploadFile(file, totalFiles) {
+	/*
+	 * Browsers that can send a File as an XHR body (XHR Level 2, which also
+	 * introduced FormData) POST the raw bytes to the binary endpoint. This
+	 * avoids reading the whole file into memory and the 33% Base64 overhead.
+	 */
+	if(typeof FormData != "undefined") {
+		postFile(file, totalFiles, '/upload/binary', file, 'application/octet-stream');
+		return;
+	}
+	
 	var reader = new FileReader();
 	
 	// Handle errors that might occur while reading the file (before upload).
@@ -140,131 +158,8 @@ function uploadFile(file, totalFiles) {
 			 * is wrong and we need to forget this upload.
 			 */
 			if(base64StartIndex < data.length) {
-				$.ajax({
-					type: 'POST',
-					url: '/upload',
-					data: data.substring(base64StartIndex), // Just send the Base64 content in POST body
-					processData: false, // No need to process
-					timeout: 60000, // 1 min timeout
-					dataType: 'text', // Pure Base64 char data
-					beforeSend: function onBeforeSend(xhr, settings) {
-						// Put the important file data in headers
-						xhr.setRequestHeader('x-file-name', file.name);
-						xhr.setRequestHeader('x-file-size', file.size);
-						xhr.setRequestHeader('x-file-type', file.type);
-						
-						// Update status
-						$("#upload-status-text").html("Uploading and Processing " + file.name + "...");
-					},
-					error: function onError(XMLHttpRequest, textStatus, errorThrown) {
-						// Have to increment the progress bar even if it's a failed upload.
-						updateAndCheckProgress(totalFiles, "Upload <span style='color: red;'>failed</span>");
-						
-						if(textStatus == "timeout") {
-							$("#upload-details").html("Upload was taking too long and was stopped.");
-						} else {
-							$("#upload-details").html("An error occurred while uploading the image.");
-						}
-					},
-					success: function onUploadComplete(response) {
-						response = $.parseJSON(response);
-						
-						// If the parse operation failed (for whatever reason) bail
-						if(!response || typeof response == "undefined") {
-							// Error, update the status with a reason as well.
-							$("#upload-status-text").html("Upload <span style='color: red;'>failed</span>");
-							$("#upload-details").html("The server was unable to process the upload.");
-							
-							return;
-						}
-						
-						if(response.success) {
-							// Update status
-							$("#upload-status-text").html(response.originalFileName + " Uploaded!");
-							
-							updateAndCheckProgress(totalFiles);
-							
-							var markup = new String();
-							markup += "<div class='resultBox'>";
-							markup += "  <div style='float: left;'>";
-							markup += "    <span class='thumbnail-container'>";
-							
-							// First, try and use the generated thumbnail as the preview
-							if(response.thumbnail.url)
-								markup += "      <img width='150' src='" + response.thumbnail.url + "' />";
-							// In the case of already-small-files, there will be no thumbnail, so use original.
-							else if(response.original.url)
-								markup += "      <img width='150' src='" + response.original.url + "' />";
-							// Well the server couldn't process the image I guess, ruh-roh!
-							else
-								markup += "      <img width='150' src='/public/images/missing-thumbnail.png' />";
-							
-							markup += "    </span>";
-							markup += "  </div>";
-							markup += "  <div style='float: left; vertical-align: top;'>";
-							markup += "    <ul>";
-							
-							markup += generateUploadResult("Original", response.original);
-							
-							if(response.large.url)
-								markup += generateUploadResult("Large", response.large);
-							
-							if(response.medium.url)
-								markup += generateUploadResult("Medium", response.medium);
-							
-							if(response.small.url)
-								markup += generateUploadResult("Small", response.small);
-							
-							if(response.thumbnail.url)
-								markup += generateUploadResult("Thumbnail", response.thumbnail);
-							
-							markup += "    </ul>";
-							markup += "  </div>";
-							markup += "  <div style='clear: both;'></div>"
-							markup += "</div>";
-							
-							$("#upload-thumbnail-list").append(markup);
-							
-							// Add focus listener to the new text fields to make copying easier
-							$("#upload-thumbnail-list input[type=text]").hover(
-								function(){
-									this.select();
-								}, function() {
-									this.selectionStart = this.selectionEnd = -1;
-							});
-							// And a click listener, otherwise the behavior feels weird/difficult.
-							$("#upload-thumbnail-list input[type=text]").click(function(){
-								this.select();
-							});
-						} else {
-							// Error, update the status with a reason as well.
-							$("#upload-status-text").html("Upload <span style='color: red;'>failed</span>");
-							$("#upload-details").html(response.message);
-							
-							updateAndCheckProgress(totalFiles);
-							
-							// Add an errored-upload placeholder
-							var markup = new String();
-							markup += "<div class='resultBox'>";
-							markup += "  <div style='float: left;'>";
-							markup += "    <span class='thumbnail-container'>";
-							markup += "      <img width='150' src='/public/images/missing-thumbnail.png' />";
-							markup += "    </span>";
-							markup += "  </div>";
-							markup += "  <div style='float: left; vertical-align: top;'>";
-							markup += "    <ul>";
-							
-							markup += generateUploadResult("Bad File", response.original, response.originalFileName);
-							
-							markup += "    </ul>";
-							markup += "  </div>";
-							markup += "  <div style='clear: both;'></div>"
-							markup += "</div>";
-							
-							$("#upload-thumbnail-list").append(markup);
-						}
-					}
-				});
+				// Just send the Base64 content in POST body
+				postFile(file, totalFiles, '/upload', data.substring(base64StartIndex));
 			}
 		}
 	};
@@ -273,6 +168,197 @@ function uploadFile(file, totalFiles) {
 	reader.readAsDataURL(file);
 }
 
+/**
+ * Used to POST an upload body (Base64 text or the raw File) to the server and
+ * render the result. The file's details are always sent in the x-file-* headers
+ * and contentType is optional (jQuery's default is used when omitted).
+ */
+function postFile(file, totalFiles, url, data, contentType) {
+	$.ajax({
+		type: 'POST',
+		url: url,
+		data: data,
+		contentType: contentType,
+		processData: false, // No need to process
+		timeout: 60000, // 1 min timeout
+		dataType: 'text', // JSON response, parsed on success
+		beforeSend: function onBeforeSend(xhr, settings) {
+			// Put the important file data in headers
+			xhr.setRequestHeader('x-file-name', file.name);
+			xhr.setRequestHeader('x-file-size', file.size);
+			xhr.setRequestHeader('x-file-type', file.type);
+			
+			// Update status
+			$("#upload-status-text").html("Uploading and Processing " + file.name + "...");
+		},
+		error: function onError(XMLHttpRequest, textStatus, errorThrown) {
+			// Have to increment the progress bar even if it's a failed upload.
+			updateAndCheckProgress(totalFiles, "Upload <span style='color: red;'>failed</span>");
+			
+			if(textStatus == "timeout") {
+				$("#upload-details").html("Upload was taking too long and was stopped.");
+			} else {
+				$("#upload-details").html("An error occurred while uploading the image.");
+			}
+		},
+		success: function onUploadComplete(response) {
+			response = $.parseJSON(response);
+			
+			// If the parse operation failed (for whatever reason) bail
+			if(!response || typeof response == "undefined") {
+				// Error, update the status with a reason as well.
+				$("#upload-status-text").html("Upload <span style='color: red;'>failed</span>");
+				$("#upload-details").html("The server was unable to process the upload.");
+				
+				return;
+			}
+			
+			// Only accepted so far, the sizes follow once it has been processed.
+			if(response.code == CODE_ACCEPTED) {
+				pollUploadStatus(file, totalFiles, response.uniqueFileKey, 0);
+				return;
+			}
+			
+			renderUploadResponse(totalFiles, response);
+		}
+	});
+}
+
+/**
+ * Used to poll the status of an upload the server accepted to process in the
+ * background (code CODE_ACCEPTED) until it is done, then render it like any
+ * other upload. Polling backs off up to STATUS_POLL_MAX_INTERVAL and gives up
+ * after STATUS_POLL_MAX_ATTEMPTS, at which point the upload may still finish.
+ */
+function pollUploadStatus(file, totalFiles, uniqueFileKey, attempt) {
+	$("#upload-status-text").html("Processing " + file.name + "...");
+	
+	if(attempt >= STATUS_POLL_MAX_ATTEMPTS) {
+		updateAndCheckProgress(totalFiles, "Upload <span style='color: red;'>still processing</span>");
+		$("#upload-details").html("The server is still processing " + file.name + ", it will be available as " + uniqueFileKey + ".");
+		
+		return;
+	}
+	
+	setTimeout(function onPollTimeout() {
+		$.ajax({
+			type: 'GET',
+			url: '/upload/status/' + encodeURIComponent(uniqueFileKey),
+			cache: false,
+			timeout: 60000, // 1 min timeout
+			dataType: 'text', // JSON response, parsed on success
+			error: function onStatusError(XMLHttpRequest, textStatus, errorThrown) {
+				// Asking again is harmless, the upload is still safe on the server.
+				pollUploadStatus(file, totalFiles, uniqueFileKey, attempt + 1);
+			},
+			success: function onStatusComplete(response) {
+				response = $.parseJSON(response);
+				
+				if(response && response.code == CODE_ACCEPTED)
+					pollUploadStatus(file, totalFiles, uniqueFileKey, attempt + 1);
+				else if(response)
+					renderUploadResponse(totalFiles, response);
+				else {
+					updateAndCheckProgress(totalFiles, "Upload <span style='color: red;'>failed</span>");
+					$("#upload-details").html("The server was unable to process the upload.");
+				}
+			}
+		});
+	}, Math.min(STATUS_POLL_MAX_INTERVAL, STATUS_POLL_INTERVAL * (attempt + 1)));
+}
+
+/**
+ * Used to render the final response of an upload: the generated sizes if it
+ * succeeded, otherwise the reason it failed.
+ */
+function renderUploadResponse(totalFiles, response) {
+	if(response.success) {
+		// Update status
+		$("#upload-status-text").html(response.originalFileName + " Uploaded!");
+		
+		updateAndCheckProgress(totalFiles);
+		
+		var markup = new String();
+		markup += "<div class='resultBox'>";
+		markup += "  <div style='float: left;'>";
+		markup += "    <span class='thumbnail-container'>";
+		
+		// First, try and use the generated thumbnail as the preview
+		if(response.thumbnail.url)
+			markup += "      <img width='150' src='" + response.thumbnail.url + "' />";
+		// In the case of already-small-files, there will be no thumbnail, so use original.
+		else if(response.original.url)
+			markup += "      <img width='150' src='" + response.original.url + "' />";
+		// Well the server couldn't process the image I guess, ruh-roh!
+		else
+			markup += "      <img width='150' src='/public/images/missing-thumbnail.png' />";
+		
+		markup += "    </span>";
+		markup += "  </div>";
+		markup += "  <div style='float: left; vertical-align: top;'>";
+		markup += "    <ul>";
+		
+		markup += generateUploadResult("Original", response.original);
+		
+		if(response.large.url)
+			markup += generateUploadResult("Large", response.large);
+		
+		if(response.medium.url)
+			markup += generateUploadResult("Medium", response.medium);
+		
+		if(response.small.url)
+			markup += generateUploadResult("Small", response.small);
+		
+		if(response.thumbnail.url)
+			markup += generateUploadResult("Thumbnail", response.thumbnail);
+		
+		markup += "    </ul>";
+		markup += "  </div>";
+		markup += "  <div style='clear: both;'></div>"
+		markup += "</div>";
+		
+		$("#upload-thumbnail-list").append(markup);
+		
+		// Add focus listener to the new text fields to make copying easier
+		$("#upload-thumbnail-list input[type=text]").hover(
+			function(){
+				this.select();
+			}, function() {
+				this.selectionStart = this.selectionEnd = -1;
+		});
+		// And a click listener, otherwise the behavior feels weird/difficult.
+		$("#upload-thumbnail-list input[type=text]").click(function(){
+			this.select();
+		});
+	} else {
+		// Error, update the status with a reason as well.
+		$("#upload-status-text").html("Upload <span style='color: red;'>failed</span>");
+		$("#upload-details").html(response.message);
+		
+		updateAndCheckProgress(totalFiles);
+		
+		// Add an errored-upload placeholder
+		var markup = new String();
+		markup += "<div class='resultBox'>";
+		markup += "  <div style='float: left;'>";
+		markup += "    <span class='thumbnail-container'>";
+		markup += "      <img width='150' src='/public/images/missing-thumbnail.png' />";
+		markup += "    </span>";
+		markup += "  </div>";
+		markup += "  <div style='float: left; vertical-align: top;'>";
+		markup += "    <ul>";
+		
+		markup += generateUploadResult("Bad File", response.original, response.originalFileName);
+		
+		markup += "    </ul>";
+		markup += "  </div>";
+		markup += "  <div style='clear: both;'></div>"
+		markup += "</div>";
+		
+		$("#upload-thumbnail-list").append(markup);
+	}
+}
+
 /**
  * Used to update the progress bar and check if all uploads are complete. Checking
  * progress entails getting the current value from the progress bar and adding
@@ -0,0 +1,135 @@
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import play.test.UnitTest;
+import controllers.processing.AdmissionController;
+import controllers.processing.AdmissionRejectedException;
+
+public class AdmissionControllerTest extends UnitTest {
+	private static final long MB = 1048576;
+
+	private TestConfig config = new TestConfig();
+
+	@Before
+	public void setUp() {
+		config.set(AdmissionController.CONFIG_HEAP_BUDGET,
+				Long.toString(100 * MB));
+		config.set(AdmissionController.CONFIG_MAX_IN_FLIGHT, "2");
+		config.set(AdmissionController.CONFIG_RETRY_AFTER, "7");
+	}
+
+	@After
+	public void tearDown() {
+		config.restore();
+	}
+
+	@Test
+	public void estimatesFromFileSizeAndHeader() {
+		assertEquals(AdmissionController.MIN_ESTIMATE,
+				AdmissionController.estimate(0));
+		assertEquals(50 * MB, AdmissionController.estimate(5 * MB));
+
+		// 6000x4000 decoded with every 3rd pixel is 2000x1334.
+		assertEquals(2000L * 1334 * AdmissionController.BYTES_PER_PIXEL,
+				AdmissionController.estimate(6000, 4000, 3));
+	}
+
+	@Test
+	public void releasesReservations() throws Exception {
+		AdmissionController.Ticket a = AdmissionController.admit(30 * MB);
+		AdmissionController.Ticket b = AdmissionController.admit(30 * MB);
+
+		assertEquals(2, AdmissionController.getInFlight());
+		assertEquals(60 * MB, AdmissionController.getHeapInUse());
+
+		b.update(10 * MB);
+		assertEquals(40 * MB, AdmissionController.getHeapInUse());
+
+		a.release();
+		b.release();
+		b.release();
+
+		assertEquals(0, AdmissionController.getInFlight());
+		assertEquals(0, AdmissionController.getHeapInUse());
+	}
+
+	@Test
+	public void rejectsRightAwayWhenOverBudget() throws Exception {
+		AdmissionController.Ticket a = AdmissionController.admit(80 * MB);
+		long rejected = AdmissionController.getRejectedCount();
+		long startTime = System.currentTimeMillis();
+
+		try {
+			AdmissionController.admit(30 * MB);
+			fail("Should not fit in the heap budget.");
+		} catch (AdmissionRejectedException e) {
+			assertEquals(7, e.getRetryAfter());
+		} finally {
+			a.release();
+		}
+
+		// Never holds the (request) thread waiting for room.
+		assertTrue(System.currentTimeMillis() - startTime < 1000);
+		assertEquals(rejected + 1, AdmissionController.getRejectedCount());
+	}
+
+	@Test
+	public void rejectsGrowthPastBudget() throws Exception {
+		AdmissionController.Ticket a = AdmissionController.admit(50 * MB);
+		AdmissionController.Ticket b = AdmissionController.admit(10 * MB);
+
+		try {
+			b.update(60 * MB);
+			fail("Should not fit in the heap budget.");
+		} catch (AdmissionRejectedException e) {
+			assertEquals(60 * MB, AdmissionController.getHeapInUse());
+		} finally {
+			a.release();
+			b.release();
+		}
+
+		assertEquals(0, AdmissionController.getHeapInUse());
+	}
+
+	@Test
+	public void admitsOversizedUploadWhenIdle() throws Exception {
+		AdmissionController.Ticket a = AdmissionController.admit(500 * MB);
+		a.update(600 * MB);
+		a.release();
+	}
+
+	@Test
+	public void admitsAgainOnceASlotIsReleased() throws Exception {
+		AdmissionController.Ticket a = AdmissionController.admit(MB);
+		AdmissionController.Ticket b = AdmissionController.admit(MB);
+
+		try {
+			AdmissionController.admit(MB);
+			fail("Both slots are taken.");
+		} catch (AdmissionRejectedException e) {
+			// expected
+		}
+
+		a.release();
+		AdmissionController.Ticket c = AdmissionController.admit(MB);
+
+		b.release();
+		c.release();
+		assertEquals(0, AdmissionController.getInFlight());
+	}
+
+	@Test
+	public void maxInFlightLeavesARequestThread() {
+		config.set(AdmissionController.CONFIG_MAX_IN_FLIGHT, null);
+		config.set("play.pool", "3");
+		assertEquals(Math.min(2, Runtime.getRuntime().availableProcessors()),
+				AdmissionController.getMaxInFlight());
+
+		config.set("play.pool", "1");
+		assertEquals(1, AdmissionController.getMaxInFlight());
+
+		config.set(AdmissionController.CONFIG_MAX_IN_FLIGHT, "6");
+		assertEquals(6, AdmissionController.getMaxInFlight());
+	}
+}
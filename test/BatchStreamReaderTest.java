@@ -0,0 +1,120 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import play.test.UnitTest;
+import controllers.processing.BatchStreamReader;
+
+public class BatchStreamReaderTest extends UnitTest {
+	@Test
+	public void readsEveryImage() throws Exception {
+		byte[] first = createData(70000, 1);
+		byte[] second = createData(10, 2);
+		BatchStreamReader reader = createReader(createFrame("a.jpg", first),
+				createFrame("b.png", second));
+
+		assertEquals("a.jpg", reader.next());
+		assertEquals(first.length, reader.getRemaining());
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+		assertEquals(first.length, reader.copyTo(out, digest));
+		assertTrue(Arrays.equals(first, out.toByteArray()));
+		assertTrue(Arrays.equals(MessageDigest.getInstance("SHA-256")
+				.digest(first), digest.digest()));
+
+		assertEquals("b.png", reader.next());
+		out.reset();
+		reader.copyTo(out, null);
+		assertTrue(Arrays.equals(second, out.toByteArray()));
+
+		assertNull(reader.next());
+	}
+
+	@Test
+	public void skipsUnreadImages() throws Exception {
+		BatchStreamReader reader = createReader(
+				createFrame("a.txt", createData(5000, 1)),
+				createFrame("", createData(20, 2)),
+				createFrame("c.gif", createData(30, 3)));
+
+		assertEquals("a.txt", reader.next());
+		assertEquals("", reader.next());
+		assertEquals("c.gif", reader.next());
+		assertEquals(30, reader.getRemaining());
+		assertNull(reader.next());
+	}
+
+	@Test
+	public void truncatedImageFails() throws Exception {
+		byte[] frame = createFrame("a.jpg", createData(100, 1));
+		BatchStreamReader reader = createReader(Arrays.copyOf(frame,
+				frame.length - 10));
+
+		reader.next();
+
+		try {
+			reader.copyTo(new ByteArrayOutputStream(), null);
+			fail("The image is 10 bytes short.");
+		} catch (EOFException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void truncatedHeaderFails() throws Exception {
+		BatchStreamReader reader = createReader(
+				createFrame("a.jpg", createData(10, 1)), new byte[] { 0, 5,
+						'b' });
+
+		reader.next();
+
+		try {
+			reader.next();
+			fail("The name is 4 bytes short.");
+		} catch (EOFException e) {
+			// expected
+		}
+	}
+
+	private static BatchStreamReader createReader(byte[]... frames)
+			throws Exception {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+		for (byte[] frame : frames)
+			body.write(frame);
+
+		return new BatchStreamReader(new ByteArrayInputStream(
+				body.toByteArray()));
+	}
+
+	private static byte[] createFrame(String name, byte[] data)
+			throws Exception {
+		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(frame);
+		byte[] nameBytes = name.getBytes("UTF-8");
+
+		out.writeShort(nameBytes.length);
+		out.write(nameBytes);
+		out.writeLong(data.length);
+		out.write(data);
+		out.flush();
+
+		return frame.toByteArray();
+	}
+
+	private static byte[] createData(int length, int seed) {
+		byte[] data = new byte[length];
+
+		for (int i = 0; i < length; i++)
+			data[i] = (byte) (i * 31 + seed);
+
+		return data;
+	}
+}
@@ -0,0 +1,90 @@
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import play.test.UnitTest;
+import controllers.Constants;
+import controllers.processing.BufferPool;
+
+public class BufferPoolTest extends UnitTest {
+	private TestConfig config = new TestConfig();
+
+	@Before
+	public void setUp() {
+		BufferPool.clear();
+	}
+
+	@After
+	public void tearDown() {
+		config.restore();
+	}
+
+	@Test
+	public void reusesReleasedBuffers() {
+		byte[] buffer = BufferPool.acquire();
+		int lent = BufferPool.getLentCount();
+
+		assertEquals(Constants.FILE_BUFFER_SIZE, buffer.length);
+
+		BufferPool.release(buffer);
+		assertEquals(lent - 1, BufferPool.getLentCount());
+		assertEquals(1, BufferPool.getIdleCount());
+		assertSame(buffer, BufferPool.acquire());
+
+		BufferPool.release(buffer);
+	}
+
+	@Test
+	public void ignoresForeignAndRepeatedReleases() {
+		byte[] buffer = BufferPool.acquire();
+
+		BufferPool.release(new byte[Constants.FILE_BUFFER_SIZE]);
+		BufferPool.release(null);
+		assertEquals(0, BufferPool.getIdleCount());
+
+		BufferPool.release(buffer);
+		BufferPool.release(buffer);
+		assertEquals(1, BufferPool.getIdleCount());
+	}
+
+	@Test
+	public void keepsAtMostConfiguredIdleBuffers() {
+		config.set(BufferPool.CONFIG_BUFFERS, "1");
+
+		byte[] first = BufferPool.acquire();
+		byte[] second = BufferPool.acquire();
+
+		BufferPool.release(first);
+		BufferPool.release(second);
+		assertEquals(1, BufferPool.getIdleCount());
+	}
+
+	@Test
+	public void disabledPoolAllocates() {
+		config.set(BufferPool.CONFIG_ENABLED, "false");
+
+		int lent = BufferPool.getLentCount();
+		byte[] buffer = BufferPool.acquire();
+
+		assertEquals(lent, BufferPool.getLentCount());
+		BufferPool.release(buffer);
+		assertEquals(0, BufferPool.getIdleCount());
+		assertNotSame(buffer, BufferPool.acquire());
+	}
+
+	@Test
+	public void reportsLeakedBuffers() throws Exception {
+		long leaked = BufferPool.getLeakedCount();
+
+		// Borrowed and dropped without being given back.
+		BufferPool.acquire();
+
+		for (int i = 0; i < 50 && BufferPool.getLeakedCount() == leaked; i++) {
+			System.gc();
+			Thread.sleep(20);
+		}
+
+		assertEquals(leaked + 1, BufferPool.getLeakedCount());
+	}
+}
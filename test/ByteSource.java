@@ -0,0 +1,39 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+import controllers.processing.ImageDecoder;
+
+/**
+ * Opens an encoded image held in memory, for the tests that decode one for a
+ * list of targets. Counts how often it was opened; only the strip passes of a
+ * streamed decode do.
+ */
+public class ByteSource implements ImageDecoder.Source {
+	private final byte[] data;
+	private int openCount;
+
+	public ByteSource(byte[] data) {
+		this.data = data;
+	}
+
+	/**
+	 * @return a new stream over the data, read forward only the way an upload
+	 *         is.
+	 */
+	public ImageInputStream stream() {
+		return new MemoryCacheImageInputStream(new ByteArrayInputStream(data));
+	}
+
+	@Override
+	public ImageInputStream open() throws IOException {
+		openCount++;
+		return stream();
+	}
+
+	public int getOpenCount() {
+		return openCount;
+	}
+}
@@ -0,0 +1,111 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import play.test.UnitTest;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.CannedAccessControlList;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+
+import controllers.Constants;
+import controllers.storage.CdnUploader;
+import controllers.storage.S3Storage;
+
+public class CdnUploaderTest extends UnitTest {
+	private FakeS3 fakeS3;
+
+	@Before
+	public void setUp() {
+		fakeS3 = new FakeS3();
+		S3Storage.setClient(fakeS3.proxy);
+	}
+
+	@After
+	public void tearDown() {
+		S3Storage.setClient(null);
+	}
+
+	@Test
+	public void uploadSetsPublicReadInThePutRequest() throws Exception {
+		File file = createTempFile();
+		Future<String> upload = CdnUploader.uploadAsync(file, true);
+
+		assertEquals(Constants.S3_BASE_URL + file.getName(), upload.get());
+		assertFalse("file should be deleted", file.exists());
+
+		assertEquals(1, fakeS3.calls.size());
+		assertEquals("putObject", fakeS3.calls.get(0));
+		assertEquals(CannedAccessControlList.PublicRead,
+				fakeS3.requests.get(0).getCannedAcl());
+	}
+
+	@Test
+	public void failedUploadKeepsFileAndReturnsNull() throws Exception {
+		fakeS3.fail = true;
+		File file = createTempFile();
+
+		assertNull(CdnUploader.uploadAsync(file, true).get());
+		assertTrue("file should be kept", file.exists());
+		file.delete();
+	}
+
+	@Test
+	public void nullFileIsANoop() throws Exception {
+		assertNull(CdnUploader.uploadAsync(null, true).get());
+		assertEquals(0, fakeS3.calls.size());
+	}
+
+	private static File createTempFile() throws Exception {
+		File file = File.createTempFile("cdn-test", ".jpg");
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(new byte[] { 1, 2, 3 });
+		out.close();
+		return file;
+	}
+
+	/**
+	 * In-process stand-in for S3; only putObject(PutObjectRequest) is
+	 * implemented, every other call is recorded and ignored.
+	 */
+	static class FakeS3 implements InvocationHandler {
+		final List<String> calls = Collections
+				.synchronizedList(new ArrayList<String>());
+		final List<PutObjectRequest> requests = Collections
+				.synchronizedList(new ArrayList<PutObjectRequest>());
+		final AmazonS3 proxy = (AmazonS3) Proxy.newProxyInstance(
+				AmazonS3.class.getClassLoader(),
+				new Class<?>[] { AmazonS3.class }, this);
+		volatile boolean fail;
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable {
+			calls.add(method.getName());
+
+			if (fail)
+				throw new RuntimeException("Simulated S3 failure");
+
+			if ("putObject".equals(method.getName()) && args.length == 1) {
+				requests.add((PutObjectRequest) args[0]);
+
+				PutObjectResult result = new PutObjectResult();
+				result.setETag("\"fake-etag\"");
+				return result;
+			}
+
+			return null;
+		}
+	}
+}
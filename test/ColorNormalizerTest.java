@@ -0,0 +1,444 @@
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import play.test.UnitTest;
+import controllers.processing.ColorNormalizer;
+import controllers.processing.DecodedImage;
+import controllers.processing.ImageDecoder;
+import controllers.processing.ResizeExecutor;
+import controllers.processing.ResizeResult;
+import controllers.processing.ResizeTarget;
+
+public class ColorNormalizerTest extends UnitTest {
+	private static final String JPEG_METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+
+	/**
+	 * Cyan, with a little magenta, yellow and black ink.
+	 */
+	private static final int[] INK = { 200, 10, 10, 30 };
+
+	/**
+	 * {@link #INK} converted without a profile.
+	 */
+	private static final Color INK_RGB = new Color(48, 216, 216);
+
+	private static final List<ResizeTarget> TARGETS = Collections
+			.singletonList(new ResizeTarget("SMALL", 100, "S"));
+
+	private TestConfig config = new TestConfig();
+	private File dir;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = File.createTempFile("color-normalizer-test", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	@After
+	public void tearDown() {
+		config.restore();
+
+		for (File file : dir.listFiles())
+			file.delete();
+
+		dir.delete();
+	}
+
+	@Test
+	public void standardTypesAreLeftAlone() {
+		BufferedImage image = new BufferedImage(10, 10,
+				BufferedImage.TYPE_3BYTE_BGR);
+		assertSame(image, ColorNormalizer.normalize(image));
+
+		image = new BufferedImage(10, 10, BufferedImage.TYPE_4BYTE_ABGR);
+		assertSame(image, ColorNormalizer.normalize(image));
+	}
+
+	@Test
+	public void customAndIndexedImagesAreNormalized() {
+		BufferedImage deep = createDeepImage(40, 30, false);
+		BufferedImage normalized = ColorNormalizer.normalize(deep);
+
+		assertEquals(BufferedImage.TYPE_INT_RGB, normalized.getType());
+		assertColor(Color.ORANGE, normalized.getRGB(5, 5), 1);
+
+		BufferedImage deepAlpha = createDeepImage(40, 30, true);
+		normalized = ColorNormalizer.normalize(deepAlpha);
+
+		assertEquals(BufferedImage.TYPE_INT_ARGB, normalized.getType());
+		assertEquals(0, normalized.getRGB(39, 29) >>> 24);
+		assertColor(Color.ORANGE, normalized.getRGB(5, 5), 1);
+
+		BufferedImage indexed = createIndexedImage(40, 30);
+		normalized = ColorNormalizer.normalize(indexed);
+
+		assertEquals(BufferedImage.TYPE_INT_ARGB, normalized.getType());
+		assertEquals(indexed.getRGB(5, 5), normalized.getRGB(5, 5));
+		assertEquals(0, normalized.getRGB(39, 29) >>> 24);
+	}
+
+	@Test
+	public void normalizingCanBeTurnedOff() {
+		config.set(ColorNormalizer.CONFIG_NORMALIZE, "false");
+
+		BufferedImage deep = createDeepImage(40, 30, false);
+		assertSame(deep, ColorNormalizer.normalize(deep));
+	}
+
+	@Test
+	public void deepPngIsDecodedNormalized() throws Exception {
+		DecodedImage decoded = decode(TestImages.encode(createDeepImage(200,
+				100, false), "png"));
+
+		assertEquals(BufferedImage.TYPE_INT_RGB, decoded.image.getType());
+		assertNull(decoded.palette);
+		assertColor(Color.ORANGE, decoded.image.getRGB(5, 5), 1);
+		decoded.release();
+	}
+
+	@Test
+	public void cmykJpegIsDecodedToRgb() throws Exception {
+		DecodedImage decoded = decode(writeJpeg(INK, -1));
+
+		assertEquals(BufferedImage.TYPE_INT_RGB, decoded.image.getType());
+		assertEquals(64, decoded.image.getWidth());
+		assertColor(INK_RGB, decoded.image.getRGB(5, 5), 6);
+		decoded.release();
+	}
+
+	@Test
+	public void adobeCmykJpegIsInverted() throws Exception {
+		int[] inverted = new int[4];
+
+		for (int i = 0; i < 4; i++)
+			inverted[i] = 255 - INK[i];
+
+		DecodedImage decoded = decode(writeJpeg(inverted, 0));
+
+		assertColor(INK_RGB, decoded.image.getRGB(5, 5), 6);
+		decoded.release();
+	}
+
+	@Test
+	public void adobeYcckJpegIsConverted() throws Exception {
+		// Adobe encodes the ink of C, M and Y like R, G and B; K inverted.
+		double c = INK[0];
+		double m = INK[1];
+		double y = INK[2];
+		int[] ycck = { (int) Math.round(0.299 * c + 0.587 * m + 0.114 * y),
+				(int) Math.round(128 - 0.168736 * c - 0.331264 * m + 0.5 * y),
+				(int) Math.round(128 + 0.5 * c - 0.418688 * m - 0.081312 * y),
+				255 - INK[3] };
+
+		DecodedImage decoded = decode(writeJpeg(ycck, 2));
+
+		assertColor(INK_RGB, decoded.image.getRGB(5, 5), 6);
+		decoded.release();
+	}
+
+	@Test
+	public void toIndexedMapsToClosestColor() {
+		BufferedImage image = new BufferedImage(3, 1,
+				BufferedImage.TYPE_INT_ARGB);
+		image.setRGB(0, 0, new Color(250, 10, 5).getRGB());
+		image.setRGB(1, 0, new Color(20, 30, 200, 100).getRGB());
+		image.setRGB(2, 0, new Color(0, 240, 10).getRGB());
+
+		BufferedImage indexed = ColorNormalizer.toIndexed(image,
+				createPalette());
+
+		assertEquals(BufferedImage.TYPE_BYTE_INDEXED, indexed.getType());
+		assertEquals(Color.RED.getRGB(), indexed.getRGB(0, 0));
+		assertEquals(0, indexed.getRGB(1, 0) >>> 24);
+		assertEquals(Color.GREEN.getRGB(), indexed.getRGB(2, 0));
+	}
+
+	@Test
+	public void gifSizesKeepThePaletteOfTheOriginal() throws Exception {
+		Set<Integer> colors = resizeIndexed("gif");
+
+		// Scaled on its own, the edges would have picked up blended colors.
+		Set<Integer> expected = new HashSet<Integer>();
+
+		for (int color : getColors(createPalette()))
+			expected.add(Integer.valueOf(color));
+
+		assertTrue(colors.toString(), expected.containsAll(colors));
+		assertTrue(colors.contains(Integer.valueOf(0)));
+	}
+
+	@Test
+	public void pngSizesKeepThePaletteOfTheOriginal() throws Exception {
+		resizeIndexed("png");
+
+		config.set("imgscalr.encode.png.palette", "false");
+
+		DecodedImage decoded = decode(TestImages.encode(createIndexedImage(
+				400, 300), "png"), TARGETS);
+		List<ResizeResult> results = ResizeExecutor.resize(decoded, dir,
+				"abcdefghj", "png", TARGETS, null);
+		decoded.release();
+
+		assertNull(results.get(0).error);
+
+		BufferedImage size = ImageIO.read(results.get(0).file);
+		assertFalse(size.getColorModel() instanceof IndexColorModel);
+	}
+
+	/**
+	 * Used to scale an indexed image of <code>format</code> the way an upload
+	 * would be.
+	 *
+	 * @return the colors of the size read back (ARGB, transparent as 0).
+	 */
+	private Set<Integer> resizeIndexed(String format) throws Exception {
+		DecodedImage decoded = decode(TestImages.encode(createIndexedImage(
+				400, 300), format), TARGETS);
+
+		assertNotNull(decoded.palette);
+		assertEquals(BufferedImage.TYPE_INT_ARGB, decoded.image.getType());
+
+		List<ResizeResult> results = ResizeExecutor.resize(decoded, dir,
+				"abcdefghi", format, TARGETS, null);
+		decoded.release();
+
+		assertNull(results.get(0).error);
+
+		BufferedImage size = ImageIO.read(results.get(0).file);
+		assertTrue(size.getColorModel() instanceof IndexColorModel);
+		assertEquals(100, size.getWidth());
+
+		Set<Integer> colors = new HashSet<Integer>();
+
+		for (int y = 0; y < size.getHeight(); y++) {
+			for (int x = 0; x < size.getWidth(); x++) {
+				int argb = size.getRGB(x, y);
+				colors.add(Integer.valueOf((argb >>> 24) == 0 ? 0 : argb));
+			}
+		}
+
+		return colors;
+	}
+
+	/**
+	 * @return red, green and blue, and a transparent color.
+	 */
+	private static IndexColorModel createPalette() {
+		byte[] reds = { (byte) 255, 0, 0, 0 };
+		byte[] greens = { 0, (byte) 255, 0, 0 };
+		byte[] blues = { 0, 0, (byte) 255, 0 };
+
+		return new IndexColorModel(8, 4, reds, greens, blues, 3);
+	}
+
+	private static int[] getColors(IndexColorModel palette) {
+		int[] colors = new int[palette.getMapSize()];
+		palette.getRGBs(colors);
+
+		// Compared as 0 like every transparent pixel read back.
+		colors[palette.getTransparentPixel()] = 0;
+		return colors;
+	}
+
+	/**
+	 * @return stripes of the palette colors, transparent at the bottom
+	 *         right.
+	 */
+	private static BufferedImage createIndexedImage(int width, int height) {
+		BufferedImage image = new BufferedImage(width, height,
+				BufferedImage.TYPE_BYTE_INDEXED, createPalette());
+		WritableRaster raster = image.getRaster();
+
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				int index = (x * 3 / width);
+
+				if (x >= width * 3 / 4 && y >= height * 3 / 4)
+					index = 3;
+
+				raster.setSample(x, y, 0, index);
+			}
+		}
+
+		return image;
+	}
+
+	/**
+	 * @return an orange 16 bits per sample image (<code>TYPE_CUSTOM</code>,
+	 *         like a 16-bit PNG), transparent at the bottom right if it has
+	 *         alpha.
+	 */
+	private static BufferedImage createDeepImage(int width, int height,
+			boolean alpha) {
+		ColorModel colorModel = new ComponentColorModel(ColorSpace
+				.getInstance(ColorSpace.CS_sRGB), alpha, false,
+				(alpha ? Transparency.TRANSLUCENT : Transparency.OPAQUE),
+				DataBuffer.TYPE_USHORT);
+		BufferedImage image = new BufferedImage(colorModel, colorModel
+				.createCompatibleWritableRaster(width, height), false, null);
+		Graphics2D g = image.createGraphics();
+
+		g.setColor(Color.ORANGE);
+		g.fillRect(0, 0, width, height);
+
+		if (alpha) {
+			g.setComposite(AlphaComposite.Clear);
+			g.fillRect(width / 2, height / 2, width, height);
+		}
+
+		g.dispose();
+		return image;
+	}
+
+	/**
+	 * Used to write a 64x48 JPEG of 4 channel samples as they are, the way
+	 * print software does.
+	 *
+	 * @param transform
+	 *            the Adobe transform (0 for CMYK, 2 for YCCK), or -1 to leave
+	 *            the Adobe marker out.
+	 */
+	private static byte[] writeJpeg(int[] samples, int transform)
+			throws Exception {
+		WritableRaster raster = Raster.createInterleavedRaster(
+				DataBuffer.TYPE_BYTE, 64, 48, 4, null);
+
+		for (int y = 0; y < raster.getHeight(); y++) {
+			for (int x = 0; x < raster.getWidth(); x++)
+				raster.setPixel(x, y, samples);
+		}
+
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg")
+				.next();
+		IIOMetadata metadata = null;
+
+		if (transform >= 0) {
+			// The default metadata of a CMYK image has the Adobe marker.
+			ColorModel colorModel = new ComponentColorModel(
+					new CmykColorSpace(), false, false, Transparency.OPAQUE,
+					DataBuffer.TYPE_BYTE);
+			metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(
+					colorModel, colorModel.createCompatibleSampleModel(1, 1)),
+					null);
+
+			IIOMetadataNode root = (IIOMetadataNode) metadata
+					.getAsTree(JPEG_METADATA_FORMAT);
+			((IIOMetadataNode) root.getElementsByTagName("app14Adobe").item(0))
+					.setAttribute("transform", Integer.toString(transform));
+			metadata.setFromTree(JPEG_METADATA_FORMAT, root);
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ImageOutputStream out = ImageIO.createImageOutputStream(bytes);
+
+		try {
+			writer.setOutput(out);
+			writer.write(null, new IIOImage(raster, null, metadata), null);
+		} finally {
+			out.close();
+			writer.dispose();
+		}
+
+		return bytes.toByteArray();
+	}
+
+	private static DecodedImage decode(byte[] data) throws Exception {
+		MemoryCacheImageInputStream stream = new MemoryCacheImageInputStream(
+				new ByteArrayInputStream(data));
+
+		try {
+			return ImageDecoder.decode(stream, 0);
+		} finally {
+			stream.close();
+		}
+	}
+
+	private static DecodedImage decode(byte[] data, List<ResizeTarget> targets)
+			throws Exception {
+		ByteSource source = new ByteSource(data);
+		ImageInputStream stream = source.stream();
+
+		try {
+			return ImageDecoder.decode(stream, targets, null, source);
+		} finally {
+			stream.close();
+		}
+	}
+
+	private static void assertColor(Color expected, int argb, int tolerance) {
+		Color actual = new Color(argb, true);
+		String message = "expected " + expected + " but was " + actual;
+
+		assertTrue(message,
+				Math.abs(expected.getRed() - actual.getRed()) <= tolerance);
+		assertTrue(message,
+				Math.abs(expected.getGreen() - actual.getGreen()) <= tolerance);
+		assertTrue(message,
+				Math.abs(expected.getBlue() - actual.getBlue()) <= tolerance);
+	}
+
+
+	/**
+	 * Just enough of a CMYK color space for the JPEG writer to pick its
+	 * defaults by; nothing is converted through it.
+	 */
+	private static class CmykColorSpace extends ColorSpace {
+		private static final long serialVersionUID = 1L;
+
+		private CmykColorSpace() {
+			super(ColorSpace.TYPE_CMYK, 4);
+		}
+
+		@Override
+		public float[] toRGB(float[] value) {
+			return new float[3];
+		}
+
+		@Override
+		public float[] fromRGB(float[] value) {
+			return new float[4];
+		}
+
+		@Override
+		public float[] toCIEXYZ(float[] value) {
+			return new float[3];
+		}
+
+		@Override
+		public float[] fromCIEXYZ(float[] value) {
+			return new float[4];
+		}
+	}
+}
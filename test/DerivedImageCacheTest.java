@@ -0,0 +1,206 @@
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import play.test.UnitTest;
+import controllers.processing.DerivedImageCache;
+import controllers.processing.OnDemandResizer;
+import controllers.storage.LocalStorage;
+import controllers.storage.StorageFactory;
+
+public class DerivedImageCacheTest extends UnitTest {
+	private File dir;
+	private TestConfig config = new TestConfig();
+
+	@Before
+	public void setUp() throws Exception {
+		dir = File.createTempFile("derived-test", "");
+		dir.delete();
+	}
+
+	@After
+	public void tearDown() {
+		config.restore();
+		StorageFactory.setStorage(null);
+
+		TestFiles.delete(dir);
+	}
+
+	@Test
+	public void concurrentMissesShareOneLoad() throws Exception {
+		final DerivedImageCache cache = new DerivedImageCache(dir, 1024, 1024);
+		final AtomicInteger loads = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		int threadCount = 16;
+		ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+
+		try {
+			List<Future<byte[]>> results = new ArrayList<Future<byte[]>>();
+
+			for (int i = 0; i < threadCount; i++) {
+				results.add(executor.submit(new Callable<byte[]>() {
+					@Override
+					public byte[] call() throws Exception {
+						start.await();
+						return cache.get("abc-500.jpg",
+								new DerivedImageCache.Loader() {
+									@Override
+									public byte[] load() throws Exception {
+										loads.incrementAndGet();
+										Thread.sleep(200);
+										return new byte[] { 1, 2, 3 };
+									}
+								});
+					}
+				}));
+			}
+
+			start.countDown();
+
+			for (Future<byte[]> result : results)
+				assertEquals(3, result.get().length);
+		} finally {
+			executor.shutdownNow();
+		}
+
+		assertEquals(1, loads.get());
+		assertEquals(1, cache.getLoadCount());
+		assertEquals(threadCount - 1, cache.getSharedLoadCount()
+				+ cache.getMemoryHitCount());
+	}
+
+	@Test
+	public void failedLoadIsNotCached() throws Exception {
+		DerivedImageCache cache = new DerivedImageCache(dir, 1024, 1024);
+
+		try {
+			cache.get("abc-500.jpg", new DerivedImageCache.Loader() {
+				@Override
+				public byte[] load() throws Exception {
+					throw new IllegalStateException("Simulated failure");
+				}
+			});
+			fail("The loader's exception should be rethrown.");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		assertNull(cache.get("abc-500.jpg", new FixedLoader(null)));
+		assertEquals(3,
+				cache.get("abc-500.jpg", new FixedLoader(new byte[3])).length);
+		assertEquals(3, cache.getLoadCount());
+	}
+
+	@Test
+	public void tiersAreBoundedInBytes() throws Exception {
+		DerivedImageCache cache = new DerivedImageCache(dir, 250, 500);
+
+		for (int i = 0; i < 10; i++)
+			cache.get("key" + i, new FixedLoader(new byte[100]));
+
+		assertEquals(200, cache.getMemoryBytes());
+		assertEquals(500, cache.getDiskBytes());
+		assertEquals(5, dir.list().length);
+
+		// Evicted from memory, but still on disk.
+		cache.get("key6", new FixedLoader(null));
+		assertEquals(1, cache.getDiskHitCount());
+
+		// Evicted from both.
+		assertNull(cache.get("key0", new FixedLoader(null)));
+	}
+
+	@Test
+	public void diskTierSurvivesRestart() throws Exception {
+		new DerivedImageCache(dir, 1024, 1024).get("abc-500.jpg",
+				new FixedLoader(new byte[10]));
+
+		DerivedImageCache cache = new DerivedImageCache(dir, 1024, 1024);
+		assertEquals(10, cache.get("abc-500.jpg", new FixedLoader(null)).length);
+		assertEquals(0, cache.getLoadCount());
+		assertEquals(1, cache.getDiskHitCount());
+	}
+
+	@Test
+	public void onlyUploadNamesAreValid() {
+		assertTrue(OnDemandResizer.isValidName("AbCdEfGhI.jpg"));
+		assertTrue(OnDemandResizer.isValidName("AbCdEfGhI.PNG"));
+		assertFalse(OnDemandResizer.isValidName("../../conf.jpg"));
+		assertFalse(OnDemandResizer.isValidName("AbCdEfGhI.txt"));
+		assertFalse(OnDemandResizer.isValidName(null));
+
+		assertTrue(OnDemandResizer.isAllowedWidth(1920));
+		assertFalse(OnDemandResizer.isAllowedWidth(1921));
+	}
+
+	@Test
+	public void onDemandNeverScalesUp() throws Exception {
+		config.set(OnDemandResizer.CONFIG_DIR,
+				new File(dir, "derived").getAbsolutePath());
+
+		LocalStorage storage = new LocalStorage(new File(dir, "storage"),
+				"/storage/", false);
+		StorageFactory.setStorage(storage);
+		storage.getDir().mkdirs();
+
+		ImageIO.write(new BufferedImage(300, 200, BufferedImage.TYPE_INT_RGB),
+				"png", storage.getFile("NaRrOwPnG.png"));
+		ImageIO.write(new BufferedImage(800, 600, BufferedImage.TYPE_INT_RGB),
+				"png", storage.getFile("WiDeRpNgX.png"));
+
+		// Narrower than asked for: the stored original, byte for byte.
+		byte[] narrow = OnDemandResizer.resize("NaRrOwPnG.png", 500);
+		assertTrue(Arrays.equals(readFile(storage.getFile("NaRrOwPnG.png")),
+				narrow));
+
+		BufferedImage wide = ImageIO.read(new ByteArrayInputStream(
+				OnDemandResizer.resize("WiDeRpNgX.png", 500)));
+		assertEquals(500, wide.getWidth());
+		assertEquals(375, wide.getHeight());
+
+		assertNull(OnDemandResizer.resize("MiSsInGxX.png", 500));
+	}
+
+	private static byte[] readFile(File file) throws Exception {
+		byte[] data = new byte[(int) file.length()];
+		FileInputStream in = new FileInputStream(file);
+
+		try {
+			for (int offset = 0; offset < data.length;)
+				offset += in.read(data, offset, data.length - offset);
+		} finally {
+			in.close();
+		}
+
+		return data;
+	}
+
+	private static class FixedLoader implements DerivedImageCache.Loader {
+		private byte[] data;
+
+		private FixedLoader(byte[] data) {
+			this.data = data;
+		}
+
+		@Override
+		public byte[] load() {
+			return data;
+		}
+	}
+}
@@ -0,0 +1,100 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import play.test.UnitTest;
+import controllers.FileUtils;
+
+public class FileUtilsTest extends UnitTest {
+	private File dir;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = File.createTempFile("file-utils-test", "");
+		dir.delete();
+		dir.mkdirs();
+	}
+
+	@After
+	public void tearDown() {
+		for (File file : dir.listFiles())
+			file.delete();
+
+		dir.delete();
+	}
+
+	@Test
+	public void replaceRenamesOverAnExistingFile() throws Exception {
+		File from = write("from", new byte[] { 1, 2, 3 });
+		File to = write("to", new byte[] { 9 });
+
+		FileUtils.replace(from, to);
+
+		assertFalse(from.exists());
+		assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, read(to)));
+
+		try {
+			FileUtils.replace(from, to);
+			fail("There is nothing left to rename.");
+		} catch (IOException e) {
+			// expected
+		}
+
+		assertTrue(to.isFile());
+	}
+
+	@Test
+	public void copyReplacesTheContents() throws Exception {
+		byte[] data = new byte[100000];
+
+		for (int i = 0; i < data.length; i++)
+			data[i] = (byte) i;
+
+		File from = write("from", data);
+		File to = write("to", new byte[200000]);
+
+		FileUtils.copy(from, to);
+
+		assertTrue(from.isFile());
+		assertTrue(Arrays.equals(data, read(to)));
+	}
+
+	@Test
+	public void moveLeavesNothingBehind() throws Exception {
+		File from = write("from", new byte[] { 4, 5 });
+		File to = new File(dir, "to");
+
+		FileUtils.move(from, to);
+
+		assertFalse(from.exists());
+		assertTrue(Arrays.equals(new byte[] { 4, 5 }, read(to)));
+	}
+
+	private File write(String name, byte[] data) throws Exception {
+		File file = new File(dir, name);
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(data);
+		out.close();
+		return file;
+	}
+
+	private static byte[] read(File file) throws Exception {
+		byte[] data = new byte[(int) file.length()];
+		FileInputStream in = new FileInputStream(file);
+		int offset = 0;
+		int count;
+
+		while (offset < data.length
+				&& (count = in.read(data, offset, data.length - offset)) != -1)
+			offset += count;
+
+		in.close();
+		return data;
+	}
+}
@@ -0,0 +1,159 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayInputStream;
+import java.util.List;
+
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+import org.junit.After;
+import org.junit.Test;
+
+import play.Logger;
+import play.test.UnitTest;
+import controllers.processing.DecodedImage;
+import controllers.processing.ImageDecoder;
+import controllers.processing.RasterPool;
+import controllers.processing.ResizeExecutor;
+import controllers.processing.ResizeTarget;
+
+public class ImageDecoderTest extends UnitTest {
+	private TestConfig config = new TestConfig();
+
+	@After
+	public void tearDown() {
+		config.restore();
+	}
+
+	@Test
+	public void subsamplingKeepsMarginOverLargestTarget() {
+		assertEquals(1, ImageDecoder.getSubsampling(800, 1024));
+		assertEquals(1, ImageDecoder.getSubsampling(4000, 1024));
+		assertEquals(2, ImageDecoder.getSubsampling(5000, 1024));
+		assertEquals(3, ImageDecoder.getSubsampling(7360, 1024));
+		assertEquals(1, ImageDecoder.getSubsampling(7360, 0));
+	}
+
+	@Test
+	public void subsamplingAlwaysStaysWiderThanLargestTarget() {
+		config.set(ImageDecoder.CONFIG_SUBSAMPLE_MARGIN, "1");
+
+		assertEquals(2, ImageDecoder.getSubsampling(3072, 1024));
+		assertEquals(3, ImageDecoder.getSubsampling(3073, 1024));
+		assertEquals(1, ImageDecoder.getSubsampling(1024, 1024));
+
+		for (int width = 1025; width < 9000; width += 7) {
+			int subsampling = ImageDecoder.getSubsampling(width, 1024);
+			assertTrue((width + subsampling - 1) / subsampling > 1024);
+		}
+	}
+
+	@Test
+	public void oversizedJpegIsDecodedSubsampledWithOriginalDimensions()
+			throws Exception {
+		byte[] jpeg = TestImages.encode(new BufferedImage(6200, 4000,
+				BufferedImage.TYPE_INT_RGB), "jpg");
+
+		long elapsedTime = System.currentTimeMillis();
+		DecodedImage full = decode(jpeg, 0);
+		long fullTime = System.currentTimeMillis() - elapsedTime;
+
+		elapsedTime = System.currentTimeMillis();
+		DecodedImage subsampled = decode(jpeg, 1024);
+		long subsampledTime = System.currentTimeMillis() - elapsedTime;
+
+		assertEquals(1, full.subsampling);
+		assertEquals(3, subsampled.subsampling);
+		assertEquals(6200, subsampled.width);
+		assertEquals(4000, subsampled.height);
+		assertEquals(2067, subsampled.image.getWidth());
+		assertTrue(subsampled.image.getWidth() >= 2048);
+
+		Logger.info(
+				"Decode 6200x4000 JPEG [full=%s bytes in %s ms, subsampled=%s bytes in %s ms]",
+				rasterBytes(full.image), fullTime,
+				rasterBytes(subsampled.image), subsampledTime);
+	}
+
+	@Test
+	public void imageNoWiderThanAnyTargetIsOnlyReadForItsHeader()
+			throws Exception {
+		byte[] png = TestImages.encode(new BufferedImage(150, 90,
+				BufferedImage.TYPE_INT_ARGB), "png");
+		long created = RasterPool.getCreatedCount();
+
+		DecodedImage decoded = decode(png, ResizeTarget.DEFAULT_TARGETS);
+
+		assertTrue(decoded.isMetadataOnly());
+		assertTrue(decoded.isDecoded());
+		assertNull(decoded.image);
+		assertEquals(150, decoded.width);
+		assertEquals(90, decoded.height);
+		assertEquals("png", decoded.formatName.toLowerCase());
+		assertEquals(created, RasterPool.getCreatedCount());
+
+		// Nothing to generate from it.
+		assertTrue(ResizeExecutor.resize(decoded, null, "abcdefghi", "png",
+				ResizeTarget.DEFAULT_TARGETS, null).isEmpty());
+		decoded.release();
+	}
+
+	@Test
+	public void imageWiderThanSmallestTargetIsDecoded() throws Exception {
+		byte[] png = TestImages.encode(new BufferedImage(151, 90,
+				BufferedImage.TYPE_INT_ARGB), "png");
+		DecodedImage decoded = decode(png, ResizeTarget.DEFAULT_TARGETS);
+
+		assertFalse(decoded.isMetadataOnly());
+		assertEquals(151, decoded.image.getWidth());
+		decoded.release();
+	}
+
+	@Test
+	public void fastPathCanBeTurnedOff() throws Exception {
+		config.set(ImageDecoder.CONFIG_FAST_PATH, "false");
+
+		byte[] png = TestImages.encode(new BufferedImage(100, 100,
+				BufferedImage.TYPE_INT_ARGB), "png");
+		DecodedImage decoded = decode(png, ResizeTarget.DEFAULT_TARGETS);
+
+		assertFalse(decoded.isMetadataOnly());
+		assertEquals(100, decoded.image.getWidth());
+		decoded.release();
+	}
+
+	private static DecodedImage decode(byte[] data, List<ResizeTarget> targets)
+			throws Exception {
+		ByteSource source = new ByteSource(data);
+		ImageInputStream stream = source.stream();
+
+		try {
+			return ImageDecoder.decode(stream, targets, null, source);
+		} finally {
+			stream.close();
+		}
+	}
+
+	private static DecodedImage decode(byte[] data, int maxTargetWidth)
+			throws Exception {
+		MemoryCacheImageInputStream stream = new MemoryCacheImageInputStream(
+				new ByteArrayInputStream(data));
+
+		try {
+			return ImageDecoder.decode(stream, maxTargetWidth);
+		} finally {
+			stream.close();
+		}
+	}
+
+
+	private static long rasterBytes(BufferedImage image) {
+		if (image.getRaster().getDataBuffer() instanceof DataBufferInt)
+			return image.getRaster().getDataBuffer().getSize() * 4L;
+		else if (image.getRaster().getDataBuffer() instanceof DataBufferByte)
+			return image.getRaster().getDataBuffer().getSize();
+
+		return -1;
+	}
+}
@@ -0,0 +1,120 @@
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Test;
+
+import play.test.UnitTest;
+import controllers.processing.ImageEncoder;
+import controllers.processing.ResizeExecutor;
+import controllers.processing.ResizeListener;
+import controllers.processing.ResizeResult;
+import controllers.processing.ResizeTarget;
+
+public class ImageEncoderTest extends UnitTest {
+	private TestConfig config = new TestConfig();
+
+	@After
+	public void tearDown() {
+		config.restore();
+	}
+
+	@Test
+	public void writersAreReused() throws Exception {
+		BufferedImage image = TestImages.createNoisyImage(200, 150,
+				BufferedImage.TYPE_INT_RGB);
+
+		TestImages.encode(image, "png", null);
+		long createdCount = ImageEncoder.getCreatedCount();
+
+		for (int i = 0; i < 5; i++)
+			TestImages.encode(image, "png", null);
+
+		assertEquals(createdCount, ImageEncoder.getCreatedCount());
+		assertTrue(ImageEncoder.getPooledCount("png") > 0);
+	}
+
+	@Test
+	public void qualityIsConfigurablePerTier() throws Exception {
+		BufferedImage image = TestImages.createNoisyImage(400, 300,
+				BufferedImage.TYPE_INT_RGB);
+
+		config.set("imgscalr.encode.jpg.quality", "0.95");
+		config.set("imgscalr.encode.jpg.quality.thumbnail", "0.2");
+
+		int large = TestImages.encode(image, "jpg", "LARGE").length;
+		int thumbnail = TestImages.encode(image, "jpeg", "THUMBNAIL").length;
+
+		assertTrue(thumbnail < large);
+		assertEquals(large, TestImages.encode(image, "jpg", null).length);
+	}
+
+	@Test
+	public void alphaIsFlattenedForJpeg() throws Exception {
+		BufferedImage image = TestImages.createNoisyImage(100, 80,
+				BufferedImage.TYPE_INT_ARGB);
+		BufferedImage read = ImageIO.read(new ByteArrayInputStream(TestImages
+				.encode(image, "jpg", null)));
+
+		assertNotNull(read);
+		assertEquals(100, read.getWidth());
+		assertFalse(read.getColorModel().hasAlpha());
+	}
+
+	@Test
+	public void resizeAlsoWritesAlternateFormat() throws Exception {
+		config.set(ResizeExecutor.CONFIG_ALTERNATE_FORMAT, "jpg");
+
+		File dir = File.createTempFile("encoder-test", "");
+		dir.delete();
+		dir.mkdirs();
+
+		final List<String> notified = Collections
+				.synchronizedList(new ArrayList<String>());
+
+		try {
+			List<ResizeResult> results = ResizeExecutor.resize(
+					TestImages.createNoisyImage(800, 600,
+							BufferedImage.TYPE_INT_ARGB), dir,
+					"abcdefghi", "png", ResizeTarget.DEFAULT_TARGETS,
+					new ResizeListener() {
+						@Override
+						public void resized(ResizeResult result) {
+							notified.add(result.file.getName());
+						}
+					});
+
+			assertEquals(3, results.size());
+
+			for (ResizeResult result : results) {
+				assertNull(result.error);
+				assertEquals("png", result.format);
+				assertNotNull(result.alternate);
+				assertNull(result.alternate.error);
+				assertEquals("jpg", result.alternate.format);
+				assertEquals(result.width, result.alternate.width);
+				assertTrue(result.alternate.file.isFile());
+				assertEquals(result.alternate.file.length(),
+						result.alternate.sizeInBytes);
+				assertTrue(result.alternate.sizeInBytes < result.sizeInBytes);
+			}
+
+			Collections.sort(notified);
+			assertEquals(Arrays.asList("abcdefghi-M.jpg", "abcdefghi-M.png",
+					"abcdefghi-S.jpg", "abcdefghi-S.png", "abcdefghi-T.jpg",
+					"abcdefghi-T.png"), notified);
+		} finally {
+			for (File file : dir.listFiles())
+				file.delete();
+
+			dir.delete();
+		}
+	}
+}
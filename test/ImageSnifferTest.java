@@ -0,0 +1,96 @@
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+
+import javax.imageio.ImageIO;
+
+import org.junit.After;
+import org.junit.Test;
+
+import play.test.UnitTest;
+import controllers.processing.ImageSniffer;
+import controllers.response.UploadResponse;
+
+public class ImageSnifferTest extends UnitTest {
+	private TestConfig config = new TestConfig();
+
+	@After
+	public void tearDown() {
+		config.restore();
+	}
+
+	@Test
+	public void formatComesFromContent() throws Exception {
+		for (String format : new String[] { "jpeg", "png", "gif", "bmp" }) {
+			byte[] data = createImage(320, 240, format);
+			ImageSniffer.Result result = ImageSniffer.sniff(data, data.length);
+
+			assertEquals(format, result.format);
+			assertEquals(320, result.width);
+			assertEquals(240, result.height);
+			assertNull(ImageSniffer.check(result));
+		}
+
+		byte[] text = "<html>not an image</html>".getBytes("UTF-8");
+		assertNull(ImageSniffer.sniff(text, text.length));
+		assertEquals(UploadResponse.Type.UNRECOGNIZED_IMAGE,
+				ImageSniffer.check(ImageSniffer.sniff(text, text.length)));
+	}
+
+	@Test
+	public void truncatedHeaderLeavesDimensionsToDecoder() throws Exception {
+		byte[] data = createImage(320, 240, "png");
+		ImageSniffer.Result result = ImageSniffer.sniff(data, 12);
+
+		assertEquals("png", result.format);
+		assertFalse(result.hasDimensions());
+		assertNull(ImageSniffer.check(result));
+	}
+
+	@Test
+	public void pixelBombIsRejected() throws Exception {
+		byte[] data = createImage(10, 10, "png");
+
+		// IHDR width and height, big-endian, right after the signature.
+		setInt(data, 16, 12000);
+		setInt(data, 20, 12000);
+
+		ImageSniffer.Result result = ImageSniffer.sniff(data, data.length);
+		assertEquals(12000, result.width);
+		assertEquals(UploadResponse.Type.TOO_MANY_PIXELS,
+				ImageSniffer.check(result));
+
+		setInt(data, 16, 20000);
+		setInt(data, 20, 10);
+		assertEquals(UploadResponse.Type.IMAGE_TOO_LARGE,
+				ImageSniffer.check(ImageSniffer.sniff(data, data.length)));
+	}
+
+	@Test
+	public void limitsAreConfigurable() throws Exception {
+		byte[] data = createImage(320, 240, "jpeg");
+		ImageSniffer.Result result = ImageSniffer.sniff(data, data.length);
+
+		config.set(ImageSniffer.CONFIG_MAX_PIXELS, "50000");
+		assertEquals(UploadResponse.Type.TOO_MANY_PIXELS,
+				ImageSniffer.check(result));
+
+		config.set(ImageSniffer.CONFIG_MAX_DIMENSION, "300");
+		assertEquals(UploadResponse.Type.IMAGE_TOO_LARGE,
+				ImageSniffer.check(result));
+	}
+
+	private static byte[] createImage(int width, int height, String format)
+			throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(new BufferedImage(width, height,
+				BufferedImage.TYPE_INT_RGB), format, out);
+		return out.toByteArray();
+	}
+
+	private static void setInt(byte[] data, int offset, int value) {
+		data[offset] = (byte) (value >>> 24);
+		data[offset + 1] = (byte) (value >>> 16);
+		data[offset + 2] = (byte) (value >>> 8);
+		data[offset + 3] = (byte) value;
+	}
+}
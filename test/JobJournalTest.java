@@ -0,0 +1,433 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import play.Logger;
+import play.test.UnitTest;
+import controllers.response.UploadResponse;
+import controllers.storage.JobJournal;
+
+public class JobJournalTest extends UnitTest {
+	private static final long TTL = 60000;
+
+	private File dir;
+	private File spoolDir;
+	private List<File> dirs = new ArrayList<File>();
+
+	@Before
+	public void setUp() throws Exception {
+		dir = createDir("job-journal-test");
+		spoolDir = createDir("job-journal-spool");
+	}
+
+	@After
+	public void tearDown() {
+		for (File d : dirs) {
+			for (File file : d.listFiles())
+				file.delete();
+
+			d.delete();
+		}
+	}
+
+	@Test
+	public void openJobsAreRecovered() throws Exception {
+		JobJournal journal = new JobJournal(dir, false, TTL);
+		assertTrue(journal.recover().isEmpty());
+
+		JobJournal.Job first = append(journal, 0);
+		append(journal, 1);
+		append(journal, 2);
+
+		assertEquals(3, journal.size());
+		assertEquals(new File(dir, first.uniqueFileName), first.file);
+		assertTrue(first.file.isFile());
+		assertSame(first, journal.get(first.uniqueFileKey));
+
+		journal.complete(first, response(first, UploadResponse.Type.SUCCESS));
+		assertNull(journal.get(first.uniqueFileKey));
+		assertEquals(UploadResponse.CODE_SUCCESS, journal
+				.getResponse(first.uniqueFileKey).code.intValue());
+		journal.close();
+
+		// The node restarts.
+		journal = new JobJournal(dir, false, TTL);
+		List<JobJournal.Job> jobs = journal.recover();
+
+		assertEquals(2, jobs.size());
+		assertEquals(key(1), jobs.get(0).uniqueFileKey);
+		assertEquals(key(2), jobs.get(1).uniqueFileKey);
+		assertEquals("photo 1.jpg", jobs.get(0).originalFileName);
+		assertEquals("127.0.0.1", jobs.get(0).sourceIP);
+		assertEquals("content1", jobs.get(0).contentKey);
+		assertNull(jobs.get(1).contentKey);
+		assertTrue(jobs.get(0).file.isFile());
+		journal.close();
+	}
+
+	@Test
+	public void journalIsEmptiedOnceEveryJobIsDone() throws Exception {
+		JobJournal journal = new JobJournal(dir, true, TTL);
+		journal.recover();
+
+		JobJournal.Job job = append(journal, 0);
+		assertTrue(new File(dir, JobJournal.JOURNAL_NAME).length() > 0);
+
+		journal.complete(job, response(job, UploadResponse.Type.SUCCESS));
+		assertEquals(0, new File(dir, JobJournal.JOURNAL_NAME).length());
+
+		// Still appends where it left off.
+		append(journal, 1);
+		journal.close();
+
+		journal = new JobJournal(dir, false, TTL);
+		assertEquals(1, journal.recover().size());
+		journal.close();
+	}
+
+	@Test
+	public void clientFieldsAreEscaped() throws Exception {
+		JobJournal journal = new JobJournal(dir, false, TTL);
+		journal.recover();
+
+		File file = new File(spoolDir, key(0) + ".jpg");
+		file.createNewFile();
+		journal.append(file, key(0), key(0) + ".jpg", "tab\tand\nbreak.jpg",
+				null, "10.0.0.1\t, 10.0.0.2\nDONE\t" + key(0));
+		journal.close();
+
+		journal = new JobJournal(dir, false, TTL);
+		List<JobJournal.Job> jobs = journal.recover();
+
+		assertEquals(1, jobs.size());
+		assertEquals("tab\tand\nbreak.jpg", jobs.get(0).originalFileName);
+		assertEquals("10.0.0.1\t, 10.0.0.2\nDONE\t" + key(0),
+				jobs.get(0).sourceIP);
+		journal.close();
+	}
+
+	@Test
+	public void tornRecordIsIgnored() throws Exception {
+		JobJournal journal = new JobJournal(dir, false, TTL);
+		journal.recover();
+		append(journal, 0);
+		append(journal, 1);
+		journal.close();
+
+		// Cut the last record short, as a crash in the middle of it would.
+		File journalFile = new File(dir, JobJournal.JOURNAL_NAME);
+		truncate(journalFile, journalFile.length() - 5);
+
+		journal = new JobJournal(dir, false, TTL);
+		List<JobJournal.Job> jobs = journal.recover();
+
+		assertEquals(1, jobs.size());
+		assertEquals(key(0), jobs.get(0).uniqueFileKey);
+
+		// Its original was never acknowledged, so it is gone.
+		assertFalse(new File(dir, key(1) + ".jpg").exists());
+
+		append(journal, 2);
+		journal.close();
+
+		journal = new JobJournal(dir, false, TTL);
+		assertEquals(2, journal.recover().size());
+		journal.close();
+	}
+
+	@Test
+	public void invalidRecordIsIgnored() throws Exception {
+		JobJournal journal = new JobJournal(dir, false, TTL);
+		journal.recover();
+		append(journal, 0);
+		journal.close();
+
+		FileOutputStream out = new FileOutputStream(new File(dir,
+				JobJournal.JOURNAL_NAME), true);
+		out.write("ACCEPT\tgarbage\n\n".getBytes("UTF-8"));
+		out.close();
+
+		journal = new JobJournal(dir, false, TTL);
+		assertEquals(1, journal.recover().size());
+		journal.close();
+	}
+
+	@Test
+	public void jobWithResponseIsNotReplayed() throws Exception {
+		JobJournal journal = new JobJournal(dir, false, TTL);
+		journal.recover();
+		JobJournal.Job job = append(journal, 0);
+		append(journal, 1);
+		journal.complete(job, response(job, UploadResponse.Type.SUCCESS));
+		journal.close();
+
+		// Crash after the response was written, before its DONE record.
+		File journalFile = new File(dir, JobJournal.JOURNAL_NAME);
+		String done = "DONE\t" + job.uniqueFileKey + "\n";
+		truncate(journalFile, journalFile.length() - done.length());
+
+		journal = new JobJournal(dir, false, TTL);
+		List<JobJournal.Job> jobs = journal.recover();
+
+		assertEquals(1, jobs.size());
+		assertEquals(key(1), jobs.get(0).uniqueFileKey);
+		journal.close();
+	}
+
+	@Test
+	public void orphanedFilesAreDeleted() throws Exception {
+		JobJournal journal = new JobJournal(dir, false, TTL);
+		journal.recover();
+		JobJournal.Job job = append(journal, 0);
+		journal.close();
+
+		// An alt size of the open job and an original never recorded.
+		File altFile = new File(dir, job.uniqueFileKey + "-L.jpg");
+		File unrecorded = new File(dir, key(1) + ".jpg");
+		File other = new File(dir, "keep.txt");
+
+		altFile.createNewFile();
+		unrecorded.createNewFile();
+		other.createNewFile();
+
+		journal = new JobJournal(dir, false, TTL);
+		assertEquals(1, journal.recover().size());
+		journal.close();
+
+		assertTrue(job.file.isFile());
+		assertFalse(altFile.exists());
+		assertFalse(unrecorded.exists());
+		assertTrue(other.exists());
+	}
+
+	@Test
+	public void originalSurvivesThePushOfItsCopy() throws Exception {
+		JobJournal journal = new JobJournal(dir, false, TTL);
+		journal.recover();
+		JobJournal.Job job = append(journal, 7);
+
+		File tempFile = new File(spoolDir, job.uniqueFileName);
+		journal.checkout(job, tempFile);
+		assertEquals(job.file.length(), tempFile.length());
+
+		// The CDN push deletes the copy, then the node crashes before the
+		// job is complete.
+		assertTrue(tempFile.delete());
+		journal.close();
+
+		journal = new JobJournal(dir, false, TTL);
+		List<JobJournal.Job> jobs = journal.recover();
+
+		assertEquals(1, jobs.size());
+		job = jobs.get(0);
+		assertTrue(job.file.isFile());
+
+		// Replayed from a fresh copy, the original goes once it is done.
+		journal.checkout(job, tempFile);
+		assertTrue(tempFile.isFile());
+
+		journal.complete(job, response(job, UploadResponse.Type.SUCCESS));
+		assertFalse(job.file.exists());
+		journal.close();
+
+		journal = new JobJournal(dir, false, TTL);
+		assertTrue(journal.recover().isEmpty());
+		journal.close();
+	}
+
+	@Test
+	public void responsesExpire() throws Exception {
+		JobJournal journal = new JobJournal(dir, false, TTL);
+		journal.recover();
+		JobJournal.Job job = append(journal, 0);
+		journal.complete(job,
+				response(job, UploadResponse.Type.UNABLE_TO_UPLOAD_TO_CDN));
+
+		long now = System.currentTimeMillis();
+		assertEquals(0, journal.expire(now));
+		assertNotNull(journal.getResponse(job.uniqueFileKey));
+
+		assertEquals(1, journal.expire(now + TTL * 2));
+		assertNull(journal.getResponse(job.uniqueFileKey));
+		journal.close();
+	}
+
+	@Test
+	public void responseKeyIsValidated() throws Exception {
+		JobJournal journal = new JobJournal(dir, false, TTL);
+		journal.recover();
+
+		assertNull(journal.getResponse(null));
+		assertNull(journal.getResponse("../../etc"));
+		assertNull(journal.getResponse(key(0)));
+		journal.close();
+	}
+
+	/**
+	 * Kills the node at random points of a long run of jobs (by cutting the
+	 * journal short there) and checks that every job acknowledged before the
+	 * crash that wasn't done yet is replayed, and nothing else.
+	 */
+	@Test
+	public void crashAtAnyPointLosesNoAcceptedJob() throws Exception {
+		int jobCount = 200;
+		Random random = new Random(42);
+		JobJournal journal = new JobJournal(dir, false, TTL);
+		journal.recover();
+
+		// The journal length right after each job was accepted.
+		long[] acceptedAt = new long[jobCount];
+		Set<String> completed = new HashSet<String>();
+		List<JobJournal.Job> open = new ArrayList<JobJournal.Job>();
+		File journalFile = new File(dir, JobJournal.JOURNAL_NAME);
+
+		for (int i = 0; i < jobCount; i++) {
+			open.add(append(journal, i));
+			acceptedAt[i] = journalFile.length();
+
+			// Finish a random open job now and then, never the first one so
+			// the journal is never emptied.
+			if (open.size() > 1 && random.nextInt(3) == 0) {
+				JobJournal.Job job = open.remove(1 + random.nextInt(open
+						.size() - 1));
+
+				journal.complete(job, response(job, UploadResponse.Type.SUCCESS));
+				assertFalse(job.file.exists());
+				completed.add(job.uniqueFileKey);
+			}
+		}
+
+		journal.close();
+		long length = journalFile.length();
+
+		for (int crash = 0; crash < 25; crash++) {
+			long cut = (long) (random.nextDouble() * length);
+			File crashDir = copy(dir);
+			truncate(new File(crashDir, JobJournal.JOURNAL_NAME), cut);
+
+			Set<String> expected = new HashSet<String>();
+
+			for (int i = 0; i < jobCount && acceptedAt[i] <= cut; i++) {
+				if (!completed.contains(key(i)))
+					expected.add(key(i));
+			}
+
+			JobJournal recovered = new JobJournal(crashDir, false, TTL);
+			Set<String> actual = new HashSet<String>();
+
+			for (JobJournal.Job job : recovered.recover()) {
+				assertTrue(job.file.isFile());
+				actual.add(job.uniqueFileKey);
+			}
+
+			recovered.close();
+			assertEquals("Crash at byte " + cut, expected, actual);
+
+			// Originals of jobs that weren't acknowledged are cleaned up.
+			for (int i = 0; i < jobCount; i++) {
+				if (!expected.contains(key(i)))
+					assertFalse(new File(crashDir, key(i) + ".jpg").exists());
+			}
+		}
+	}
+
+	@Test
+	public void throughputAndRecoveryTime() throws Exception {
+		int jobCount = 1000;
+		JobJournal journal = new JobJournal(dir, false, TTL);
+		journal.recover();
+
+		long startTime = System.nanoTime();
+
+		for (int i = 0; i < jobCount; i++)
+			append(journal, i);
+
+		long appendTime = System.nanoTime() - startTime;
+		journal.close();
+
+		startTime = System.nanoTime();
+		journal = new JobJournal(dir, false, TTL);
+		assertEquals(jobCount, journal.recover().size());
+		long recoverTime = System.nanoTime() - startTime;
+		journal.close();
+
+		Logger.info(
+				"Job Journal [jobs=%s, accepted/s=%s, recovery=%sms (unsynced)]",
+				jobCount, (long) (jobCount / (appendTime / 1e9)),
+				recoverTime / 1000000);
+	}
+
+	private JobJournal.Job append(JobJournal journal, int i) throws Exception {
+		File file = new File(spoolDir, key(i) + ".jpg");
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(new byte[] { (byte) 0xFF, (byte) 0xD8, (byte) i });
+		out.close();
+
+		return journal.append(file, key(i), key(i) + ".jpg", "photo " + i
+				+ ".jpg", (i % 2 == 0 ? null : "content" + i), "127.0.0.1");
+	}
+
+	private UploadResponse response(JobJournal.Job job, UploadResponse.Type type) {
+		UploadResponse response = new UploadResponse(type);
+		response.uniqueFileKey = job.uniqueFileKey;
+		response.uniqueFileName = job.uniqueFileName;
+		return response;
+	}
+
+	/**
+	 * @return a unique file key (9 letters) for job <code>i</code>.
+	 */
+	private static String key(int i) {
+		char[] chars = "AAAAAAAAA".toCharArray();
+
+		for (int pos = chars.length - 1; i > 0; pos--, i /= 26)
+			chars[pos] = (char) ('a' + i % 26);
+
+		return new String(chars);
+	}
+
+	private File createDir(String prefix) throws Exception {
+		File d = File.createTempFile(prefix, "");
+		d.delete();
+		d.mkdirs();
+
+		dirs.add(d);
+		return d;
+	}
+
+	private File copy(File from) throws Exception {
+		File to = createDir("job-journal-crash");
+
+		for (File file : from.listFiles()) {
+			FileInputStream in = new FileInputStream(file);
+			FileOutputStream out = new FileOutputStream(new File(to,
+					file.getName()));
+			byte[] buffer = new byte[8192];
+			int count;
+
+			while ((count = in.read(buffer)) != -1)
+				out.write(buffer, 0, count);
+
+			in.close();
+			out.close();
+		}
+
+		return to;
+	}
+
+	private static void truncate(File file, long length) throws Exception {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(length);
+		raf.close();
+	}
+}
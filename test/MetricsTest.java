@@ -0,0 +1,104 @@
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import play.test.UnitTest;
+import controllers.metrics.Histogram;
+import controllers.metrics.Metrics;
+
+public class MetricsTest extends UnitTest {
+	@After
+	public void tearDown() {
+		Metrics.reset();
+	}
+
+	@Test
+	public void quantilesAreWithinBucketPrecision() {
+		Histogram histogram = new Histogram();
+		Random random = new Random(42);
+		long[] values = new long[100000];
+
+		for (int i = 0; i < values.length; i++) {
+			// 1us to ~10s, log-uniform like real latencies.
+			values[i] = (long) Math.pow(10, 3 + random.nextDouble() * 7);
+			histogram.record(values[i]);
+		}
+
+		Arrays.sort(values);
+
+		for (double quantile : new double[] { 0.5, 0.9, 0.99, 0.999 }) {
+			long expected = values[(int) Math.ceil(quantile * values.length) - 1];
+			long actual = histogram.getValueAtQuantile(quantile);
+
+			assertTrue(quantile + ": " + actual + " < " + expected,
+					actual >= expected);
+			assertTrue(quantile + ": " + actual + " vs " + expected,
+					actual <= expected * 1.07);
+		}
+
+		assertEquals(values.length, histogram.getCount());
+		assertEquals(values[values.length - 1], histogram.getMax());
+		assertEquals(values[values.length - 1],
+				histogram.getValueAtQuantile(1));
+	}
+
+	@Test
+	public void extremeValuesAreRecorded() {
+		Histogram histogram = new Histogram();
+		histogram.record(0);
+		histogram.record(-5);
+		histogram.record(Long.MAX_VALUE);
+
+		assertEquals(3, histogram.getCount());
+		assertEquals(0, histogram.getValueAtQuantile(0.5));
+		assertEquals(Long.MAX_VALUE, histogram.getValueAtQuantile(1));
+		assertEquals(0, new Histogram().getValueAtQuantile(0.99));
+	}
+
+	@Test
+	public void concurrentRecordingLosesNothing() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+
+		for (int i = 0; i < 8; i++) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					for (int j = 0; j < 10000; j++) {
+						Metrics.increment("test_total");
+						Metrics.histogram("test_seconds").record(j);
+					}
+				}
+			});
+		}
+
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+
+		assertEquals(80000, Metrics.getCount("test_total"));
+		assertEquals(80000, Metrics.histogram("test_seconds").getCount());
+	}
+
+	@Test
+	public void rendersPrometheusText() {
+		Metrics.increment(Metrics.name("outcomes_total", "code", "1"), 3);
+		Metrics.increment(Metrics.name("outcomes_total", "code", "11"));
+		Metrics.histogram(Metrics.name("stage_seconds", "stage", "decode"))
+				.record(1500000000L);
+
+		String text = Metrics.toText();
+
+		assertTrue(text, text.contains("# TYPE imgscalr_outcomes_total counter\n"
+				+ "imgscalr_outcomes_total{code=\"1\"} 3\n"
+				+ "imgscalr_outcomes_total{code=\"11\"} 1\n"));
+		assertTrue(text, text.contains("# TYPE imgscalr_stage_seconds summary\n"));
+		assertTrue(text, text.contains("imgscalr_stage_seconds{stage=\"decode\",quantile=\"0.5\"} 1.5"));
+		assertTrue(text, text.contains("imgscalr_stage_seconds_sum{stage=\"decode\"} 1.500000\n"));
+		assertTrue(text, text.contains("imgscalr_stage_seconds_count{stage=\"decode\"} 1\n"));
+		assertEquals("a{b=\"c\\\"d\"}", Metrics.name("a", "b", "c\"d"));
+	}
+}
@@ -0,0 +1,721 @@
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+import net.iharder.Base64;
+
+import org.junit.Test;
+
+import play.Logger;
+import play.Play;
+import play.test.UnitTest;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.thebuzzmedia.imgscalr.Scalr;
+import com.thebuzzmedia.imgscalr.Scalr.Method;
+import com.thebuzzmedia.imgscalr.Scalr.Mode;
+
+import controllers.Constants;
+import controllers.processing.BufferPool;
+import controllers.processing.ColorNormalizer;
+import controllers.processing.DecodedImage;
+import controllers.processing.ImageDecoder;
+import controllers.processing.RasterPool;
+import controllers.processing.ResizeTarget;
+import controllers.storage.S3Storage;
+
+/**
+ * Times each stage of the upload pipeline separately over a fixed corpus of
+ * JPEG/PNG/GIF/BMP images at several resolutions and writes the results to a
+ * CSV report that can be diffed between releases.
+ * <p/>
+ * The stages are: Base64 decode (through a
+ * {@link Constants#FILE_BUFFER_SIZE} buffer, like the upload), ImageIO.read,
+ * the subsampled decode, the resize to every default target,
+ * <code>ImageIO.write</code> in the format of the input and the S3 upload
+ * against an in-process fake S3 that reads the whole file.
+ * <p/>
+ * The benchmark is skipped unless the JVM is started with
+ * <code>-Dimgscalr.benchmark=true</code>, so it doesn't slow down regular
+ * test runs. It is tuned with these system properties:
+ * <ul>
+ * <li><code>imgscalr.benchmark.iterations</code> - timed runs per stage
+ * (default 5)</li>
+ * <li><code>imgscalr.benchmark.warmup</code> - untimed runs per stage first
+ * (default 2)</li>
+ * <li><code>imgscalr.benchmark.sizes</code> - corpus resolutions (default
+ * <code>640x480,1920x1080,4000x3000</code>)</li>
+ * <li><code>imgscalr.benchmark.report</code> - report file (default
+ * <code>tmp/benchmark/pipeline-&lt;timestamp&gt;.csv</code>)</li>
+ * </ul>
+ * IMPL NOTE: The corpus is generated from a fixed seed instead of being
+ * checked in, so every run (and every release) benchmarks identical pixels.
+ */
+public class PipelineBenchmark extends UnitTest {
+	private static final String[] FORMATS = { "jpg", "png", "gif", "bmp" };
+	private static final long SEED = 42;
+
+	@Test
+	public void benchmarkPipeline() throws Exception {
+		if (!Boolean.getBoolean("imgscalr.benchmark")) {
+			Logger.info("Pipeline benchmark skipped, run with -Dimgscalr.benchmark=true");
+			return;
+		}
+
+		int iterations = Integer.getInteger("imgscalr.benchmark.iterations", 5);
+		int warmup = Integer.getInteger("imgscalr.benchmark.warmup", 2);
+		String[] sizes = System.getProperty("imgscalr.benchmark.sizes",
+				"640x480,1920x1080,4000x3000").split(",");
+
+		List<Result> results = new ArrayList<Result>();
+		S3Storage storage = new S3Storage();
+		S3Storage.setClient(createFakeS3());
+
+		try {
+			for (String size : sizes) {
+				String[] dimensions = size.trim().split("x");
+				BufferedImage source = createImage(
+						Integer.parseInt(dimensions[0]),
+						Integer.parseInt(dimensions[1]));
+
+				for (String format : FORMATS) {
+					Stages stages = new Stages(source, format, storage);
+					stages.run(results, size.trim(), iterations, warmup);
+					stages.close();
+				}
+
+				source.flush();
+			}
+		} finally {
+			S3Storage.setClient(null);
+		}
+
+		File report = writeReport(results, iterations, warmup);
+		Logger.info("Pipeline Benchmark Report Written [file=%s]",
+				report.getAbsolutePath());
+	}
+
+	/**
+	 * Compares the copy and decode stages of the upload path with the
+	 * {@link BufferPool} and {@link RasterPool} turned off and on, by the
+	 * bytes they allocate and the collections the GC runs meanwhile.
+	 */
+	@Test
+	public void benchmarkPooling() throws Exception {
+		if (!Boolean.getBoolean("imgscalr.benchmark")) {
+			Logger.info("Pooling benchmark skipped, run with -Dimgscalr.benchmark=true");
+			return;
+		}
+
+		int iterations = Integer.getInteger("imgscalr.benchmark.iterations", 5);
+		int warmup = Integer.getInteger("imgscalr.benchmark.warmup", 2);
+		String[] sizes = System.getProperty("imgscalr.benchmark.sizes",
+				"640x480,1920x1080,4000x3000").split(",");
+		TestConfig config = new TestConfig();
+		List<String> lines = new ArrayList<String>();
+
+		try {
+			for (String size : sizes) {
+				String[] dimensions = size.trim().split("x");
+				BufferedImage source = createImage(
+						Integer.parseInt(dimensions[0]),
+						Integer.parseInt(dimensions[1]));
+
+				for (String format : FORMATS) {
+					byte[] encoded = write(source, format);
+
+					for (boolean pooled : new boolean[] { false, true }) {
+						config.set(BufferPool.CONFIG_ENABLED,
+								Boolean.toString(pooled));
+						lines.add(measureAllocations(encoded, format,
+								size.trim(), pooled, iterations, warmup));
+					}
+				}
+
+				source.flush();
+			}
+		} finally {
+			config.restore();
+			RasterPool.clear();
+		}
+
+		File report = createReportFile("pooling");
+		PrintWriter out = new PrintWriter(report, "UTF-8");
+
+		try {
+			out.println("# imgscalr pooling benchmark");
+			out.println("# iterations=" + iterations + ", warmup=" + warmup
+					+ ", seed=" + SEED);
+			out.println("mode,format,resolution,iterations,allocatedBytesPerOp,gcCount,gcMs,meanMs");
+
+			for (String line : lines)
+				out.println(line);
+		} finally {
+			out.close();
+		}
+
+		Logger.info("Pooling Benchmark Report Written [file=%s]",
+				report.getAbsolutePath());
+	}
+
+	/**
+	 * Compares scaling an original to every default target straight from the
+	 * layout ImageIO decodes it into with converting it by the
+	 * {@link ColorNormalizer} first (the conversion is included in the time),
+	 * per source type.
+	 */
+	@Test
+	public void benchmarkNormalization() throws Exception {
+		if (!Boolean.getBoolean("imgscalr.benchmark")) {
+			Logger.info("Normalization benchmark skipped, run with -Dimgscalr.benchmark=true");
+			return;
+		}
+
+		int iterations = Integer.getInteger("imgscalr.benchmark.iterations", 5);
+		int warmup = Integer.getInteger("imgscalr.benchmark.warmup", 2);
+		String[] sizes = System.getProperty("imgscalr.benchmark.sizes",
+				"640x480,1920x1080,4000x3000").split(",");
+		String[] types = { "3byte_bgr", "4byte_abgr", "indexed", "rgb16",
+				"rgba16", "gray_alpha" };
+		File report = createReportFile("normalization");
+		PrintWriter out = new PrintWriter(report, "UTF-8");
+
+		try {
+			out.println("# imgscalr normalization benchmark");
+			out.println("# iterations=" + iterations + ", warmup=" + warmup
+					+ ", seed=" + SEED);
+			out.println("sourceType,resolution,iterations,directMs,normalizedMs,speedup");
+
+			for (String size : sizes) {
+				String[] dimensions = size.trim().split("x");
+				BufferedImage image = createImage(
+						Integer.parseInt(dimensions[0]),
+						Integer.parseInt(dimensions[1]));
+
+				for (String type : types) {
+					BufferedImage source = convert(image, type);
+					double direct = timeScaling(source, false, iterations,
+							warmup);
+					double normalized = timeScaling(source, true,
+							iterations, warmup);
+					String line = String.format(Locale.US,
+							"%s,%s,%d,%.3f,%.3f,%.2f", type, size.trim(),
+							iterations, direct, normalized, direct
+									/ normalized);
+
+					out.println(line);
+					Logger.info("%s", line);
+					source.flush();
+				}
+
+				image.flush();
+			}
+		} finally {
+			out.close();
+		}
+
+		Logger.info("Normalization Benchmark Report Written [file=%s]",
+				report.getAbsolutePath());
+	}
+
+	/**
+	 * @return the mean time in ms to scale <code>source</code> to every
+	 *         default target narrower than it.
+	 */
+	private static double timeScaling(BufferedImage source, boolean normalize,
+			int iterations, int warmup) {
+		long elapsedTime = 0;
+
+		for (int i = 0; i < warmup + iterations; i++) {
+			long startTime = System.nanoTime();
+			BufferedImage image = source;
+
+			// The source isn't from the pool, giving it back only flushes it.
+			if (normalize)
+				image = ColorNormalizer.normalize(source);
+
+			for (ResizeTarget target : ResizeTarget.DEFAULT_TARGETS) {
+				if (target.width < image.getWidth())
+					Scalr.resize(image, Method.QUALITY, Mode.FIT_TO_WIDTH,
+							target.width).flush();
+			}
+
+			if (image != source)
+				RasterPool.release(image);
+
+			if (i >= warmup)
+				elapsedTime += System.nanoTime() - startTime;
+		}
+
+		return elapsedTime / 1000000d / iterations;
+	}
+
+	/**
+	 * Used to run the Base64 copy (through a borrowed buffer) and the
+	 * subsampled decode of <code>encoded</code>, giving everything back like
+	 * an upload would.
+	 *
+	 * @return the CSV line of the run.
+	 */
+	private static String measureAllocations(byte[] encoded, String format,
+			String size, boolean pooled, int iterations, int warmup)
+			throws Exception {
+		byte[] base64 = Base64.encodeBytesToBytes(encoded);
+		int maxWidth = ResizeTarget.getMaxWidth(ResizeTarget.DEFAULT_TARGETS);
+
+		for (int i = 0; i < warmup; i++)
+			copyAndDecode(base64, maxWidth);
+
+		System.gc();
+
+		long startBytes = getAllocatedBytes();
+		long startCount = getGcCount();
+		long startGcTime = getGcTime();
+		long startTime = System.nanoTime();
+
+		for (int i = 0; i < iterations; i++)
+			copyAndDecode(base64, maxWidth);
+
+		long elapsedTime = System.nanoTime() - startTime;
+		long allocated = (startBytes < 0 ? -1 : getAllocatedBytes()
+				- startBytes);
+
+		return String.format(Locale.US, "%s,%s,%s,%d,%d,%d,%d,%.3f",
+				(pooled ? "pooled" : "unpooled"), format, size, iterations,
+				(allocated < 0 ? -1 : allocated / iterations), getGcCount()
+						- startCount, getGcTime() - startGcTime,
+				elapsedTime / 1000000d / iterations);
+	}
+
+	private static void copyAndDecode(byte[] base64, int maxWidth)
+			throws Exception {
+		ByteArrayOutputStream copy = new ByteArrayOutputStream(base64.length);
+		InputStream in = new Base64.InputStream(new ByteArrayInputStream(
+				base64), Base64.DECODE);
+		byte[] buffer = BufferPool.acquire();
+		int count;
+
+		try {
+			while ((count = in.read(buffer)) != -1)
+				copy.write(buffer, 0, count);
+		} finally {
+			BufferPool.release(buffer);
+		}
+
+		DecodedImage decoded = ImageDecoder.decode(
+				new MemoryCacheImageInputStream(new ByteArrayInputStream(copy
+						.toByteArray())), maxWidth);
+		decoded.release();
+	}
+
+	/**
+	 * @return the bytes allocated by the current thread so far, or -1 if the
+	 *         JVM can't tell.
+	 */
+	private static long getAllocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+		if (!(bean instanceof com.sun.management.ThreadMXBean))
+			return -1;
+
+		return ((com.sun.management.ThreadMXBean) bean)
+				.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static long getGcCount() {
+		long count = 0;
+
+		for (GarbageCollectorMXBean bean : ManagementFactory
+				.getGarbageCollectorMXBeans())
+			count += Math.max(0, bean.getCollectionCount());
+
+		return count;
+	}
+
+	private static long getGcTime() {
+		long time = 0;
+
+		for (GarbageCollectorMXBean bean : ManagementFactory
+				.getGarbageCollectorMXBeans())
+			time += Math.max(0, bean.getCollectionTime());
+
+		return time;
+	}
+
+	/**
+	 * Every stage of the pipeline for a single corpus image.
+	 */
+	private static class Stages {
+		private String format;
+		private S3Storage storage;
+
+		private byte[] encoded;
+		private byte[] base64;
+		private File file;
+
+		private Stages(BufferedImage source, String format, S3Storage storage)
+				throws Exception {
+			this.format = format;
+			this.storage = storage;
+
+			encoded = write(source, format);
+			base64 = Base64.encodeBytesToBytes(encoded);
+
+			file = File.createTempFile("benchmark", '.' + format);
+			FileOutputStream out = new FileOutputStream(file);
+
+			try {
+				out.write(encoded);
+			} finally {
+				out.close();
+			}
+		}
+
+		private void run(List<Result> results, String size, int iterations,
+				int warmup) throws Exception {
+			results.add(time("base64-decode", size, iterations, warmup,
+					encoded.length, new Stage() {
+						@Override
+						public void run() throws Exception {
+							InputStream in = new Base64.InputStream(
+									new ByteArrayInputStream(base64),
+									Base64.DECODE);
+							byte[] buffer = new byte[Constants.FILE_BUFFER_SIZE];
+
+							while (in.read(buffer) != -1)
+								;
+						}
+					}));
+			results.add(time("imageio-read", size, iterations, warmup,
+					encoded.length, new Stage() {
+						@Override
+						public void run() throws Exception {
+							ImageIO.read(new ByteArrayInputStream(encoded))
+									.flush();
+						}
+					}));
+			results.add(time("decode-subsampled", size, iterations, warmup,
+					encoded.length, new Stage() {
+						@Override
+						public void run() throws Exception {
+							DecodedImage decoded = ImageDecoder.decode(
+									new MemoryCacheImageInputStream(
+											new ByteArrayInputStream(encoded)),
+									ResizeTarget
+											.getMaxWidth(ResizeTarget.DEFAULT_TARGETS));
+							decoded.image.flush();
+						}
+					}));
+
+			final BufferedImage decoded = ImageIO
+					.read(new ByteArrayInputStream(encoded));
+
+			for (final ResizeTarget target : ResizeTarget.DEFAULT_TARGETS) {
+				if (target.width >= decoded.getWidth())
+					continue;
+
+				results.add(time("resize-" + target.name, size, iterations,
+						warmup, 0, new Stage() {
+							@Override
+							public void run() throws Exception {
+								Scalr.resize(decoded, Method.QUALITY,
+										Mode.FIT_TO_WIDTH, target.width)
+										.flush();
+							}
+						}));
+			}
+
+			results.add(time("imageio-write", size, iterations, warmup,
+					encoded.length, new Stage() {
+						@Override
+						public void run() throws Exception {
+							write(decoded, format);
+						}
+					}));
+			results.add(time("s3-upload", size, iterations, warmup,
+					encoded.length, new Stage() {
+						@Override
+						public void run() throws Exception {
+							assertNotNull(storage.put(file, false));
+						}
+					}));
+
+			decoded.flush();
+		}
+
+		private Result time(String stage, String size, int iterations,
+				int warmup, long bytes, Stage body) throws Exception {
+			for (int i = 0; i < warmup; i++)
+				body.run();
+
+			long[] samples = new long[iterations];
+
+			for (int i = 0; i < iterations; i++) {
+				long startTime = System.nanoTime();
+				body.run();
+				samples[i] = System.nanoTime() - startTime;
+			}
+
+			Result result = new Result(stage, format, size, bytes, samples);
+			Logger.info("%s", result.toCsv());
+			return result;
+		}
+
+		private void close() {
+			file.delete();
+		}
+	}
+
+	private interface Stage {
+		public void run() throws Exception;
+	}
+
+	private static class Result {
+		private String stage;
+		private String format;
+		private String size;
+		private long bytes;
+		private long[] samples;
+
+		private Result(String stage, String format, String size, long bytes,
+				long[] samples) {
+			this.stage = stage;
+			this.format = format;
+			this.size = size;
+			this.bytes = bytes;
+			this.samples = samples.clone();
+
+			Arrays.sort(this.samples);
+		}
+
+		private String toCsv() {
+			long total = 0;
+
+			for (long sample : samples)
+				total += sample;
+
+			return String.format(Locale.US,
+					"%s,%s,%s,%d,%.3f,%.3f,%.3f,%.3f,%.3f,%d", stage, format,
+					size, samples.length, toMs(samples[0]), toMs(total
+							/ samples.length), toMs(percentile(50)),
+					toMs(percentile(90)), toMs(samples[samples.length - 1]),
+					bytes);
+		}
+
+		private long percentile(int percent) {
+			int index = (int) Math.ceil(percent / 100d * samples.length) - 1;
+			return samples[Math.max(0, index)];
+		}
+
+		private static double toMs(long nanos) {
+			return nanos / 1000000d;
+		}
+	}
+
+	private static File writeReport(List<Result> results, int iterations,
+			int warmup) throws Exception {
+		String path = System.getProperty("imgscalr.benchmark.report");
+		File report = (path == null ? createReportFile("pipeline") : new File(
+				path));
+
+		if (report.getParentFile() != null)
+			report.getParentFile().mkdirs();
+
+		PrintWriter out = new PrintWriter(report, "UTF-8");
+
+		try {
+			out.println("# imgscalr pipeline benchmark");
+			out.println("# java=" + System.getProperty("java.version")
+					+ ", os=" + System.getProperty("os.name") + ' '
+					+ System.getProperty("os.arch") + ", processors="
+					+ Runtime.getRuntime().availableProcessors()
+					+ ", maxMemory=" + Runtime.getRuntime().maxMemory());
+			out.println("# iterations=" + iterations + ", warmup=" + warmup
+					+ ", seed=" + SEED);
+			out.println("stage,format,resolution,iterations,minMs,meanMs,p50Ms,p90Ms,maxMs,bytes");
+
+			for (Result result : results)
+				out.println(result.toCsv());
+		} finally {
+			out.close();
+		}
+
+		return report;
+	}
+
+	private static File createReportFile(String name) {
+		File dir = new File((Play.tmpDir == null ? new File("tmp")
+				: Play.tmpDir), "benchmark");
+		dir.mkdirs();
+
+		return new File(dir, name + '-'
+				+ new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date())
+				+ ".csv");
+	}
+
+	/**
+	 * Used to draw a photo-like (gradients, shapes and noise) image from the
+	 * fixed seed.
+	 */
+	private static BufferedImage createImage(int width, int height) {
+		Random random = new Random(SEED);
+		BufferedImage image = new BufferedImage(width, height,
+				BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = image.createGraphics();
+
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+				RenderingHints.VALUE_ANTIALIAS_ON);
+		g.setPaint(new GradientPaint(0, 0, new Color(30, 60, 120),
+				width, height, new Color(230, 190, 90)));
+		g.fillRect(0, 0, width, height);
+
+		for (int i = 0; i < 200; i++) {
+			g.setColor(new Color(random.nextInt(256), random.nextInt(256),
+					random.nextInt(256), 64 + random.nextInt(128)));
+			g.fillOval(random.nextInt(width), random.nextInt(height),
+					1 + random.nextInt(width / 4), 1 + random.nextInt(height / 4));
+		}
+
+		g.dispose();
+
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x += 1 + random.nextInt(4)) {
+				int noise = random.nextInt(17) - 8;
+				int rgb = image.getRGB(x, y);
+				int r = clamp(((rgb >> 16) & 0xFF) + noise);
+				int gr = clamp(((rgb >> 8) & 0xFF) + noise);
+				int b = clamp((rgb & 0xFF) + noise);
+				image.setRGB(x, y, (r << 16) | (gr << 8) | b);
+			}
+		}
+
+		return image;
+	}
+
+	/**
+	 * @return <code>image</code> in the layout ImageIO decodes a file of the
+	 *         given source type into; the alpha types get a gradient of
+	 *         transparency.
+	 */
+	private static BufferedImage convert(BufferedImage image, String type) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		BufferedImage converted;
+
+		if ("3byte_bgr".equals(type)) {
+			converted = new BufferedImage(width, height,
+					BufferedImage.TYPE_3BYTE_BGR);
+		} else if ("4byte_abgr".equals(type)) {
+			converted = new BufferedImage(width, height,
+					BufferedImage.TYPE_4BYTE_ABGR);
+		} else if ("indexed".equals(type)) {
+			converted = new BufferedImage(width, height,
+					BufferedImage.TYPE_BYTE_INDEXED);
+		} else {
+			boolean alpha = !"rgb16".equals(type);
+			boolean gray = "gray_alpha".equals(type);
+			ColorModel colorModel = new ComponentColorModel(
+					ColorSpace.getInstance(gray ? ColorSpace.CS_GRAY
+							: ColorSpace.CS_sRGB), alpha, false,
+					(alpha ? Transparency.TRANSLUCENT : Transparency.OPAQUE),
+					(gray ? DataBuffer.TYPE_BYTE : DataBuffer.TYPE_USHORT));
+			converted = new BufferedImage(colorModel,
+					colorModel.createCompatibleWritableRaster(width, height),
+					false, null);
+		}
+
+		Graphics2D g = converted.createGraphics();
+
+		try {
+			g.drawImage(image, 0, 0, null);
+
+			if (converted.getColorModel().hasAlpha()) {
+				g.setComposite(AlphaComposite.DstIn);
+				g.setPaint(new GradientPaint(0, 0, Color.BLACK, width, 0,
+						new Color(0, 0, 0, 0)));
+				g.fillRect(0, 0, width, height);
+			}
+		} finally {
+			g.dispose();
+		}
+
+		return converted;
+	}
+
+	private static int clamp(int value) {
+		return (value < 0 ? 0 : (value > 255 ? 255 : value));
+	}
+
+	private static byte[] write(BufferedImage image, String format)
+			throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, format, out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * In-process stand-in for S3 that reads the whole file of every put (as
+	 * the real client would to send it) and accepts it.
+	 */
+	private static AmazonS3 createFakeS3() {
+		return (AmazonS3) Proxy.newProxyInstance(
+				AmazonS3.class.getClassLoader(),
+				new Class<?>[] { AmazonS3.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy,
+							java.lang.reflect.Method method, Object[] args)
+							throws Throwable {
+						if (!"putObject".equals(method.getName())
+								|| args.length != 1)
+							return null;
+
+						InputStream in = new FileInputStream(
+								((PutObjectRequest) args[0]).getFile());
+						byte[] buffer = new byte[Constants.FILE_BUFFER_SIZE];
+
+						try {
+							while (in.read(buffer) != -1)
+								;
+						} finally {
+							in.close();
+						}
+
+						PutObjectResult result = new PutObjectResult();
+						result.setETag("\"fake-etag\"");
+						return result;
+					}
+				});
+	}
+}
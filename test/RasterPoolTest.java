@@ -0,0 +1,112 @@
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import play.test.UnitTest;
+import controllers.processing.DecodedImage;
+import controllers.processing.ImageDecoder;
+import controllers.processing.RasterPool;
+
+public class RasterPoolTest extends UnitTest {
+	private TestConfig config = new TestConfig();
+
+	@Before
+	public void setUp() {
+		RasterPool.clear();
+	}
+
+	@After
+	public void tearDown() {
+		RasterPool.clear();
+
+		config.restore();
+	}
+
+	@Test
+	public void reusesClearedImages() {
+		BufferedImage image = RasterPool.acquire(100, 50,
+				BufferedImage.TYPE_INT_RGB);
+		image.setRGB(10, 10, 0xFFFFFF);
+
+		RasterPool.release(image);
+		assertEquals(100 * 50 * 4, RasterPool.getIdleBytes());
+
+		BufferedImage reused = RasterPool.acquire(100, 50,
+				BufferedImage.TYPE_INT_RGB);
+
+		assertSame(image, reused);
+		assertEquals(0, reused.getRGB(10, 10) & 0xFFFFFF);
+		assertEquals(0, RasterPool.getIdleBytes());
+
+		RasterPool.release(reused);
+	}
+
+	@Test
+	public void keyedByDimensionsAndType() {
+		BufferedImage image = RasterPool.acquire(100, 50,
+				BufferedImage.TYPE_INT_RGB);
+		RasterPool.release(image);
+
+		assertNotSame(image, RasterPool.acquire(100, 50,
+				BufferedImage.TYPE_INT_ARGB));
+		assertNotSame(image, RasterPool.acquire(50, 100,
+				BufferedImage.TYPE_INT_RGB));
+		assertSame(image, RasterPool.acquire(100, 50,
+				BufferedImage.TYPE_INT_RGB));
+	}
+
+	@Test
+	public void keepsAtMostConfiguredIdleBytes() {
+		config.set(RasterPool.CONFIG_RASTER_BYTES, Integer.toString(100 * 50 * 4));
+
+		BufferedImage first = RasterPool.acquire(100, 50,
+				BufferedImage.TYPE_INT_RGB);
+		BufferedImage second = RasterPool.acquire(100, 50,
+				BufferedImage.TYPE_INT_RGB);
+
+		RasterPool.release(first);
+		RasterPool.release(second);
+		assertEquals(100 * 50 * 4, RasterPool.getIdleBytes());
+	}
+
+	@Test
+	public void indexedImagesAreNotPooled() {
+		int lent = RasterPool.getLentCount();
+		BufferedImage image = RasterPool.acquire(10, 10,
+				BufferedImage.TYPE_BYTE_INDEXED);
+
+		assertEquals(lent, RasterPool.getLentCount());
+		RasterPool.release(image);
+		assertEquals(0, RasterPool.getIdleBytes());
+	}
+
+	@Test
+	public void decoderReusesReleasedImages() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(new BufferedImage(320, 240, BufferedImage.TYPE_INT_RGB),
+				"jpg", out);
+		byte[] data = out.toByteArray();
+
+		DecodedImage first = decode(data);
+		first.release();
+
+		long reused = RasterPool.getReusedCount();
+		DecodedImage second = decode(data);
+
+		assertSame(first.image, second.image);
+		assertEquals(reused + 1, RasterPool.getReusedCount());
+		second.release();
+	}
+
+	private static DecodedImage decode(byte[] data) throws Exception {
+		return ImageDecoder.decode(new MemoryCacheImageInputStream(
+				new ByteArrayInputStream(data)), 0);
+	}
+}
@@ -0,0 +1,165 @@
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.util.List;
+
+import org.junit.Test;
+
+import play.Logger;
+import play.test.UnitTest;
+
+import com.thebuzzmedia.imgscalr.Scalr;
+import com.thebuzzmedia.imgscalr.Scalr.Method;
+import com.thebuzzmedia.imgscalr.Scalr.Mode;
+
+import controllers.processing.ResizePlan;
+import controllers.processing.ResizeTarget;
+
+public class ResizePlanTest extends UnitTest {
+	/**
+	 * Mean per-channel difference (out of 255) we accept between a cascaded
+	 * result and the same size scaled directly from the original.
+	 */
+	private static final double MAX_MEAN_CHANNEL_DIFF = 5;
+
+	@Test
+	public void planWithoutCascadeScalesEverythingFromOriginal() {
+		ResizePlan plan = ResizePlan.create(4000,
+				ResizeTarget.DEFAULT_TARGETS, false, 2);
+
+		assertEquals(4, plan.steps.size());
+		assertEquals(4, plan.roots.size());
+
+		for (ResizePlan.Step step : plan.steps)
+			assertNull(step.source);
+	}
+
+	@Test
+	public void planCascadesLargestToSmallestWithinRatio() {
+		ResizePlan plan = ResizePlan.create(4000,
+				ResizeTarget.DEFAULT_TARGETS, true, 2);
+		List<ResizePlan.Step> steps = plan.steps;
+
+		assertEquals(1024, steps.get(0).target.width);
+		assertNull(steps.get(0).source);
+
+		// 500 from 1024, 250 from 500 (exactly 2x), 150 can't use 250.
+		assertSame(steps.get(0), steps.get(1).source);
+		assertSame(steps.get(1), steps.get(2).source);
+		assertSame(steps.get(1), steps.get(3).source);
+		assertEquals(1, plan.roots.size());
+	}
+
+	@Test
+	public void planSkipsTargetsWiderThanSource() {
+		ResizePlan plan = ResizePlan.create(300, ResizeTarget.DEFAULT_TARGETS,
+				true, 1);
+
+		assertEquals(2, plan.steps.size());
+		assertSame(plan.steps.get(0), plan.steps.get(1).source);
+	}
+
+	@Test
+	public void cascadeQualityAndWorkComparedToOriginal() {
+		int[][] inputs = { { 1600, 1200 }, { 3000, 2000 }, { 4000, 3000 } };
+
+		for (int[] size : inputs) {
+			BufferedImage original = createSampleImage(size[0], size[1]);
+			ResizePlan plan = ResizePlan.create(original.getWidth(),
+					ResizeTarget.DEFAULT_TARGETS, true, 2);
+
+			// The work of a resize is dominated by the source pixels scanned.
+			long directPixels = 0;
+			BufferedImage[] direct = new BufferedImage[plan.steps.size()];
+
+			for (int i = 0; i < direct.length; i++) {
+				direct[i] = Scalr.resize(original, Method.QUALITY,
+						Mode.FIT_TO_WIDTH, plan.steps.get(i).target.width);
+				directPixels += pixels(original);
+			}
+
+			long cascadePixels = 0;
+			BufferedImage[] cascaded = new BufferedImage[plan.steps.size()];
+
+			for (int i = 0; i < cascaded.length; i++) {
+				ResizePlan.Step step = plan.steps.get(i);
+				BufferedImage source = (step.source == null ? original
+						: cascaded[plan.steps.indexOf(step.source)]);
+
+				cascaded[i] = Scalr.resize(source, Method.QUALITY,
+						Mode.FIT_TO_WIDTH, step.target.width);
+				cascadePixels += pixels(source);
+			}
+
+			for (int i = 0; i < cascaded.length; i++) {
+				double diff = meanChannelDiff(direct[i], cascaded[i]);
+
+				Logger.info("Cascade %sx%s %s [meanChannelDiff=%s]", size[0],
+						size[1], plan.steps.get(i), diff);
+				assertTrue(plan.steps.get(i) + " differs by " + diff,
+						diff <= MAX_MEAN_CHANNEL_DIFF);
+			}
+
+			Logger.info(
+					"Cascade %sx%s [directPixels=%s, cascadePixels=%s]",
+					size[0], size[1], directPixels, cascadePixels);
+
+			// Only the largest size reads the original, the rest read a
+			// smaller size: well under half the pixels for 4 sizes.
+			assertTrue(cascadePixels + " vs " + directPixels,
+					cascadePixels * 2 < directPixels);
+		}
+	}
+
+	private static long pixels(BufferedImage image) {
+		return (long) image.getWidth() * image.getHeight();
+	}
+
+	/**
+	 * Photo-like test input: smooth gradients with some hard edges and fine
+	 * detail, which is where cascading would show artifacts first.
+	 */
+	private static BufferedImage createSampleImage(int width, int height) {
+		BufferedImage image = new BufferedImage(width, height,
+				BufferedImage.TYPE_INT_RGB);
+		Graphics2D g = image.createGraphics();
+
+		g.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
+				RenderingHints.VALUE_ANTIALIAS_ON);
+		g.setPaint(new GradientPaint(0, 0, new Color(30, 60, 120), width,
+				height, new Color(240, 200, 90)));
+		g.fillRect(0, 0, width, height);
+
+		g.setColor(new Color(20, 120, 40));
+		g.fillOval(width / 4, height / 4, width / 2, height / 2);
+
+		g.setColor(Color.WHITE);
+		for (int x = 0; x < width; x += 37)
+			g.drawLine(x, 0, width - x, height);
+
+		g.dispose();
+		return image;
+	}
+
+	private static double meanChannelDiff(BufferedImage a, BufferedImage b) {
+		assertEquals(a.getWidth(), b.getWidth());
+		assertEquals(a.getHeight(), b.getHeight());
+
+		long total = 0;
+
+		for (int y = 0; y < a.getHeight(); y++) {
+			for (int x = 0; x < a.getWidth(); x++) {
+				int p1 = a.getRGB(x, y);
+				int p2 = b.getRGB(x, y);
+
+				for (int shift = 0; shift <= 16; shift += 8)
+					total += Math.abs(((p1 >> shift) & 0xFF)
+							- ((p2 >> shift) & 0xFF));
+			}
+		}
+
+		return (double) total / (a.getWidth() * a.getHeight() * 3);
+	}
+}
@@ -0,0 +1,292 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import play.test.UnitTest;
+import controllers.response.UploadResponse;
+import controllers.storage.SharedSpool;
+
+public class SharedSpoolTest extends UnitTest {
+	private static final long LEASE = 60000;
+
+	private File dir;
+	private File spoolDir;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = createDir("shared-spool-test");
+		spoolDir = createDir("shared-spool-upload");
+	}
+
+	@After
+	public void tearDown() {
+		TestFiles.delete(dir);
+		TestFiles.delete(spoolDir);
+	}
+
+	@Test
+	public void ownJobsAreClaimedFirstAndOnce() throws Exception {
+		SharedSpool a = createNode("a");
+		SharedSpool b = createNode("b");
+
+		publish(a, 0);
+		publish(b, 1);
+
+		SharedSpool.Job job = a.claim();
+		assertEquals(key(0), job.uniqueFileKey);
+		assertEquals("a", job.publishedBy);
+		assertEquals("photo 0.jpg", job.originalFileName);
+		assertFalse(job.stolen);
+		assertTrue(job.file.isFile());
+
+		// Nothing left in the queue of a, nor anything b can take from it.
+		assertNull(a.claim());
+		assertEquals(0, a.getPendingCount());
+		assertTrue(a.isOpen(key(0)));
+
+		job = b.claim();
+		assertEquals(key(1), job.uniqueFileKey);
+		assertNull(b.steal());
+	}
+
+	@Test
+	public void idleNodeStealsFromLongestQueue() throws Exception {
+		SharedSpool a = createNode("a");
+		SharedSpool b = createNode("b");
+		SharedSpool c = createNode("c");
+
+		publish(a, 0);
+		publish(b, 1);
+		publish(b, 2);
+		publish(b, 3);
+
+		assertNull(c.claim());
+
+		SharedSpool.Job job = c.steal();
+		assertTrue(job.stolen);
+		assertEquals("b", job.publishedBy);
+		assertEquals(key(1), job.uniqueFileKey);
+		assertEquals(2, b.getPendingCount());
+
+		c.complete(job, response(job, UploadResponse.Type.SUCCESS));
+		assertFalse(job.file.exists());
+		assertFalse(c.isOpen(job.uniqueFileKey));
+		assertEquals(UploadResponse.CODE_SUCCESS, a
+				.getResponse(job.uniqueFileKey).code.intValue());
+	}
+
+	@Test
+	public void releasedJobCanBeStolen() throws Exception {
+		SharedSpool a = createNode("a");
+		SharedSpool b = createNode("b");
+
+		publish(a, 0);
+		SharedSpool.Job job = a.claim();
+		assertNull(b.steal());
+
+		assertTrue(a.release(job));
+		assertEquals(key(0), b.steal().uniqueFileKey);
+	}
+
+	@Test
+	public void expiredLeaseIsRequeued() throws Exception {
+		SharedSpool a = createNode("a");
+		SharedSpool b = createNode("b");
+
+		publish(a, 0);
+		SharedSpool.Job job = a.claim();
+		long now = System.currentTimeMillis();
+
+		assertEquals(0, b.requeueExpired(now));
+		assertEquals(1, b.requeueExpired(now + LEASE * 2));
+
+		// The lease of a is gone; b has it now.
+		assertFalse(a.renew(job));
+		SharedSpool.Job requeued = b.claim();
+		assertEquals(key(0), requeued.uniqueFileKey);
+
+		assertFalse(a.complete(job, response(job, UploadResponse.Type.SUCCESS)));
+		assertTrue(requeued.file.isFile());
+		assertNull(b.getResponse(key(0)));
+
+		assertTrue(b.complete(requeued, response(requeued,
+				UploadResponse.Type.SUCCESS)));
+		assertNotNull(a.getResponse(key(0)));
+	}
+
+	@Test
+	public void finishedJobIsNotClaimedAgain() throws Exception {
+		SharedSpool a = createNode("a");
+		SharedSpool b = createNode("b");
+
+		publish(a, 0);
+		SharedSpool.Job job = a.claim();
+		a.complete(job, response(job, UploadResponse.Type.SUCCESS));
+
+		// The job was requeued just as it finished.
+		File jobFile = new File(dir, "nodes/a/pending/" + key(0)
+				+ SharedSpool.JOB_SUFFIX);
+		FileOutputStream out = new FileOutputStream(jobFile);
+		out.write(("uniqueFileKey=" + key(0) + "\nuniqueFileName=" + key(0)
+				+ ".jpg\nacceptedAt=0\n").getBytes("UTF-8"));
+		out.close();
+
+		assertNull(b.steal());
+		assertFalse(jobFile.exists());
+	}
+
+	@Test
+	public void nodesReportWhatTheyProcessed() throws Exception {
+		SharedSpool a = createNode("a");
+		SharedSpool b = createNode("b");
+
+		for (int i = 0; i < 3; i++)
+			publish(a, i);
+
+		SharedSpool.Job job = a.claim();
+		a.complete(job, response(job, UploadResponse.Type.SUCCESS));
+		job = b.steal();
+		b.complete(job, response(job, UploadResponse.Type.UNABLE_TO_UPLOAD_TO_CDN));
+
+		Map<String, SharedSpool.NodeStats> stats = b.getNodeStats();
+		assertEquals(2, stats.size());
+
+		SharedSpool.NodeStats nodeA = stats.get("a");
+		assertEquals(1, nodeA.processed);
+		assertEquals(0, nodeA.stolen);
+		assertEquals(1, nodeA.pending);
+
+		SharedSpool.NodeStats nodeB = stats.get("b");
+		assertEquals(1, nodeB.processed);
+		assertEquals(1, nodeB.stolen);
+		assertEquals(1, nodeB.failed);
+		assertTrue(nodeB.updatedAt >= nodeB.startedAt);
+	}
+
+	@Test
+	public void nodeIdIsSanitized() throws Exception {
+		SharedSpool node = new SharedSpool(dir, "../host:9200", LEASE);
+		assertEquals("___host_9200", node.getNodeId());
+	}
+
+	/**
+	 * Several nodes, each with its own spool on the shared dir, race for the
+	 * jobs of one overloaded node; every job must be processed by exactly one
+	 * of them.
+	 */
+	@Test
+	public void racingNodesClaimEveryJobOnce() throws Exception {
+		final int jobCount = 300;
+		SharedSpool hot = createNode("hot");
+
+		for (int i = 0; i < jobCount; i++)
+			publish(hot, i);
+
+		final List<String> claimed = Collections
+				.synchronizedList(new ArrayList<String>());
+		List<SharedSpool> nodes = new ArrayList<SharedSpool>();
+		nodes.add(hot);
+
+		for (int i = 0; i < 4; i++)
+			nodes.add(createNode("idle" + i));
+
+		ExecutorService executor = Executors.newFixedThreadPool(nodes.size());
+		List<Future<Integer>> counts = new ArrayList<Future<Integer>>();
+
+		try {
+			for (final SharedSpool node : nodes) {
+				counts.add(executor.submit(new Callable<Integer>() {
+					@Override
+					public Integer call() throws Exception {
+						int count = 0;
+						SharedSpool.Job job;
+
+						while ((job = node.claim()) != null
+								|| (job = node.steal()) != null) {
+							claimed.add(job.uniqueFileKey);
+							node.complete(job, response(job,
+									UploadResponse.Type.SUCCESS));
+							count++;
+						}
+
+						return Integer.valueOf(count);
+					}
+				}));
+			}
+
+			int total = 0;
+
+			for (Future<Integer> count : counts)
+				total += count.get().intValue();
+
+			assertEquals(jobCount, total);
+		} finally {
+			executor.shutdownNow();
+		}
+
+		assertEquals(jobCount, claimed.size());
+		assertEquals(jobCount, new HashSet<String>(claimed).size());
+
+		long processed = 0;
+
+		for (SharedSpool.NodeStats stats : hot.getNodeStats().values())
+			processed += stats.processed;
+
+		assertEquals(jobCount, processed);
+	}
+
+	private SharedSpool createNode(String nodeId) throws Exception {
+		SharedSpool node = new SharedSpool(dir, nodeId, LEASE);
+		node.init();
+		return node;
+	}
+
+	private void publish(SharedSpool node, int i) throws Exception {
+		File file = new File(spoolDir, key(i) + ".jpg");
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(new byte[] { (byte) 0xFF, (byte) 0xD8, (byte) i });
+		out.close();
+
+		node.publish(file, key(i), key(i) + ".jpg", "photo " + i + ".jpg",
+				null, "127.0.0.1");
+	}
+
+	private static UploadResponse response(SharedSpool.Job job,
+			UploadResponse.Type type) {
+		UploadResponse response = new UploadResponse(type);
+		response.uniqueFileKey = job.uniqueFileKey;
+		response.uniqueFileName = job.uniqueFileName;
+		return response;
+	}
+
+	/**
+	 * @return a unique file key (9 letters) for job <code>i</code>.
+	 */
+	private static String key(int i) {
+		char[] chars = "AAAAAAAAA".toCharArray();
+
+		for (int pos = chars.length - 1; i > 0; pos--, i /= 26)
+			chars[pos] = (char) ('a' + i % 26);
+
+		return new String(chars);
+	}
+
+	private static File createDir(String prefix) throws Exception {
+		File d = File.createTempFile(prefix, "");
+		d.delete();
+		d.mkdirs();
+		return d;
+	}
+}
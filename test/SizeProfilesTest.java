@@ -0,0 +1,192 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import play.test.UnitTest;
+
+import com.thebuzzmedia.imgscalr.Scalr;
+import com.thebuzzmedia.imgscalr.Scalr.Method;
+import com.thebuzzmedia.imgscalr.Scalr.Mode;
+
+import controllers.processing.ResizeExecutor;
+import controllers.processing.ResizeResult;
+import controllers.processing.ResizeTarget;
+import controllers.processing.SizeProfiles;
+
+public class SizeProfilesTest extends UnitTest {
+	private TestConfig config = new TestConfig();
+
+	@Before
+	public void setUp() {
+		SizeProfiles.reload();
+	}
+
+	@After
+	public void tearDown() {
+		config.restore();
+		SizeProfiles.reload();
+	}
+
+	@Test
+	public void defaultsAreTheHistoricalSizes() {
+		setConfig(SizeProfiles.CONFIG_SIZES, null);
+
+		List<ResizeTarget> eager = SizeProfiles.getEagerTargets();
+		assertEquals(ResizeTarget.DEFAULT_TARGETS.size(), eager.size());
+
+		for (int i = 0; i < eager.size(); i++) {
+			ResizeTarget expected = ResizeTarget.DEFAULT_TARGETS.get(i);
+
+			assertEquals(expected.name, eager.get(i).name);
+			assertEquals(expected.width, eager.get(i).width);
+			assertEquals(expected.suffix, eager.get(i).suffix);
+			assertEquals(Method.QUALITY, eager.get(i).method);
+			assertEquals(Mode.FIT_TO_WIDTH, eager.get(i).mode);
+		}
+
+		ResizeTarget xlarge = SizeProfiles.get("xlarge");
+		assertEquals(1280, xlarge.width);
+		assertEquals("XL", xlarge.suffix);
+		assertTrue(xlarge.lazy);
+		assertEquals(7, SizeProfiles.getProfiles().size());
+		assertSame(xlarge, SizeProfiles.forWidth(1280));
+	}
+
+	@Test
+	public void profilesAreConfigurable() {
+		setConfig(SizeProfiles.CONFIG_SIZES, "thumbnail, Preview,xxlarge");
+		setConfig("imgscalr.sizes.thumbnail.width", "120");
+		setConfig("imgscalr.sizes.preview.width", "400");
+		setConfig("imgscalr.sizes.preview.suffix", "p");
+		setConfig("imgscalr.sizes.preview.method", "speed");
+		setConfig("imgscalr.sizes.preview.mode", "AUTOMATIC");
+		setConfig("imgscalr.sizes.preview.quality", "0.6");
+		setConfig("imgscalr.sizes.xxlarge.lazy", "false");
+
+		List<ResizeTarget> eager = SizeProfiles.getEagerTargets();
+		assertEquals(3, eager.size());
+
+		assertEquals("THUMBNAIL", eager.get(0).name);
+		assertEquals(120, eager.get(0).width);
+		assertEquals("T", eager.get(0).suffix);
+
+		ResizeTarget preview = SizeProfiles.get("PREVIEW");
+		assertSame(preview, eager.get(1));
+		assertEquals(400, preview.width);
+		assertEquals("P", preview.suffix);
+		assertEquals(Method.SPEED, preview.method);
+		assertEquals(Mode.AUTOMATIC, preview.mode);
+		assertEquals(0.6f, preview.quality.floatValue(), 0);
+		assertFalse(preview.lazy);
+
+		assertEquals(1600, eager.get(2).width);
+		assertNull(SizeProfiles.get("small"));
+	}
+
+	@Test
+	public void unusableProfilesAreLeftOut() {
+		setConfig(SizeProfiles.CONFIG_SIZES,
+				"small,nowidth,badsuffix,taken,bad.name,badquality,badmethod");
+		setConfig("imgscalr.sizes.badsuffix.width", "100");
+		setConfig("imgscalr.sizes.badsuffix.suffix", "B-1");
+		setConfig("imgscalr.sizes.taken.width", "100");
+		setConfig("imgscalr.sizes.taken.suffix", "S");
+		setConfig("imgscalr.sizes.badquality.width", "100");
+		setConfig("imgscalr.sizes.badquality.quality", "high");
+		setConfig("imgscalr.sizes.badmethod.width", "100");
+		setConfig("imgscalr.sizes.badmethod.method", "FASTEST");
+
+		List<ResizeTarget> profiles = SizeProfiles.getProfiles();
+		assertEquals(2, profiles.size());
+		assertEquals("SMALL", profiles.get(0).name);
+
+		// An unknown method falls back to the default, the rest is fine.
+		assertEquals("BADMETHOD", profiles.get(1).name);
+		assertEquals(Method.QUALITY, profiles.get(1).method);
+	}
+
+	@Test
+	public void targetsResolveToTheWidthScalrProduces() {
+		BufferedImage portrait = TestImages.createImage(300, 700);
+		BufferedImage landscape = TestImages.createImage(700, 300);
+
+		for (Mode mode : Mode.values()) {
+			ResizeTarget target = new ResizeTarget("BOX", 200, "B",
+					Method.SPEED, mode, null, false);
+
+			for (BufferedImage image : Arrays.asList(portrait, landscape)) {
+				ResizeTarget resolved = target.resolve(image.getWidth(),
+						image.getHeight());
+
+				assertEquals(Mode.FIT_TO_WIDTH, resolved.mode);
+				assertEquals("B", resolved.suffix);
+				assertEquals(mode + " " + image.getWidth(), Scalr.resize(
+						image, Method.SPEED, mode, 200).getWidth(),
+						resolved.width);
+			}
+		}
+
+		List<ResizeTarget> targets = ResizeTarget.DEFAULT_TARGETS;
+		assertSame(targets, ResizeTarget.resolve(targets, 300, 700));
+	}
+
+	@Test
+	public void sizesAreGeneratedAsProfiled() throws Exception {
+		File dir = File.createTempFile("size-profiles-test", "");
+		dir.delete();
+		dir.mkdirs();
+
+		try {
+			ResizeTarget box = new ResizeTarget("BOX", 100, "B",
+					Method.BALANCED, Mode.AUTOMATIC, null, false);
+			List<ResizeResult> results = ResizeExecutor.resize(
+					TestImages.createImage(200, 400), dir, "abcdefghi", "png",
+					Arrays.asList(box, ResizeTarget.DEFAULT_TARGETS.get(0)));
+
+			assertEquals(2, results.size());
+
+			// The thumbnail is 150 wide, the box fits the height of 100.
+			ResizeResult result = results.get(1);
+			assertEquals("BOX", result.target.name);
+			assertEquals(50, result.width);
+			assertEquals(100, result.height);
+			assertEquals(new File(dir, "abcdefghi-B.png"), result.file);
+			assertTrue(result.file.isFile());
+		} finally {
+			for (File file : dir.listFiles())
+				file.delete();
+
+			dir.delete();
+		}
+	}
+
+	@Test
+	public void profileQualityIsUsedByTheEncoder() throws Exception {
+		BufferedImage image = TestImages.createNoisyImage(400, 300,
+				BufferedImage.TYPE_INT_RGB);
+
+		setConfig(SizeProfiles.CONFIG_SIZES, null);
+		setConfig("imgscalr.encode.jpg.quality", "0.95");
+		setConfig("imgscalr.encode.jpg.quality.thumbnail", null);
+		setConfig("imgscalr.sizes.thumbnail.quality", "0.2");
+
+		int large = TestImages.encode(image, "jpg", "LARGE").length;
+		int thumbnail = TestImages.encode(image, "jpg", "THUMBNAIL").length;
+		assertTrue(thumbnail < large);
+
+		// The format's own setting for the tier still wins.
+		setConfig("imgscalr.encode.jpg.quality.thumbnail", "0.95");
+		assertEquals(large,
+				TestImages.encode(image, "jpg", "THUMBNAIL").length);
+	}
+
+	private void setConfig(String key, String value) {
+		config.set(key, value);
+		SizeProfiles.reload();
+	}
+}
@@ -0,0 +1,163 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import play.test.UnitTest;
+import controllers.storage.AbstractStorage;
+import controllers.storage.LocalStorage;
+import controllers.storage.WriteBehindStorage;
+
+public class StorageTest extends UnitTest {
+	private File dir;
+	private File storageDir;
+	private LocalStorage local;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = File.createTempFile("storage-test", "");
+		dir.delete();
+		dir.mkdirs();
+
+		storageDir = new File(dir, "storage");
+		local = new LocalStorage(storageDir, "/storage/", true);
+	}
+
+	@After
+	public void tearDown() {
+		TestFiles.delete(dir);
+	}
+
+	@Test
+	public void putMovesFileIntoPlace() throws Exception {
+		File file = createFile("abc.jpg", 1024);
+
+		assertEquals("/storage/abc.jpg", local.put(file, true));
+		assertFalse(file.exists());
+		assertTrue(local.exists("abc.jpg"));
+		assertEquals(1024, local.getFile("abc.jpg").length());
+		assertEquals("/storage/abc.jpg", local.getUrl("abc.jpg"));
+
+		assertTrue(local.delete("abc.jpg"));
+		assertFalse(local.exists("abc.jpg"));
+	}
+
+	@Test
+	public void putCopiesFileThatIsStillNeeded() throws Exception {
+		File file = createFile("abc.jpg", 100000);
+
+		assertEquals("/storage/abc.jpg", local.put(file, false));
+		assertTrue(file.exists());
+		assertEquals(100000, local.getFile("abc.jpg").length());
+		assertFalse(new File(storageDir, "abc.jpg.tmp").exists());
+	}
+
+	@Test
+	public void putReplacesExistingFile() throws Exception {
+		local.put(createFile("abc.jpg", 10), true);
+		local.put(createFile("abc.jpg", 20), true);
+
+		assertEquals(20, local.getFile("abc.jpg").length());
+	}
+
+	@Test
+	public void writeBehindReturnsLocalUrlAndReplicates() throws Exception {
+		RecordingStorage remote = new RecordingStorage();
+		WriteBehindStorage storage = new WriteBehindStorage(local, remote);
+
+		try {
+			assertEquals("/storage/a.jpg",
+					storage.put(createFile("a.jpg", 10), true));
+
+			List<String> urls = storage.putAll(
+					Arrays.asList(createFile("b.jpg", 10),
+							createFile("c.jpg", 10)), true);
+			assertEquals(Arrays.asList("/storage/b.jpg", "/storage/c.jpg"),
+					urls);
+		} finally {
+			storage.shutdown();
+		}
+
+		assertEquals(0, storage.getPendingCount());
+		assertEquals(0, storage.getFailedCount());
+
+		List<String> replicated = new ArrayList<String>(remote.names);
+		Collections.sort(replicated);
+		assertEquals(Arrays.asList("a.jpg", "b.jpg", "c.jpg"), replicated);
+
+		// The local copies back the returned URLs.
+		assertTrue(local.exists("a.jpg"));
+		assertTrue(storage.exists("c.jpg"));
+	}
+
+	@Test
+	public void writeBehindCountsFailedReplication() throws Exception {
+		RecordingStorage remote = new RecordingStorage();
+		remote.fail = true;
+		WriteBehindStorage storage = new WriteBehindStorage(local, remote);
+
+		try {
+			assertEquals("/storage/a.jpg",
+					storage.put(createFile("a.jpg", 10), true));
+		} finally {
+			storage.shutdown();
+		}
+
+		assertEquals(0, storage.getPendingCount());
+		assertEquals(1, storage.getFailedCount());
+		assertEquals(WriteBehindStorage.DEFAULT_ATTEMPTS, remote.names.size());
+	}
+
+	private File createFile(String name, int size) throws Exception {
+		File file = new File(dir, name);
+		FileOutputStream out = new FileOutputStream(file);
+
+		try {
+			out.write(new byte[size]);
+		} finally {
+			out.close();
+		}
+
+		return file;
+	}
+
+	private static class RecordingStorage extends AbstractStorage {
+		private List<String> names = Collections
+				.synchronizedList(new ArrayList<String>());
+		private volatile boolean fail;
+
+		@Override
+		public String put(File file, boolean deleteOnComplete) {
+			assertTrue(file.isFile());
+			names.add(file.getName());
+			return (fail ? null : "http://remote/" + file.getName());
+		}
+
+		@Override
+		public boolean exists(String name) {
+			return names.contains(name);
+		}
+
+		@Override
+		public InputStream open(String name) {
+			return null;
+		}
+
+		@Override
+		public boolean delete(String name) {
+			return names.remove(name);
+		}
+
+		@Override
+		public String getUrl(String name) {
+			return "http://remote/" + name;
+		}
+	}
+}
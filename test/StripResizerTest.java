@@ -0,0 +1,165 @@
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+
+import org.junit.After;
+import org.junit.Test;
+
+import play.test.UnitTest;
+
+import com.thebuzzmedia.imgscalr.Scalr;
+import com.thebuzzmedia.imgscalr.Scalr.Method;
+import com.thebuzzmedia.imgscalr.Scalr.Mode;
+
+import controllers.processing.AdmissionController;
+import controllers.processing.DecodedImage;
+import controllers.processing.ImageDecoder;
+import controllers.processing.ResizeExecutor;
+import controllers.processing.ResizeResult;
+import controllers.processing.ResizeTarget;
+import controllers.processing.StripResizer;
+
+public class StripResizerTest extends UnitTest {
+	private static final ResizeTarget WIDE = new ResizeTarget("WIDE", 600,
+			"W");
+	private static final ResizeTarget NARROW = new ResizeTarget("NARROW",
+			150, "N");
+
+	private TestConfig config = new TestConfig();
+
+	@After
+	public void tearDown() {
+		config.restore();
+	}
+
+	@Test
+	public void streamedSizesAreCloseToQuality() throws Exception {
+		BufferedImage image = TestImages.createImage(1900, 1300);
+		byte[] png = TestImages.encode(image, "png");
+
+		config.set(StripResizer.CONFIG_THRESHOLD, "1000000");
+		config.set(StripResizer.CONFIG_STRIP_PIXELS, "100000");
+
+		ByteSource source = new ByteSource(png);
+		DecodedImage decoded = decode(source, Arrays.asList(WIDE, NARROW));
+
+		// The upload is read forward only, the strips from a stream of
+		// their own.
+		assertTrue(decoded.isStreamed());
+		assertEquals(1, source.getOpenCount());
+		assertNull(decoded.image);
+		assertEquals(1900, decoded.width);
+		assertEquals(2, decoded.scaled.size());
+
+		for (ResizeTarget target : decoded.scaled.keySet()) {
+			BufferedImage streamed = decoded.scaled.get(target);
+			BufferedImage quality = Scalr.resize(image, Method.QUALITY,
+					Mode.FIT_TO_WIDTH, target.width);
+
+			assertEquals(quality.getWidth(), streamed.getWidth());
+			assertEquals(quality.getHeight(), streamed.getHeight());
+			assertTrue(target + " differs by " + meanDifference(quality,
+					streamed), meanDifference(quality, streamed) < 3);
+		}
+	}
+
+	@Test
+	public void smallImagesAreNotStreamed() throws Exception {
+		config.set(StripResizer.CONFIG_THRESHOLD, "1000000");
+
+		ByteSource source = new ByteSource(TestImages.encode(
+				TestImages.createImage(900, 700), "png"));
+		DecodedImage decoded = decode(source, Arrays.asList(WIDE, NARROW));
+
+		assertFalse(decoded.isStreamed());
+		assertEquals(0, source.getOpenCount());
+		assertNotNull(decoded.image);
+		assertFalse(StripResizer.isStreaming(900, 700, 1));
+		assertTrue(StripResizer.isStreaming(2000, 1000, 1));
+		assertFalse(StripResizer.isStreaming(2000, 1000, 2));
+
+		config.set(StripResizer.CONFIG_THRESHOLD, "0");
+		assertFalse(StripResizer.isStreaming(20000, 10000, 1));
+	}
+
+	@Test
+	public void streamedImagesAreAdmittedForAStrip() {
+		config.set(StripResizer.CONFIG_THRESHOLD, "1000000");
+		config.set(StripResizer.CONFIG_STRIP_PIXELS, "1000000");
+
+		assertEquals(2000000 * AdmissionController.BYTES_PER_PIXEL,
+				AdmissionController.estimate(20000, 10000, 1));
+	}
+
+	@Test
+	public void streamedSizesAreWritten() throws Exception {
+		config.set(StripResizer.CONFIG_THRESHOLD, "1000000");
+
+		List<ResizeTarget> targets = Arrays.asList(NARROW, WIDE);
+		DecodedImage decoded = decode(TestImages.encode(
+				TestImages.createImage(1600, 1200), "jpg"), targets);
+		File dir = File.createTempFile("strip-test", "");
+		dir.delete();
+		dir.mkdirs();
+
+		try {
+			List<ResizeResult> results = ResizeExecutor.resize(decoded, dir,
+					"abcdefghi", "jpg", targets, null);
+
+			assertEquals(2, results.size());
+			assertSame(WIDE, results.get(0).target);
+			assertSame(NARROW, results.get(1).target);
+
+			for (ResizeResult result : results) {
+				assertNull(result.error);
+				assertEquals(result.target.width,
+						ImageIO.read(result.file).getWidth());
+			}
+		} finally {
+			for (File file : dir.listFiles())
+				file.delete();
+
+			dir.delete();
+		}
+	}
+
+	private static DecodedImage decode(byte[] data, List<ResizeTarget> targets)
+			throws Exception {
+		return decode(new ByteSource(data), targets);
+	}
+
+	private static DecodedImage decode(ByteSource source,
+			List<ResizeTarget> targets) throws Exception {
+		ImageInputStream stream = source.stream();
+
+		try {
+			return ImageDecoder.decode(stream, targets, null, source);
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * @return the mean difference per channel, from 0 to 255.
+	 */
+	private static double meanDifference(BufferedImage a, BufferedImage b) {
+		long total = 0;
+
+		for (int y = 0; y < a.getHeight(); y++) {
+			for (int x = 0; x < a.getWidth(); x++) {
+				int p = a.getRGB(x, y);
+				int q = b.getRGB(x, y);
+
+				for (int shift = 0; shift < 24; shift += 8)
+					total += Math.abs(((p >> shift) & 0xFF)
+							- ((q >> shift) & 0xFF));
+			}
+		}
+
+		return total / (3.0 * a.getWidth() * a.getHeight());
+	}
+}
@@ -0,0 +1,122 @@
+import java.io.File;
+import java.io.FileOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import play.test.UnitTest;
+import controllers.storage.TempFileIndex;
+
+public class TempFileIndexTest extends UnitTest {
+	private static final long TTL = 60000;
+
+	private File dir;
+	private TempFileIndex index;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = File.createTempFile("tmp-index-test", "");
+		dir.delete();
+		dir.mkdirs();
+
+		index = new TempFileIndex(dir, TTL);
+	}
+
+	@After
+	public void tearDown() {
+		for (File file : dir.listFiles())
+			file.delete();
+
+		dir.delete();
+	}
+
+	@Test
+	public void tempFileNames() {
+		assertTrue(TempFileIndex
+				.isTempFileName("0b6e7f5a-3c1d-4e2f-9a8b-7c6d5e4f3a2b"));
+		assertTrue(TempFileIndex.isTempFileName("AbCdEfGhI.jpg"));
+		assertTrue(TempFileIndex.isTempFileName("AbCdEfGhI-XXL.png"));
+		assertFalse(TempFileIndex.isTempFileName("AbCdEfGhI.txt"));
+		assertFalse(TempFileIndex.isTempFileName("application.log"));
+		assertFalse(TempFileIndex
+				.isTempFileName("0b6e7f5a-3c1d-4e2f-9a8b-7c6d5e4f3a2b.jpg"));
+	}
+
+	@Test
+	public void expireDeletesOnlyDueFiles() throws Exception {
+		long now = System.currentTimeMillis();
+		File a = createFile("AbCdEfGhI.jpg", 100);
+		File b = createFile("AbCdEfGhI-T.jpg", 20);
+		File gone = createFile("AbCdEfGhI-S.jpg", 30);
+
+		index.track(a);
+		index.track(b);
+		index.track(gone);
+		gone.delete();
+
+		assertEquals(0, index.expire(now, 100));
+		assertEquals(3, index.size());
+
+		assertEquals(120, index.expire(now + TTL + 1000, 100));
+		assertFalse(a.exists());
+		assertFalse(b.exists());
+		assertEquals(0, index.size());
+		assertEquals(120, index.getReclaimedBytes());
+		assertEquals(2, index.getReclaimedFiles());
+	}
+
+	@Test
+	public void expireIsLimitedAndSkipsUntrackedFiles() throws Exception {
+		long now = System.currentTimeMillis();
+		File kept = createFile("AbCdEfGhI.jpg", 10);
+
+		for (int i = 0; i < 5; i++)
+			index.track(createFile("AbCdEfGh" + (char) ('a' + i) + ".png", 10));
+
+		index.track(kept);
+		index.untrack(kept);
+
+		assertEquals(20, index.expire(now + TTL + 1000, 2));
+		assertEquals(3, index.size());
+		assertEquals(30, index.expire(now + TTL + 1000, 100));
+		assertTrue(kept.exists());
+	}
+
+	@Test
+	public void sweepWorksThroughDirInBatches() throws Exception {
+		long now = System.currentTimeMillis();
+
+		for (int i = 0; i < 5; i++)
+			createFile("AbCdEfGh" + (char) ('a' + i) + ".gif", 10)
+					.setLastModified(now - TTL - 60000);
+
+		File recent = createFile("AbCdEfGhz.gif", 10);
+		File other = createFile("notes.txt", 10);
+		other.setLastModified(now - TTL - 60000);
+
+		assertTrue(index.sweep(now, 2) <= 20);
+		assertTrue(index.isSweeping());
+
+		while (index.isSweeping())
+			index.sweep(now, 2);
+
+		assertEquals(50, index.getReclaimedBytes());
+		assertTrue(recent.exists());
+		assertTrue(other.exists());
+		assertEquals(2, dir.list().length);
+	}
+
+	private File createFile(String name, int size) throws Exception {
+		File file = new File(dir, name);
+		FileOutputStream out = new FileOutputStream(file);
+
+		try {
+			out.write(new byte[size]);
+		} finally {
+			out.close();
+		}
+
+		return file;
+	}
+}
@@ -0,0 +1,42 @@
+import java.util.HashMap;
+import java.util.Map;
+
+import play.Play;
+
+/**
+ * Config overrides for a single test. Every key set through it is put back
+ * the way it was (or removed again) by {@link #restore()}, which the test
+ * calls from its <code>@After</code> method.
+ */
+public class TestConfig {
+	private final Map<String, String> previousConfig = new HashMap<String, String>();
+
+	/**
+	 * Used to set <code>key</code> to <code>value</code>, or to remove it if
+	 * <code>value</code> is <code>null</code>.
+	 */
+	public void set(String key, String value) {
+		if (!previousConfig.containsKey(key))
+			previousConfig.put(key, Play.configuration.getProperty(key));
+
+		if (value == null)
+			Play.configuration.remove(key);
+		else
+			Play.configuration.setProperty(key, value);
+	}
+
+	/**
+	 * Used to undo every {@link #set(String, String)} since the last restore.
+	 */
+	public void restore() {
+		for (Map.Entry<String, String> entry : previousConfig.entrySet()) {
+			if (entry.getValue() == null)
+				Play.configuration.remove(entry.getKey());
+			else
+				Play.configuration.setProperty(entry.getKey(),
+						entry.getValue());
+		}
+
+		previousConfig.clear();
+	}
+}
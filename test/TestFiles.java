@@ -0,0 +1,19 @@
+import java.io.File;
+
+/**
+ * File helpers shared by the tests that write to disk.
+ */
+public class TestFiles {
+	/**
+	 * Used to delete <code>file</code>, and everything under it if it is a
+	 * directory.
+	 */
+	public static void delete(File file) {
+		File[] files = file.listFiles();
+
+		for (int i = 0; files != null && i < files.length; i++)
+			delete(files[i]);
+
+		file.delete();
+	}
+}
@@ -0,0 +1,81 @@
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import controllers.processing.ImageEncoder;
+
+/**
+ * Test images and their encoded bytes, shared by the image tests.
+ */
+public class TestImages {
+	/**
+	 * Used to create a <code>TYPE_INT_RGB</code> image, see
+	 * {@link #createImage(int, int, int)}.
+	 */
+	public static BufferedImage createImage(int width, int height) {
+		return createImage(width, height, BufferedImage.TYPE_INT_RGB);
+	}
+
+	/**
+	 * @return a smooth gradient with a white oval in the middle.
+	 */
+	public static BufferedImage createImage(int width, int height, int type) {
+		BufferedImage image = new BufferedImage(width, height, type);
+		Graphics2D g = image.createGraphics();
+
+		try {
+			g.setPaint(new GradientPaint(0, 0, Color.ORANGE, width, height,
+					Color.BLUE));
+			g.fillRect(0, 0, width, height);
+			g.setColor(Color.WHITE);
+			g.fillOval(width / 4, height / 4, width / 2, height / 2);
+		} finally {
+			g.dispose();
+		}
+
+		return image;
+	}
+
+	/**
+	 * @return {@link #createImage(int, int, int)} with random pixels over a
+	 *         quarter of it, noisy enough that compression settings make a
+	 *         difference.
+	 */
+	public static BufferedImage createNoisyImage(int width, int height,
+			int type) {
+		BufferedImage image = createImage(width, height, type);
+		Random random = new Random(42);
+
+		for (int i = 0; i < width * height / 4; i++)
+			image.setRGB(random.nextInt(width), random.nextInt(height),
+					random.nextInt());
+
+		return image;
+	}
+
+	/**
+	 * Used to encode <code>image</code> with <code>ImageIO</code>.
+	 */
+	public static byte[] encode(BufferedImage image, String format)
+			throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, format, out);
+		return out.toByteArray();
+	}
+
+	/**
+	 * Used to encode <code>image</code> with {@link ImageEncoder} at the
+	 * settings of <code>tier</code>.
+	 */
+	public static byte[] encode(BufferedImage image, String format,
+			String tier) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageEncoder.encode(image, format, tier, out);
+		return out.toByteArray();
+	}
+}
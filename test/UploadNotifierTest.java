@@ -0,0 +1,166 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import notifiers.UploadMailer;
+import notifiers.UploadNotifier;
+
+import org.junit.Test;
+
+import play.libs.Mail;
+import play.test.UnitTest;
+import controllers.response.UploadResponse;
+
+public class UploadNotifierTest extends UnitTest {
+	@Test
+	public void sendsDigestOnceBatchIsFull() throws Exception {
+		RecordingSender sender = new RecordingSender();
+		UploadNotifier notifier = new UploadNotifier(sender, 10, 3, 60000);
+
+		try {
+			for (int i = 0; i < 3; i++)
+				assertTrue(notifier.offer("127.0.0.1", createResponse(i)));
+
+			List<UploadNotifier.Notification> batch = sender.await();
+			assertEquals(3, batch.size());
+			assertEquals("file0.jpg", batch.get(0).response.originalFileName);
+			assertEquals("file2.jpg", batch.get(2).response.originalFileName);
+		} finally {
+			notifier.shutdown();
+		}
+
+		assertEquals(1, sender.batches.size());
+	}
+
+	@Test
+	public void sendsDigestAfterInterval() throws Exception {
+		RecordingSender sender = new RecordingSender();
+		UploadNotifier notifier = new UploadNotifier(sender, 10, 100, 200);
+
+		try {
+			long startTime = System.currentTimeMillis();
+			notifier.offer("127.0.0.1", createResponse(0));
+			notifier.offer("127.0.0.1", createResponse(1));
+
+			assertEquals(2, sender.await().size());
+			assertTrue(System.currentTimeMillis() - startTime >= 150);
+		} finally {
+			notifier.shutdown();
+		}
+	}
+
+	@Test
+	public void dropsWhenQueueIsFull() throws Exception {
+		final CountDownLatch sending = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		RecordingSender sender = new RecordingSender() {
+			@Override
+			public void send(List<UploadNotifier.Notification> notifications,
+					long droppedCount) throws Exception {
+				sending.countDown();
+				release.await();
+				super.send(notifications, droppedCount);
+			}
+		};
+		UploadNotifier notifier = new UploadNotifier(sender, 2, 1, 60000);
+
+		try {
+			// Keep the digest thread busy on the first one.
+			notifier.offer("127.0.0.1", createResponse(0));
+			assertTrue(sending.await(5, TimeUnit.SECONDS));
+
+			assertTrue(notifier.offer("127.0.0.1", createResponse(1)));
+			assertTrue(notifier.offer("127.0.0.1", createResponse(2)));
+			assertFalse(notifier.offer("127.0.0.1", createResponse(3)));
+			assertEquals(2, notifier.getQueueDepth());
+			assertEquals(1, notifier.getDroppedCount());
+
+			release.countDown();
+		} finally {
+			notifier.shutdown();
+		}
+
+		assertEquals(3, sender.batches.size());
+		assertEquals(Long.valueOf(0), sender.droppedCounts.get(0));
+		assertEquals(Long.valueOf(1), sender.droppedCounts.get(1));
+		assertEquals(Long.valueOf(0), sender.droppedCounts.get(2));
+	}
+
+	@Test
+	public void shutdownFlushesQueue() throws Exception {
+		RecordingSender sender = new RecordingSender();
+		UploadNotifier notifier = new UploadNotifier(sender, 10, 2, 60000);
+
+		for (int i = 0; i < 5; i++)
+			notifier.offer("127.0.0.1", createResponse(i));
+
+		notifier.shutdown();
+
+		int count = 0;
+
+		for (List<UploadNotifier.Notification> batch : sender.batches) {
+			assertTrue(batch.size() <= 2);
+			count += batch.size();
+		}
+
+		assertEquals(5, count);
+		assertFalse(notifier.offer("127.0.0.1", createResponse(5)));
+	}
+
+	@Test
+	public void mailsDigest() throws Exception {
+		// Relies on mail.smtp=mock in the test config.
+		UploadNotifier notifier = new UploadNotifier(
+				UploadNotifier.MAIL_SENDER, 10, 2, 60000);
+
+		try {
+			notifier.offer("127.0.0.1", createResponse(0));
+			notifier.offer("127.0.0.1", createResponse(1));
+		} finally {
+			notifier.shutdown();
+		}
+
+		String message = Mail.Mock
+				.getLastMessageReceivedBy(UploadMailer.RECIPIENT);
+		assertNotNull(message);
+		assertTrue(message.contains("[imgscalr] 2 Images Uploaded"));
+	}
+
+	private static UploadResponse createResponse(int index) {
+		UploadResponse response = new UploadResponse();
+		response.originalFileName = "file" + index + ".jpg";
+		response.uniqueFileKey = "abcdefgh" + (char) ('a' + index);
+		response.original = response.new Image();
+		response.thumbnail = response.new Image();
+		response.small = response.new Image();
+		response.medium = response.new Image();
+		response.large = response.new Image();
+		return response;
+	}
+
+	private static class RecordingSender implements UploadNotifier.Sender {
+		private List<List<UploadNotifier.Notification>> batches = Collections
+				.synchronizedList(new ArrayList<List<UploadNotifier.Notification>>());
+		private List<Long> droppedCounts = Collections
+				.synchronizedList(new ArrayList<Long>());
+		private CountDownLatch sent = new CountDownLatch(1);
+
+		@Override
+		public void send(List<UploadNotifier.Notification> notifications,
+				long droppedCount) throws Exception {
+			// The notifier reuses its list once this returns.
+			batches.add(new ArrayList<UploadNotifier.Notification>(
+					notifications));
+			droppedCounts.add(droppedCount);
+			sent.countDown();
+		}
+
+		private List<UploadNotifier.Notification> await()
+				throws InterruptedException {
+			assertTrue(sent.await(5, TimeUnit.SECONDS));
+			return batches.get(0);
+		}
+	}
+}
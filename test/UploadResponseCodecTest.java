@@ -0,0 +1,93 @@
+import java.io.File;
+
+import org.junit.Test;
+
+import play.test.UnitTest;
+import controllers.response.UploadResponse;
+import controllers.response.UploadResponseCodec;
+
+public class UploadResponseCodecTest extends UnitTest {
+	@Test
+	public void responseSurvivesRoundTripThroughDisk() throws Exception {
+		UploadResponse response = new UploadResponse(
+				UploadResponse.Type.SUCCESS);
+		response.originalFileName = "cat photo.jpg";
+		response.uniqueFileKey = "AbCdEfGhI";
+		response.uniqueFileName = "AbCdEfGhI.jpg";
+		response.original.width = 2048;
+		response.original.height = 1536;
+		response.original.sizeInBytes = 1234567L;
+		response.original.url = "http://i.imgscalr.com/AbCdEfGhI.jpg";
+		response.thumbnail.width = 150;
+		response.thumbnail.url = "http://i.imgscalr.com/AbCdEfGhI-T.jpg";
+
+		File file = File.createTempFile("codec-test", ".properties");
+
+		try {
+			UploadResponseCodec.write(response, file);
+			UploadResponse read = UploadResponseCodec.read(file);
+
+			assertTrue(read.success);
+			assertEquals(response.code, read.code);
+			assertEquals(response.message, read.message);
+			assertEquals(response.originalFileName, read.originalFileName);
+			assertEquals(response.uniqueFileKey, read.uniqueFileKey);
+			assertEquals(2048, read.original.width);
+			assertEquals(1536, read.original.height);
+			assertEquals(1234567L, read.original.sizeInBytes);
+			assertEquals(response.original.url, read.original.url);
+			assertEquals(150, read.thumbnail.width);
+			assertEquals(response.thumbnail.url, read.thumbnail.url);
+			assertNull(read.large.url);
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void alternateImagesSurviveRoundTrip() throws Exception {
+		UploadResponse response = new UploadResponse(
+				UploadResponse.Type.SUCCESS);
+		response.large.width = 1024;
+		response.large.encodeTime = 12;
+		response.large.alternate = response.new Image();
+		response.large.alternate.format = "jpg";
+		response.large.alternate.sizeInBytes = 54321L;
+		response.large.alternate.url = "http://i.imgscalr.com/AbCdEfGhI-L.jpg";
+
+		UploadResponse read = UploadResponseCodec
+				.fromProperties(UploadResponseCodec.toProperties(response));
+
+		assertEquals(12, read.large.encodeTime);
+		assertNotNull(read.large.alternate);
+		assertEquals("jpg", read.large.alternate.format);
+		assertEquals(54321L, read.large.alternate.sizeInBytes);
+		assertEquals(response.large.alternate.url, read.large.alternate.url);
+		assertNull(read.large.alternate.alternate);
+		assertNull(read.medium.alternate);
+	}
+
+	@Test
+	public void variantsSurviveRoundTrip() throws Exception {
+		UploadResponse response = new UploadResponse(
+				UploadResponse.Type.SUCCESS);
+		response.getVariant("small").width = 250;
+		response.getVariant("preview").width = 400;
+		response.getVariant("preview").alternate = response.new Image();
+		response.getVariant("preview").alternate.format = "jpg";
+
+		UploadResponse read = UploadResponseCodec
+				.fromProperties(UploadResponseCodec.toProperties(response));
+
+		assertEquals(2, read.variants.size());
+		assertEquals(250, read.variants.get("small").width);
+		assertSame(read.small, read.variants.get("small"));
+		assertEquals(400, read.variants.get("preview").width);
+		assertEquals("jpg", read.variants.get("preview").alternate.format);
+	}
+
+	@Test
+	public void missingFileReadsAsNull() throws Exception {
+		assertNull(UploadResponseCodec.read(new File("does-not-exist")));
+	}
+}
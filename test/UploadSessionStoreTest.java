@@ -0,0 +1,147 @@
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import play.test.UnitTest;
+import controllers.storage.TempFileIndex;
+import controllers.storage.UploadSessionStore;
+
+public class UploadSessionStoreTest extends UnitTest {
+	private static final long TTL = 60000;
+
+	private File dir;
+	private UploadSessionStore store;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = File.createTempFile("session-store-test", "");
+		dir.delete();
+		dir.mkdirs();
+
+		store = new UploadSessionStore(dir, TTL);
+	}
+
+	@After
+	public void tearDown() {
+		for (File file : dir.listFiles())
+			file.delete();
+
+		dir.delete();
+	}
+
+	@Test
+	public void chunksInAnyOrderAreCommitted() throws Exception {
+		byte[] data = createData(1000);
+		UploadSessionStore.Session session = store.create("AbCdEfGhI",
+				"AbCdEfGhI.jpg", "photo.jpg", data.length);
+
+		assertTrue(new File(dir, "AbCdEfGhI.jpg.part").isFile());
+		assertEquals(data.length, new File(dir, "AbCdEfGhI.jpg.part").length());
+
+		assertEquals(300, session.write(700, channel(data, 700, 300)));
+		assertEquals(0, session.getOffset());
+
+		session.write(0, channel(data, 0, 400));
+		assertEquals(400, session.getOffset());
+		assertNull(store.commit(session));
+
+		// Overlaps both ranges it joins.
+		session.write(350, channel(data, 350, 400));
+		assertEquals(data.length, session.getOffset());
+
+		File file = store.commit(session);
+		assertEquals(new File(dir, "AbCdEfGhI.jpg"), file);
+		assertTrue(Arrays.equals(data, read(file)));
+		assertNull(store.get("AbCdEfGhI"));
+		assertNull(store.commit(session));
+	}
+
+	@Test
+	public void chunksMustFit() throws Exception {
+		byte[] data = createData(100);
+		UploadSessionStore.Session session = store.create("AbCdEfGhI",
+				"AbCdEfGhI.png", "photo.png", data.length);
+
+		try {
+			session.write(101, channel(data, 0, 1));
+			fail("The offset is past the end.");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+
+		try {
+			session.write(50, channel(data, 0, 60));
+			fail("The chunk runs past the end.");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+
+		assertEquals(0, session.getOffset());
+	}
+
+	@Test
+	public void restoredSessionCanBeCommittedAgain() throws Exception {
+		byte[] data = createData(10);
+		UploadSessionStore.Session session = store.create("AbCdEfGhI",
+				"AbCdEfGhI.gif", "photo.gif", data.length);
+
+		session.write(0, channel(data, 0, data.length));
+		File file = store.commit(session);
+		store.restore(session, file);
+
+		assertFalse(file.exists());
+		assertSame(session, store.get("AbCdEfGhI"));
+		assertTrue(Arrays.equals(data, read(store.commit(session))));
+	}
+
+	@Test
+	public void idleSessionsExpire() throws Exception {
+		long now = System.currentTimeMillis();
+		store.create("AbCdEfGhI", "AbCdEfGhI.jpg", "a.jpg", 10);
+		store.create("AbCdEfGhJ", "AbCdEfGhJ.jpg", "b.jpg", 10);
+
+		assertEquals(0, store.expire(now));
+		assertEquals(2, store.expire(now + TTL + 1000));
+		assertEquals(0, store.size());
+		assertEquals(0, dir.list().length);
+
+		// Left over from before a restart, the temp dir sweep picks it up.
+		assertTrue(TempFileIndex.isTempFileName("AbCdEfGhI.jpg.part"));
+	}
+
+	private static ReadableByteChannel channel(byte[] data, int offset,
+			int length) {
+		return Channels.newChannel(new ByteArrayInputStream(data, offset,
+				length));
+	}
+
+	private static byte[] read(File file) throws Exception {
+		byte[] data = new byte[(int) file.length()];
+		FileInputStream in = new FileInputStream(file);
+
+		try {
+			for (int offset = 0; offset < data.length;)
+				offset += in.read(data, offset, data.length - offset);
+		} finally {
+			in.close();
+		}
+
+		return data;
+	}
+
+	private static byte[] createData(int length) {
+		byte[] data = new byte[length];
+
+		for (int i = 0; i < length; i++)
+			data[i] = (byte) (i * 7 + 3);
+
+		return data;
+	}
+}